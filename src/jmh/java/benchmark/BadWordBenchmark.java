@@ -0,0 +1,79 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import server.BadWordFilter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Cost of checking a clean message against BadWords.txt, which is what Server.containsBadWord does for every message.
+ * The split and look up of every word, as the server used to do it, is kept as a baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BadWordBenchmark {
+    private static final Path BAD_WORDS = Path.of("src/main/java/server/BadWords.txt");
+    private static final String SENTENCE = "Did anyone manage to get the server running on port 1500 before the deadline? ";
+
+    @Param({"short", "sentence", "paragraph"})
+    private String length;                  // How long the checked message is
+
+    private BadWordFilter filter;           // The compiled word list
+    private HashSet<String> words;          // The word list as a set, for the baseline
+    private String message;                 // The message being checked
+
+
+    // Load the word list and build the message
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        filter = new BadWordFilter(BAD_WORDS);
+        filter.reload();
+        words = new HashSet<>();
+        for (String line : Files.readAllLines(BAD_WORDS)) {
+            words.add(line.trim().toLowerCase());
+        }
+        message = switch (length) {
+            case "short" -> "hi all";
+            case "sentence" -> SENTENCE.trim();
+            default -> SENTENCE.repeat(8).trim();
+        };
+    }
+
+
+    // The compiled filter, a single pass over the message
+    @Benchmark
+    public boolean filter() {
+        return filter.matches(message);
+    }
+
+
+    // Split the message on white space and look every lower cased word up
+    @Benchmark
+    public boolean splitAndLookup() {
+        for (String word : message.split("\\s+")) {
+            if (words.contains(word.toLowerCase())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
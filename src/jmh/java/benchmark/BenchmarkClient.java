@@ -0,0 +1,61 @@
+package benchmark;
+
+import server.ClientConnection;
+import server.EncodedMessage;
+import server.OutboundQueue;
+
+/*
+ * A client without a connection for the benchmarks.
+ * It accepts every message and only counts them, so a benchmark measures the server's work and not the network.
+ */
+public class BenchmarkClient implements ClientConnection {
+    private final long id;                  // A unique identifier for the client
+    private volatile String username;       // The username for the client
+    private final OutboundQueue outbound = new OutboundQueue(1, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+    private long received;                  // Messages sent to the client
+
+
+    // Constructor that receives the id and the username
+    public BenchmarkClient(long id, String username) {
+        this.id = id;
+        this.username = username;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public String getIpAddress() {
+        return "127.0.0.1";
+    }
+
+    public String getDate() {
+        return "";
+    }
+
+    // Count the message instead of writing it
+    public boolean send(EncodedMessage msg) {
+        received++;
+        return true;
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+
+    public void close() {
+    }
+
+    // Messages sent to the client
+    public long getReceived() {
+        return received;
+    }
+}
@@ -0,0 +1,114 @@
+package benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Compares two JMH result files written with "-rf csv" and reports how every benchmark changed.
+ * Exits with status 1 when a benchmark got slower by more than the threshold, so it can gate a build.
+ *
+ *   java -cp target/benchmarks.jar benchmark.BenchmarkCompare before.csv after.csv [thresholdPercent]
+ */
+public class BenchmarkCompare {
+    private static final double DEFAULT_THRESHOLD = 10.0;  // Percent a benchmark may get slower before it counts as a regression
+
+    // Score of one benchmark with one set of parameters
+    private record Result(String mode, double score, double error, String unit) {
+    }
+
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.out.println("Usage is:>java benchmark.BenchmarkCompare before.csv after.csv [thresholdPercent]");
+            System.exit(2);
+        }
+        double threshold = args.length == 3 ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD;
+        Map<String, Result> before = read(Path.of(args[0]));
+        Map<String, Result> after = read(Path.of(args[1]));
+
+        int regressions = 0;
+        System.out.printf("%-70s %14s %14s %9s%n", "Benchmark", "Before", "After", "Change");
+        for (Map.Entry<String, Result> entry : after.entrySet()) {
+            Result old = before.get(entry.getKey());
+            Result now = entry.getValue();
+            if (old == null) {
+                System.out.printf("%-70s %14s %14.3f %9s%n", entry.getKey(), "-", now.score(), "new");
+                continue;
+            }
+            // Positive when the benchmark got slower, whatever the mode
+            double change = 100.0 * (now.score() - old.score()) / old.score();
+            double slower = now.mode().equals("thrpt") ? -change : change;
+            // Differences within the error of both measurements are noise
+            boolean noise = Math.abs(now.score() - old.score()) <= old.error() + now.error();
+            boolean regression = slower > threshold && !noise;
+            if (regression) {
+                regressions++;
+            }
+            System.out.printf("%-70s %14.3f %14.3f %+8.1f%% %s%s%n", entry.getKey(), old.score(), now.score(), change,
+                    now.unit(), regression ? "  REGRESSION" : "");
+        }
+        System.out.println(regressions + " regression(s) above " + threshold + "%");
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+
+    // Read a result file, keyed by benchmark name and parameters
+    private static Map<String, Result> read(Path file) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<>();
+        List<String> lines = Files.readAllLines(file);
+        List<String> header = split(lines.get(0));
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isBlank()) {
+                continue;
+            }
+            List<String> columns = split(line);
+            StringBuilder key = new StringBuilder(columns.get(header.indexOf("Benchmark")));
+            for (int i = 0; i < header.size(); i++) {
+                if (header.get(i).startsWith("Param: ") && !columns.get(i).isEmpty()) {
+                    key.append(' ').append(header.get(i).substring(7)).append('=').append(columns.get(i));
+                }
+            }
+            String error = columns.get(header.indexOf("Score Error (99.9%)"));
+            results.put(key.toString(), new Result(
+                    columns.get(header.indexOf("Mode")),
+                    Double.parseDouble(columns.get(header.indexOf("Score"))),
+                    error.isEmpty() || error.equals("NaN") ? 0 : Double.parseDouble(error),
+                    columns.get(header.indexOf("Unit"))));
+        }
+        return results;
+    }
+
+
+    // Split a CSV line, fields may be quoted
+    private static List<String> split(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                }
+                else {
+                    quoted = !quoted;
+                }
+            }
+            else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            }
+            else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
@@ -0,0 +1,97 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.HistoryWriter;
+import server.Server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Cost of Server.broadcast for a public message fanned out to the whole room and for a private message,
+ * at different room sizes. The clients only count what they receive, the history goes to a temporary directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    private int roomSize;                   // Number of clients in the room
+
+    private Server server;                  // The server broadcasting the messages
+    private BenchmarkClient sender;         // The client sending the messages
+    private String privateMessage;          // A message for the most recently joined client
+    private PrintStream console;            // Standard output, restored after the benchmark
+    private Path historyDirectory;          // Where the history of the benchmark is written
+
+
+    // Fill a room with clients
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        historyDirectory = Files.createTempDirectory("chat-history");
+        System.setProperty("history.dir", historyDirectory.toString());
+        // The server echoes every message to the console, which would measure the terminal instead
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        server = new Server(0);
+        server.setHistoryDurability(HistoryWriter.Durability.NONE, 0);
+        server.setHistoryReplay(0);
+        for (int i = 0; i < roomSize; i++) {
+            BenchmarkClient client = new BenchmarkClient(i, "user" + i);
+            server.reserveUsername(client.getUsername(), client);
+            server.addClient(client);
+            if (i == 0) {
+                sender = client;
+            }
+        }
+        privateMessage = "@user" + (roomSize - 1) + " are you coming to the meeting later?";
+    }
+
+
+    // Stop the server and remove its history
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.stop();
+        System.setOut(console);
+        try (var files = Files.list(historyDirectory)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(historyDirectory);
+    }
+
+
+    // A public message delivered to every client in the room
+    @Benchmark
+    public boolean publicMessage() {
+        return server.broadcast(sender, "hello everyone, how is the project going today?");
+    }
+
+
+    // A private message delivered to a single client
+    @Benchmark
+    public boolean privateMessage() {
+        return server.broadcast(sender, privateMessage);
+    }
+}
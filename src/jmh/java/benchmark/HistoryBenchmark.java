@@ -0,0 +1,91 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.HistoryLog;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Throughput of appending chat lines to the history log, flushing every line as a quiet room would
+ * and flushing batches of lines as the history writer does under load, plus reading the last lines back on join.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+    private static final String LINE = "alice: hello everyone, how is the project going today?";
+    private static final int BATCH = 64;    // Lines written per flush in the batched benchmark
+
+    private Path directory;                 // Where the benchmark's segments are written
+    private HistoryLog log;                 // The log being appended to
+    private long timestamp;                 // Timestamp of the next line
+
+
+    // Open a log in a temporary directory
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("chat-history");
+        log = new HistoryLog(directory, HistoryLog.DEFAULT_SEGMENT_SIZE);
+        for (int i = 0; i < 1000; i++) {
+            log.append(timestamp++, LINE);
+        }
+        log.flush();
+    }
+
+
+    // Close the log and remove its segments
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        log.close();
+        try (var files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+
+    // Every line written on its own
+    @Benchmark
+    public int appendAndFlush() throws IOException {
+        log.append(timestamp++, LINE);
+        return log.flush();
+    }
+
+
+    // Lines written in batches, as the history writer does when lines queue up
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int appendBatch() throws IOException {
+        for (int i = 0; i < BATCH; i++) {
+            log.append(timestamp++, LINE);
+        }
+        return log.flush();
+    }
+
+
+    // The last lines read back for a joining client
+    @Benchmark
+    public int readLast() throws IOException {
+        return log.readLast(20).size();
+    }
+}
@@ -0,0 +1,115 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import shared.Frame;
+import shared.FrameCodec;
+import shared.MessageUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Cost of sending a MessageUtils from one side to the other, encoding and decoding included,
+ * with Java serialization as the clients that predate the frame protocol do, and with the binary frame protocol.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+    private static final String TEXT = "hello everyone, how is the project going today?";
+    private static final int RESET_INTERVAL = 1024;  // Messages between two resets of the serialization streams
+
+    // Byte array stream whose buffer can be handed to the reader without copying
+    private static final class Buffer extends ByteArrayOutputStream {
+        private byte[] bytes() {
+            return buf;
+        }
+    }
+
+    // Input stream reading whatever the writer produced last
+    private static final class Replay extends InputStream {
+        private byte[] bytes = new byte[0];
+        private int position;
+        private int limit;
+
+        private void set(byte[] bytes, int limit) {
+            this.bytes = bytes;
+            this.position = 0;
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() {
+            return position < limit ? bytes[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= limit) {
+                return -1;
+            }
+            int count = Math.min(len, limit - position);
+            System.arraycopy(bytes, position, b, off, count);
+            position += count;
+            return count;
+        }
+    }
+
+    private final Buffer written = new Buffer();  // What the writer produced for the current message
+    private final Replay replay = new Replay();   // Feeds it to the reader
+    private ObjectOutputStream objectOutput;      // Long lived like the stream of a connection
+    private ObjectInputStream objectInput;        // Long lived like the stream of a connection
+    private int sent;                             // Messages written to the serialization streams
+
+
+    // Open both serialization streams, the reader consumes the stream header straight away
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        objectOutput = new ObjectOutputStream(written);
+        objectOutput.flush();
+        replay.set(written.bytes(), written.size());
+        objectInput = new ObjectInputStream(replay);
+        written.reset();
+    }
+
+
+    // A message written and read back with Java serialization
+    @Benchmark
+    public MessageUtils javaSerialization() throws IOException, ClassNotFoundException {
+        // A stream that is never reset remembers every object, a connection would reset it now and then
+        if (++sent % RESET_INTERVAL == 0) {
+            objectOutput.reset();
+        }
+        objectOutput.writeObject(new MessageUtils(MessageUtils.MESSAGE, TEXT));
+        objectOutput.flush();
+        replay.set(written.bytes(), written.size());
+        written.reset();
+        return (MessageUtils) objectInput.readObject();
+    }
+
+
+    // A message encoded and decoded as a frame
+    @Benchmark
+    public MessageUtils frame() throws IOException {
+        byte[] bytes = FrameCodec.encode(new Frame(new MessageUtils(MessageUtils.MESSAGE, TEXT)));
+        return FrameCodec.decode(ByteBuffer.wrap(bytes)).toMessage();
+    }
+}
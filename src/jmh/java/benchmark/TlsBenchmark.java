@@ -0,0 +1,246 @@
+package benchmark;
+
+import client.NetworkClient;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.HistoryWriter;
+import server.Server;
+import shared.Frame;
+import shared.MessageUtils;
+import shared.Tls;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/*
+ * Cost of TLS on a NIO server over the loopback, against the same server without it. handshake() opens a connection
+ * with a client context that already talked to the server, so the session is resumed, fullHandshake() uses a new
+ * context every time and pays for the certificate signature. message() sends a burst of public messages and waits
+ * until another client received them all; its cpuNanosPerMessage counter is the CPU time the whole process, server
+ * and both clients, spent per message. The key pair is generated with keytool into a temporary directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsBenchmark {
+    private static final int BURST = 100;                   // Messages sent by one invocation of message()
+    private static final char[] PASSWORD = "benchmark".toCharArray();
+
+    @Param({"plain", "tls"})
+    private String transport;               // Whether the connections are plain TCP or TLS
+
+    private Server server;                  // The NIO server the clients connect to
+    private int port;                       // Port of the server
+    private Path directory;                 // Temporary directory of the history and the keystore
+    private Path keyStore;                  // Key and certificate of the server, also the clients' trust store
+    private SSLContext clientContext;       // Context shared by the connections that resume, null for plain TCP
+    private PrintStream console;            // Standard output, restored after the benchmark
+    private NetworkClient sender;           // Client sending the messages of message()
+    private NetworkClient receiver;         // Client the messages of message() are counted at
+    private final Semaphore delivered = new Semaphore(0);       // Released for every message the receiver got
+    private final AtomicInteger connections = new AtomicInteger(); // Numbers the usernames of the handshake clients
+
+
+    // Start the server and connect the two clients exchanging messages
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("chat-tls");
+        System.setProperty("history.dir", directory.toString());
+        // The server echoes every message to the console, which would measure the terminal instead
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        server = new Server(port, Server.Engine.NIO);
+        server.setHistoryDurability(HistoryWriter.Durability.NONE, 0);
+        server.setHistoryReplay(0);
+        // A closed connection leaves the room at once instead of holding its username
+        server.setSessionGrace(0);
+        if (transport.equals("tls")) {
+            keyStore = directory.resolve("server.p12");
+            Tls.generateTestKeyStore(keyStore, PASSWORD);
+            server.setTls(Tls.serverContext(keyStore, PASSWORD, Tls.DEFAULT_SESSION_CACHE, Tls.DEFAULT_SESSION_TIMEOUT));
+            clientContext = Tls.clientContext(keyStore, PASSWORD);
+        }
+        new Thread(server::start, "tls-benchmark-server").start();
+        awaitListening();
+
+        receiver = connect("receiver", clientContext, new Quiet() {
+            public void onFrame(Frame frame) {
+                if (frame.getType() == MessageUtils.CHAT && frame.getPayload().startsWith("burst")) {
+                    delivered.release();
+                }
+            }
+        });
+        sender = connect("sender", clientContext, new Quiet());
+    }
+
+
+    // Disconnect the clients, stop the server and remove the temporary files
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sender.closeAll();
+        receiver.closeAll();
+        server.stop();
+        System.setOut(console);
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+
+    // Open and close a connection that resumes the session of an earlier one
+    @Benchmark
+    public boolean handshake() throws IOException {
+        return handshake(clientContext);
+    }
+
+
+    // Open and close a connection that negotiates a new session
+    @Benchmark
+    public boolean fullHandshake(FreshContext fresh) throws IOException {
+        return handshake(fresh.context);
+    }
+
+
+    // Send a burst of public messages and wait until the receiver got all of them
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void message(CpuTime cpu) throws InterruptedException {
+        long start = cpu.now();
+        for (int i = 0; i < BURST; i++) {
+            sender.sendMessage(new MessageUtils(MessageUtils.MESSAGE, "burst of messages to measure the cost of sealing"));
+        }
+        if (!delivered.tryAcquire(BURST, 10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("The receiver did not get the burst.");
+        }
+        cpu.add(cpu.now() - start, BURST);
+    }
+
+
+    /*
+     * A client context nobody used yet, created outside the measured time of every invocation.
+     */
+    @State(Scope.Thread)
+    public static class FreshContext {
+        private SSLContext context;         // The new context, null for plain TCP
+
+        // Load the trust store into a new context
+        @Setup(Level.Invocation)
+        public void setUp(TlsBenchmark benchmark) throws IOException {
+            context = benchmark.keyStore == null ? null : Tls.clientContext(benchmark.keyStore, PASSWORD);
+        }
+    }
+
+
+    /*
+     * Process CPU time spent by message(), reported next to the throughput.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class CpuTime {
+        public double cpuNanosPerMessage;   // CPU time of the process divided by the messages of the iteration so far
+        private final com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        private long nanos;                 // CPU time spent in this iteration
+        private long messages;              // Messages sent in this iteration
+
+        // Start counting again with every iteration
+        @Setup(Level.Iteration)
+        public void reset() {
+            cpuNanosPerMessage = 0;
+            nanos = 0;
+            messages = 0;
+        }
+
+        // CPU time the process used so far, in nanoseconds
+        long now() {
+            return os.getProcessCpuTime();
+        }
+
+        // Account for the CPU time of a burst of messages
+        void add(long burstNanos, int burstMessages) {
+            nanos += burstNanos;
+            messages += burstMessages;
+            cpuNanosPerMessage = (double) nanos / messages;
+        }
+    }
+
+
+    // Connect a new client and close it again, the server then drops it from the room
+    private boolean handshake(SSLContext context) throws IOException {
+        NetworkClient client = connect("user" + connections.incrementAndGet(), context, new Quiet());
+        client.closeAll();
+        return true;
+    }
+
+
+    // Connect a client with the context, null for plain TCP
+    private NetworkClient connect(String username, SSLContext context, NetworkClient.Listener listener) throws IOException {
+        NetworkClient client = new NetworkClient("localhost", port, username, listener);
+        client.setTls(context);
+        if (!client.isConnected()) {
+            throw new IOException(username + " could not connect to port " + port);
+        }
+        return client;
+    }
+
+
+    // Wait until the server accepts connections
+    private void awaitListening() throws InterruptedException, IOException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            try (Socket ignored = new Socket("localhost", port)) {
+                return;
+            }
+            catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+
+    /*
+     * Listener ignoring everything the server sends.
+     */
+    private static class Quiet implements NetworkClient.Listener {
+        public void onConnect(Socket socket) {}
+        public void onFrame(Frame frame) {}
+        public void onDisconnect(IOException cause) {}
+    }
+}
@@ -0,0 +1,47 @@
+package client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Delays between the attempts to reconnect to the server: exponential backoff with full jitter.
+ * The longest delay doubles with every attempt, from the initial delay up to the maximum, and each delay is drawn
+ * at random between zero and that ceiling. Clients that lost the server at the same instant, for example when it
+ * restarts, spread their reconnects over the whole window instead of all arriving at its end together.
+ */
+public class Backoff
+{
+    private final long initialDelay;  	// Ceiling of the first delay in milliseconds
+    private final long maxDelay;  		// Largest ceiling in milliseconds, however many attempts failed
+
+
+    // Constructor that receives the ceiling of the first delay and the largest one, in milliseconds
+    public Backoff(long initialDelayMillis, long maxDelayMillis)
+    {
+        if (initialDelayMillis < 1 || maxDelayMillis < initialDelayMillis)
+        {
+            throw new IllegalArgumentException("The initial delay must be positive and not above the maximum delay.");
+        }
+        this.initialDelay = initialDelayMillis;
+        this.maxDelay = maxDelayMillis;
+    }
+
+
+    // The longest delay before the attempt, counting from 1
+    public long ceiling(int attempt)
+    {
+        // Doubling stops once the maximum is reached, so a long outage never overflows
+        long ceiling = initialDelay;
+        for (int i = 1; i < attempt && ceiling < maxDelay; i++)
+        {
+            ceiling *= 2;
+        }
+        return Math.min(ceiling, maxDelay);
+    }
+
+
+    // A random delay before the attempt, between zero and its ceiling
+    public long delay(int attempt)
+    {
+        return ThreadLocalRandom.current().nextLong(ceiling(attempt) + 1);
+    }
+}
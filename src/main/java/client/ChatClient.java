@@ -1,5 +1,10 @@
 package client;
 
+import shared.Tls;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
 /*
  * This class represents a simple chat client which handles the functionality of setting a
  * specified IP address, port number, and user-name via command line arguments. //CHANGE
@@ -112,6 +117,25 @@ public class ChatClient {
 
         // Create a new network client object, passing in command line parameters
         NetworkClient networkClient = new NetworkClient(chatClient.address, chatClient.port, chatClient.username);
+        // Files other users send are saved in the downloads directory
+        networkClient.setDownloadDirectory(Path.of("downloads"));
+        // Reconnect by itself when the connection drops, e.g. -Dreconnect.attempts=10 -Dreconnect.initialDelay=500 -Dreconnect.maxDelay=30000
+        networkClient.setReconnect(Integer.getInteger("reconnect.attempts", 10),
+                Long.getLong("reconnect.initialDelay", 500), Long.getLong("reconnect.maxDelay", 30_000));
+        // Connect with TLS when the server's certificate is given, e.g. -Dtls.truststore=server.p12 -Dtls.password=secret
+        String trustStore = System.getProperty("tls.truststore");
+        if (trustStore != null)
+        {
+            try
+            {
+                networkClient.setTls(Tls.clientContext(Path.of(trustStore), System.getProperty("tls.password", "").toCharArray()));
+            }
+            catch (IOException e)
+            {
+                System.out.println("Invalid TLS settings. " + e.getMessage());
+                return;
+            }
+        }
 
            	// Start the client and check if it has successfully started
             if (networkClient.isConnected())
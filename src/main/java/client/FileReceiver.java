@@ -0,0 +1,256 @@
+package client;
+
+import shared.Frame;
+import shared.MessageUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Saves the files other clients send to this one in a download directory as their frames arrive.
+ * A FILE frame creates the file under the name the sender gave it, numbered when the directory already holds one,
+ * FILE_DATA frames are appended and FILE_END closes it. A file whose transfer was cut short, or whose bytes do
+ * not add up to the announced size, is deleted. Without a download directory incoming files are not saved.
+ */
+public class FileReceiver
+{
+    // A file being received
+    private static final class Incoming
+    {
+        private final Path path;  			// Where the file is saved
+        private final FileChannel channel;  // Open for writing until FILE_END
+        private final long size;  			// Size announced by the sender
+        private long received;  			// Bytes written so far
+
+        private Incoming(Path path, FileChannel channel, long size)
+        {
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();  // The listening thread writes, any thread may read
+    private final Map<Long, Incoming> incoming = new HashMap<>();  // Files being received by transfer id
+    private final List<Path> received = new ArrayList<>();  // Files received completely, oldest first
+    private Path directory;  		// Where files are saved, null to not save them
+    private long failed;  			// Files deleted because their transfer was cut short or could not be written
+
+
+    // Set the directory incoming files are saved in, null to not save them
+    public void setDirectory(Path directory)
+    {
+        lock.lock();
+        try
+        {
+            this.directory = directory;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    // Apply a FILE, FILE_DATA or FILE_END frame, any other frame is ignored
+    public void apply(Frame frame)
+    {
+        lock.lock();
+        try
+        {
+            long transfer = frame.getLong(Frame.FIELD_TRANSFER, -1);
+            switch (frame.getType())
+            {
+                case MessageUtils.FILE -> open(transfer, frame);
+                case MessageUtils.FILE_DATA ->
+                {
+                    Incoming file = incoming.get(transfer);
+                    byte[] data = frame.getField(Frame.FIELD_DATA);
+                    if (file == null || data == null)
+                    {
+                        return;
+                    }
+                    try
+                    {
+                        ByteBuffer buffer = ByteBuffer.wrap(data);
+                        while (buffer.hasRemaining())
+                        {
+                            file.channel.write(buffer);
+                        }
+                        file.received += data.length;
+                    }
+                    catch (IOException e)
+                    {
+                        discard(transfer);
+                    }
+                }
+                case MessageUtils.FILE_END ->
+                {
+                    Incoming file = incoming.get(transfer);
+                    if (file == null)
+                    {
+                        return;
+                    }
+                    if ((frame.getFlags() & Frame.FLAG_ABORTED) != 0 || file.received != file.size)
+                    {
+                        discard(transfer);
+                        return;
+                    }
+                    incoming.remove(transfer);
+                    try
+                    {
+                        file.channel.close();
+                        received.add(file.path);
+                    }
+                    catch (IOException e)
+                    {
+                        failed++;
+                    }
+                }
+                default ->
+                {
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    // Create the file announced by a FILE frame, caller holds the lock
+    private void open(long transfer, Frame frame)
+    {
+        if (directory == null)
+        {
+            return;
+        }
+        // Only the last part of the name is kept, a sender cannot write outside the directory
+        String name = safeName(frame.getString(Frame.FIELD_FILE_NAME), transfer);
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        try
+        {
+            Files.createDirectories(directory);
+            for (int copy = 0; ; copy++)
+            {
+                Path path = directory.resolve(copy == 0 ? name : base + " (" + copy + ")" + extension);
+                try
+                {
+                    FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                    incoming.put(transfer, new Incoming(path, channel, frame.getLong(Frame.FIELD_FILE_SIZE, 0)));
+                    return;
+                }
+                catch (FileAlreadyExistsException e)
+                {
+                    // Never overwrite a file, try the next number
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            failed++;
+        }
+    }
+
+
+    // The file name without any directory, or a name made from the transfer id when there is none
+    private static String safeName(String name, long transfer)
+    {
+        try
+        {
+            Path fileName = name == null ? null : Path.of(name).getFileName();
+            if (fileName != null && !fileName.toString().equals("..") && !fileName.toString().equals("."))
+            {
+                return fileName.toString();
+            }
+        }
+        catch (InvalidPathException e)
+        {
+            // Not a name this file system accepts
+        }
+        return "transfer-" + transfer;
+    }
+
+
+    // Close and delete a file that will not be complete, caller holds the lock
+    private void discard(long transfer)
+    {
+        Incoming file = incoming.remove(transfer);
+        if (file == null)
+        {
+            return;
+        }
+        failed++;
+        try
+        {
+            file.channel.close();
+            Files.deleteIfExists(file.path);
+        }
+        catch (IOException e)
+        {
+            // Nothing more can be done about it
+        }
+    }
+
+
+    // Delete the files still being received, the connection is gone
+    public void abandon()
+    {
+        lock.lock();
+        try
+        {
+            for (Long transfer : new ArrayList<>(incoming.keySet()))
+            {
+                discard(transfer);
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    // Files received completely, oldest first
+    public List<Path> getReceived()
+    {
+        lock.lock();
+        try
+        {
+            return new ArrayList<>(received);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    // Files deleted because their transfer was cut short or they could not be written
+    public long getFailed()
+    {
+        lock.lock();
+        try
+        {
+            return failed;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
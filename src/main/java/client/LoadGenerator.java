@@ -0,0 +1,508 @@
+package client;
+
+import shared.Frame;
+import shared.LatencyHistogram;
+import shared.MessageUtils;
+import shared.Tls;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Headless load generator for sizing a server. It opens many connections through NetworkClient, each on a
+ * virtual thread, and has every simulated client send a random mix of broadcasts, private messages,
+ * USERS and KICK requests at a Poisson paced rate. Chat lines carry the time they were sent, so every
+ * receiver can record the send to receive latency; it reports latency percentiles, throughput and
+ * connection setup times.
+ *
+ * Usage: java client.LoadGenerator [host] [port] [clients] [seconds]
+ *   -Dload.rate=1.0          messages per second sent by each client
+ *   -Dload.mix=broadcast=70,private=25,users=4,kick=1   relative weight of each request
+ *   -Dload.connectRate=500   connections opened per second while ramping up
+ *   -Dload.size=64           characters of text in each chat message
+ *   -Dload.prefix=load       usernames are the prefix followed by the client number
+ *   -Dload.async=false       send through NetworkClient.sendAsync() instead of writing on the client's thread
+ *   -Dtls.truststore=file    connect with TLS, trusting the certificates in the PKCS12 file (-Dtls.password)
+ */
+public class LoadGenerator
+{
+    private static final String USAGE = "Usage is:>java client.LoadGenerator [host] [port] [clients] [seconds]";
+    private static final String MARKER = "~t";                 // Precedes the send time in every chat message
+    private static final long REPORT_INTERVAL_MILLIS = 5000;   // How often progress is printed
+    private static final long DRAIN_MILLIS = 2000;             // How long replies are awaited after the last send
+    private static final String FILLER = "the quick brown fox jumps over the lazy dog ";
+
+    // Requests a simulated client can send
+    public enum Operation
+    {
+        BROADCAST, PRIVATE, USERS, KICK
+    }
+
+    private final String host;                     // Server hostname
+    private final int port;                        // Server port number
+    private final int clients;                     // Connections to open
+    private final long durationMillis;             // How long the clients keep sending once all are connected
+    private final double rate;                     // Messages per second sent by each client
+    private final double connectRate;              // Connections opened per second
+    private final String prefix;                   // Prefix of the usernames
+    private final String filler;                   // Text sent after the send time
+    private final Operation[] operations = Operation.values();
+    private final int[] cumulativeWeights = new int[operations.length];  // Running total of the weights of the mix
+    private final PrintStream out;                 // Where progress and the report are printed
+    private volatile boolean async;                // Whether requests go through the asynchronous send queue
+    private volatile SSLContext tls;               // Secures the connections, shared so they resume TLS sessions, null for plain TCP
+
+    private final LatencyHistogram publicLatency = new LatencyHistogram();   // Send to receive time of broadcasts, once per receiver
+    private final LatencyHistogram privateLatency = new LatencyHistogram();  // Send to receive time of private messages
+    private final LatencyHistogram usersLatency = new LatencyHistogram();    // Time until the USERS listing starts arriving
+    private final LatencyHistogram connectTime = new LatencyHistogram();     // Time to open a connection and finish the handshake
+    private final Map<Operation, LongAdder> sent = new EnumMap<>(Operation.class);  // Requests sent per operation
+    private final LongAdder received = new LongAdder();         // Chat lines received
+    private final LongAdder texts = new LongAdder();            // Server text lines received
+    private final LongAdder connected = new LongAdder();        // Connections currently open
+    private final LongAdder connectFailures = new LongAdder();  // Connections that could not be opened
+    private final LongAdder sendFailures = new LongAdder();     // Requests that could not be written
+    private final LongAdder disconnects = new LongAdder();      // Connections closed by the server, kicks included
+    private volatile boolean stopping;                          // Set once the clients are being closed
+
+
+    // Constructor for a load generator with the mix given as weights per operation
+    public LoadGenerator(String host, int port, int clients, long durationMillis, double rate,
+                         Map<Operation, Integer> mix, double connectRate, int messageSize, String prefix, PrintStream out)
+    {
+        if (clients < 1 || durationMillis < 0 || rate <= 0 || connectRate <= 0 || messageSize < 0)
+        {
+            throw new IllegalArgumentException("Clients, rates and sizes must be positive.");
+        }
+        this.host = host;
+        this.port = port;
+        this.clients = clients;
+        this.durationMillis = durationMillis;
+        this.rate = rate;
+        this.connectRate = connectRate;
+        this.prefix = prefix;
+        this.filler = FILLER.repeat(messageSize / FILLER.length() + 1).substring(0, messageSize);
+        this.out = out;
+        int total = 0;
+        for (int i = 0; i < operations.length; i++)
+        {
+            total += Math.max(0, mix.getOrDefault(operations[i], 0));
+            cumulativeWeights[i] = total;
+            sent.put(operations[i], new LongAdder());
+        }
+        if (total == 0)
+        {
+            throw new IllegalArgumentException("The mix must give at least one operation a weight.");
+        }
+    }
+
+
+    // Parse a mix such as "broadcast=70,private=25,users=4,kick=1"
+    public static Map<Operation, Integer> parseMix(String mix)
+    {
+        Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+        for (String part : mix.split(","))
+        {
+            String[] pair = part.trim().split("=");
+            if (pair.length != 2)
+            {
+                throw new IllegalArgumentException("Invalid mix entry: " + part);
+            }
+            weights.put(Operation.valueOf(pair[0].trim().toUpperCase()), Integer.parseInt(pair[1].trim()));
+        }
+        return weights;
+    }
+
+
+    // Connect the clients, let them send for the duration, close them and print the report
+    public void run() throws InterruptedException
+    {
+        long start = System.nanoTime();
+        long rampNanos = (long) (clients / connectRate * 1e9);
+        long deadline = start + rampNanos + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+
+        List<SimulatedClient> simulated = new ArrayList<>(clients);
+        List<Thread> threads = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++)
+        {
+            SimulatedClient client = new SimulatedClient(i, start + (long) (i / connectRate * 1e9), deadline);
+            simulated.add(client);
+            threads.add(Thread.ofVirtual().name("load-" + i).start(client::run));
+        }
+
+        // Print progress until every client stopped sending
+        long lastSent = 0;
+        long lastReceived = 0;
+        long lastReport = System.nanoTime();
+        while (System.nanoTime() < deadline)
+        {
+            Thread.sleep(Math.min(REPORT_INTERVAL_MILLIS, Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()))));
+            long now = System.nanoTime();
+            double seconds = (now - lastReport) / 1e9;
+            long totalSent = getSent();
+            long totalReceived = received.sum();
+            out.printf("[%5.1fs] connected %d, sent %.0f/s, received %.0f/s, public p99 %.3f ms%n", (now - start) / 1e9,
+                    connected.sum(), (totalSent - lastSent) / seconds, (totalReceived - lastReceived) / seconds,
+                    publicLatency.getPercentile(99) / 1e6);
+            lastSent = totalSent;
+            lastReceived = totalReceived;
+            lastReport = now;
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        long sendingNanos = System.nanoTime() - start;
+
+        // Give the messages still in flight time to arrive before hanging up
+        Thread.sleep(DRAIN_MILLIS);
+        stopping = true;
+        for (SimulatedClient client : simulated)
+        {
+            client.close();
+        }
+        report(sendingNanos);
+    }
+
+
+    // Print the latency percentiles, throughput and failures
+    private void report(long sendingNanos)
+    {
+        double seconds = sendingNanos / 1e9;
+        out.println("=== " + clients + " clients, " + String.format("%.1f", seconds) + " s ===");
+        out.println("connect:   " + connectTime.describe() + ", failed " + connectFailures.sum());
+        out.println("public:    " + publicLatency.describe());
+        out.println("private:   " + privateLatency.describe());
+        out.println("users:     " + usersLatency.describe());
+        out.printf("sent:      %d (%.0f/s) %s, failed %d%n", getSent(), getSent() / seconds, sent, sendFailures.sum());
+        out.printf("received:  %d chat lines (%.0f/s), %d text lines%n", received.sum(), received.sum() / seconds, texts.sum());
+        out.println("dropped:   " + disconnects.sum() + " connections closed by the server");
+    }
+
+
+    // Send through NetworkClient.sendAsync(), requests are counted once they are written
+    public void setAsync(boolean async)
+    {
+        this.async = async;
+    }
+
+
+    // Connect with TLS, every simulated client shares the context and with it the TLS sessions
+    public void setTls(SSLContext context)
+    {
+        this.tls = context;
+    }
+
+
+    // Requests sent
+    public long getSent()
+    {
+        long total = 0;
+        for (LongAdder adder : sent.values())
+        {
+            total += adder.sum();
+        }
+        return total;
+    }
+
+
+    // Chat lines received
+    public long getReceived()
+    {
+        return received.sum();
+    }
+
+
+    // Connections that could not be opened
+    public long getConnectFailures()
+    {
+        return connectFailures.sum();
+    }
+
+
+    // Send to receive latency of broadcasts
+    public LatencyHistogram getPublicLatency()
+    {
+        return publicLatency;
+    }
+
+
+    // Send to receive latency of private messages
+    public LatencyHistogram getPrivateLatency()
+    {
+        return privateLatency;
+    }
+
+
+    // Connection setup times
+    public LatencyHistogram getConnectTime()
+    {
+        return connectTime;
+    }
+
+
+    // Pick an operation according to the weights of the mix
+    private Operation pickOperation(ThreadLocalRandom random)
+    {
+        int roll = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++)
+        {
+            if (roll < cumulativeWeights[i])
+            {
+                return operations[i];
+            }
+        }
+        return operations[operations.length - 1];
+    }
+
+
+    // Read the send time that follows the marker in a chat message, -1 when there is none
+    static long sendTime(String payload)
+    {
+        int at = payload.indexOf(MARKER);
+        if (at < 0)
+        {
+            return -1;
+        }
+        long time = 0;
+        int digits = 0;
+        for (int i = at + MARKER.length(); i < payload.length() && Character.isDigit(payload.charAt(i)); i++, digits++)
+        {
+            time = time * 10 + (payload.charAt(i) - '0');
+        }
+        return digits == 0 ? -1 : time;
+    }
+
+
+    // One connection driven by its own virtual thread, it records what it receives on the listening thread
+    private class SimulatedClient implements NetworkClient.Listener
+    {
+        private final int index;               // Number of the client, part of its username
+        private final String username;         // Username the client connects with
+        private final long startAt;            // When the client connects
+        private final long deadline;           // When the client stops sending
+        private NetworkClient client;          // The connection, null until it is opened
+        private volatile boolean open;         // Whether the connection is open
+        private volatile long usersSentAt;     // When the pending USERS request was sent, 0 when none is pending
+
+        private SimulatedClient(int index, long startAt, long deadline)
+        {
+            this.index = index;
+            this.username = prefix + index;
+            this.startAt = startAt;
+            this.deadline = deadline;
+        }
+
+        // Connect when the ramp up gets to this client, then send until the deadline
+        private void run()
+        {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            try
+            {
+                sleepUntil(startAt);
+                client = new NetworkClient(host, port, username, this);
+                client.setTls(tls);
+                long connecting = System.nanoTime();
+                if (!client.isConnected())
+                {
+                    connectFailures.increment();
+                    return;
+                }
+                connectTime.record(System.nanoTime() - connecting);
+
+                // Spread the first messages out so the clients do not send in lock step
+                long next = System.nanoTime() + nextInterval(random);
+                while (open && next < deadline)
+                {
+                    sleepUntil(next);
+                    send(pickOperation(random), random);
+                    next += nextInterval(random);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Send one request of the given kind
+        private void send(Operation operation, ThreadLocalRandom random)
+        {
+            MessageUtils message = switch (operation)
+            {
+                case BROADCAST -> new MessageUtils(MessageUtils.MESSAGE, MARKER + System.nanoTime() + " " + filler);
+                case PRIVATE -> new MessageUtils(MessageUtils.MESSAGE,
+                        "@" + otherUsername(random) + " " + MARKER + System.nanoTime() + " " + filler);
+                case USERS ->
+                {
+                    usersSentAt = System.nanoTime();
+                    yield new MessageUtils(MessageUtils.USERS, "");
+                }
+                case KICK -> new MessageUtils(MessageUtils.KICK, otherUsername(random));
+            };
+            if (async)
+            {
+                client.sendAsync(message).whenComplete((written, failure) ->
+                        (failure == null ? sent.get(operation) : sendFailures).increment());
+            }
+            else if (client.sendMessage(message))
+            {
+                sent.get(operation).increment();
+            }
+            else
+            {
+                sendFailures.increment();
+            }
+        }
+
+        // Username of a random client other than this one
+        private String otherUsername(ThreadLocalRandom random)
+        {
+            if (clients == 1)
+            {
+                return username;
+            }
+            int other = random.nextInt(clients - 1);
+            return prefix + (other >= index ? other + 1 : other);
+        }
+
+        // Time until the next message, exponentially distributed so the clients together send a Poisson stream
+        private long nextInterval(ThreadLocalRandom random)
+        {
+            return (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+        }
+
+        // Hang up
+        private void close()
+        {
+            if (client != null)
+            {
+                client.closeAll();
+            }
+        }
+
+        public void onConnect(Socket socket)
+        {
+            open = true;
+            connected.increment();
+        }
+
+        public void onFrame(Frame frame)
+        {
+            long now = System.nanoTime();
+            if (frame.getType() == MessageUtils.CHAT)
+            {
+                received.increment();
+                long sentAt = sendTime(frame.getPayload());
+                if (sentAt > 0)
+                {
+                    boolean isPrivate = (frame.getFlags() & Frame.FLAG_PRIVATE) != 0;
+                    (isPrivate ? privateLatency : publicLatency).record(now - sentAt);
+                }
+            }
+            else if (frame.getType() == MessageUtils.TEXT)
+            {
+                texts.increment();
+                long requested = usersSentAt;
+                if (requested != 0 && frame.getPayload().startsWith("List of the users"))
+                {
+                    usersLatency.record(now - requested);
+                    usersSentAt = 0;
+                }
+            }
+        }
+
+        public void onDisconnect(IOException cause)
+        {
+            open = false;
+            connected.decrement();
+            if (!stopping)
+            {
+                disconnects.increment();
+            }
+        }
+    }
+
+
+    // Sleep until the given System.nanoTime()
+    private static void sleepUntil(long nanoTime) throws InterruptedException
+    {
+        long remaining = nanoTime - System.nanoTime();
+        if (remaining > 0)
+        {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+
+
+    // Driver class
+    public static void main(String[] args) throws InterruptedException
+    {
+        String host = "localhost";
+        int port = 1500;
+        int clients = 100;
+        long seconds = 30;
+        if (args.length > 4)
+        {
+            System.out.println(USAGE);
+            return;
+        }
+        try
+        {
+            // Arguments left out keep their defaults
+            if (args.length > 0)
+            {
+                host = args[0];
+            }
+            if (args.length > 1)
+            {
+                port = Integer.parseInt(args[1]);
+            }
+            if (args.length > 2)
+            {
+                clients = Integer.parseInt(args[2]);
+            }
+            if (args.length > 3)
+            {
+                seconds = Long.parseLong(args[3]);
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            System.out.println("Invalid number. " + USAGE);
+            return;
+        }
+
+        LoadGenerator generator = new LoadGenerator(host, port, clients, TimeUnit.SECONDS.toMillis(seconds),
+                Double.parseDouble(System.getProperty("load.rate", "1.0")),
+                parseMix(System.getProperty("load.mix", "broadcast=70,private=25,users=4,kick=1")),
+                Double.parseDouble(System.getProperty("load.connectRate", "500")),
+                Integer.getInteger("load.size", 64), System.getProperty("load.prefix", "load"), System.out);
+        generator.setAsync(Boolean.getBoolean("load.async"));
+        // Connect with TLS when the server's certificate is given, e.g. -Dtls.truststore=server.p12 -Dtls.password=secret
+        String trustStore = System.getProperty("tls.truststore");
+        if (trustStore != null)
+        {
+            try
+            {
+                generator.setTls(Tls.clientContext(Path.of(trustStore), System.getProperty("tls.password", "").toCharArray()));
+            }
+            catch (IOException e)
+            {
+                System.out.println("Invalid TLS settings. " + e.getMessage());
+                return;
+            }
+        }
+        generator.run();
+    }
+}
@@ -1,34 +1,166 @@
 package client;
 
+import shared.Frame;
+import shared.FrameCodec;
+import shared.FrameCompressor;
 import shared.MessageUtils;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /*
  * This is a class for a client that can connect to a server via a socket and send/receive messages.
  * It has methods for connecting to the server, sending messages, and disconnecting.
  * There is an inner class, ListenFromServer, that listens for
- * messages from the server on a separate thread.
+ * messages from the server on a separate thread and hands them to a Listener,
+ * the console client prints them while headless tools such as LoadGenerator record them.
+ * Bots and bridges that post in bursts can use sendAsync(), which queues messages for a sender thread
+ * that writes everything pending with a single flush and completes a future per message.
+ * Unless turned off with setCompression(false), the client offers compression in its preamble and, when the
+ * server accepts, large frames travel deflated in both directions. The server's heartbeats are answered by the
+ * listening thread, so a client that is alive is never reaped, however quiet its user is.
+ * After subscribePresence() the listening thread also keeps a PresenceRoster up to date from the server's
+ * roster and presence frames, and subscribes again by itself when it notices a missed update.
+ * sendFile() streams a file to another user or to the room in chunks, one chunk per hold of the write lock, which
+ * is fair, so chat messages sent meanwhile go out between the chunks. Files received are saved by a FileReceiver
+ * once a download directory is set.
+ * The server numbers the messages sent to the whole room and hands the client a session token. reconnect() opens a
+ * new connection that presents the token with the last sequence seen, and the server lets the client back in under
+ * the same username, coordinator role included, and sends only the room messages it missed.
+ * With setReconnect() the listening thread does so by itself when the connection is lost, waiting a random delay
+ * under an exponentially growing ceiling between attempts so a room full of clients does not come back all at once.
+ * An attempt only counts as a success once the server accepted the HELLO and sent the session, so a server that
+ * refuses the client, e.g. because the username is still held, spends the attempts like an unreachable one.
+ * Messages sent meanwhile with sendMessage() are kept and written in order once the session is open again.
+ * A client that logs out or is kicked never reconnects by itself.
+ * With setTls() the connection is TLS, checked against the server's name, and since every reconnect uses the same
+ * context the server resumes the TLS session instead of negotiating a new one.
  */
 
 //This class contains the network code for the chat client, handling connections
 public class NetworkClient {
-    private ObjectOutputStream sOutput; 	// Output stream to the server
-    private ObjectInputStream sInput;  		// Input stream from the server
-    private Socket socket;  				// Socket to connect to the server
+    private DataOutputStream sOutput; 		// Frame output stream to the server
+    private DataInputStream sInput;  		// Frame input stream from the server
+    private volatile Socket socket;  		// Socket to connect to the server
     private final String server;  			// Server hostname
     private final String username;  		// Client username
     private final int port;  				// Port number to connect to
+    private final Listener listener;  		// Receives the connection events and the frames from the server
+
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;  // Bytes coalesced into a single socket write
+    private static final int MAX_BATCH = 1024;  			// Most queued messages taken for one flush
+    private final ReentrantLock writeLock = new ReentrantLock(true);  // One writer at a time, fair so messages get in between file chunks
+    private final ReentrantLock senderLock = new ReentrantLock(); // Guards starting the sender thread
+    private volatile int sendQueueCapacity = 1024;  	// Messages sendAsync() may have pending before it blocks
+    private volatile ArrayBlockingQueue<PendingSend> sendQueue;  // Messages waiting for the sender thread, created on first use
+    private Thread sender;  						// Thread writing the queued messages
+    private volatile boolean closed;  				// Whether the connection was closed or failed
+    private volatile long asyncFlushes;  			// Flushes issued by the sender thread
+    private volatile boolean compression = true;  	// Whether to offer compression when connecting
+    private volatile FrameCompressor compressor;  	// Compresses and inflates large frames, null unless negotiated
+    private final PresenceRoster presence = new PresenceRoster();  // Local copy of the roster once subscribed to presence
+    private final FileReceiver downloads = new FileReceiver();  // Saves the files other users send
+    private final AtomicLong transferIds = new AtomicLong();  // Ids of the files this client sends
+    private volatile String session;  				// Token resuming the session after a reconnect, null until the server sent one
+    private volatile long lastSequence;  			// Sequence of the last room message received
+    private volatile boolean resumed;  				// Whether the server resumed the session on the last connect
+    private volatile boolean presenceSubscribed;  	// Whether presence was subscribed, renewed when the session is resumed
+    private final AtomicLong connections = new AtomicLong();  // Connections opened so far, tells a listener of a replaced one apart
+    private volatile Backoff backoff;  				// Delays between the attempts to reconnect, null when reconnecting is off
+    private volatile int reconnectAttempts;  		// Attempts made after the connection was lost before giving up
+    private volatile int failedAttempts;  			// Attempts made since the server last accepted a HELLO, the budget spent
+    private volatile boolean awaitingSession;  		// Whether the server has yet to accept the HELLO of this connection with a SESSION
+    private volatile boolean stopped;  				// Whether the client closed or was logged out, the listener then never reconnects
+    private volatile boolean reconnecting;  		// Whether the connection was lost and is being opened again, changed under the write lock
+    private final ArrayDeque<MessageUtils> offline = new ArrayDeque<>();  // Messages sent while reconnecting, guarded by the write lock
+    private volatile int offlineCapacity = 256;  	// Most messages kept while reconnecting
+    private volatile SSLContext tls;  				// Secures the connection and keeps its TLS sessions, null for plain TCP
+
+    // An encoded message waiting for the sender thread and the future completed once it is written
+    private record PendingSend(byte[] frame, CompletableFuture<Void> done) {}
+
+    // Receives what happens on the connection, called on the thread listening to the server
+    public interface Listener
+    {
+        // The server accepted the connection
+        void onConnect(Socket socket);
+
+        // A frame arrived from the server
+        void onFrame(Frame frame);
+
+        // The connection was closed by the server or failed, and it is not opened again
+        void onDisconnect(IOException cause);
+
+        // The connection was lost and the next attempt to open it again follows after the delay
+        default void onReconnecting(int attempt, long delayMillis)
+        {
+        }
+    }
+
+    // Listener of the interactive client, prints to the console and exits when the server goes away
+    private static final Listener CONSOLE = new Listener()
+    {
+        public void onConnect(Socket socket)
+        {
+            System.out.println("Connection accepted " + socket.getInetAddress() + ":" + socket.getPort());
+        }
+
+        public void onFrame(Frame frame)
+        {
+            // text and chat lines are displayed, and the start and the end of the files received
+            if (frame.getType() == MessageUtils.TEXT || frame.getType() == MessageUtils.CHAT
+                    || frame.getType() == MessageUtils.FILE || frame.getType() == MessageUtils.FILE_END)
+            {
+                System.out.println(frame.toDisplayText());
+                System.out.print("> ");
+            }
+        }
+
+        public void onDisconnect(IOException cause)
+        {
+            System.err.println("*** " + "Server has closed the connection: " + cause + " *** ");
+            // Prevents exception printing by terminating program
+            System.exit(0);
+        }
+
+        public void onReconnecting(int attempt, long delayMillis)
+        {
+            System.err.println("*** " + "Connection lost, reconnecting in " + delayMillis + " ms (attempt " + attempt + ")" + " *** ");
+        }
+    };
 
     // Constructor for the NetworkClient class
     public NetworkClient(String server, int port, String username) 
+    {
+        this(server, port, username, CONSOLE);
+    }
+
+
+    // Constructor for a client whose connection events go to the given listener instead of the console
+    public NetworkClient(String server, int port, String username, Listener listener)
     {
         //instance VARS
         this.server = server;
         this.port = port;
         this.username = username;
+        this.listener = listener;
     }
 
     
@@ -37,29 +169,82 @@ public class NetworkClient {
     {
         try 
         {
-        	// create socket object 
-            socket = new Socket(server, port);
+        	// create socket object, a TLS handshake is completed before anything is sent
+            SSLContext context = tls;
+            socket = context == null ? new Socket(server, port) : secure(context);
             // create the input and output streams
-            sOutput = new ObjectOutputStream(socket.getOutputStream());
-            sInput = new ObjectInputStream(socket.getInputStream());
-            
-            System.out.println("Connection accepted " + socket.getInetAddress() + ":" + socket.getPort());
-            // Start a new thread to listen for messages from the server
-            new ListenFromServer().start();
-            
-            // Send the username to the server via object stream
-            sOutput.writeObject(username);
+            sOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE));
+            sInput = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            // Announce the binary protocol and send the username to the server, a client that does not want
+            // compression offers the version before it
+            int offered = compression ? FrameCodec.VERSION : FrameCodec.COMPRESSION_VERSION - 1;
+            sOutput.write(FrameCodec.preamble(offered));
+            Frame hello = new Frame(MessageUtils.HELLO, username);
+            String token = session;
+            if (token != null)
+            {
+                // Resume the session, the server sends the room messages after the last one received
+                hello.putField(Frame.FIELD_SESSION, token).putField(Frame.FIELD_SEQUENCE, lastSequence);
+            }
+            FrameCodec.write(sOutput, hello);
+            sOutput.flush();
+
+            // The server answers with its own preamble, both sides then speak the lower of the two versions
+            int version = Math.min(FrameCodec.readPreamble(sInput), offered);
+            compressor = version >= FrameCodec.COMPRESSION_VERSION ? new FrameCompressor() : null;
+            // A server speaking sessions accepts the HELLO with a SESSION frame, before that it may still refuse it
+            awaitingSession = version >= FrameCodec.RESUME_VERSION;
+            if (!awaitingSession)
+            {
+                failedAttempts = 0;
+            }
+
+            listener.onConnect(socket);
+            // Start a new thread to listen for messages from the server, headless clients can have
+            // thousands of connections open so they listen on virtual threads
+            ListenFromServer listening = new ListenFromServer(sInput, compressor, connections.incrementAndGet());
+            if (listener == CONSOLE)
+            {
+                new Thread(listening).start();
+            }
+            else
+            {
+                Thread.ofVirtual().name("listen-" + username).start(listening);
+            }
         } 
         catch (IOException e) 
         {
             System.err.println("Error connecting to server: " + e);
-            closeAll();
+            closeConnection();
             return false;  
         }
         return true;
     }
 
     
+    // Open a TLS connection that only trusts a certificate issued for the server's name
+    private Socket secure(SSLContext context) throws IOException
+    {
+        SSLSocket secured = (SSLSocket) context.getSocketFactory().createSocket(server, port);
+        try
+        {
+            // The handshake flights are small writes, held back by Nagle's algorithm they would wait for delayed acks
+            secured.setTcpNoDelay(true);
+            SSLParameters parameters = secured.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            secured.setSSLParameters(parameters);
+            secured.startHandshake();
+        }
+        catch (IOException e)
+        {
+            secured.close();
+            throw e;
+        }
+        return secured;
+    }
+
+
     // Method to get the client's username
     public String getClientUsername() 
     {
@@ -67,28 +252,582 @@ public class NetworkClient {
     }
 
 
+    // Use TLS with the context from the next connection on, null for plain TCP. The context keeps the TLS sessions,
+    // so clients of the same server may share one.
+    public void setTls(SSLContext context)
+    {
+        this.tls = context;
+    }
+
+
+    // Set whether to offer compression to the server, only before connecting. Versions are offered in order,
+    // so a client without compression speaks version 1 and also goes without heartbeats
+    public void setCompression(boolean compression)
+    {
+        this.compression = compression;
+    }
+
+
+    // Whether the server accepted compression for this connection
+    public boolean isCompressed()
+    {
+        return compressor != null;
+    }
+
+
+    // Ask the server for the roster and then its changes, kept in getPresence(), returns false when it could not be sent
+    public boolean subscribePresence()
+    {
+        presenceSubscribed = true;
+        return sendMessage(new MessageUtils(MessageUtils.SUBSCRIBE, ""));
+    }
+
+
+    // Close the connection and open a new one that resumes the session, returns false if the server could not be reached.
+    // Messages queued by sendAsync() and not yet written fail with the old connection.
+    public boolean reconnect()
+    {
+        stopped = false;
+        return reopen();
+    }
+
+
+    // Reconnect by itself when the connection is lost, up to the number of attempts with a random delay before each,
+    // drawn below a ceiling that doubles from the initial delay up to the maximum. Zero attempts turns it off.
+    public void setReconnect(int maxAttempts, long initialDelayMillis, long maxDelayMillis)
+    {
+        if (maxAttempts < 0)
+        {
+            throw new IllegalArgumentException("The number of reconnect attempts cannot be negative.");
+        }
+        backoff = maxAttempts == 0 ? null : new Backoff(initialDelayMillis, maxDelayMillis);
+        reconnectAttempts = maxAttempts;
+    }
+
+
+    // Set how many messages sendMessage() keeps while the connection is being opened again
+    public void setOfflineCapacity(int capacity)
+    {
+        if (capacity < 1)
+        {
+            throw new IllegalArgumentException("Offline capacity must be positive.");
+        }
+        offlineCapacity = capacity;
+    }
+
+
+    // Whether the connection was lost and is being opened again
+    public boolean isReconnecting()
+    {
+        return reconnecting;
+    }
+
+
+    // Replace the connection with a new one, then write the messages kept meanwhile, returns false if it could not be opened
+    private boolean reopen()
+    {
+        // The listener of the old connection sees its socket closed and must not report it as a disconnect
+        connections.incrementAndGet();
+        closeConnection();
+        senderLock.lock();
+        try
+        {
+            sendQueue = null;
+            sender = null;
+            closed = false;
+        }
+        finally
+        {
+            senderLock.unlock();
+        }
+        if (!isConnected())
+        {
+            return false;
+        }
+        if (!awaitingSession)
+        {
+            writeOffline();
+        }
+        // Otherwise the kept messages wait for the server to accept the HELLO, a refused one would lose them
+        return true;
+    }
+
+
+    // Write the messages kept while reconnecting, in order, and send the next ones right away
+    private void writeOffline()
+    {
+        writeLock.lock();
+        try
+        {
+            // Written before any message sent from now on, which waits for the lock
+            MessageUtils pending;
+            while ((pending = offline.peek()) != null)
+            {
+                sOutput.write(encode(pending));
+                offline.poll();
+            }
+            sOutput.flush();
+            reconnecting = false;
+        }
+        catch (IOException e)
+        {
+            // Lost again already, the new connection's listener starts over and the rest is written after that
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+
+    // Open the connection again after it was lost, runs on the listening thread of the lost connection,
+    // returns false once the attempts are used up or the client was closed meanwhile. Attempts whose connection the
+    // server refused or that dropped before the session arrived count too, so the budget goes on where they left it.
+    private boolean reconnectWithBackoff()
+    {
+        writeLock.lock();
+        try
+        {
+            reconnecting = true;
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+        Backoff delays = backoff;
+        for (int attempt = failedAttempts + 1; delays != null && attempt <= reconnectAttempts && !stopped; attempt++)
+        {
+            failedAttempts = attempt;
+            long delay = delays.delay(attempt);
+            listener.onReconnecting(attempt, delay);
+            try
+            {
+                Thread.sleep(delay);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (!stopped && reopen())
+            {
+                return true;
+            }
+        }
+        writeLock.lock();
+        try
+        {
+            // Nobody will write them anymore
+            reconnecting = false;
+            offline.clear();
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+        return false;
+    }
+
+
+    // Sequence number of the last room message received
+    public long getLastSequence()
+    {
+        return lastSequence;
+    }
+
+
+    // Whether the server resumed the session on the last connect, rather than opening a new one
+    public boolean isResumed()
+    {
+        return resumed;
+    }
+
+
+    // The local copy of the roster, current once subscribePresence() was answered
+    public PresenceRoster getPresence()
+    {
+        return presence;
+    }
+
+
+    // Set where the files other users send are saved, null to not save them
+    public void setDownloadDirectory(Path directory)
+    {
+        downloads.setDirectory(directory);
+    }
+
+
+    // The files received from other users
+    public FileReceiver getDownloads()
+    {
+        return downloads;
+    }
+
+
+    // Send a file to the user, or to everyone in the room when the recipient is null, from a virtual thread.
+    // The future completes once the last chunk is written, or fails if the file or the connection could not be read or written.
+    public CompletableFuture<Void> sendFile(Path file, String recipient)
+    {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (closed || sOutput == null)
+        {
+            done.completeExceptionally(new IOException("Connection is closed."));
+            return done;
+        }
+        Thread.ofVirtual().name("file-" + username).start(() ->
+        {
+            try
+            {
+                upload(file, recipient);
+                done.complete(null);
+            }
+            catch (IOException e)
+            {
+                done.completeExceptionally(e);
+            }
+        });
+        return done;
+    }
+
+
+    // Stream the file in FILE_DATA frames between a FILE and a FILE_END frame, the end is flagged if it was cut short
+    private void upload(Path file, String recipient) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            long transfer = transferIds.incrementAndGet();
+            Frame start = new Frame(MessageUtils.FILE, recipient == null ? "" : "@" + recipient)
+                    .putField(Frame.FIELD_TRANSFER, transfer)
+                    .putField(Frame.FIELD_FILE_NAME, file.getFileName().toString())
+                    .putField(Frame.FIELD_FILE_SIZE, size);
+            writeFrame(FrameCodec.encode(start), null, 0);
+
+            // The socket is a stream, so the bytes go through a buffer that is reused for every chunk
+            ByteBuffer chunk = ByteBuffer.allocate(FrameCodec.FILE_CHUNK_SIZE);
+            long position = 0;
+            IOException failure = null;
+            try
+            {
+                while (position < size)
+                {
+                    chunk.clear();
+                    int read = channel.read(chunk, position);
+                    if (read < 0)
+                    {
+                        // The file shrank while it was sent
+                        break;
+                    }
+                    writeFrame(FrameCodec.encodeFileDataHeader(transfer, read), chunk.array(), read);
+                    position += read;
+                }
+            }
+            catch (IOException e)
+            {
+                failure = e;
+            }
+            Frame end = new Frame(MessageUtils.FILE_END, failure != null || position != size ? Frame.FLAG_ABORTED : 0, "")
+                    .putField(Frame.FIELD_TRANSFER, transfer);
+            try
+            {
+                writeFrame(FrameCodec.encode(end), null, 0);
+            }
+            catch (IOException e)
+            {
+                if (failure == null)
+                {
+                    throw e;
+                }
+                failure.addSuppressed(e);
+            }
+            if (failure != null)
+            {
+                throw failure;
+            }
+            if (position != size)
+            {
+                throw new IOException("The file " + file + " shrank while it was sent.");
+            }
+        }
+    }
+
+
+    // Write a frame, or the header of a frame followed by its data, and flush it on a single hold of the write lock
+    private void writeFrame(byte[] frame, byte[] data, int length) throws IOException
+    {
+        writeLock.lock();
+        try
+        {
+            if (closed)
+            {
+                throw new IOException("Connection is closed.");
+            }
+            sOutput.write(frame);
+            if (data != null)
+            {
+                sOutput.write(data, 0, length);
+            }
+            sOutput.flush();
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+
+    // Encode a request, compressed when it is large and compression was negotiated
+    private byte[] encode(MessageUtils msg)
+    {
+        byte[] frame = FrameCodec.encode(new Frame(msg));
+        FrameCompressor frames = compressor;
+        return frames == null ? frame : frames.compress(frame);
+    }
+
+
 
-    // Method to send a message to the server
-    public void sendMessage(MessageUtils msg) 
+    // Method to send a message to the server, returns false when it could not be written.
+    // While the connection is being opened again the message is kept and written once it is open.
+    public boolean sendMessage(MessageUtils msg) 
     {
         if (msg == null) 
         {
             throw new NullPointerException("Message cannot be null.");
         }
+        if (msg.getType() == MessageUtils.LOGOUT)
+        {
+            // The server closes the connection, which must not be taken for a lost one
+            stopped = true;
+        }
+        writeLock.lock();
         try 
         {
-            sOutput.writeObject(msg);
+            if (reconnecting)
+            {
+                return keepOffline(msg);
+            }
+            sOutput.write(encode(msg));
+            sOutput.flush();
+            return true;
         }
         catch (IOException e)
         {
-            System.err.println("Exception occured while attempting to write to the server: " + e);
+            if (backoff != null && !stopped)
+            {
+                // Closing the socket makes sure the listening thread notices the loss and reconnects
+                try
+                {
+                    socket.close();
+                }
+                catch (IOException ignored)
+                {
+                }
+                return keepOffline(msg);
+            }
+            if (listener == CONSOLE)
+            {
+                System.err.println("Exception occured while attempting to write to the server: " + e);
+            }
+            return false;
+        }
+        finally
+        {
+            writeLock.unlock();
         }
     }
 
 
-    // Method to disconnect from the server
+    // Keep a message sent while the connection is lost, returns false when too many are kept, caller holds the write lock
+    private boolean keepOffline(MessageUtils msg)
+    {
+        if (offline.size() >= offlineCapacity)
+        {
+            return false;
+        }
+        offline.add(msg);
+        return true;
+    }
+
+
+    // Method to queue a message for the sender thread, the future completes once the message is written.
+    // Blocks while the queue is full, so a producer is held back to the speed of the connection.
+    public CompletableFuture<Void> sendAsync(MessageUtils msg)
+    {
+        if (msg == null)
+        {
+            throw new NullPointerException("Message cannot be null.");
+        }
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (closed || sOutput == null)
+        {
+            done.completeExceptionally(new IOException("Connection is closed."));
+            return done;
+        }
+        // Encoded on the caller's thread, the sender only copies bytes
+        PendingSend pending = new PendingSend(encode(msg), done);
+        try
+        {
+            sendQueue().put(pending);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            done.completeExceptionally(e);
+            return done;
+        }
+        if (closed)
+        {
+            // Closed while the message was queued, the sender may already be gone
+            failPending(new IOException("Connection is closed."));
+        }
+        return done;
+    }
+
+
+    // Set how many messages sendAsync() may have pending before it blocks, only before the first sendAsync()
+    public void setSendQueueCapacity(int capacity)
+    {
+        if (capacity < 1)
+        {
+            throw new IllegalArgumentException("Send queue capacity must be positive.");
+        }
+        sendQueueCapacity = capacity;
+    }
+
+
+    // Messages queued by sendAsync() and not yet written
+    public int getPendingSends()
+    {
+        ArrayBlockingQueue<PendingSend> queue = sendQueue;
+        return queue == null ? 0 : queue.size();
+    }
+
+
+    // Flushes issued by the sender thread, lower than the messages sent when they were coalesced
+    public long getAsyncFlushes()
+    {
+        return asyncFlushes;
+    }
+
+
+    // The send queue, the sender thread is started with it on first use
+    private ArrayBlockingQueue<PendingSend> sendQueue()
+    {
+        ArrayBlockingQueue<PendingSend> queue = sendQueue;
+        if (queue != null)
+        {
+            return queue;
+        }
+        senderLock.lock();
+        try
+        {
+            if (sendQueue == null)
+            {
+                ArrayBlockingQueue<PendingSend> created = new ArrayBlockingQueue<>(sendQueueCapacity);
+                sender = Thread.ofVirtual().name("send-" + username).start(() -> sendLoop(created));
+                sendQueue = created;
+            }
+            return sendQueue;
+        }
+        finally
+        {
+            senderLock.unlock();
+        }
+    }
+
+
+    // Write everything that queued up since the last flush with a single flush, until the connection closes
+    private void sendLoop(ArrayBlockingQueue<PendingSend> queue)
+    {
+        List<PendingSend> batch = new ArrayList<>();
+        Exception cause = null;
+        try
+        {
+            while (!closed)
+            {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                writeLock.lock();
+                try
+                {
+                    for (PendingSend pending : batch)
+                    {
+                        sOutput.write(pending.frame());
+                    }
+                    sOutput.flush();
+                }
+                finally
+                {
+                    writeLock.unlock();
+                }
+                asyncFlushes++;
+                for (PendingSend pending : batch)
+                {
+                    pending.done().complete(null);
+                }
+                batch.clear();
+            }
+        }
+        catch (IOException | InterruptedException e)
+        {
+            cause = e;
+        }
+        finally
+        {
+            // Nothing more can be written, fail what was taken and everything still queued
+            closed = true;
+            IOException failure = new IOException("Connection is closed.", cause);
+            for (PendingSend pending : batch)
+            {
+                pending.done().completeExceptionally(failure);
+            }
+            failPending(failure);
+        }
+    }
+
+
+    // Fail every message still waiting in the send queue
+    private void failPending(IOException failure)
+    {
+        ArrayBlockingQueue<PendingSend> queue = sendQueue;
+        PendingSend pending;
+        while (queue != null && (pending = queue.poll()) != null)
+        {
+            pending.done().completeExceptionally(failure);
+        }
+    }
+
+
+    // Method to disconnect from the server, the client does not reconnect by itself afterwards
     public void closeAll()
     {
+        stopped = true;
+        closeConnection();
+    }
+
+
+    // Close the socket and the streams, messages queued by sendAsync() fail
+    private void closeConnection()
+    {
+        closed = true;
+        senderLock.lock();
+        try
+        {
+            if (sender != null)
+            {
+                sender.interrupt();
+            }
+        }
+        finally
+        {
+            senderLock.unlock();
+        }
+        failPending(new IOException("Connection is closed."));
+        downloads.abandon();
+        if (compressor != null)
+        {
+            compressor.end();
+        }
         try 
         {
             if (sInput != null) 
@@ -110,28 +849,108 @@ public class NetworkClient {
     }
 
     
-    // Inner thread class, used to listen for incoming messages sent from the server
-    class ListenFromServer extends Thread 
+    // Record the session the server opened or resumed, runs on the listening thread
+    private void applySession(Frame frame)
     {
+        awaitingSession = false;
+        failedAttempts = 0;
+        if (reconnecting)
+        {
+            // The server let the client back in, what was typed meanwhile goes out before anything else
+            writeOffline();
+        }
+        session = frame.getPayload();
+        resumed = (frame.getFlags() & Frame.FLAG_RESUMED) != 0;
+        if (!resumed)
+        {
+            // A new session, the room messages before it are not ours to receive
+            lastSequence = frame.getLong(Frame.FIELD_SEQUENCE, 0);
+        }
+        else if (presenceSubscribed)
+        {
+            // Presence updates stopped with the old connection, a fresh roster replaces the local one
+            subscribePresence();
+        }
+    }
+
+
+    // Inner class run on its own thread, used to listen for incoming messages sent from the server
+    class ListenFromServer implements Runnable 
+    {
+        private final DataInputStream input;  		// Frame input stream of the connection listened to
+        private final FrameCompressor frames;  		// Inflates the frames of that connection, null unless negotiated
+        private final long connection;  			// Number of the connection, compared with the current one on failure
+
+        // Constructor that receives the connection to listen to
+        ListenFromServer(DataInputStream input, FrameCompressor frames, long connection)
+        {
+            this.input = input;
+            this.frames = frames;
+            this.connection = connection;
+        }
+
         public void run() 
         {
             while (true)
             {
                 try 
                 {
-                	// receive via stream object stream
-                    String msg = (String) sInput.readObject();
-                    System.out.println(msg);
-                    System.out.print("> ");
+                    // receive the next frame and hand it to the listener, heartbeats are answered right away
+                    Frame frame = FrameCodec.read(input, frames);
+                    if (frame.getType() == MessageUtils.PING)
+                    {
+                        sendMessage(new MessageUtils(MessageUtils.PONG, ""));
+                        continue;
+                    }
+                    if (frame.getType() == MessageUtils.LOGOUT)
+                    {
+                        // Kicked, the server closes the connection next
+                        stopped = true;
+                    }
+                    else if (frame.getType() == MessageUtils.SESSION)
+                    {
+                        applySession(frame);
+                    }
+                    else if (frame.hasField(Frame.FIELD_SEQUENCE))
+                    {
+                        // A room message, one received before the connection was lost is not shown twice
+                        long sequence = frame.getLong(Frame.FIELD_SEQUENCE, 0);
+                        if (sequence <= lastSequence)
+                        {
+                            continue;
+                        }
+                        lastSequence = sequence;
+                    }
+                    // Files are saved before the listener hears of them
+                    if (frame.getType() == MessageUtils.FILE || frame.getType() == MessageUtils.FILE_DATA
+                            || frame.getType() == MessageUtils.FILE_END)
+                    {
+                        downloads.apply(frame);
+                    }
+                    // Presence updates keep the local roster, a missed one is repaired by subscribing again
+                    if ((frame.getType() == MessageUtils.ROSTER || frame.getType() == MessageUtils.PRESENCE)
+                            && !presence.apply(frame))
+                    {
+                        subscribePresence();
+                    }
+                    listener.onFrame(frame);
                 } 
-                catch (IOException | ClassNotFoundException e) 
+                catch (IOException e) 
                 {
-                    System.err.println("*** " + "Server has closed the connection: " + e + " *** ");
+                    if (connection != connections.get())
+                    {
+                        // The connection was replaced by reconnect(), which closed it on purpose
+                        return;
+                    }
+                    closeConnection();
+                    if (!stopped && backoff != null && reconnectWithBackoff())
+                    {
+                        // The new connection has a listening thread of its own
+                        return;
+                    }
                     closeAll();
-                    
-                    // Prevents exception printing by terminating program
-                    System.exit(0); 
-                    
+                    listener.onDisconnect(e);
+                    return;
                 } 	
             }
         }
@@ -0,0 +1,143 @@
+package client;
+
+import shared.Frame;
+import shared.MessageUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * The client's copy of the roster, kept up to date from the ROSTER and PRESENCE frames of a presence subscription.
+ * A ROSTER frame replaces the copy, and each PRESENCE frame applies one join, leave or rename whose version must
+ * follow the copy's version. When one does not, an update was missed: the copy is marked stale, updates are
+ * ignored until the next ROSTER frame and apply() asks the caller to subscribe again.
+ */
+public class PresenceRoster
+{
+    private final ReentrantLock lock = new ReentrantLock();  // The listening thread writes, any thread may read
+    private final List<String> usernames = new ArrayList<>();  // Users in the room, oldest connection first
+    private long version = -1;  		// Roster version of the copy, -1 before the first ROSTER frame
+    private boolean stale = true;  		// Whether updates were missed and a fresh roster is awaited
+    private long resyncs;  				// Times a missed update was detected
+
+
+    // Apply a ROSTER or PRESENCE frame, returns false when an update was missed and the roster must be requested again
+    public boolean apply(Frame frame)
+    {
+        lock.lock();
+        try
+        {
+            long frameVersion = frame.getLong(Frame.FIELD_VERSION, -1);
+            if (frame.getType() == MessageUtils.ROSTER)
+            {
+                usernames.clear();
+                if (!frame.getPayload().isEmpty())
+                {
+                    usernames.addAll(List.of(frame.getPayload().split("\n")));
+                }
+                version = frameVersion;
+                stale = false;
+                return true;
+            }
+            if (frame.getType() != MessageUtils.PRESENCE || stale)
+            {
+                // Updates are meaningless until the fresh roster arrives
+                return true;
+            }
+            if (frameVersion != version + 1)
+            {
+                stale = true;
+                resyncs++;
+                return false;
+            }
+            String username = frame.getPayload();
+            switch ((int) frame.getLong(Frame.FIELD_EVENT, 0))
+            {
+                case Frame.PRESENCE_JOIN -> usernames.add(username);
+                case Frame.PRESENCE_LEAVE -> usernames.remove(username);
+                case Frame.PRESENCE_RENAME, Frame.PRESENCE_COORDINATOR ->
+                {
+                    int index = usernames.indexOf(frame.getString(Frame.FIELD_PREVIOUS));
+                    if (index >= 0)
+                    {
+                        usernames.set(index, username);
+                    }
+                }
+                default ->
+                {
+                    // An event added by a newer server, the roster can no longer be trusted
+                    stale = true;
+                    resyncs++;
+                    return false;
+                }
+            }
+            version = frameVersion;
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    // Copy of the users in the room, oldest connection first
+    public List<String> getUsernames()
+    {
+        lock.lock();
+        try
+        {
+            return new ArrayList<>(usernames);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    // Roster version of the copy, -1 before the first roster arrived
+    public long getVersion()
+    {
+        lock.lock();
+        try
+        {
+            return version;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    // Whether the copy is up to date, false until the first roster and after a missed update
+    public boolean isCurrent()
+    {
+        lock.lock();
+        try
+        {
+            return !stale;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    // Times a missed update was detected and the roster requested again
+    public long getResyncs()
+    {
+        lock.lock();
+        try
+        {
+            return resyncs;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
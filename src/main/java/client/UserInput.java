@@ -2,6 +2,8 @@ package client;
 
 import shared.MessageUtils;
 //import server.Server;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.util.Scanner;
 
 /*
@@ -31,9 +33,12 @@ public class UserInput
         System.out.println(usernameColor + "Instructions:" + resetColor);
         System.out.println(usernameColor + "1. To send a message to all active clients, simply type your message." + resetColor);
         System.out.println(usernameColor + "2. To send a message to a specific client, type \"@username message\", to text admin type '@(admin)username'." + resetColor);
-        System.out.println(usernameColor + "3. To see a list of active clients, type \"USERS\"." + resetColor);
+        System.out.println(usernameColor + "3. To see a list of active clients, type \"USERS\", or \"USERS prefix page\" to filter them by name and page through them." + resetColor);
         System.out.println(usernameColor + "4. To log off from the server, type \"LOGOUT\"." + resetColor);
         System.out.println(usernameColor + "5. To kick a client from the server, type \"KICK username\" (admin only)." + resetColor);
+        System.out.println(usernameColor + "6. To see the server statistics, type \"STATS\" (admin only)." + resetColor);
+        System.out.println(usernameColor + "7. To send a file, type \"FILE path\" for the whole room or \"FILE @username path\" for a single client." + resetColor);
+        System.out.println(usernameColor + "8. To see or change the rate limits, type \"LIMIT\", \"LIMIT messages 10 20\" or \"LIMIT policy drop\" (admin only)." + resetColor);
     } 
     
     
@@ -59,10 +64,25 @@ public class UserInput
                     client.sendMessage(new MessageUtils(MessageUtils.LOGOUT, ""));
                     break;
                 }
-                // If the user types "USERS", send a USERS message to the server.
-                else if (msg.equals("USERS")) 
+                // If the user types "USERS", send a USERS message to the server, with the optional name prefix and page.
+                else if (msg.equals("USERS") || msg.startsWith("USERS ")) 
                 {
-                    client.sendMessage(new MessageUtils(MessageUtils.USERS, ""));
+                    client.sendMessage(new MessageUtils(MessageUtils.USERS, msg.substring(5).trim()));
+                }
+                // If the admin types "STATS", ask the server for its metrics.
+                else if (msg.equals("STATS")) 
+                {
+                    client.sendMessage(new MessageUtils(MessageUtils.STATS, ""));
+                }
+                // If the admin types "LIMIT [kind rate burst | policy name]", show or change the rate limits.
+                else if (msg.equals("LIMIT") || msg.startsWith("LIMIT ")) 
+                {
+                    client.sendMessage(new MessageUtils(MessageUtils.LIMIT, msg.substring(5).trim()));
+                }
+                // If the user types "FILE [@username] path", stream the file to the room or to that user.
+                else if (msg.startsWith("FILE "))
+                {
+                    sendFile(msg.substring(5).trim());
                 }
                 // If the admin types "KICK username", send a KICK message to the server with the username of the client to be kicked.
                 else if (msg.startsWith("KICK")) 
@@ -96,4 +116,45 @@ public class UserInput
             scanner.close();
         }
     }
+
+
+    // Send the file named by the rest of a FILE command, the user is told if it could not be sent
+    private void sendFile(String args)
+    {
+        String recipient = null;
+        if (args.startsWith("@"))
+        {
+            int space = args.indexOf(' ');
+            if (space < 0)
+            {
+                System.out.println("*** FILE command must include a path. ***");
+                return;
+            }
+            recipient = args.substring(1, space);
+            args = args.substring(space + 1).trim();
+        }
+        if (args.isEmpty())
+        {
+            System.out.println("*** FILE command must include a path. ***");
+            return;
+        }
+        String path = args;
+        Path file;
+        try
+        {
+            file = Path.of(path);
+        }
+        catch (InvalidPathException e)
+        {
+            System.out.println("*** Invalid path: " + e.getMessage() + " ***");
+            return;
+        }
+        client.sendFile(file, recipient).whenComplete((sent, failure) ->
+        {
+            if (failure != null)
+            {
+                System.out.println("*** Could not send " + path + ": " + failure.getMessage() + " ***");
+            }
+        });
+    }
 }
@@ -0,0 +1,330 @@
+package server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+
+/*
+ * Multi-pattern bad word matcher compiled into an Aho-Corasick automaton, so every message is scanned once,
+ * character by character and without allocating, however long the word list grows.
+ * Text is normalized on the fly: letters are lower cased, common look-alike digits and symbols are read as the
+ * letters they imitate (5h1t, @ss) and punctuation inside a word is ignored (s.h.i.t). Entries match whole words
+ * unless they start or end with '*', e.g. "*shit*" also matches inside "bullshitting".
+ * The list can be reloaded at any time, the new automaton replaces the old one atomically.
+ */
+public class BadWordFilter {
+    private static final int ALPHABET = 128;     // Symbols are normalized ASCII characters
+    private static final int BOUNDARY = ' ';     // Symbol between words, and before and after the text
+    private static final int OTHER = 0;          // Symbol for letters and digits outside ASCII, part of a word but of no entry
+    private static final int PUNCTUATION = -1;   // Characters that separate words, or are skipped inside one
+    private static final char WILDCARD = '*';    // Marks the side of an entry that may continue into other letters
+
+    private final Path file;                     // The word list on disk, null if the filter was built from a collection
+    private volatile Automaton automaton;        // The compiled word list currently used to scan messages
+    private Thread watcher;                      // The thread reloading the list when the file changes
+
+
+    // Constructor for a filter reading its words from a file, the list is empty until reload() is called
+    public BadWordFilter(Path file) {
+        this.file = file;
+        this.automaton = new Automaton(List.of());
+    }
+
+
+    // Constructor for a filter with a fixed list of words
+    public BadWordFilter(Collection<String> words) {
+        this.file = null;
+        this.automaton = new Automaton(words);
+    }
+
+
+    // Read the word list again and swap it in, returns the number of entries loaded
+    public int reload() throws IOException {
+        if (file == null) {
+            return automaton.size;
+        }
+        Automaton rebuilt = new Automaton(Files.readAllLines(file, StandardCharsets.UTF_8));
+        automaton = rebuilt;
+        return rebuilt.size;
+    }
+
+
+    // Number of entries in the word list
+    public int size() {
+        return automaton.size;
+    }
+
+
+    // Whether the message contains a bad word
+    public boolean matches(CharSequence message) {
+        return automaton.matches(message);
+    }
+
+
+    // Reload the word list whenever the file changes on disk, called once when the server starts
+    public void watch(Server server) {
+        if (file == null || watcher != null) {
+            return;
+        }
+        Path directory = file.toAbsolutePath().getParent();
+        WatchService watchService;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        catch (IOException e) {
+            server.display("Cannot watch " + file + " for changes: " + e.getMessage());
+            return;
+        }
+        watcher = Thread.ofPlatform().name("bad-words-watcher").daemon().start(() -> {
+            try (watchService) {
+                while (true) {
+                    WatchKey key = watchService.take();
+                    boolean changed = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        changed |= file.getFileName().equals(event.context());
+                    }
+                    key.reset();
+                    if (changed) {
+                        try {
+                            server.display("Reloaded " + reload() + " bad words from " + file);
+                        }
+                        catch (IOException e) {
+                            // Keep the previous list, the next change triggers another attempt
+                            server.display("Failed to reload bad words: " + e.getMessage());
+                        }
+                    }
+                }
+            }
+            catch (InterruptedException | ClosedWatchServiceException | IOException e) {
+                // The watcher ends with the server
+            }
+        });
+    }
+
+
+    // Normalize a character to its symbol, BOUNDARY for white space and PUNCTUATION for the rest
+    private static int symbolOf(char c) {
+        if (c >= 'A' && c <= 'Z') {
+            return c + ('a' - 'A');
+        }
+        if (c >= 'a' && c <= 'z') {
+            return c;
+        }
+        switch (c) {
+            case '0': return 'o';
+            case '1': return 'i';
+            case '3': return 'e';
+            case '4': return 'a';
+            case '5': return 's';
+            case '7': return 't';
+            case '@': return 'a';
+            case '$': return 's';
+            default: break;
+        }
+        if (c >= '0' && c <= '9') {
+            return c;
+        }
+        if (Character.isWhitespace(c) || Character.isISOControl(c)) {
+            return BOUNDARY;
+        }
+        if (c >= ALPHABET && Character.isLetterOrDigit(c)) {
+            return OTHER;
+        }
+        return PUNCTUATION;
+    }
+
+
+    /*
+     * Immutable automaton built from one version of the word list.
+     * The root keeps a dense transition table, the other states keep their sorted child symbols,
+     * which keeps memory proportional to the total length of the entries.
+     */
+    private static final class Automaton {
+        private static final int ROOT = 0;
+
+        private final int size;                  // Number of entries compiled into the automaton
+        private final boolean[] punctuation;     // Punctuation that appears in an entry and is matched literally
+        private final int[] rootNext;            // Transitions of the root, indexed by symbol
+        private final char[][] labels;           // Sorted child symbols of every state
+        private final int[][] targets;           // Child states, parallel to labels
+        private final int[] fail;                // Longest proper suffix of a state that is also a state
+        private final boolean[] terminal;        // Whether an entry ends at the state or at one of its suffixes
+
+
+        // Compile the entries, blank lines and lines starting with '#' are ignored
+        private Automaton(Collection<String> words) {
+            // Build the trie
+            List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+            List<Boolean> ends = new ArrayList<>();
+            trie.add(new TreeMap<>());
+            ends.add(false);
+            boolean[] literal = new boolean[ALPHABET];
+            int count = 0;
+            for (String word : words) {
+                int[] symbols = compilePattern(word.trim(), literal);
+                if (symbols.length == 0) {
+                    continue;
+                }
+                int state = ROOT;
+                for (int symbol : symbols) {
+                    Integer next = trie.get(state).get((char) symbol);
+                    if (next == null) {
+                        next = trie.size();
+                        trie.add(new TreeMap<>());
+                        ends.add(false);
+                        trie.get(state).put((char) symbol, next);
+                    }
+                    state = next;
+                }
+                ends.set(state, true);
+                count++;
+            }
+
+            int states = trie.size();
+            size = count;
+            punctuation = literal;
+            rootNext = new int[ALPHABET];
+            labels = new char[states][];
+            targets = new int[states][];
+            fail = new int[states];
+            terminal = new boolean[states];
+            for (int state = 0; state < states; state++) {
+                TreeMap<Character, Integer> children = trie.get(state);
+                labels[state] = new char[children.size()];
+                targets[state] = new int[children.size()];
+                int i = 0;
+                for (var child : children.entrySet()) {
+                    labels[state][i] = child.getKey();
+                    targets[state][i++] = child.getValue();
+                }
+                terminal[state] = ends.get(state);
+            }
+            for (int i = 0; i < labels[ROOT].length; i++) {
+                rootNext[labels[ROOT][i]] = targets[ROOT][i];
+            }
+
+            // Link every state to its longest suffix in breadth first order, so the suffix is always linked first
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            for (int child : targets[ROOT]) {
+                queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                int state = queue.poll();
+                for (int i = 0; i < labels[state].length; i++) {
+                    int child = targets[state][i];
+                    fail[child] = step(fail[state], labels[state][i]);
+                    terminal[child] |= terminal[fail[child]];
+                    queue.add(child);
+                }
+            }
+        }
+
+
+        // Translate an entry into symbols, whole word entries are wrapped in boundaries
+        private static int[] compilePattern(String word, boolean[] literal) {
+            if (word.isEmpty() || word.charAt(0) == '#') {
+                return new int[0];
+            }
+            boolean prefix = word.charAt(0) == WILDCARD;
+            boolean suffix = word.length() > 1 && word.charAt(word.length() - 1) == WILDCARD;
+            String core = word.substring(prefix ? 1 : 0, word.length() - (suffix ? 1 : 0)).trim();
+            if (core.isEmpty()) {
+                return new int[0];
+            }
+
+            int[] symbols = new int[core.length() + 2];
+            int length = 0;
+            if (!prefix) {
+                symbols[length++] = BOUNDARY;
+            }
+            for (int i = 0; i < core.length(); i++) {
+                char c = core.charAt(i);
+                int symbol = symbolOf(c);
+                if (symbol == PUNCTUATION) {
+                    if (c >= ALPHABET) {
+                        continue;
+                    }
+                    // Punctuation written in an entry has to be present in the message
+                    literal[c] = true;
+                    symbol = c;
+                }
+                if (symbol == BOUNDARY && length > 0 && symbols[length - 1] == BOUNDARY) {
+                    // Words of a phrase are separated by a single boundary
+                    continue;
+                }
+                symbols[length++] = symbol;
+            }
+            if (!suffix) {
+                symbols[length++] = BOUNDARY;
+            }
+            return Arrays.copyOf(symbols, length);
+        }
+
+
+        // Scan the text once, feeding a boundary before and after it
+        private boolean matches(CharSequence text) {
+            int state = step(ROOT, BOUNDARY);
+            boolean atBoundary = true;
+            int length = text.length();
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                int symbol = symbolOf(c);
+                if (symbol == PUNCTUATION) {
+                    if (c < ALPHABET && punctuation[c]) {
+                        symbol = c;
+                    }
+                    else if (!atBoundary && i + 1 < length && isWordSymbol(symbolOf(text.charAt(i + 1)))) {
+                        // Punctuation inside a word is skipped, s.h.i.t reads as one word
+                        continue;
+                    }
+                    else {
+                        symbol = BOUNDARY;
+                    }
+                }
+                if (symbol == BOUNDARY && atBoundary) {
+                    // Runs of separators count as a single boundary
+                    continue;
+                }
+                atBoundary = symbol == BOUNDARY;
+                state = step(state, symbol);
+                if (terminal[state]) {
+                    return true;
+                }
+            }
+            return !atBoundary && terminal[step(state, BOUNDARY)];
+        }
+
+
+        // Whether the symbol belongs to a word
+        private static boolean isWordSymbol(int symbol) {
+            return symbol != BOUNDARY && symbol != PUNCTUATION;
+        }
+
+
+        // Follow the transition for the symbol, falling back along the suffix links
+        private int step(int state, int symbol) {
+            while (state != ROOT) {
+                int i = Arrays.binarySearch(labels[state], (char) symbol);
+                if (i >= 0) {
+                    return targets[state][i];
+                }
+                state = fail[state];
+            }
+            return rootNext[symbol];
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package server;
+
+/*
+ * Common view of a connected chat client, independent of the server engine that owns the connection.
+ * The thread-per-client ClientHandler and the selector based NioConnection both implement it,
+ * so the chat logic in Server (broadcast, private messages, kicks and user listings) works with either engine.
+ */
+public interface ClientConnection {
+
+    // Unique identifier for the connection
+    long getId();
+
+    // Getter for the client's username
+    String getUsername();
+
+    // Setter for the client's username
+    void setUsername(String username);
+
+    // Getter for the client's IP address
+    String getIpAddress();
+
+    // The date and the time when the client connected
+    String getDate();
+
+    // Send an encoded message to the client, returns false if the client is no longer reachable
+    boolean send(EncodedMessage msg);
+
+    // Write a text message to the client, returns false if the client is no longer reachable
+    default boolean writeMsg(String msg) {
+        return send(EncodedMessage.text(msg));
+    }
+
+    // Whether the client speaks the binary frame protocol rather than Java serialization
+    default boolean isBinaryProtocol() {
+        return false;
+    }
+
+    // Hand a file transfer to the client, written whenever no message is waiting,
+    // returns false if the client does not speak a protocol version that receives files
+    default boolean sendFile(FileTransfer.Delivery delivery) {
+        return false;
+    }
+
+    // Whether the client speaks a protocol version that can resume its session after a reconnect
+    default boolean isResumable() {
+        return false;
+    }
+
+    // Run work for the client that must not hold up the timer wheel, such as removing it from the room, on the
+    // connection's event loop or on a thread of its own
+    default void execute(Runnable task) {
+        Thread.ofVirtual().name("client-task").start(task);
+    }
+
+    // Getter for the queue of messages waiting to be written to the client
+    OutboundQueue getOutboundQueue();
+
+    // Close the connection to the client once the queued messages are written
+    void close();
+}
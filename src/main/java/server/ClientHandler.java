@@ -1,83 +1,226 @@
 package server;
 
+import shared.Frame;
+import shared.FrameCodec;
+import shared.FrameCompressor;
 import shared.MessageUtils;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.ObjectInputFilter;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
 import java.net.Socket;
 import java.net.SocketException;
-import java.text.SimpleDateFormat;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.Date;
-import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 
 /*
- * The ClientHandler class is a thread that handles communication with a single client in a chat room.
+ * The ClientHandler class is a task run by a platform or virtual thread that handles communication with a single client in a chat room.
  * It contains instance variables for the client socket, input and output streams,
  * and username, among others. The class has methods for broadcasting messages, kicking users, listing connected clients, closing the socket and streams, and writing messages to the client's output stream.
+ * The handshake runs on the handler's own thread and must finish within the server's handshake timeout,
+ * so the accept loop never waits for a client. Clients that answer heartbeats are watched by a Heartbeat and
+ * their socket is closed when they go quiet, which ends the read loop like any other disconnect.
+ * Files sent to the client are written by the same writer, a chunk at a time whenever no message is waiting.
+ * The socket is a stream, so the chunks are read from the spool file into a buffer rather than transferred directly.
+ * A client that can resume its session keeps its place in the room for a while after its connection is lost.
+ * Every request is checked against the client's rate limits before the server handles it; a request held back
+ * puts the handler to sleep, so it stops reading and the flooder's TCP window fills up rather than the room.
+ * Clients speaking Java serialization can only send strings and MessageUtils objects, anything else is rejected
+ * by an ObjectInputFilter before it is instantiated.
  */
-public class ClientHandler extends Thread {
+public class ClientHandler implements Runnable, ClientConnection {
     private final Socket socket;  // The socket for the client connection
     private ObjectInputStream sInput;  // The input stream for the socket
+    private LegacyFilter legacyFilter;  // Limits what a client speaking Java serialization can make us instantiate
     private ObjectOutputStream sOutput;  // The output stream for the socket
-    private final long id;  // A unique identifier for the client thread
-    private String username;   // The username for the client
+    private DataInputStream frameInput;  // The input stream for clients speaking the binary frame protocol
+    private DataOutputStream frameOutput;  // The output stream for clients speaking the binary frame protocol
+    private boolean binaryProtocol;  // Whether the client speaks the binary frame protocol instead of Java serialization
+    private FrameCompressor compressor;  // Compresses and inflates large frames, null unless the client negotiated compression
+    private final long id;  // A unique identifier for the client
+    private volatile String username;   // The username for the client, read by other clients' threads
     private final String date;  // The date and the time when the client connected
     private Server server;   // A reference to the chat server
-    private final SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");  // A formatter for timestamps
     private final String ipAddress;  // The IP address of the client
-    private HashSet<String> usernames;  // A set of all usernames currently in use WHAT THIS FOR
+    private final OutboundQueue outbound;  // Messages waiting to be written by the client's writer thread
+    private volatile boolean closing;  // Whether close() was called, the writer is then draining the queue
+    private Thread writer;  // The thread draining the outbound queue
+    private final long accepted;  // When the connection was accepted, to time the handshake
+    private boolean heartbeats;  // Whether the client answers a PING with a PONG
+    private volatile Heartbeat heartbeat;  // Reaps the client when it goes quiet, null unless it answers heartbeats
+    private volatile boolean files;  // Whether the client receives file transfers
+    private ByteBuffer chunkBuffer;  // File bytes on their way from a spool file to the socket, allocated with the first file
+    private volatile boolean resumable;  // Whether the client can resume its session after a reconnect
+    private final RateLimiter.Meter meter;  // The client's share of the rate limits, its own and its address's
 
 
-    // Constructor for the client handler thread
-    public ClientHandler(Socket socket, boolean isAdmin, Server server, HashSet<String> usernames) {
+    // Constructor for the client handler, runs on the accept loop so it only records the connection,
+    // the handshake is performed by run() on the handler's own thread
+    public ClientHandler(Socket socket, boolean isAdmin, Server server) {
+        this.accepted = System.nanoTime();
         this.socket = socket;
         this.server = server;
         this.username = "client" + server.getUniqueId();
         this.ipAddress = socket.getInetAddress().getHostAddress();
         this.id = server.getUniqueId();
         this.date = new Date() + "\n";
-        this.usernames = usernames;
-
+        this.outbound = server.newOutboundQueue();
+        this.meter = server.meter(ipAddress);
 
         // If the client is an admin, add the "(admin)" suffix to their username
         if (isAdmin) {
             this.username += "(admin)";
         }
+    }
+
+
+    // Set up the streams, reserve the username and join the chat room, returns false if the client did not make it
+    private boolean handshake() {
         try {
-            // Initialize the input and output streams for the socket
-            this.sOutput = new ObjectOutputStream(socket.getOutputStream());
-            this.sInput = new ObjectInputStream(socket.getInputStream());
-
-            // Checking if the username is already taken
-            boolean isUsernameTaken = true;
-            while (isUsernameTaken) {
-                this.username = (String) sInput.readObject();
-                if (usernames.contains(this.username)) {
-                    // If the username is taken, notify the client and close the socket
+            // A client that does not announce itself in time is dropped instead of holding its thread forever
+            socket.setSoTimeout(server.getHandshakeTimeout());
+            // Initialize the input and output streams for the protocol announced by the client
+            openStreams();
+            // Messages are written by a dedicated writer so a slow client never blocks the sender
+            writer = server.startThread("client-writer-" + id, this::writeLoop);
+
+            Frame hello = readHello();
+            socket.setSoTimeout(0);
+            // A client presenting the token of its session takes its place in the room back, any other one joins
+            if (!server.resume(this, hello)) {
+                // Checking if the username is already taken
+                String requested = hello.getPayload();
+                if (!server.reserveUsername(requested, this)) {
+                    // If the username is taken, notify the client, the writer closes the socket once the notice is sent
                     writeMsg("*** Username already taken. Please choose a different username. ***");
-                    try {
-                        socket.close();
-                    } catch (IOException e) {
-                        server.display("Exception closing the socket: " + e.getMessage());
-                    }
-                } 
-                else {
-                    isUsernameTaken = false;
+                    close();
+                    return false;
                 }
-            }
+                this.username = requested;
 
-            // Add the client's username to the set of usernames in use, and notify all clients that the client has joined
-            usernames.add(this.username);
-            server.broadcast("*** " + username + " has joined the chat room." + " *** ");
-        } 
+                // The client's username is now reserved, let it into the chat room
+                server.join(this);
+            }
+            server.getMetrics().record(ServerMetrics.Stage.HANDSHAKE, accepted);
+            if (heartbeats) {
+                // Closing the socket ends the read loop, which removes the client like any other disconnect,
+                // off the timer wheel since closing a TLS socket writes to it
+                heartbeat = server.watch(this, () -> execute(() -> {
+                    closing = true;
+                    closeStreams();
+                }));
+                if (closing) {
+                    // Kicked while the heartbeat was starting
+                    heartbeat.stop();
+                }
+            }
+            return true;
+        }
+        catch (SocketTimeoutException e) {
+            server.getMetrics().count(ServerMetrics.Counter.TIMEOUTS);
+            server.display("Closing connection from " + ipAddress + ": no username within " + server.getHandshakeTimeout() + " ms");
+        }
         catch (IOException | ClassNotFoundException e) {
-            server.display("Exception creating new Input/output Streams: " + e.getMessage()); //HERE!! error
+            server.display("Exception creating new Input/output Streams: " + e.getMessage());
+        }
+        close();
+        if (writer == null) {
+            closeStreams();
+        }
+        return false;
+    }
+
+
+    // Tell the binary protocol apart from Java serialization by the first bytes the client sends
+    private void openStreams() throws IOException {
+        BufferedInputStream input = new BufferedInputStream(socket.getInputStream());
+        input.mark(2);
+        byte[] first = input.readNBytes(2);
+        input.reset();
+        if (first.length == 2 && FrameCodec.isLegacyStream(first[0], first[1])) {
+            // A client that predates the binary protocol, it waits for our stream header before sending its username
+            this.sOutput = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            sOutput.flush();
+            this.sInput = new ObjectInputStream(input);
+            legacyFilter = new LegacyFilter();
+            sInput.setObjectInputFilter(legacyFilter);
+        }
+        else {
+            // Answer the client's preamble with our own, both sides then speak the lower of the two versions
+            this.frameInput = new DataInputStream(input);
+            int version = FrameCodec.readPreamble(frameInput);
+            if (version >= FrameCodec.COMPRESSION_VERSION) {
+                compressor = new FrameCompressor();
+            }
+            heartbeats = version >= FrameCodec.HEARTBEAT_VERSION;
+            files = version >= FrameCodec.FILE_VERSION;
+            resumable = version >= FrameCodec.RESUME_VERSION;
+            this.frameOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            frameOutput.write(FrameCodec.preamble());
+            frameOutput.flush();
+            binaryProtocol = true;
+        }
+    }
+
+
+    // Read the HELLO the client announces its username with when connecting, and its session when it resumes one
+    private Frame readHello() throws IOException, ClassNotFoundException {
+        if (!binaryProtocol) {
+            return new Frame(MessageUtils.HELLO, readLegacy(String.class));
+        }
+        Frame hello = FrameCodec.read(frameInput, compressor);
+        if (hello.getType() != MessageUtils.HELLO) {
+            throw new IOException("Expected a username but received frame type " + hello.getType());
+        }
+        return hello;
+    }
+
+
+    // Read the next request sent by the client, the frames of file transfers are relayed on the way once the
+    // client's rate limits admit them
+    private MessageUtils readRequest() throws IOException, ClassNotFoundException {
+        if (binaryProtocol) {
+            while (true) {
+                Frame frame = FrameCodec.read(frameInput, compressor);
+                Heartbeat watching = heartbeat;
+                if (watching != null) {
+                    watching.touch();
+                }
+                if (!FileRelay.isFileFrame(frame)) {
+                    return frame.toMessage();
+                }
+                if (admit(() -> server.admitFile(this, meter, frame))) {
+                    server.relayFile(this, frame);
+                }
+            }
         }
+        return readLegacy(MessageUtils.class);
     }
 
 
-    // Getter for the client thread's unique identifier
+    // Read the next object sent by a client speaking Java serialization, which must be of the expected type
+    private <T> T readLegacy(Class<T> type) throws IOException, ClassNotFoundException {
+        legacyFilter.startObject();
+        Object obj = sInput.readObject();
+        if (!type.isInstance(obj)) {
+            throw new StreamCorruptedException("Expected a " + type.getSimpleName() + " but received "
+                    + (obj == null ? null : obj.getClass().getName()));
+        }
+        return type.cast(obj);
+    }
+
+
+    // Getter for the client's unique identifier
     public long getId()
     {
         return id;
@@ -118,6 +261,27 @@ public class ClientHandler extends Thread {
         return ipAddress;
     }
 
+
+    // Getter for the date and the time when the client connected
+    public String getDate()
+    {
+        return date;
+    }
+
+
+    // Whether the client speaks the binary frame protocol
+    public boolean isBinaryProtocol()
+    {
+        return binaryProtocol;
+    }
+
+
+    // Whether the client can resume its session after a reconnect
+    public boolean isResumable()
+    {
+        return resumable;
+    }
+
     
     // Getter for the input stream
     public ObjectInputStream getInputStream()
@@ -140,8 +304,11 @@ public class ClientHandler extends Thread {
     }
 
     
-    // The main entry point for the client thread
+    // The main entry point for the thread running the client
     public void run() {
+        if (!handshake()) {
+            return;
+        }
         // A flag indicating whether to keep the thread running
         boolean keepGoing = true;
 
@@ -150,129 +317,241 @@ public class ClientHandler extends Thread {
             // Read a message from the input stream
             MessageUtils chatMessage;
             try {
-                chatMessage = (MessageUtils) sInput.readObject();
+                chatMessage = readRequest();
             } 
-            catch (SocketException | ClassNotFoundException e) {
+            catch (SocketException | EOFException | ClassNotFoundException e) {
                 // If there is an error reading from the stream, break out of the loop and end the thread
                 break;
             } 
             catch (IOException e) {
                 // If there is an error reading from the stream, notify the server and break out of the loop
-                server.display(username + " Exception reading Streams: " + e);
+                // unless the connection is being closed on purpose
+                if (!closing) {
+                    server.display(username + " Exception reading Streams: " + e);
+                }
                 break;
             }
 
-            // Extract the message and its type from the message object
-            String message = chatMessage.getMessage();
-            switch (chatMessage.getType()) {
-                case MessageUtils.MESSAGE -> {
-                    // If the message type is a regular message, broadcast it to all clients in the chat room
-                    boolean confirmation = server.broadcast(username + ": " + message);
-                    if (!confirmation && !getServer().containsBadWord(message)) {
-                        // If there was an error broadcasting the message, and it does not contain a banned word, notify the client
-                        String msg = "*** " + "Sorry. No such user exists." + " *** ";
-                        writeMsg(msg);
-                    }
-                }
-                case MessageUtils.LOGOUT -> keepGoing = false;
-                case MessageUtils.KICK -> {
-                    // if the message type is a kick message, check if the client is authorized to kick users
-                    if (!username.startsWith("(admin)")) {
-                        // if the client is not an admin, notify them and break out of the switch statement
-                        String msg = "*** " + "You are not authorized to kick users." + " *** ";
-                        writeMsg(msg);
-                        break;
-                    }
-
-                    // Extract the username to kick from the message
-                    if (!kickUser(message)) {
-                        // If there is no client with that username, notify the admin
-                        String msg = "*** " + "Sorry. No such user exists." + " *** ";
-                        writeMsg(msg);
-                    }
-                }
-                case MessageUtils.USERS -> {
-                    // If the message type is a users message, list all connected clients and their join times
-                    writeMsg("List of the users connected at " + sdf.format(new Date()));
-                    for (int i = 0; i < server.getClients().size(); ++i) {
-                        ClientHandler ct = server.getClients().get(i);
-                        writeMsg((i + 1) + ") " + ct.username + " since " + ct.date);
-                    }
-                }
+            // A flooding client is held back before its request costs the room anything
+            if (!admit(chatMessage)) {
+                continue;
             }
-        }
-        // If the loop exits, remove the client from the server and close the socket
-        server.remove(id, true);
 
-        // if username contains(admin) remove admin part from it and remove it from usernames
-        if (username.startsWith("(admin)"))
-        {
-            username = username.substring(7);
-            usernames.remove(username);
+            // Let the server handle the request, it returns false when the client logs out
+            keepGoing = server.handleMessage(this, chatMessage);
         }
-        else
-        {
-            usernames.remove(username);
+        // If the loop exits, remove the client from the server and close the socket,
+        // unless the connection was lost and the client keeps its place in the room to resume its session
+        if (!keepGoing || !server.suspend(this)) {
+            server.remove(id, true);
+            server.releaseUsername(this);
         }
         close();
     }
 
     
+    // Wait until the client's rate limits admit the request, returns false if it was dropped or the client cut off
+    private boolean admit(MessageUtils request) {
+        return admit(() -> server.admit(this, meter, request));
+    }
+
+
+    // Wait as long as the check asks for until it admits, returns false if it dropped or cut off the client
+    private boolean admit(LongSupplier check) {
+        long wait;
+        while ((wait = check.getAsLong()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return wait == 0;
+    }
+
+
     // Kick a user with the given username
     public boolean kickUser(String username) {
-        // Search for the client with the given username in the list of connected clients
-        for (ClientHandler clientThread : server.getClients()) {
-            if (clientThread.getUsername().equals(username)) {
-                // If the client is found, notify them that they have been kicked and remove them from the server
-                clientThread.writeMsg("\033[33m*** You have been kicked by the admin. ***\033[0m");
-                server.remove(clientThread.id, false);
-                clientThread.close();
-                server.broadcast("*** " + username + " has been kicked by the admin." + " *** ");
-                return true;
-            }
+        return server.kickUser(username);
+    }
+
+
+    // Stop accepting messages, the writer sends what is queued and then closes the socket
+    public void close() {
+        closing = true;
+        meter.release();
+        Heartbeat watching = heartbeat;
+        if (watching != null) {
+            watching.stop();
+        }
+        outbound.close();
+        try {
+            // Unblock the read loop without cutting off the writer
+            socket.shutdownInput();
+        }
+        catch (IOException e) {
         }
-        // If the client is not found, return false
-        return false;
     }
 
 
     // Close the socket and input/output streams
-    private void close() {
+    private void closeStreams() {
+        try {
+            if (socket != null) socket.close();
+        } catch (Exception e) {
+        }
         try {
             if (sOutput != null) sOutput.close();
+            if (frameOutput != null) frameOutput.close();
         } 
         catch (Exception e) {
         }
         try {
             if (sInput != null) sInput.close();
+            if (frameInput != null) frameInput.close();
         } catch (Exception e) {
         }
-        try {
-            if (socket != null) socket.close();
-        } catch (Exception e) {
+        if (compressor != null) {
+            compressor.end();
         }
     }
 
 
-    // Write a message to the client's output stream
-    public boolean writeMsg(String msg) 
+    // Queue a message for the client's writer
+    public boolean send(EncodedMessage msg) 
     {
-        // If the client is still connected, send the message to them
-        if (!socket.isConnected()) {
-            close();
+        if (!outbound.offer(msg)) {
+            if (!closing) {
+                // The client is too slow under the disconnect policy, cut it off without draining
+                server.display("Disconnecting slow client " + username + ": " + outbound.describe());
+                closing = true;
+                closeStreams();
+            }
             return false;
         }
-        // Write the message to the output stream
+        return true;
+    }
+
+
+    // Queue a file transfer for the client's writer
+    public boolean sendFile(FileTransfer.Delivery delivery)
+    {
+        if (!files) {
+            return false;
+        }
+        delivery.onReady(outbound::transferReady);
+        return outbound.offerTransfer(delivery);
+    }
+
+
+    // Getter for the queue of messages waiting to be written
+    public OutboundQueue getOutboundQueue()
+    {
+        return outbound;
+    }
+
+
+    // Drain the outbound queue to the socket, runs on the client's own writer thread
+    private void writeLoop() {
         try {
-            sOutput.writeObject(msg);
+            EncodedMessage msg;
+            // While the queue is open, take() also returns when a file transfer may have a chunk ready
+            while ((msg = outbound.take()) != null || !outbound.isClosed()) {
+                // Write everything that queued up meanwhile before paying for a single flush
+                long start = System.nanoTime();
+                for (; msg != null; msg = outbound.poll()) {
+                    if (binaryProtocol) {
+                        // The frame bytes are shared with the other recipients of the message
+                        frameOutput.write(compressor != null ? msg.frameBytes(compressor) : msg.frameBytes());
+                    }
+                    else {
+                        sOutput.writeObject(msg.getText());
+                    }
+                }
+
+                // Then a single chunk of a file, so a message queued meanwhile waits for no more than that
+                FileTransfer.Chunk chunk = binaryProtocol ? outbound.nextChunk() : null;
+                if (chunk != null) {
+                    writeChunk(chunk);
+                    // Come back for the next chunk once the messages queued meanwhile are written
+                    outbound.transferReady();
+                }
+
+                if (binaryProtocol) {
+                    frameOutput.flush();
+                }
+                else {
+                    sOutput.flush();
+                }
+                server.getMetrics().record(ServerMetrics.Stage.WRITE, start);
+            }
         }
-        // If an error occurs, do not abort just inform the user
-        catch (IOException e) {
-            // If there is an error writing to the stream, notify the server
-            System.out.println("*** " + "Error sending message to " + username + " *** ");
-            System.out.println(e.toString());
+        // If an error occurs, inform the server, the socket is closed below and the read loop ends
+        catch (IOException | InterruptedException e) {
+            server.display("*** " + "Error sending message to " + username + ": " + e + " *** ");
+        }
+        finally {
+            outbound.close();
+            closeStreams();
         }
-        return true;
     }
-}
 
+
+    // Write a chunk of a file transfer: its header, then its bytes read from the spool file
+    private void writeChunk(FileTransfer.Chunk chunk) throws IOException {
+        frameOutput.write(chunk.header());
+        if (chunk.length() == 0) {
+            return;
+        }
+        if (chunkBuffer == null) {
+            chunkBuffer = ByteBuffer.allocate(FrameCodec.FILE_CHUNK_SIZE);
+        }
+        chunkBuffer.clear().limit(chunk.length());
+        while (chunkBuffer.hasRemaining()) {
+            if (chunk.spool().read(chunkBuffer, chunk.position() + chunkBuffer.position()) < 0) {
+                throw new EOFException("The spool file of a transfer is shorter than expected.");
+            }
+        }
+        frameOutput.write(chunkBuffer.array(), 0, chunk.length());
+    }
+
+
+    /*
+     * Filter of the objects a client speaking Java serialization sends: only MessageUtils, strings and primitives,
+     * with the nesting, the references and the bytes of every object limited. The stream counts references and bytes
+     * since it was opened, so the limits apply to what was read since the current object started.
+     */
+    private static final class LegacyFilter implements ObjectInputFilter {
+        private static final int MAX_DEPTH = 3;                             // A MessageUtils holds nothing but a string
+        private static final int MAX_REFS = 16;                             // Handles a single object may create
+        private static final int MAX_BYTES = FrameCodec.MAX_FRAME_LENGTH;   // Bytes of a single object, like a frame
+
+        private boolean starting;   // Whether the next check is the first one of a new object
+        private long bytesBefore;   // Bytes of the stream read before the current object
+        private long refsBefore;    // References of the stream created before the current object
+
+        // Measure the limits from the next object on
+        void startObject() {
+            starting = true;
+        }
+
+        public Status checkInput(FilterInfo info) {
+            if (starting) {
+                starting = false;
+                bytesBefore = info.streamBytes();
+                refsBefore = info.references();
+            }
+            if (info.depth() > MAX_DEPTH || info.references() - refsBefore > MAX_REFS
+                    || info.streamBytes() - bytesBefore > MAX_BYTES) {
+                return Status.REJECTED;
+            }
+            Class<?> type = info.serialClass();
+            if (type == null || type == MessageUtils.class || type == String.class || type.isPrimitive()) {
+                return Status.ALLOWED;
+            }
+            return Status.REJECTED;
+        }
+    }
+}
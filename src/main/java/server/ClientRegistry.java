@@ -0,0 +1,174 @@
+package server;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Registry of the clients in the chat room, indexed by username and by connection id.
+ * Usernames are reserved atomically during the handshake by the connection that claims them, and only that
+ * connection can release them again. Lookups for private messages and kicks are constant time and never lock,
+ * and the coordinator role is handed over with compare-and-set so concurrent joins and leaves always agree
+ * on a single coordinator: the longest connected client in the room.
+ * Every join, leave and rename bumps a version, and the Roster snapshot answering USERS is only rebuilt
+ * the first time it is asked for after the version changed.
+ */
+public class ClientRegistry {
+    public static final String ADMIN_TAG = "(admin)";  // Prefix shown in front of the coordinator's username
+
+    private final ConcurrentHashMap<String, ClientConnection> byName = new ConcurrentHashMap<>();      // Reserved usernames, without the admin tag
+    private final ConcurrentSkipListMap<Long, ClientConnection> byId = new ConcurrentSkipListMap<>();  // Clients in the room, oldest connection first
+    private final AtomicReference<ClientConnection> coordinator = new AtomicReference<>();             // The client allowed to kick others
+    private final AtomicLong version = new AtomicLong();   // Bumped after every change of the room's members or their names
+    private volatile Roster roster;                        // The last snapshot taken of the room, null until asked for
+
+
+    // Reserve a username for a joining client, returns false if it is taken or could be mistaken for the coordinator
+    public boolean reserve(String username, ClientConnection client) {
+        if (username.isEmpty() || username.startsWith(ADMIN_TAG)) {
+            return false;
+        }
+        return byName.putIfAbsent(username, client) == null;
+    }
+
+
+    // Release the username reserved by the client, a name reserved by another connection is left alone
+    public void release(ClientConnection client) {
+        byName.remove(baseName(client.getUsername()), client);
+    }
+
+
+    // Add a client that completed its handshake, returns the client that became coordinator or null if it did not change
+    public ClientConnection add(ClientConnection client) {
+        byId.put(client.getId(), client);
+        version.incrementAndGet();
+        return elect();
+    }
+
+
+    // Remove a client from the room, returns it or null if it was not in the room
+    public ClientConnection remove(long id) {
+        ClientConnection removed = byId.remove(id);
+        if (removed != null) {
+            version.incrementAndGet();
+        }
+        return removed;
+    }
+
+
+    // Hand the place of a client in the room to the connection that resumed its session: its username, its
+    // reservation and the coordinator role. Returns false if the previous connection is no longer in the room.
+    public boolean replace(ClientConnection previous, ClientConnection client) {
+        if (byId.get(previous.getId()) != previous) {
+            return false;
+        }
+        client.setUsername(previous.getUsername());
+        String name = baseName(previous.getUsername());
+        if (!byName.replace(name, previous, client)) {
+            byName.putIfAbsent(name, client);
+        }
+        // The new connection has the newest id, so it is now the youngest client when the coordinator role moves on
+        byId.put(client.getId(), client);
+        coordinator.compareAndSet(previous, client);
+        byId.remove(previous.getId(), previous);
+        version.incrementAndGet();
+        return true;
+    }
+
+
+    // Record that a client in the room changed its username
+    public void renamed() {
+        version.incrementAndGet();
+    }
+
+
+    // Version of the room, bumped after every join, leave and rename
+    public long getVersion() {
+        return version.get();
+    }
+
+
+    // Snapshot of the room, rebuilt only when a client joined, left or was renamed since the last one
+    public Roster roster() {
+        // The version is read before the members, so a change racing with the snapshot leaves it out of date
+        long current = version.get();
+        Roster snapshot = roster;
+        if (snapshot == null || snapshot.getVersion() != current) {
+            snapshot = new Roster(current, byId.values());
+            roster = snapshot;
+        }
+        return snapshot;
+    }
+
+
+    // Pass the coordinator role on after the client left, returns the new coordinator or null if the role did not move
+    public ClientConnection handOff(ClientConnection departed) {
+        if (!coordinator.compareAndSet(departed, null)) {
+            return null;
+        }
+        return elect();
+    }
+
+
+    // Make the oldest client the coordinator if there is none, returns the client that was elected or null
+    private ClientConnection elect() {
+        while (coordinator.get() == null) {
+            Map.Entry<Long, ClientConnection> oldest = byId.firstEntry();
+            if (oldest == null) {
+                return null;
+            }
+            if (coordinator.compareAndSet(null, oldest.getValue())) {
+                if (byId.containsKey(oldest.getKey())) {
+                    return oldest.getValue();
+                }
+                // The client left while it was being elected and may have missed the hand-off, try the next one
+                coordinator.compareAndSet(oldest.getValue(), null);
+            }
+        }
+        return null;
+    }
+
+
+    // Find a client in the room by its username, with or without the admin tag
+    public ClientConnection find(String username) {
+        ClientConnection client = byName.get(baseName(username));
+        if (client == null || byId.get(client.getId()) != client) {
+            return null;
+        }
+        String current = client.getUsername();
+        return current.equals(username) || baseName(current).equals(username) ? client : null;
+    }
+
+
+    // Whether the client is the coordinator
+    public boolean isCoordinator(ClientConnection client) {
+        return coordinator.get() == client;
+    }
+
+
+    // The current coordinator, null if the room is empty
+    public ClientConnection getCoordinator() {
+        return coordinator.get();
+    }
+
+
+    // The clients in the room, oldest connection first, the view reflects concurrent joins and leaves
+    public Collection<ClientConnection> clients() {
+        return byId.values();
+    }
+
+
+    // Number of clients in the room
+    public int size() {
+        return byId.size();
+    }
+
+
+    // The username without the admin tag
+    static String baseName(String username) {
+        return username.startsWith(ADMIN_TAG) ? username.substring(ADMIN_TAG.length()) : username;
+    }
+}
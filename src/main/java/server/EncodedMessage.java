@@ -0,0 +1,169 @@
+package server;
+
+import shared.Frame;
+import shared.FrameCodec;
+import shared.FrameCompressor;
+import shared.MessageUtils;
+
+import java.io.OutputStream;
+import java.io.IOException;
+
+/*
+ * A message prepared once for delivery to any number of clients.
+ * The binary frame is encoded straight from the message's parts when it is created and the same bytes are handed
+ * to every recipient. The text the client displays is only needed by clients that still speak Java serialization,
+ * so it is built and encoded on first use and then shared as well. So is the compressed frame for clients that
+ * negotiated compression: frames are compressed one by one with a fixed dictionary, so every recipient gets the same bytes.
+ * Messages to the whole room carry the sequence number the ReplayBuffer gave them.
+ */
+public final class EncodedMessage {
+    private final int type;                     // Frame type, TEXT or CHAT
+    private final int flags;                    // Frame flags
+    private final String payload;               // The message itself
+    private final String sender;                // Username of the sender of a chat line, null for text
+    private final String address;               // IP address of the sender of a chat line, null for text
+    private final String time;                  // Time a chat line was received, null for text
+    private final long sequence;                // Sequence number of a room message, -1 for any other message
+    private final byte[] frame;                  // The encoded binary frame, never modified after construction
+    private volatile String text;               // The text as displayed by the client, built on first use
+    private volatile byte[] legacyEncoding;     // The text encoded as a serialized String, built on first use
+    private volatile byte[] compressedFrame;    // The frame as sent to clients that negotiated compression, built on first use
+
+
+    // Constructor that encodes the frame
+    private EncodedMessage(int type, int flags, String payload, String sender, String address, String time, long sequence) {
+        this.type = type;
+        this.flags = flags;
+        this.payload = payload == null ? "" : payload;
+        this.sender = sender;
+        this.address = address;
+        this.time = time;
+        this.sequence = sequence;
+        this.frame = type == MessageUtils.CHAT
+                ? FrameCodec.encodeChat(flags, this.payload, sender, address, time, sequence)
+                : FrameCodec.encode(type, flags, this.payload, sequence);
+    }
+
+
+    // Constructor for a frame carrying its own fields, encoded as it is
+    private EncodedMessage(Frame frame) {
+        this.type = frame.getType();
+        this.flags = frame.getFlags();
+        this.payload = frame.getPayload();
+        this.sender = null;
+        this.address = null;
+        this.time = null;
+        this.sequence = frame.getLong(Frame.FIELD_SEQUENCE, -1);
+        this.frame = FrameCodec.encode(frame);
+    }
+
+
+    // A frame with fields of its own, such as a presence update
+    public static EncodedMessage of(Frame frame) {
+        return new EncodedMessage(frame);
+    }
+
+
+    // A plain text message
+    public static EncodedMessage text(String text) {
+        return new EncodedMessage(MessageUtils.TEXT, 0, text, null, null, null, -1);
+    }
+
+
+    // A plain text message to the whole room with its sequence number
+    public static EncodedMessage text(String text, long sequence) {
+        return new EncodedMessage(MessageUtils.TEXT, 0, text, null, null, null, sequence);
+    }
+
+
+    // A control frame without text, such as a heartbeat, only sent to clients speaking the binary protocol
+    public static EncodedMessage control(int type) {
+        return new EncodedMessage(type, 0, "", null, null, null, -1);
+    }
+
+
+    // A chat line written by the sender, the sender's username and ip address travel as fields of the frame
+    public static EncodedMessage chat(String timestamp, ClientConnection sender, String message, boolean isPrivate) {
+        return new EncodedMessage(MessageUtils.CHAT, isPrivate ? Frame.FLAG_PRIVATE : 0, message,
+                sender.getUsername(), sender.getIpAddress(), timestamp, -1);
+    }
+
+
+    // A chat line written by the sender to the whole room, with its sequence number
+    public static EncodedMessage chat(String timestamp, ClientConnection sender, String message, long sequence) {
+        return new EncodedMessage(MessageUtils.CHAT, 0, message, sender.getUsername(), sender.getIpAddress(), timestamp, sequence);
+    }
+
+
+    // Sequence number of a room message, -1 for any other message
+    public long getSequence() {
+        return sequence;
+    }
+
+
+    // Whether a full outbound queue may drop the message, only text and chat lines, never a control frame
+    public boolean isDroppable() {
+        return type == MessageUtils.TEXT || type == MessageUtils.CHAT;
+    }
+
+
+    // Getter for the text as displayed by the client
+    public String getText() {
+        String displayed = text;
+        if (displayed == null) {
+            // Racing threads may both build it, they produce equal strings
+            if (type != MessageUtils.CHAT) {
+                displayed = payload;
+            }
+            else {
+                displayed = new Frame(type, flags, payload)
+                        .putField(Frame.FIELD_SENDER, String.valueOf(sender))
+                        .putField(Frame.FIELD_ADDRESS, String.valueOf(address))
+                        .putField(Frame.FIELD_TIME, String.valueOf(time))
+                        .toDisplayText();
+            }
+            text = displayed;
+        }
+        return displayed;
+    }
+
+
+    // The shared frame bytes, callers must not modify them
+    byte[] frameBytes() {
+        return frame;
+    }
+
+
+    // The shared frame bytes for a client that negotiated compression, compressed with that client's compressor
+    // the first time, callers must not modify them
+    byte[] frameBytes(FrameCompressor compressor) {
+        if (frame.length - 6 < FrameCompressor.THRESHOLD) {
+            return frame;
+        }
+        byte[] compressed = compressedFrame;
+        if (compressed == null) {
+            // Racing threads may both compress, they produce identical bytes
+            compressed = compressor.compress(frame);
+            compressedFrame = compressed;
+        }
+        return compressed;
+    }
+
+
+    // Write the shared frame bytes to a stream
+    public void writeFrame(OutputStream out) throws IOException {
+        out.write(frame);
+    }
+
+
+    // The text encoded as a serialized String, shared by every legacy recipient, callers must not modify it
+    byte[] legacyBytes() {
+        byte[] encoded = legacyEncoding;
+        if (encoded == null) {
+            // Racing threads may both encode, they produce identical bytes
+            encoded = ObjectStreamCodec.encodeString(getText());
+            legacyEncoding = encoded;
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,226 @@
+package server;
+
+import shared.Frame;
+import shared.MessageUtils;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Relays the files clients send to each other, one instance per server.
+ * A sender opens a transfer with a FILE frame naming "@username" or nobody for the whole room, streams the file in
+ * FILE_DATA frames and closes it with FILE_END. Every transfer is spooled to disk and each recipient is handed a
+ * delivery that its connection writes in chunks whenever no chat message is waiting, so a file never starves the
+ * chat on the same connection, and only recipients speaking protocol version 4 or later are offered files.
+ * Frames of a transfer that was refused or cut short are ignored, and a sender that leaves cuts its transfers short.
+ */
+final class FileRelay {
+    static final int MAX_OPEN_TRANSFERS = 4;        // Transfers a client may be sending at once
+    static final int MAX_NAME_LENGTH = 255;         // Longest file name accepted
+
+    // A transfer as the sender knows it: its connection and the id it chose
+    private record Key(long connection, long transfer) {
+    }
+
+    private final Server server;                    // The server, for its metrics and log
+    private final ClientRegistry clients;           // The clients in the room, to find the recipients
+    private final Path spoolDirectory;              // Where transfers are spooled while they are relayed
+    private final AtomicLong ids = new AtomicLong(); // Ids of the transfers towards the recipients
+    private final Map<Key, FileTransfer> open = new ConcurrentHashMap<>();  // Transfers whose sender is not done yet
+    private volatile long maxFileSize = 64L << 20;  // Largest file a client may send
+
+
+    // Constructor that receives the server, its clients and the directory of the spool files
+    FileRelay(Server server, ClientRegistry clients, Path spoolDirectory) {
+        this.server = server;
+        this.clients = clients;
+        this.spoolDirectory = spoolDirectory;
+    }
+
+
+    // Set the largest file a client may send, in bytes
+    void setMaxFileSize(long bytes) {
+        if (bytes < 1) {
+            throw new IllegalArgumentException("The largest file size must be positive.");
+        }
+        maxFileSize = bytes;
+    }
+
+
+    // Getter for the largest file a client may send, in bytes
+    long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+
+    // Handle a frame of a file transfer, runs on the thread reading the sender, returns false for any other frame
+    boolean relay(ClientConnection sender, Frame frame) {
+        switch (frame.getType()) {
+            case MessageUtils.FILE -> open(sender, frame);
+            case MessageUtils.FILE_DATA -> append(sender, frame);
+            case MessageUtils.FILE_END -> {
+                FileTransfer transfer = open.remove(key(sender, frame));
+                if (transfer != null) {
+                    transfer.end((frame.getFlags() & Frame.FLAG_ABORTED) != 0);
+                }
+            }
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    // Whether the frame belongs to a file transfer
+    static boolean isFileFrame(Frame frame) {
+        int type = frame.getType();
+        return type == MessageUtils.FILE || type == MessageUtils.FILE_DATA || type == MessageUtils.FILE_END;
+    }
+
+
+    // Cut short the transfer a frame that is not relayed belongs to, the sender was told why
+    void cutShort(ClientConnection sender, Frame frame) {
+        FileTransfer transfer = open.remove(key(sender, frame));
+        if (transfer != null) {
+            transfer.end(true);
+        }
+    }
+
+
+    // Cut short the transfers of a client that left
+    void abandon(long connection) {
+        for (Map.Entry<Key, FileTransfer> entry : open.entrySet()) {
+            if (entry.getKey().connection() == connection && open.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().end(true);
+            }
+        }
+    }
+
+
+    // Number of transfers whose sender is not done yet
+    int size() {
+        return open.size();
+    }
+
+
+    // Start relaying a file to its recipients, the sender is told when it is refused
+    private void open(ClientConnection sender, Frame frame) {
+        String name = frame.getString(Frame.FIELD_FILE_NAME);
+        long size = frame.getLong(Frame.FIELD_FILE_SIZE, -1);
+        Key key = key(sender, frame);
+        if (name == null || name.isBlank() || name.length() > MAX_NAME_LENGTH || size < 0) {
+            refuse(sender, "The file was refused: it has no valid name or size.");
+            return;
+        }
+        if (size > maxFileSize) {
+            refuse(sender, "The file " + name + " was refused: files are limited to " + maxFileSize + " bytes.");
+            return;
+        }
+        if (open.containsKey(key) || countOpen(sender) >= MAX_OPEN_TRANSFERS) {
+            refuse(sender, "The file " + name + " was refused: you are already sending " + MAX_OPEN_TRANSFERS + " files.");
+            return;
+        }
+
+        // The recipient is named like in a private message, without one the file goes to the whole room
+        String recipient = frame.getPayload().startsWith("@") ? frame.getPayload().substring(1).trim() : "";
+        List<ClientConnection> recipients = new ArrayList<>();
+        if (!recipient.isEmpty()) {
+            ClientConnection found = clients.find(recipient);
+            if (found == null || found == sender) {
+                refuse(sender, "The file " + name + " was refused: no such user exists.");
+                return;
+            }
+            recipients.add(found);
+        }
+        else {
+            for (ClientConnection client : clients.clients()) {
+                if (client != sender) {
+                    recipients.add(client);
+                }
+            }
+        }
+
+        FileTransfer transfer;
+        try {
+            transfer = new FileTransfer(ids.incrementAndGet(), sender.getUsername(), name, size, !recipient.isEmpty(),
+                    spoolDirectory, server::display);
+        }
+        catch (IOException e) {
+            server.display("Exception spooling " + name + " from " + sender.getUsername() + ": " + e);
+            refuse(sender, "The file " + name + " could not be received by the server.");
+            return;
+        }
+        int delivering = 0;
+        for (ClientConnection client : recipients) {
+            if (transfer.deliverTo(client)) {
+                delivering++;
+            }
+        }
+        if (delivering == 0) {
+            transfer.end(true);
+            refuse(sender, "The file " + name + " was refused: " + (recipient.isEmpty() ? "nobody in the room" : recipient)
+                    + " can receive files.");
+            return;
+        }
+        open.put(key, transfer);
+        server.getMetrics().count(ServerMetrics.Counter.FILES);
+        server.display(sender.getUsername() + " is sending " + name + " (" + size + " bytes) to "
+                + (recipient.isEmpty() ? delivering + " clients" : recipient));
+    }
+
+
+    // Spool the next bytes of a transfer, which is cut short when they cannot be spooled
+    private void append(ClientConnection sender, Frame frame) {
+        Key key = key(sender, frame);
+        FileTransfer transfer = open.get(key);
+        byte[] data = frame.getField(Frame.FIELD_DATA);
+        if (transfer == null || data == null) {
+            // Refused or already cut short, the sender was told
+            return;
+        }
+        try {
+            if (!transfer.append(data)) {
+                open.remove(key);
+                transfer.end(true);
+                refuse(sender, "The transfer of " + transfer.getName() + " stopped: nobody is left to receive it.");
+            }
+        }
+        catch (IOException e) {
+            open.remove(key);
+            transfer.end(true);
+            server.display("Transfer of " + transfer.getName() + " from " + sender.getUsername() + " failed: " + e.getMessage());
+            refuse(sender, "The transfer of " + transfer.getName() + " failed: " + e.getMessage() + ".");
+        }
+    }
+
+
+    // Tell the sender why its file is not relayed
+    private void refuse(ClientConnection sender, String reason) {
+        server.getMetrics().count(ServerMetrics.Counter.REJECTED);
+        sender.writeMsg("\033[33m*** " + reason + " ***\033[0m");
+    }
+
+
+    // Number of transfers the client is sending
+    private int countOpen(ClientConnection sender) {
+        int count = 0;
+        for (Key key : open.keySet()) {
+            if (key.connection() == sender.getId()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    // The key of the transfer a frame from the sender belongs to
+    private static Key key(ClientConnection sender, Frame frame) {
+        return new Key(sender.getId(), frame.getLong(Frame.FIELD_TRANSFER, -1));
+    }
+}
@@ -0,0 +1,258 @@
+package server;
+
+import shared.Frame;
+import shared.FrameCodec;
+import shared.MessageUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/*
+ * A file on its way from one client to its recipients, spooled to disk as it arrives.
+ * The thread reading the sender appends its chunks to a spool file and every recipient reads the file back through
+ * its own Delivery, at the pace of its own connection, so a slow recipient costs disk space rather than memory and
+ * never holds up the sender or the other recipients. Recipients start receiving while the sender is still sending.
+ * The spool file is deleted once the sender is done and every delivery finished or was cancelled.
+ */
+public final class FileTransfer {
+
+    // The next bytes to write to a recipient: the header, then length bytes of the spool file from position
+    public record Chunk(byte[] header, FileChannel spool, long position, int length) {
+    }
+
+    private final long id;                          // Id of the transfer towards the recipients, unique on the server
+    private final String name;                      // Name of the file without its directory
+    private final long size;                        // Size announced by the sender
+    private final String sender;                    // Username of the sender
+    private final int flags;                        // Frame.FLAG_PRIVATE when the file goes to a single recipient
+    private final byte[] start;                     // FILE frame announcing the transfer, shared by every recipient
+    private final FileChannel spool;                // The bytes received so far, deleted when the channel is closed
+    private final Consumer<String> log;             // Where failures to release the spool file are reported
+    private final ReentrantLock lock = new ReentrantLock();  // Guards the progress of the transfer and its deliveries
+    private final List<Delivery> deliveries = new ArrayList<>();  // One per recipient that still has bytes to receive
+    private long spooled;                           // Bytes written to the spool file
+    private byte[] end;                             // FILE_END frame, built once the sender is done
+    private boolean released;                       // Whether the spool file was closed and deleted
+
+
+    // Constructor that creates the spool file of the transfer in the directory
+    FileTransfer(long id, String sender, String name, long size, boolean isPrivate, Path spoolDirectory,
+            Consumer<String> log) throws IOException {
+        this.id = id;
+        this.name = name;
+        this.size = size;
+        this.sender = sender;
+        this.flags = isPrivate ? Frame.FLAG_PRIVATE : 0;
+        this.log = log;
+        this.start = FrameCodec.encode(new Frame(MessageUtils.FILE, flags, "")
+                .putField(Frame.FIELD_TRANSFER, id)
+                .putField(Frame.FIELD_SENDER, sender)
+                .putField(Frame.FIELD_FILE_NAME, name)
+                .putField(Frame.FIELD_FILE_SIZE, size));
+        Files.createDirectories(spoolDirectory);
+        Path path = Files.createTempFile(spoolDirectory, "transfer-" + id + "-", ".part");
+        this.spool = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+
+    // Getter for the name of the file
+    public String getName() {
+        return name;
+    }
+
+
+    // Getter for the size announced by the sender
+    public long getSize() {
+        return size;
+    }
+
+
+    // Bytes received from the sender so far
+    public long getSpooled() {
+        lock.lock();
+        try {
+            return spooled;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Start a delivery to the recipient, returns false if its connection cannot take files
+    boolean deliverTo(ClientConnection recipient) {
+        Delivery delivery = new Delivery();
+        lock.lock();
+        try {
+            deliveries.add(delivery);
+        }
+        finally {
+            lock.unlock();
+        }
+        if (!recipient.sendFile(delivery)) {
+            delivery.cancel();
+            return false;
+        }
+        return true;
+    }
+
+
+    // Append the next bytes from the sender, runs on the thread reading the sender,
+    // returns false once no recipient is left to receive them
+    boolean append(byte[] data) throws IOException {
+        // Only the sender's thread appends, so the bytes can be written without holding the lock
+        long position = getSpooled();
+        if (position + data.length > size) {
+            throw new IOException("more bytes than the " + size + " announced");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            spool.write(buffer, position + buffer.position());
+        }
+        List<Delivery> waiting;
+        lock.lock();
+        try {
+            spooled += data.length;
+            waiting = new ArrayList<>(deliveries);
+        }
+        finally {
+            lock.unlock();
+        }
+        for (Delivery delivery : waiting) {
+            delivery.wake.run();
+        }
+        return !waiting.isEmpty();
+    }
+
+
+    // The sender is done, the transfer is cut short when it gave up or sent fewer bytes than it announced
+    void end(boolean aborted) {
+        List<Delivery> waiting;
+        lock.lock();
+        try {
+            if (end != null) {
+                return;
+            }
+            int endFlags = flags | (aborted || spooled != size ? Frame.FLAG_ABORTED : 0);
+            end = FrameCodec.encode(new Frame(MessageUtils.FILE_END, endFlags, "")
+                    .putField(Frame.FIELD_TRANSFER, id)
+                    .putField(Frame.FIELD_SENDER, sender)
+                    .putField(Frame.FIELD_FILE_NAME, name));
+            waiting = new ArrayList<>(deliveries);
+            releaseIfDone();
+        }
+        finally {
+            lock.unlock();
+        }
+        for (Delivery delivery : waiting) {
+            delivery.wake.run();
+        }
+    }
+
+
+    // Close and delete the spool file once nobody needs it anymore, caller holds the lock
+    private void releaseIfDone() {
+        if (released || end == null || !deliveries.isEmpty()) {
+            return;
+        }
+        released = true;
+        try {
+            spool.close();
+        }
+        catch (IOException e) {
+            log.accept("Exception deleting the spool file of " + name + ": " + e);
+        }
+    }
+
+
+    /*
+     * The progress of the transfer towards one recipient, written by the recipient's connection when no
+     * chat message is waiting. Hands out the FILE frame, the file in chunks as they are spooled and finally
+     * the FILE_END frame.
+     */
+    public final class Delivery {
+        private long position;                      // Bytes of the file already handed out
+        private boolean started;                    // Whether the FILE frame was handed out
+        private boolean finished;                   // Whether the FILE_END frame was handed out or the delivery cancelled
+        private volatile Runnable wake = () -> {};  // Tells the recipient's connection that more bytes are ready
+
+
+        // Set how the recipient's connection is told that more bytes are ready, before it is handed the delivery
+        void onReady(Runnable wake) {
+            this.wake = wake;
+        }
+
+
+        // The next chunk to write, null when nothing is ready yet or the delivery is finished
+        Chunk next() {
+            lock.lock();
+            try {
+                if (finished) {
+                    return null;
+                }
+                if (!started) {
+                    started = true;
+                    return new Chunk(start, spool, 0, 0);
+                }
+                if (position < spooled) {
+                    int length = (int) Math.min(FrameCodec.FILE_CHUNK_SIZE, spooled - position);
+                    Chunk chunk = new Chunk(FrameCodec.encodeFileDataHeader(id, length), spool, position, length);
+                    position += length;
+                    return chunk;
+                }
+                if (end != null) {
+                    // Every chunk handed out before was written, the spool file may go once the others are done too
+                    finish();
+                    return new Chunk(end, spool, 0, 0);
+                }
+                return null;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+
+        // Whether the FILE_END frame was handed out or the delivery cancelled
+        boolean isFinished() {
+            lock.lock();
+            try {
+                return finished;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+
+        // Stop the delivery, the recipient's connection closed
+        void cancel() {
+            lock.lock();
+            try {
+                if (!finished) {
+                    finish();
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+
+        // Drop the delivery from the transfer, caller holds the lock
+        private void finish() {
+            finished = true;
+            deliveries.remove(this);
+            releaseIfDone();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package server;
+
+import shared.MessageUtils;
+
+/*
+ * Liveness check of a single connection that speaks protocol version 3 or later.
+ * The connection calls touch() whenever bytes arrive, which is a single volatile write. A timeout on the server's
+ * timer wheel looks at the connection once per heartbeat interval: if it has been quiet for an interval it is sent
+ * a PING, which the client answers with a PONG, and if it has been quiet for the whole idle timeout it is presumed
+ * dead and reaped, so a half-open connection stops receiving broadcasts within seconds.
+ */
+final class Heartbeat implements Runnable {
+    private static final EncodedMessage PING = EncodedMessage.control(MessageUtils.PING);  // Shared by every connection
+
+    private final Server server;                    // The server owning the timer wheel
+    private final ClientConnection connection;      // The connection being watched
+    private final Runnable reaper;                  // Closes the connection when it is presumed dead
+    private volatile long lastActivity = System.nanoTime();  // When bytes last arrived from the client
+    private volatile TimerWheel.Timeout next;       // The next check, cancelled when the connection closes
+    private volatile boolean stopped;               // Whether the connection closed
+
+
+    // Constructor that receives the server, the connection and how to close it
+    Heartbeat(Server server, ClientConnection connection, Runnable reaper) {
+        this.server = server;
+        this.connection = connection;
+        this.reaper = reaper;
+    }
+
+
+    // Schedule the first check
+    void start() {
+        schedule(server.getHeartbeatInterval());
+    }
+
+
+    // Record that the client is alive
+    void touch() {
+        lastActivity = System.nanoTime();
+    }
+
+
+    // Stop watching the connection, it closed
+    void stop() {
+        stopped = true;
+        TimerWheel.Timeout timeout = next;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+
+    // Check the connection, runs on the timer wheel's thread
+    public void run() {
+        if (stopped) {
+            return;
+        }
+        long interval = server.getHeartbeatInterval();
+        long timeout = server.getHeartbeatTimeout();
+        long idle = (System.nanoTime() - lastActivity) / 1_000_000;
+        if (idle >= timeout) {
+            stopped = true;
+            server.getMetrics().count(ServerMetrics.Counter.REAPED);
+            server.display("Reaping " + connection.getUsername() + ": nothing received for " + idle + " ms");
+            reaper.run();
+            return;
+        }
+        if (idle >= interval) {
+            connection.send(PING);
+        }
+        schedule(Math.min(interval, timeout - idle));
+    }
+
+
+    // Check again after the delay
+    private void schedule(long delayMillis) {
+        next = server.getTimers().schedule(delayMillis, this);
+        if (stopped) {
+            // Closed while scheduling, do not keep the connection referenced until the timeout fires
+            next.cancel();
+        }
+    }
+}
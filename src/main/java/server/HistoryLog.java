@@ -0,0 +1,529 @@
+package server;
+
+import shared.FrameCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/*
+ * Chat history stored as rolling segment files with a sparse index.
+ * Every line gets a sequence number and is stored as "<epoch millis> <line>" in the segment named after the
+ * sequence number of its first line. Next to each segment an index file records the sequence number, position and
+ * timestamp of a line every few kilobytes, so reads jump close to the requested line instead of scanning.
+ * Segments roll once they reach their size limit, which bounds how much the server reads when it starts.
+ *
+ * Appending, flushing and syncing are done by a single writer thread. Reads may run on any thread at the same time,
+ * they map the segments read-only and only see lines once they were flushed.
+ */
+public class HistoryLog {
+    public static final long DEFAULT_SEGMENT_SIZE = 16L * 1024 * 1024;  // Bytes after which a segment rolls
+    private static final int INDEX_INTERVAL = 4096;           // Bytes between two index entries
+    private static final int INDEX_ENTRY_SIZE = 24;           // Sequence number, position and timestamp
+    private static final int BUFFER_SIZE = 64 * 1024;         // Bytes collected before they are written
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".index";
+
+    // A line read back from the history
+    public record Entry(long sequence, long timestamp, String line) {
+    }
+
+    private final Path directory;                             // Where the segments are stored
+    private final long segmentSize;                           // Bytes after which a segment rolls
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();  // Segments by first sequence number
+    private volatile long nextSequence;                       // Sequence number of the next line to be flushed
+    private Segment active;                                   // The segment lines are appended to
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);  // Encoded lines not yet written
+    private long[] bufferedIndex = new long[3 * 8];           // Index entries for lines in the buffer
+    private int bufferedIndexEntries;                         // Number of index entries in bufferedIndex
+    private int bufferedLines;                                // Number of lines in the buffer
+    private long lastTimestamp;                               // Timestamps never go backwards within the log
+    private boolean unsynced;                                 // Whether lines were written since the last sync
+
+
+    // Constructor that opens the segments in the directory, only the last segment is scanned to recover its tail
+    public HistoryLog(Path directory, long segmentSize) throws IOException {
+        if (segmentSize < INDEX_INTERVAL || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segments must hold between " + INDEX_INTERVAL + " bytes and 2 GiB.");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    long base = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(base, new Segment(base));
+                }
+                catch (NumberFormatException e) {
+                    // Not one of our segments
+                }
+            }
+        }
+        for (Segment segment : segments.values()) {
+            segment.loadIndex();
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L, new Segment(0));
+        }
+        active = segments.lastEntry().getValue();
+        nextSequence = active.recover();
+        lastTimestamp = active.lastTimestamp;
+        active.openForWriting();
+    }
+
+
+    // Sequence number the next flushed line will get, also the number of lines ever written
+    public long nextSequence() {
+        return nextSequence;
+    }
+
+
+    // Number of segment files
+    public int segmentCount() {
+        return segments.size();
+    }
+
+
+    // Queue a line for the next flush, only called by the writer thread
+    public void append(long timestamp, String line) throws IOException {
+        timestamp = Math.max(Math.max(timestamp, lastTimestamp), 0);
+        lastTimestamp = timestamp;
+        // Encoded straight into the write buffer, "<timestamp> <line>\n"
+        int length = decimalLength(timestamp) + 1 + FrameCodec.utf8Length(line) + 1;
+
+        long committed = active.size;
+        if (committed + buffer.position() + length > segmentSize && committed + buffer.position() > 0) {
+            flush();
+            roll();
+        }
+        if (length > buffer.remaining()) {
+            flush();
+            if (length > buffer.capacity()) {
+                buffer = ByteBuffer.allocate(length);
+            }
+        }
+
+        long position = active.size + buffer.position();
+        if (position == 0 || position - active.lastIndexedPosition() >= INDEX_INTERVAL) {
+            if (3 * (bufferedIndexEntries + 1) > bufferedIndex.length) {
+                bufferedIndex = Arrays.copyOf(bufferedIndex, bufferedIndex.length * 2);
+            }
+            bufferedIndex[3 * bufferedIndexEntries] = nextSequence + bufferedLines;
+            bufferedIndex[3 * bufferedIndexEntries + 1] = position;
+            bufferedIndex[3 * bufferedIndexEntries + 2] = timestamp;
+            bufferedIndexEntries++;
+            active.pendingIndexedPosition = position;
+        }
+        byte[] out = buffer.array();
+        int start = buffer.arrayOffset() + buffer.position();
+        int index = putDecimal(out, start, timestamp);
+        out[index++] = ' ';
+        int lineStart = index;
+        index = FrameCodec.putUtf8(out, index, line);
+        // A line is stored on a single line of the segment, in UTF-8 these bytes only stand for the characters themselves
+        for (int i = lineStart; i < index; i++) {
+            if (out[i] == '\n' || out[i] == '\r') {
+                out[i] = ' ';
+            }
+        }
+        out[index++] = '\n';
+        buffer.position(buffer.position() + index - start);
+        bufferedLines++;
+    }
+
+
+    // Number of digits of a non-negative number
+    private static int decimalLength(long value) {
+        int length = 1;
+        while (value >= 10) {
+            value /= 10;
+            length++;
+        }
+        return length;
+    }
+
+
+    // Write the digits of a non-negative number, returns the index after the last digit
+    private static int putDecimal(byte[] out, int index, long value) {
+        int end = index + decimalLength(value);
+        for (int i = end - 1; i >= index; i--) {
+            out[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return end;
+    }
+
+
+    // Write the queued lines to the active segment and publish them to readers, returns the number of lines written
+    public int flush() throws IOException {
+        if (bufferedLines == 0) {
+            return 0;
+        }
+        buffer.flip();
+        long position = active.size;
+        while (buffer.hasRemaining()) {
+            position += active.channel.write(buffer, position);
+        }
+        buffer.clear();
+        // The index is written after the lines it points to, so it never points past the end of the segment
+        active.appendIndex(bufferedIndex, bufferedIndexEntries);
+        active.size = position;
+
+        int lines = bufferedLines;
+        bufferedLines = 0;
+        bufferedIndexEntries = 0;
+        unsynced = true;
+        nextSequence += lines;
+        return lines;
+    }
+
+
+    // Force the written lines and their index to the disk
+    public void sync() throws IOException {
+        if (unsynced) {
+            active.channel.force(false);
+            active.indexChannel.force(false);
+            unsynced = false;
+        }
+    }
+
+
+    // Start a new segment for the next lines, the full one is forced to the disk first
+    private void roll() throws IOException {
+        unsynced = true;
+        sync();
+        Segment full = active;
+        active = new Segment(nextSequence);
+        active.openForWriting();
+        segments.put(active.base, active);
+        full.closeForWriting();
+    }
+
+
+    // Flush, sync and close the segment being written
+    public void close() throws IOException {
+        flush();
+        sync();
+        active.closeForWriting();
+    }
+
+
+    // The last lines of the history, oldest first
+    public List<Entry> readLast(int count) throws IOException {
+        long end = nextSequence;
+        return read(Math.max(segments.firstKey(), end - count), end, Long.MIN_VALUE, count);
+    }
+
+
+    // The lines written at or after the timestamp, oldest first, at most max lines
+    public List<Entry> readSince(long timestamp, int max) throws IOException {
+        long end = nextSequence;
+        // Start in the last segment whose lines may be older than the timestamp
+        long start = segments.firstKey();
+        for (Segment segment : segments.descendingMap().values()) {
+            if (segment.firstTimestamp() < timestamp) {
+                start = segment.sequenceBefore(timestamp);
+                break;
+            }
+        }
+        return read(start, end, timestamp, max);
+    }
+
+
+    // Read the lines from the start sequence number up to the end one that are not older than the timestamp
+    private List<Entry> read(long start, long end, long since, int max) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        Map.Entry<Long, Segment> first = segments.floorEntry(start);
+        if (first == null || max <= 0) {
+            return entries;
+        }
+        for (Segment segment : segments.tailMap(first.getKey()).values()) {
+            if (segment.base >= end || entries.size() >= max) {
+                break;
+            }
+            segment.read(start, end, since, max, entries);
+        }
+        return entries;
+    }
+
+
+    // One segment file and its index
+    private final class Segment {
+        private final long base;                    // Sequence number of the first line
+        private final Path file;                    // The lines
+        private final Path indexFile;               // The sparse index
+        private volatile long size;                 // Bytes of complete lines readers may see
+        private volatile long[] index = new long[3 * 16];  // Sequence number, position and timestamp of indexed lines
+        private volatile int indexEntries;          // Number of published index entries
+        private long pendingIndexedPosition = -1;   // Position of the last index entry, including unflushed ones
+        private long lastTimestamp;                 // Timestamp of the last line, found while recovering
+        private FileChannel channel;                // Open for appending while the segment is active
+        private FileChannel indexChannel;           // Open for appending while the segment is active
+        private volatile MappedByteBuffer mapped;   // Read-only mapping, renewed when readers need more than it covers
+
+
+        private Segment(long base) {
+            this.base = base;
+            String name = String.format("%020d", base);
+            this.file = directory.resolve(name + SEGMENT_SUFFIX);
+            this.indexFile = directory.resolve(name + INDEX_SUFFIX);
+        }
+
+
+        // Load the entries of the index file that point inside the segment
+        private void loadIndex() throws IOException {
+            size = Files.exists(file) ? Files.size(file) : 0;
+            if (!Files.exists(indexFile)) {
+                return;
+            }
+            ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(indexFile));
+            long[] loaded = new long[3 * Math.max(16, bytes.remaining() / INDEX_ENTRY_SIZE)];
+            int count = 0;
+            while (bytes.remaining() >= INDEX_ENTRY_SIZE) {
+                long sequence = bytes.getLong();
+                long position = bytes.getLong();
+                long timestamp = bytes.getLong();
+                if (position >= size) {
+                    break;
+                }
+                loaded[3 * count] = sequence;
+                loaded[3 * count + 1] = position;
+                loaded[3 * count + 2] = timestamp;
+                count++;
+            }
+            index = loaded;
+            indexEntries = count;
+            pendingIndexedPosition = count > 0 ? loaded[3 * (count - 1) + 1] : -1;
+        }
+
+
+        // Scan the tail of the segment after its last index entry, returns the sequence number of the next line
+        private long recover() throws IOException {
+            if (size == 0) {
+                return base;
+            }
+            int from = indexEntries - 1;
+            long sequence = from >= 0 ? index[3 * from] : base;
+            long position = from >= 0 ? index[3 * from + 1] : 0;
+            long lastComplete = position;
+            ArrayList<long[]> missing = new ArrayList<>();
+            try (FileChannel reader = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedByteBuffer bytes = reader.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                long lineStart = position;
+                for (long i = position; i < size; i++) {
+                    if (bytes.get((int) i) == '\n') {
+                        lastTimestamp = parseTimestamp(bytes, (int) lineStart);
+                        if (lineStart > 0 && lineStart - lastIndexedPosition(missing) >= INDEX_INTERVAL) {
+                            missing.add(new long[] {sequence, lineStart, lastTimestamp});
+                        }
+                        sequence++;
+                        lineStart = i + 1;
+                        lastComplete = i + 1;
+                    }
+                }
+            }
+            if (lastComplete < size) {
+                // The server stopped in the middle of a line, drop the partial line
+                try (FileChannel writer = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    writer.truncate(lastComplete);
+                }
+                size = lastComplete;
+            }
+            if (indexEntries == 0) {
+                missing.add(0, new long[] {base, 0, firstTimestampOnDisk()});
+            }
+            // Rewrite the index with the entries that were never written
+            long[] entries = new long[3 * missing.size()];
+            for (int i = 0; i < missing.size(); i++) {
+                System.arraycopy(missing.get(i), 0, entries, 3 * i, 3);
+            }
+            try (FileChannel writer = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                writer.truncate((long) indexEntries * INDEX_ENTRY_SIZE);
+            }
+            indexChannel = FileChannel.open(indexFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            appendIndex(entries, missing.size());
+            indexChannel.close();
+            pendingIndexedPosition = indexEntries > 0 ? index[3 * (indexEntries - 1) + 1] : -1;
+            return sequence;
+        }
+
+
+        // Timestamp of the first line of the segment
+        private long firstTimestampOnDisk() throws IOException {
+            try (FileChannel reader = FileChannel.open(file, StandardOpenOption.READ)) {
+                return parseTimestamp(reader.map(FileChannel.MapMode.READ_ONLY, 0, size), 0);
+            }
+        }
+
+
+        // Position of the last index entry, counting entries found while recovering
+        private long lastIndexedPosition(List<long[]> missing) {
+            if (!missing.isEmpty()) {
+                return missing.get(missing.size() - 1)[1];
+            }
+            // The first line is always indexed
+            return indexEntries > 0 ? index[3 * (indexEntries - 1) + 1] : 0;
+        }
+
+
+        // Position of the last index entry, including those of lines still in the buffer
+        private long lastIndexedPosition() {
+            return pendingIndexedPosition < 0 ? -INDEX_INTERVAL : pendingIndexedPosition;
+        }
+
+
+        // Open the files for appending
+        private void openForWriting() throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            indexChannel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+
+
+        // Close the files once the segment is full or the log is closed
+        private void closeForWriting() throws IOException {
+            channel.close();
+            indexChannel.close();
+        }
+
+
+        // Write index entries to the index file and publish them to readers
+        private void appendIndex(long[] entries, int count) throws IOException {
+            if (count == 0) {
+                return;
+            }
+            ByteBuffer bytes = ByteBuffer.allocate(count * INDEX_ENTRY_SIZE);
+            for (int i = 0; i < 3 * count; i++) {
+                bytes.putLong(entries[i]);
+            }
+            bytes.flip();
+            while (bytes.hasRemaining()) {
+                indexChannel.write(bytes);
+            }
+
+            long[] published = index;
+            int used = indexEntries;
+            if (3 * (used + count) > published.length) {
+                published = Arrays.copyOf(published, Math.max(published.length * 2, 3 * (used + count)));
+            }
+            System.arraycopy(entries, 0, published, 3 * used, 3 * count);
+            // Readers read the count before the array, so they never see an entry that is not filled in
+            index = published;
+            indexEntries = used + count;
+        }
+
+
+        // Timestamp of the first line, Long.MAX_VALUE if the segment is empty
+        private long firstTimestamp() {
+            return indexEntries > 0 ? index[2] : Long.MAX_VALUE;
+        }
+
+
+        // Sequence number of the last indexed line older than the timestamp
+        private long sequenceBefore(long timestamp) {
+            int count = indexEntries;
+            long[] entries = index;
+            int low = 0;
+            int high = count - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (entries[3 * middle + 2] < timestamp) {
+                    low = middle;
+                }
+                else {
+                    high = middle - 1;
+                }
+            }
+            return count > 0 ? entries[3 * low] : base;
+        }
+
+
+        // Add the lines of this segment between the sequence numbers and not older than the timestamp
+        private void read(long start, long end, long since, int max, List<Entry> entries) throws IOException {
+            long limit = size;
+            int count = indexEntries;
+            long[] published = index;
+            if (limit == 0 || count == 0) {
+                return;
+            }
+
+            // Jump to the last indexed line at or before the start
+            int low = 0;
+            int high = count - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (published[3 * middle] <= start) {
+                    low = middle;
+                }
+                else {
+                    high = middle - 1;
+                }
+            }
+            long sequence = Math.max(base, published[3 * low]);
+            int position = (int) published[3 * low + 1];
+            if (sequence > start) {
+                sequence = base;
+                position = 0;
+            }
+
+            MappedByteBuffer bytes = map(limit);
+            while (position < limit && sequence < end && entries.size() < max) {
+                int lineEnd = position;
+                while (bytes.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                if (sequence >= start) {
+                    long timestamp = parseTimestamp(bytes, position);
+                    if (timestamp >= since) {
+                        int separator = position;
+                        while (bytes.get(separator) != ' ') {
+                            separator++;
+                        }
+                        byte[] line = new byte[lineEnd - separator - 1];
+                        bytes.get(separator + 1, line);
+                        entries.add(new Entry(sequence, timestamp, new String(line, StandardCharsets.UTF_8)));
+                    }
+                }
+                sequence++;
+                position = lineEnd + 1;
+            }
+        }
+
+
+        // Map the segment read-only, the mapping is kept and only renewed when the segment grew past it
+        private MappedByteBuffer map(long limit) throws IOException {
+            MappedByteBuffer current = mapped;
+            if (current != null && current.capacity() >= limit) {
+                return current;
+            }
+            try (FileChannel reader = FileChannel.open(file, StandardOpenOption.READ)) {
+                current = reader.map(FileChannel.MapMode.READ_ONLY, 0, limit);
+            }
+            mapped = current;
+            return current;
+        }
+    }
+
+
+    // Parse the timestamp at the start of a line
+    private static long parseTimestamp(ByteBuffer bytes, int position) {
+        long timestamp = 0;
+        byte b;
+        while ((b = bytes.get(position++)) != ' ') {
+            timestamp = timestamp * 10 + (b - '0');
+        }
+        return timestamp;
+    }
+}
@@ -0,0 +1,168 @@
+package server;
+
+import shared.LatencyHistogram;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/*
+ * Appends the chat history to the history log from a dedicated thread, so disk latency never holds up a broadcast.
+ * Lines are queued by append() and group committed: the writer drains everything that queued up meanwhile
+ * and hands it to the log in a single write. How soon the lines are durable is set by the durability.
+ */
+public final class HistoryWriter {
+
+    // How far a line has to get before it counts as written
+    public enum Durability {
+        NONE,   // Lines are buffered and written when the buffer is full or the writer is closed
+        FLUSH,  // Every batch is written to the operating system, it survives a crash of the server
+        FSYNC   // Every batch is written and forced to the disk at most once per fsync interval
+    }
+
+    private static final int MAX_BATCH = 1024;          // Most lines taken off the queue for one write
+    private static final long IDLE_WAIT_MILLIS = 100;   // How long the writer waits for lines before checking the fsync interval
+
+    // A line and the time it was sent
+    private record Line(long timestamp, String text) {
+    }
+
+    private final HistoryLog history;                   // The segments the lines are appended to
+    private final Consumer<String> log;                 // Where errors are reported
+    private final LatencyHistogram writeTime;           // Time taken to write each batch
+    private final LinkedBlockingQueue<Line> queue = new LinkedBlockingQueue<>();   // Lines waiting for the writer
+    private final AtomicLong appended = new AtomicLong();  // Lines accepted by append()
+    private final long firstSequence;                   // Sequence number of the first line this writer writes
+    private final Thread writer;                        // The thread writing the log
+    private volatile Durability durability;             // How soon lines are written and forced to the disk
+    private volatile long fsyncIntervalMillis;          // Least time between two forces under FSYNC
+    private volatile boolean closed;                    // Whether append() refuses new lines
+    private volatile long batches;                      // Writes issued to the log
+    private long lastSync;                              // When the log was last forced
+
+
+    // Constructor that starts the writer for the history log
+    public HistoryWriter(HistoryLog history, Durability durability, long fsyncIntervalMillis, Consumer<String> log) {
+        this(history, durability, fsyncIntervalMillis, log, new LatencyHistogram());
+    }
+
+
+    // Constructor that also records the time taken to write each batch
+    public HistoryWriter(HistoryLog history, Durability durability, long fsyncIntervalMillis, Consumer<String> log,
+                         LatencyHistogram writeTime) {
+        this.history = history;
+        this.log = log;
+        this.writeTime = writeTime;
+        this.firstSequence = history.nextSequence();
+        setDurability(durability, fsyncIntervalMillis);
+        this.writer = Thread.ofPlatform().name("history-writer").daemon().start(this::run);
+    }
+
+
+    // Change how soon lines are written and forced, an interval of 0 forces after every batch
+    public void setDurability(Durability durability, long fsyncIntervalMillis) {
+        if (fsyncIntervalMillis < 0) {
+            throw new IllegalArgumentException("The fsync interval cannot be negative.");
+        }
+        this.durability = durability;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+    }
+
+
+    // Queue a line for the history log, returns false once the writer is closed
+    public boolean append(String line) {
+        if (closed) {
+            return false;
+        }
+        appended.incrementAndGet();
+        queue.add(new Line(System.currentTimeMillis(), line));
+        return true;
+    }
+
+
+    // Time taken to write each batch
+    public LatencyHistogram getWriteTime() {
+        return writeTime;
+    }
+
+
+    // The log the lines are written to, readers may read it at any time
+    public HistoryLog getHistory() {
+        return history;
+    }
+
+
+    // Lines appended but not yet written, grows when the disk falls behind
+    public long getPending() {
+        return appended.get() - getWritten();
+    }
+
+
+    // Lines written to the log
+    public long getWritten() {
+        return history.nextSequence() - firstSequence;
+    }
+
+
+    // One line summary of the writer's progress
+    public String describe() {
+        return "pending " + getPending() + ", written " + getWritten() + " in " + batches + " batches, "
+                + history.segmentCount() + " segments (" + durability.name().toLowerCase() + ")";
+    }
+
+
+    // Write what is queued, force it to the disk and close the log
+    public void close() {
+        closed = true;
+        try {
+            writer.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    // Take batches off the queue until the writer is closed and the queue is empty
+    private void run() {
+        ArrayList<Line> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (!closed || !queue.isEmpty()) {
+                Line line = queue.poll(IDLE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                if (line != null) {
+                    // Everything that queued up while the last batch was written goes out together
+                    long start = System.nanoTime();
+                    batch.add(line);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    for (Line queued : batch) {
+                        history.append(queued.timestamp(), queued.text());
+                    }
+                    batch.clear();
+                    if (durability != Durability.NONE && history.flush() > 0) {
+                        batches++;
+                    }
+                    writeTime.record(System.nanoTime() - start);
+                }
+                if (durability == Durability.FSYNC && System.currentTimeMillis() - lastSync >= fsyncIntervalMillis) {
+                    history.sync();
+                    lastSync = System.currentTimeMillis();
+                }
+            }
+        }
+        catch (IOException | InterruptedException e) {
+            log.accept("Error writing to history file: " + e);
+            closed = true;
+        }
+        finally {
+            try {
+                history.close();
+            }
+            catch (IOException e) {
+                log.accept("Error closing history file: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package server;
+
+import shared.FrameCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/*
+ * Private messages kept for users who are not in the room, delivered in one batch when they next join.
+ * Every user with mail has an append-only file named after the hex digits of their username, holding one compact
+ * record per message: its length, the time it was sent, the sender and the text. A file is only ever appended to,
+ * and is read whole and deleted once its messages were handed to the user.
+ *
+ * The in-memory index is a fixed table of pending bytes per hash slot of the username, so its size does not depend
+ * on how many users have mail. A join whose slot is empty, the usual case, never touches the disk, and a slot shared
+ * with other users only costs a look for a file that is not there. The table is rebuilt from the sizes of the files
+ * when the server starts. Deposits and drains of the same slot stripe take a lock, so a message is never appended to
+ * a file while it is being drained.
+ *
+ * Any name can be written to, there is no list of users to check it against, so a second table of the same kind
+ * counts the bytes waiting from each sender, by the hash of its name, and a sender whose slot is at its capacity is
+ * refused. A sender mailing made-up names therefore fills its own share and not the store everybody relies on.
+ * That table is rebuilt from the records of the mailboxes when the server starts.
+ */
+public class Mailbox {
+    public static final long DEFAULT_MAILBOX_CAPACITY = 64 * 1024;           // Bytes of mail kept for a single user
+    public static final long DEFAULT_STORE_CAPACITY = 256L * 1024 * 1024;    // Bytes of mail kept for all users together
+    public static final long DEFAULT_SENDER_CAPACITY = 1024 * 1024;          // Bytes of mail waiting from a single sender
+    private static final int INDEX_SLOTS = 4096;                            // Slots of the pending bytes table, a power of two
+    private static final int SENDER_SLOTS = 16384;                          // Slots of the table of bytes per sender, a power of two
+    private static final int LOCK_STRIPES = 64;                             // Locks shared by the slots, a power of two
+    private static final int MAX_NAME_BYTES = 100;                          // Longest username in UTF-8 a mailbox is kept for
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Short.BYTES;  // Length, timestamp and sender length
+    private static final String SUFFIX = ".mail";
+
+    // A message read back from a mailbox
+    public record Letter(long timestamp, String sender, String message) {
+    }
+
+    // A message with the bytes its record takes in the mailbox
+    private record Record(Letter letter, int size) {
+    }
+
+    private final Path directory;                                           // Where the mailboxes are stored
+    private final long mailboxCapacity;                                     // Bytes of mail kept for a single user
+    private final long storeCapacity;                                       // Bytes of mail kept for all users together
+    private final long senderCapacity;                                      // Bytes of mail waiting from a single sender
+    private final AtomicLongArray pending = new AtomicLongArray(INDEX_SLOTS);  // Bytes of mail per slot of the username's hash
+    private final AtomicLongArray sent = new AtomicLongArray(SENDER_SLOTS);  // Bytes of mail waiting per slot of the sender's hash
+    private final AtomicLong total = new AtomicLong();                      // Bytes of mail in all mailboxes
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];  // Guard the mailboxes of the slots they stripe
+
+
+    // Constructor that opens the directory and counts the mail already waiting in it, with the default share of a sender
+    public Mailbox(Path directory, long mailboxCapacity, long storeCapacity) throws IOException {
+        this(directory, mailboxCapacity, DEFAULT_SENDER_CAPACITY, storeCapacity);
+    }
+
+
+    // Constructor that opens the directory and counts the mail already waiting in it
+    public Mailbox(Path directory, long mailboxCapacity, long senderCapacity, long storeCapacity) throws IOException {
+        if (mailboxCapacity < 1 || senderCapacity < 1 || storeCapacity < mailboxCapacity) {
+            throw new IllegalArgumentException("A mailbox and a sender's share must hold at least a byte and the store at least a mailbox.");
+        }
+        this.directory = directory;
+        this.mailboxCapacity = mailboxCapacity;
+        this.senderCapacity = senderCapacity;
+        this.storeCapacity = storeCapacity;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        Files.createDirectories(directory);
+        // Streamed, so however many users have mail only the table is kept
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    String username = new String(HexFormat.of().parseHex(name, 0, name.length() - SUFFIX.length()), StandardCharsets.UTF_8);
+                    byte[] bytes = Files.readAllBytes(file);
+                    pending.addAndGet(slot(username), bytes.length);
+                    total.addAndGet(bytes.length);
+                    for (Record record : read(ByteBuffer.wrap(bytes))) {
+                        sent.addAndGet(senderSlot(record.letter().sender()), record.size());
+                    }
+                }
+                catch (IllegalArgumentException e) {
+                    // Not one of our mailboxes
+                }
+            }
+        }
+    }
+
+
+    // Keep a message for the recipient, returns false if the recipient's mailbox, the sender's share or the whole
+    // store is full
+    public boolean deposit(String recipient, long timestamp, String sender, String message) throws IOException {
+        byte[] name = recipient.getBytes(StandardCharsets.UTF_8);
+        byte[] from = sender.getBytes(StandardCharsets.UTF_8);
+        if (name.length == 0 || name.length > MAX_NAME_BYTES || from.length > Short.MAX_VALUE) {
+            return false;
+        }
+        // The text is encoded straight into the record
+        int length = Long.BYTES + Short.BYTES + from.length + FrameCodec.utf8Length(message);
+        ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + length);
+        record.putInt(length).putLong(timestamp).putShort((short) from.length).put(from);
+        FrameCodec.putUtf8(record.array(), record.position(), message);
+        record.clear();
+
+        int slot = slot(recipient);
+        int source = senderSlot(sender);
+        int size = record.remaining();
+        // Reserved before the lock, senders mailing different recipients do not share one
+        if (sent.addAndGet(source, size) > senderCapacity) {
+            sent.addAndGet(source, -size);
+            return false;
+        }
+        boolean kept = false;
+        ReentrantLock lock = locks[slot & (LOCK_STRIPES - 1)];
+        lock.lock();
+        try (FileChannel file = FileChannel.open(file(name), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            long existing = file.size();
+            if (existing + size > mailboxCapacity || total.get() + size > storeCapacity) {
+                if (existing == 0) {
+                    // Opening it created an empty mailbox
+                    Files.deleteIfExists(file(name));
+                }
+                return false;
+            }
+            while (record.hasRemaining()) {
+                file.write(record);
+            }
+            pending.addAndGet(slot, size);
+            total.addAndGet(size);
+            kept = true;
+            return true;
+        }
+        finally {
+            lock.unlock();
+            if (!kept) {
+                sent.addAndGet(source, -size);
+            }
+        }
+    }
+
+
+    // Hand the messages kept for the recipient to the delivery in one batch, oldest first, and delete them if it
+    // accepted them. Returns the number of messages delivered.
+    public int drain(String recipient, Predicate<List<Letter>> delivery) throws IOException {
+        int slot = slot(recipient);
+        if (pending.get(slot) == 0) {
+            // Nobody whose name falls into this slot has mail
+            return 0;
+        }
+        byte[] name = recipient.getBytes(StandardCharsets.UTF_8);
+        if (name.length == 0 || name.length > MAX_NAME_BYTES) {
+            return 0;
+        }
+        Path file = file(name);
+        ReentrantLock lock = locks[slot & (LOCK_STRIPES - 1)];
+        lock.lock();
+        try {
+            ByteBuffer bytes;
+            try {
+                bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+            }
+            catch (NoSuchFileException e) {
+                // Another user in the same slot has mail
+                return 0;
+            }
+            List<Record> records = read(bytes);
+            List<Letter> letters = new ArrayList<>(records.size());
+            for (Record record : records) {
+                letters.add(record.letter());
+            }
+            if (!letters.isEmpty() && !delivery.test(letters)) {
+                return 0;
+            }
+            Files.delete(file);
+            pending.addAndGet(slot, -bytes.capacity());
+            total.addAndGet(-bytes.capacity());
+            for (Record record : records) {
+                sent.addAndGet(senderSlot(record.letter().sender()), -record.size());
+            }
+            return letters.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Whether mail may be waiting for the recipient, answered from memory, a false positive costs a look at the disk
+    public boolean hasMail(String recipient) {
+        return pending.get(slot(recipient)) != 0;
+    }
+
+
+    // Whether the sender's share has room for the message, tells a refused deposit that was the sender's fault
+    public boolean hasRoomFrom(String sender, String message) {
+        long size = HEADER_SIZE + sender.getBytes(StandardCharsets.UTF_8).length + FrameCodec.utf8Length(message);
+        return sent.get(senderSlot(sender)) + size <= senderCapacity;
+    }
+
+
+    // Bytes of mail in all mailboxes
+    public long pendingBytes() {
+        return total.get();
+    }
+
+
+    // A line describing the mail waiting for the coordinator's listing
+    public String describe() {
+        return total.get() + " bytes of mail waiting, at most " + mailboxCapacity + " per user, "
+                + senderCapacity + " from a sender and " + storeCapacity + " in all";
+    }
+
+
+    // Decode the records of a mailbox, a record cut short because the server stopped while writing it is ignored
+    private static List<Record> read(ByteBuffer bytes) {
+        List<Record> records = new ArrayList<>();
+        while (bytes.remaining() >= HEADER_SIZE) {
+            int length = bytes.getInt();
+            if (length < HEADER_SIZE - Integer.BYTES || length > bytes.remaining()) {
+                break;
+            }
+            int end = bytes.position() + length;
+            long timestamp = bytes.getLong();
+            int senderLength = bytes.getShort();
+            int start = bytes.position();
+            if (senderLength < 0 || start + senderLength > end) {
+                break;
+            }
+            String sender = new String(bytes.array(), start, senderLength, StandardCharsets.UTF_8);
+            String message = new String(bytes.array(), start + senderLength, end - start - senderLength, StandardCharsets.UTF_8);
+            records.add(new Record(new Letter(timestamp, sender, message), Integer.BYTES + length));
+            bytes.position(end);
+        }
+        return records;
+    }
+
+
+    // The mailbox file of a username
+    private Path file(byte[] name) {
+        return directory.resolve(HexFormat.of().formatHex(name) + SUFFIX);
+    }
+
+
+    // The slot of the pending bytes table a username falls into
+    private static int slot(String username) {
+        int hash = username.hashCode();
+        return (hash ^ (hash >>> 16)) & (INDEX_SLOTS - 1);
+    }
+
+
+    // The slot of the table of bytes per sender a username falls into
+    private static int senderSlot(String sender) {
+        int hash = sender.hashCode();
+        return (hash ^ (hash >>> 16)) & (SENDER_SLOTS - 1);
+    }
+}
@@ -0,0 +1,683 @@
+package server;
+
+import shared.Frame;
+import shared.FrameCodec;
+import shared.FrameCompressor;
+import shared.MessageUtils;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * A client connection owned by an event loop of the NioServerEngine.
+ * Reads are decoded incrementally as bytes arrive, in the binary frame protocol or in Java serialization for
+ * clients that predate it, and writes from any thread are queued and
+ * flushed by the owning event loop when the socket is writable, so no thread ever blocks on a client.
+ * Queued messages are copied into the loop's staging buffer and written together, so writing allocates nothing
+ * unless the socket is full, when the bytes it did not take are kept until it is writable again.
+ * Clients that answer heartbeats are watched by a Heartbeat and aborted when they go quiet.
+ * Files sent to the client go out whenever no message is waiting, a chunk at a time: the loop stages the chunk's
+ * header and then transfers its bytes from the spool file straight to the socket with FileChannel.transferTo.
+ * A client that can resume its session keeps its place in the room for a while after its connection is lost.
+ * Every request is checked against the client's rate limits before the server handles it; a request held back
+ * waits on the timer wheel with reading paused, so the flooder's TCP window fills up and the loop moves on.
+ * When the server uses TLS, a TlsChannel opens the bytes read before they are decoded and seals the bytes written,
+ * and file chunks are read into the staging buffer to be sealed, since encrypted bytes cannot skip the loop.
+ */
+public class NioConnection implements ClientConnection {
+    private static final int INITIAL_INBOUND_SIZE = 1024;  // Starting size of the buffer holding partial objects
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);  // Nothing to write or to unwrap
+
+    private final Server server;                        // A reference to the chat server
+    private final NioServerEngine.EventLoop loop;       // The event loop that owns this connection
+    private final SocketChannel channel;                // The channel for the client connection
+    private final long id;                              // A unique identifier for the client
+    private final String date;                          // The date and the time when the client connected
+    private final String ipAddress;                     // The IP address of the client
+    private ObjectStreamCodec legacyCodec;              // Decoder for clients speaking Java serialization
+    private volatile boolean binaryProtocol;            // Whether the client speaks the binary frame protocol
+    private boolean protocolKnown;                      // Whether the first bytes of the connection were inspected
+    private FrameCompressor compressor;                 // Compresses and inflates large frames, null unless negotiated
+    private boolean heartbeats;                         // Whether the client answers a PING with a PONG
+    private volatile Heartbeat heartbeat;               // Reaps the client when it goes quiet, null unless it answers heartbeats
+    private volatile boolean files;                     // Whether the client receives file transfers
+    private volatile boolean resumable;                 // Whether the client can resume its session after a reconnect
+    private FileTransfer.Chunk region;                  // Chunk whose bytes are being transferred from its spool file, null when none
+    private long regionWritten;                         // Bytes of that chunk the socket took so far
+    private final OutboundQueue outbound;               // Messages waiting to be written by the owning loop
+    private ByteBuffer backlog;                         // Bytes the socket did not take yet, null when everything was written
+    private EncodedMessage carried;                     // Message taken off the queue that did not fit into the staging buffer
+    private ByteBuffer handshakeBytes;                  // Stream header or preamble to write before any message
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();  // Whether a flush task is already queued
+    private final AtomicBoolean closed = new AtomicBoolean();          // Whether the connection was closed
+    private volatile String username;                   // The username for the client
+    private volatile boolean joined;                    // Whether the username handshake completed
+    private volatile boolean closeAfterFlush;           // Close once the outbound queue is drained
+    private ByteBuffer inbound = ByteBuffer.allocate(INITIAL_INBOUND_SIZE);  // Bytes received but not yet decoded
+    private SelectionKey key;                           // Registration of the channel with the loop's selector
+    private final long accepted = System.nanoTime();    // When the connection was accepted, to time the handshake
+    private final long handshakeDeadline;               // System.nanoTime() by which the client must have joined
+    private final RateLimiter.Meter meter;              // The client's share of the rate limits, its own and its address's
+    private Object deferred;                            // Request or file frame held back by the rate limits, reading is paused meanwhile
+    private boolean entering;                           // Whether the history replay is read for the client, reading is paused meanwhile
+    private final TlsChannel tls;                       // Seals and opens the bytes of the connection, null without TLS
+
+
+    // Constructor, runs on the owning event loop
+    NioConnection(Server server, NioServerEngine.EventLoop loop, SocketChannel channel) throws IOException {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.id = server.getUniqueId();
+        this.username = "client" + id;
+        this.date = new Date() + "\n";
+        this.ipAddress = channel.socket().getInetAddress().getHostAddress();
+        this.outbound = server.newOutboundQueue();
+        this.handshakeDeadline = accepted + server.getHandshakeTimeout() * 1_000_000L;
+        SSLContext context = server.getTlsContext();
+        this.tls = context == null ? null : new TlsChannel(channel, context.createSSLEngine());
+        this.meter = server.meter(ipAddress);
+    }
+
+
+    // Register the channel with the selector of the owning loop
+    void register(Selector selector) throws ClosedChannelException {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        flush();
+    }
+
+
+    public long getId() {
+        return id;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public String getIpAddress() {
+        return ipAddress;
+    }
+
+    public String getDate() {
+        return date;
+    }
+
+    public boolean isBinaryProtocol() {
+        return binaryProtocol;
+    }
+
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    public void execute(Runnable task) {
+        loop.execute(task);
+    }
+
+
+    // Read what is available and dispatch every complete object, runs on the owning event loop
+    void onReadable(ByteBuffer readBuffer) {
+        readBuffer.clear();
+        int read;
+        try {
+            read = channel.read(readBuffer);
+        }
+        catch (IOException e) {
+            abort();
+            return;
+        }
+        if (read < 0) {
+            abort();
+            return;
+        }
+        readBuffer.flip();
+        if (heartbeat != null) {
+            heartbeat.touch();
+        }
+        receive(readBuffer);
+    }
+
+
+    // Decode the bytes received, opened first when the connection uses TLS, runs on the owning event loop
+    private void receive(ByteBuffer received) {
+        ByteBuffer bytes = received;
+        if (tls != null) {
+            boolean handshaking = !tls.isHandshaken();
+            try {
+                bytes = tls.unwrap(received, loop.tlsPlainBuffer(), loop.tlsSealBuffer());
+            }
+            catch (IOException e) {
+                // Also a client that does not speak TLS at all
+                abort();
+                return;
+            }
+            if (bytes == null) {
+                abort();
+                return;
+            }
+            if (handshaking && tls.isHandshaken()) {
+                server.countTlsHandshake(tls.isResumed());
+                // Messages written meanwhile waited for the handshake
+                flush();
+            }
+            else if (tls.hasUnsent() || tls.isStalled()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        if (inbound.remaining() < bytes.remaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(inbound.capacity() * 2, inbound.position() + bytes.remaining()));
+            inbound.flip();
+            larger.put(inbound);
+            inbound = larger;
+        }
+        inbound.put(bytes);
+        decodeAvailable();
+    }
+
+
+    // Dispatch every complete object in the inbound buffer until a request is held back, runs on the owning event loop
+    private void decodeAvailable() {
+        inbound.flip();
+        try {
+            Object received;
+            while (!closed.get() && deferred == null && !entering && (received = decodeNext()) != null) {
+                dispatch(received);
+            }
+        }
+        catch (IOException e) {
+            server.display(username + " Exception reading Streams: " + e);
+            abort();
+        }
+        finally {
+            inbound.compact();
+        }
+    }
+
+
+    // Decode the next HELLO, username, request or frame of a file transfer, returns null when more bytes are needed
+    private Object decodeNext() throws IOException {
+        if (!protocolKnown && !detectProtocol()) {
+            return null;
+        }
+        if (!binaryProtocol) {
+            return legacyCodec.decode(inbound);
+        }
+        Frame frame = FrameCodec.decode(inbound, compressor);
+        if (frame == null) {
+            return null;
+        }
+        if (joined ? FileRelay.isFileFrame(frame) : frame.getType() == MessageUtils.HELLO) {
+            return frame;
+        }
+        return frame.toMessage();
+    }
+
+
+    // Tell the binary protocol apart from Java serialization by the first bytes the client sends
+    private boolean detectProtocol() throws IOException {
+        if (inbound.remaining() >= 2 && FrameCodec.isLegacyStream(inbound.get(inbound.position()), inbound.get(inbound.position() + 1))) {
+            // The client's ObjectInputStream expects a stream header before the first object
+            legacyCodec = new ObjectStreamCodec();
+            handshakeBytes = ByteBuffer.wrap(ObjectStreamCodec.streamHeader());
+        }
+        else if (inbound.remaining() >= FrameCodec.PREAMBLE_LENGTH) {
+            byte[] preamble = new byte[FrameCodec.PREAMBLE_LENGTH];
+            inbound.get(preamble);
+            int version = FrameCodec.preambleVersion(preamble);
+            if (version < 1) {
+                throw new IOException("unknown protocol");
+            }
+            // Answer with our own preamble, both sides then speak the lower of the two versions
+            int negotiated = Math.min(version, FrameCodec.VERSION);
+            if (negotiated >= FrameCodec.COMPRESSION_VERSION) {
+                compressor = new FrameCompressor();
+            }
+            heartbeats = negotiated >= FrameCodec.HEARTBEAT_VERSION;
+            files = negotiated >= FrameCodec.FILE_VERSION;
+            resumable = negotiated >= FrameCodec.RESUME_VERSION;
+            binaryProtocol = true;
+            handshakeBytes = ByteBuffer.wrap(FrameCodec.preamble());
+        }
+        else {
+            return false;
+        }
+        protocolKnown = true;
+        flush();
+        return true;
+    }
+
+
+    // Handle one decoded object, the first one is the HELLO frame or the username of a client speaking Java serialization
+    private void dispatch(Object received) throws IOException {
+        if (!joined) {
+            if (received instanceof Frame hello) {
+                handshake(hello);
+            }
+            else if (received instanceof String name) {
+                handshake(new Frame(MessageUtils.HELLO, name));
+            }
+            else {
+                throw new IOException("expected a username");
+            }
+        }
+        else if (received instanceof MessageUtils || received instanceof Frame) {
+            handle(received);
+        }
+        else {
+            throw new IOException("unexpected object " + received);
+        }
+    }
+
+
+    // Let the server handle a request, or relay a frame of a file transfer, once the client's rate limits admit it
+    private void handle(Object request) {
+        long wait = request instanceof Frame frame ? server.admitFile(this, meter, frame) : server.admit(this, meter, (MessageUtils) request);
+        if (wait > 0) {
+            // The loop never sleeps, the request waits on the timer wheel and nothing more is read meanwhile
+            deferred = request;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            server.getTimers().schedule(TimeUnit.NANOSECONDS.toMillis(wait + 999_999), () -> loop.execute(this::release));
+        }
+        else if (wait == 0 && request instanceof Frame frame) {
+            server.relayFile(this, frame);
+        }
+        else if (wait == 0 && !server.handleMessage(this, (MessageUtils) request)) {
+            disconnect();
+        }
+    }
+
+
+    // Handle the request that was held back and go on with the bytes that arrived before reading paused,
+    // runs on the owning event loop
+    private void release() {
+        Object request = deferred;
+        deferred = null;
+        if (request == null || closed.get() || !key.isValid()) {
+            return;
+        }
+        handle(request);
+        if (deferred == null && !closed.get() && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            decodeAvailable();
+        }
+    }
+
+
+    // Resume the client's session, or reserve the username, announce the client and add it to the chat room
+    private void handshake(Frame hello) {
+        if (server.resume(this, hello)) {
+            joined = true;
+        }
+        else {
+            String name = hello.getPayload();
+            if (!server.reserveUsername(name, this)) {
+                // If the username is taken, notify the client and close the connection once the notice is sent
+                writeMsg("*** Username already taken. Please choose a different username. ***");
+                close();
+                return;
+            }
+            username = name;
+            joined = true;
+            // The history is read on a virtual thread, the loop goes on serving the other connections and the client
+            // enters the room back on it, before anything else it sent is read
+            entering = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            server.readReplayLater(this, replay -> loop.execute(() -> enter(replay)));
+            return;
+        }
+        joined();
+    }
+
+
+    // Add the client to the chat room with the replay of the history read for it, runs on the owning event loop
+    private void enter(String replay) {
+        entering = false;
+        if (closed.get() || !key.isValid()) {
+            // Closing the connection already released its username
+            return;
+        }
+        server.enter(this, replay);
+        joined();
+        if (!closed.get() && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            decodeAvailable();
+        }
+    }
+
+
+    // Time the handshake and start watching a client that joined or resumed its session
+    private void joined() {
+        server.getMetrics().record(ServerMetrics.Stage.HANDSHAKE, accepted);
+        if (heartbeats) {
+            // The reaper runs on the timer wheel, the connection is aborted on its own loop
+            heartbeat = server.watch(this, () -> execute(this::abort));
+            if (closed.get()) {
+                // Kicked while the heartbeat was starting
+                heartbeat.stop();
+            }
+        }
+    }
+
+
+    // When the handshake times out, in System.nanoTime()
+    long getHandshakeDeadline() {
+        return handshakeDeadline;
+    }
+
+
+    // Whether the client is still expected to complete its handshake
+    boolean inHandshake() {
+        return !joined && !closed.get();
+    }
+
+
+    // Close a connection that did not join in time, runs on the owning event loop
+    void expireHandshake() {
+        if (inHandshake()) {
+            server.getMetrics().count(ServerMetrics.Counter.TIMEOUTS);
+            server.display("Closing connection from " + ipAddress + ": no username within " + server.getHandshakeTimeout() + " ms");
+            closeNow();
+        }
+    }
+
+
+    // Queue a message for the client and make sure the owning loop flushes it
+    public boolean send(EncodedMessage msg) {
+        if (!outbound.offer(msg)) {
+            if (!closed.get()) {
+                // The client is too slow under the disconnect policy, cut it off without draining
+                server.display("Disconnecting slow client " + username + ": " + outbound.describe());
+                closeNow();
+            }
+            return false;
+        }
+        scheduleFlush();
+        return true;
+    }
+
+
+    // Queue a file transfer and make sure the owning loop starts writing it
+    public boolean sendFile(FileTransfer.Delivery delivery) {
+        if (!files) {
+            return false;
+        }
+        delivery.onReady(this::scheduleFlush);
+        if (!outbound.offerTransfer(delivery)) {
+            return false;
+        }
+        scheduleFlush();
+        return true;
+    }
+
+
+    // Getter for the queue of messages waiting to be written
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+
+
+    // Make sure the owning loop writes what is queued
+    private void scheduleFlush() {
+        if (loop.inLoop()) {
+            flush();
+        }
+        else if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+    }
+
+
+    // Write queued messages until the socket is full, runs on the owning event loop
+    void flush() {
+        flushScheduled.set(false);
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        try {
+            if (tls != null) {
+                // Sealed bytes and handshake messages go first, then the bytes received while they waited
+                if (!write(EMPTY)) {
+                    return;
+                }
+                if (tls.isStalled()) {
+                    receive(EMPTY);
+                    if (!key.isValid()) {
+                        return;
+                    }
+                }
+            }
+            ByteBuffer staging = loop.writeBuffer();
+            while (true) {
+                if (backlog != null) {
+                    if (!write(backlog)) {
+                        return;
+                    }
+                    backlog = null;
+                }
+                if (region != null) {
+                    if (!transferRegion()) {
+                        return;
+                    }
+                    region = null;
+                }
+                staging.clear();
+                fillStaging(staging);
+                if (staging.position() == 0) {
+                    if (backlog != null) {
+                        // A message larger than the staging buffer is written from its own bytes
+                        continue;
+                    }
+                    break;
+                }
+                staging.flip();
+                if (!write(staging)) {
+                    // The staging buffer is shared by the loop's connections, keep what the socket did not take
+                    backlog = ByteBuffer.allocate(staging.remaining()).put(staging).flip();
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closeAfterFlush) {
+                closeChannel();
+            }
+        }
+        catch (IOException e) {
+            // Removing the client announces its departure, which can write to other dead peers,
+            // so it runs as its own task and a wave of disconnects never nests one removal in another
+            key.cancel();
+            loop.execute(this::abort);
+        }
+    }
+
+
+    // Write the buffer, returns false and waits for the selector to report the socket writable when it is full.
+    // With TLS it also returns false while the handshake is not done, the caller keeps the bytes until it is.
+    private boolean write(ByteBuffer buffer) throws IOException {
+        long start = System.nanoTime();
+        if (tls != null) {
+            boolean written = tls.write(buffer, loop.tlsSealBuffer());
+            server.getMetrics().record(ServerMetrics.Stage.WRITE, start);
+            if (tls.hasUnsent()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+            return written;
+        }
+        channel.write(buffer);
+        server.getMetrics().record(ServerMetrics.Stage.WRITE, start);
+        if (buffer.hasRemaining()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            return false;
+        }
+        return true;
+    }
+
+
+    // Transfer the bytes of the current chunk from its spool file to the socket without copying them,
+    // returns false and waits for the selector to report the socket writable when it is full
+    private boolean transferRegion() throws IOException {
+        if (tls != null) {
+            return sealRegion();
+        }
+        long start = System.nanoTime();
+        while (regionWritten < region.length()) {
+            long written = region.spool().transferTo(region.position() + regionWritten, region.length() - regionWritten, channel);
+            if (written == 0) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return false;
+            }
+            regionWritten += written;
+        }
+        server.getMetrics().record(ServerMetrics.Stage.WRITE, start);
+        return true;
+    }
+
+
+    // Read the bytes of the current chunk into the staging buffer and write them sealed, TLS cannot hand the file
+    // to the socket. Returns false when the socket is full, the bytes it did not take are kept like any others.
+    private boolean sealRegion() throws IOException {
+        ByteBuffer staging = loop.writeBuffer();
+        while (regionWritten < region.length()) {
+            staging.clear().limit((int) Math.min(staging.capacity(), region.length() - regionWritten));
+            while (staging.hasRemaining()) {
+                if (region.spool().read(staging, region.position() + regionWritten + staging.position()) < 0) {
+                    throw new IOException("spool file ended before the chunk");
+                }
+            }
+            regionWritten += staging.flip().remaining();
+            if (!write(staging)) {
+                backlog = ByteBuffer.allocate(staging.remaining()).put(staging).flip();
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    // Copy the next queued messages into the staging buffer until it is full or the queue is empty.
+    // When no message is waiting, the header of the next file chunk is staged and its bytes follow from the spool file.
+    private void fillStaging(ByteBuffer staging) {
+        if (handshakeBytes != null) {
+            staging.put(handshakeBytes);
+            handshakeBytes = null;
+        }
+        EncodedMessage msg;
+        while ((msg = carried != null ? carried : outbound.poll()) != null) {
+            carried = null;
+            // The shared bytes of the message, they are copied but never re-encoded per recipient
+            byte[] bytes = !binaryProtocol ? msg.legacyBytes()
+                    : compressor != null ? msg.frameBytes(compressor) : msg.frameBytes();
+            if (bytes.length > staging.remaining()) {
+                if (staging.position() == 0) {
+                    backlog = ByteBuffer.wrap(bytes);
+                }
+                else {
+                    carried = msg;
+                }
+                return;
+            }
+            staging.put(bytes);
+        }
+        if (staging.position() == 0 && binaryProtocol) {
+            FileTransfer.Chunk chunk = outbound.nextChunk();
+            if (chunk != null) {
+                // Headers are small, the staging buffer is empty so it always fits
+                staging.put(chunk.header());
+                if (chunk.length() > 0) {
+                    region = chunk;
+                    regionWritten = 0;
+                }
+            }
+        }
+    }
+
+
+    // Remove the client from the chat room, announce it and close the connection
+    private void disconnect() {
+        if (joined) {
+            server.remove(id, true);
+        }
+        close();
+    }
+
+
+    // The peer is gone, remove the client and close the channel right away,
+    // unless the client keeps its place in the room to resume its session. Runs on the owning event loop.
+    void abort() {
+        if (joined && !server.suspend(this)) {
+            server.remove(id, true);
+        }
+        closeNow();
+    }
+
+
+    // Stop accepting messages and close the channel once the queued ones are written, safe to call from any thread
+    public void close() {
+        if (markClosed()) {
+            scheduleFlush();
+        }
+    }
+
+
+    // Close the channel without writing what is queued, safe to call from any thread
+    void closeNow() {
+        markClosed();
+        if (loop.inLoop()) {
+            closeChannel();
+        }
+        else {
+            loop.execute(this::closeChannel);
+        }
+    }
+
+
+    // Release the username and refuse further messages, returns false if the connection was already closed
+    private boolean markClosed() {
+        if (!closed.compareAndSet(false, true)) {
+            return false;
+        }
+        if (heartbeat != null) {
+            heartbeat.stop();
+        }
+        meter.release();
+        if (joined) {
+            server.releaseUsername(this);
+        }
+        outbound.close();
+        closeAfterFlush = true;
+        return true;
+    }
+
+
+    // Cancel the registration and close the channel, runs on the owning event loop
+    private void closeChannel() {
+        if (key != null) {
+            key.cancel();
+        }
+        if (tls != null && channel.isOpen()) {
+            tls.close(loop.tlsSealBuffer());
+        }
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            server.display("Exception closing connection of " + username + ": " + e);
+        }
+        if (compressor != null) {
+            compressor.end();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * Non-blocking server engine built on a ServerSocketChannel and Selectors.
+ * The thread calling run() only accepts connections and hands them out round robin to a small fixed set of
+ * event loops. Each event loop owns its connections and performs all their reads and writes, so the number of
+ * threads stays constant no matter how many clients are connected.
+ * Handshakes run on the event loops too, and a connection that has not joined by its deadline is closed.
+ * With TLS every loop also has a buffer the records it reads are opened into and one the bytes it writes are sealed
+ * into, allocated with the loop's first TLS connection and shared by all of them.
+ */
+public class NioServerEngine {
+    private static final int ACCEPT_BACKLOG = 1024;     // Pending connections the operating system may queue
+    private static final int READ_BUFFER_SIZE = 64 * 1024;  // Size of the read buffer shared by an event loop
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024; // Size of the buffer an event loop stages writes in
+    private static final int TLS_RECORD_SIZE = 16 * 1024 + 1024;  // Largest TLS record with its header, padding and tag
+
+    private final Server server;        // The chat server that owns the chat logic
+    private final int port;             // Server port number
+    private final EventLoop[] loops;    // Event loops that own the accepted connections
+    private int nextLoop;               // Index of the loop that receives the next connection
+
+
+    // Constructor that receives the server, the port and the number of event loops
+    public NioServerEngine(Server server, int port, int loopCount) {
+        if (loopCount < 1) {
+            throw new IllegalArgumentException("At least one event loop is required.");
+        }
+        this.server = server;
+        this.port = port;
+        this.loops = new EventLoop[loopCount];
+    }
+
+
+    // Accept connections until the server is stopped
+    public void run() {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open();
+             Selector acceptSelector = Selector.open()) {
+            serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(server, "nio-event-loop-" + i);
+                loops[i].start();
+            }
+            server.display("Server waiting for Clients on port " + port + " (nio, " + loops.length + " event loops).");
+
+            while (server.isRunning()) {
+                // Wake up regularly so a call to stop() is noticed
+                acceptSelector.select(500);
+                acceptSelector.selectedKeys().clear();
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    try {
+                        channel.configureBlocking(false);
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        loops[nextLoop].register(channel);
+                        nextLoop = (nextLoop + 1) % loops.length;
+                    }
+                    catch (IOException e) {
+                        server.display("Exception accepting connection: " + e);
+                        channel.close();
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            server.display("Exception on new ServerSocketChannel: " + e);
+        }
+        finally {
+            for (EventLoop loop : loops) {
+                if (loop != null) {
+                    loop.shutdown();
+                }
+            }
+        }
+    }
+
+
+    /*
+     * A single thread multiplexing many connections over one Selector.
+     * Other threads never touch the selector directly, they submit tasks that the loop runs between selects.
+     */
+    static final class EventLoop extends Thread {
+        private final Server server;
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);  // Staging buffer for writes, reused by every connection of the loop
+        private final ArrayDeque<NioConnection> handshakes = new ArrayDeque<>();  // Connections still in their handshake, oldest deadline first
+        private ByteBuffer tlsPlainBuffer;  // Bytes of the TLS records read, opened, null until the first TLS connection
+        private ByteBuffer tlsSealBuffer;   // Bytes written by TLS connections, sealed, null until the first TLS connection
+        private volatile boolean running = true;
+
+        EventLoop(Server server, String name) throws IOException {
+            super(name);
+            this.server = server;
+            this.selector = Selector.open();
+        }
+
+        // Hand a freshly accepted channel to this loop
+        void register(SocketChannel channel) {
+            execute(() -> {
+                NioConnection connection;
+                try {
+                    connection = new NioConnection(server, this, channel);
+                }
+                catch (IOException e) {
+                    server.display("Exception accepting connection: " + e);
+                    try {
+                        channel.close();
+                    }
+                    catch (IOException ignored) {
+                    }
+                    return;
+                }
+                try {
+                    connection.register(selector);
+                    handshakes.add(connection);
+                }
+                catch (ClosedChannelException e) {
+                    connection.closeNow();
+                }
+            });
+        }
+
+        // Run a task on the loop thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (!inLoop()) {
+                selector.wakeup();
+            }
+        }
+
+        // The loop's staging buffer for writes, only used on the loop thread
+        ByteBuffer writeBuffer() {
+            return writeBuffer;
+        }
+
+        // The loop's buffer TLS records are opened into, only used on the loop thread. It holds everything a full
+        // read buffer and the start of a record left from the previous read can open to.
+        ByteBuffer tlsPlainBuffer() {
+            if (tlsPlainBuffer == null) {
+                tlsPlainBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE + 2 * TLS_RECORD_SIZE);
+            }
+            return tlsPlainBuffer;
+        }
+
+        // The loop's buffer bytes are sealed into before they are written, only used on the loop thread.
+        // It holds a whole staging buffer sealed.
+        ByteBuffer tlsSealBuffer() {
+            if (tlsSealBuffer == null) {
+                tlsSealBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE + 2 * TLS_RECORD_SIZE);
+            }
+            return tlsSealBuffer;
+        }
+
+        // Whether the calling thread is this loop
+        boolean inLoop() {
+            return Thread.currentThread() == this;
+        }
+
+        // Stop the loop and close every connection it owns
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        // Milliseconds until the oldest pending handshake times out, 0 to wait without a timeout
+        private long untilNextDeadline() {
+            NioConnection oldest = handshakes.peek();
+            if (oldest == null) {
+                return 0;
+            }
+            return Math.max(1, (oldest.getHandshakeDeadline() - System.nanoTime()) / 1_000_000);
+        }
+
+        // Drop connections that joined or closed from the front of the queue and close the ones past their deadline
+        private void expireHandshakes() {
+            long now = System.nanoTime();
+            NioConnection oldest;
+            while ((oldest = handshakes.peek()) != null) {
+                if (oldest.inHandshake() && oldest.getHandshakeDeadline() - now > 0) {
+                    break;
+                }
+                handshakes.poll();
+                oldest.expireHandshake();
+            }
+        }
+
+        // Run the tasks submitted by other threads, one that fails is logged and the others still run
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                }
+                catch (RuntimeException | StackOverflowError e) {
+                    server.display("Exception in a task of " + getName() + ": " + e);
+                }
+            }
+        }
+
+        public void run() {
+            ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+            while (running) {
+                try {
+                    if (!tasks.isEmpty()) {
+                        // Tasks the loop queued for itself, which did not wake the selector, run without waiting
+                        selector.selectNow();
+                    }
+                    else {
+                        // Wake up for the next handshake deadline, or only for events when no handshake is pending
+                        selector.select(untilNextDeadline());
+                    }
+                }
+                catch (IOException e) {
+                    server.display("Exception in " + getName() + ": " + e);
+                    break;
+                }
+
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+                    catch (RuntimeException | StackOverflowError e) {
+                        // A bug triggered by one client only costs that client its connection, not the whole loop,
+                        // the stack is already unwound when a too deep recursion is caught here
+                        server.display("Exception in " + getName() + " serving " + connection.getUsername() + ": " + e);
+                        connection.abort();
+                    }
+                }
+                expireHandshakes();
+            }
+
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                ((NioConnection) key.attachment()).closeNow();
+            }
+            runTasks();
+            try {
+                selector.close();
+            }
+            catch (IOException e) {
+                server.display("Exception closing selector: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package server;
+
+import shared.FrameCodec;
+import shared.MessageUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/*
+ * Incremental codec for the Java object serialization stream spoken by clients that predate the binary frame protocol.
+ * The non-blocking engine cannot park a thread inside ObjectInputStream.readObject(), so this class decodes
+ * the username String and the MessageUtils objects straight from a ByteBuffer and only consumes bytes once a
+ * whole object is available. One instance must be used per connection because the stream shares handles.
+ * Like the threaded engine's filter, only MessageUtils without a serializable superclass is accepted and objects
+ * may nest at most MAX_DEPTH deep, so a crafted stream cannot recurse the event loop's stack away.
+ */
+public class ObjectStreamCodec {
+    // Constants from the Java Object Serialization Stream Protocol
+    private static final short STREAM_MAGIC = (short) 0xaced;
+    private static final short STREAM_VERSION = 5;
+    private static final byte TC_NULL = 0x70;
+    private static final byte TC_REFERENCE = 0x71;
+    private static final byte TC_CLASSDESC = 0x72;
+    private static final byte TC_OBJECT = 0x73;
+    private static final byte TC_STRING = 0x74;
+    private static final byte TC_ENDBLOCKDATA = 0x78;
+    private static final byte TC_RESET = 0x79;
+    private static final byte TC_LONGSTRING = 0x7C;
+    private static final int BASE_WIRE_HANDLE = 0x7e0000;
+    private static final byte SC_WRITE_METHOD = 0x01;
+    private static final int MAX_DEPTH = 3;                       // Deepest nesting of objects a peer may send
+
+    private final ArrayList<Object> handles = new ArrayList<>();  // Objects the peer may refer back to
+    private boolean headerRead;                                   // Whether the stream header was consumed
+
+
+    // Class descriptor as announced by the peer
+    private static final class ClassDesc {
+        private final String name;
+        private final char[] typeCodes;
+        private final String[] fieldNames;
+
+        private ClassDesc(String name, char[] typeCodes, String[] fieldNames) {
+            this.name = name;
+            this.typeCodes = typeCodes;
+            this.fieldNames = fieldNames;
+        }
+    }
+
+
+    // Decode the next object from the buffer, returns null and leaves the buffer untouched if it is incomplete
+    public Object decode(ByteBuffer in) throws StreamCorruptedException {
+        if (!headerRead) {
+            if (in.remaining() < 4) {
+                return null;
+            }
+            if (in.getShort() != STREAM_MAGIC || in.getShort() != STREAM_VERSION) {
+                throw new StreamCorruptedException("invalid stream header");
+            }
+            headerRead = true;
+        }
+
+        int start = in.position();
+        int handleMark = handles.size();
+        try {
+            return readContent(in, 1);
+        }
+        catch (BufferUnderflowException e) {
+            // Not enough bytes yet, roll back and wait for the rest of the object, unless it is already larger than
+            // any frame would be, the connection would otherwise buffer it without limit
+            if (in.limit() - start > FrameCodec.MAX_FRAME_LENGTH) {
+                throw new StreamCorruptedException("object exceeds " + FrameCodec.MAX_FRAME_LENGTH + " bytes");
+            }
+            in.position(start);
+            handles.subList(handleMark, handles.size()).clear();
+            return null;
+        }
+    }
+
+
+    // Read one content element of the stream at the given nesting depth
+    private Object readContent(ByteBuffer in, int depth) throws StreamCorruptedException {
+        if (depth > MAX_DEPTH) {
+            throw new StreamCorruptedException("objects nested deeper than " + MAX_DEPTH);
+        }
+        byte tc = in.get();
+        while (tc == TC_RESET) {
+            handles.clear();
+            tc = in.get();
+        }
+        switch (tc) {
+            case TC_NULL:
+                return null;
+            case TC_REFERENCE:
+                return lookup(in.getInt());
+            case TC_STRING:
+                return newHandle(readUtf(in, in.getShort() & 0xffff));
+            case TC_LONGSTRING:
+                return newHandle(readUtf(in, checkedLength(in.getLong())));
+            case TC_OBJECT:
+                return readObject(in, depth);
+            default:
+                throw new StreamCorruptedException(String.format("unexpected type code: %02X", tc));
+        }
+    }
+
+
+    // Read an object, only MessageUtils instances are accepted
+    private Object readObject(ByteBuffer in, int depth) throws StreamCorruptedException {
+        ClassDesc desc = readClassDesc(in);
+        if (desc == null) {
+            throw new StreamCorruptedException("unexpected class: null");
+        }
+        int handle = handles.size();
+        newHandle(null);
+
+        int type = 0;
+        String message = null;
+        for (int i = 0; i < desc.typeCodes.length; i++) {
+            switch (desc.typeCodes[i]) {
+                case 'B', 'Z' -> in.get();
+                case 'C', 'S' -> in.getShort();
+                case 'F' -> in.getFloat();
+                case 'D' -> in.getDouble();
+                case 'J' -> in.getLong();
+                case 'I' -> {
+                    int value = in.getInt();
+                    if (desc.fieldNames[i].equals("type")) {
+                        type = value;
+                    }
+                }
+                default -> {
+                    Object value = readContent(in, depth + 1);
+                    if (desc.fieldNames[i].equals("message") && value instanceof String s) {
+                        message = s;
+                    }
+                }
+            }
+        }
+        MessageUtils result = new MessageUtils(type, message);
+        handles.set(handle, result);
+        return result;
+    }
+
+
+    // Read a class descriptor of MessageUtils, a reference to an earlier one, or null
+    private ClassDesc readClassDesc(ByteBuffer in) throws StreamCorruptedException {
+        byte tc = in.get();
+        switch (tc) {
+            case TC_NULL:
+                return null;
+            case TC_REFERENCE:
+                Object ref = lookup(in.getInt());
+                if (!(ref instanceof ClassDesc desc)) {
+                    throw new StreamCorruptedException("reference is not a class descriptor");
+                }
+                return desc;
+            case TC_CLASSDESC:
+                break;
+            default:
+                throw new StreamCorruptedException(String.format("unexpected class descriptor type code: %02X", tc));
+        }
+
+        String name = readUtf(in, in.getShort() & 0xffff);
+        if (!name.equals(MessageUtils.class.getName())) {
+            // Checked before anything of the class is read, its fields could nest further
+            throw new StreamCorruptedException("unexpected class: " + name);
+        }
+        in.getLong(); // serialVersionUID
+        int handle = handles.size();
+        newHandle(null);
+        byte flags = in.get();
+        if ((flags & SC_WRITE_METHOD) != 0) {
+            throw new StreamCorruptedException("custom serialization is not supported: " + name);
+        }
+        int count = in.getShort();
+        if (count < 0) {
+            throw new StreamCorruptedException("invalid field count: " + count);
+        }
+        char[] typeCodes = new char[count];
+        String[] fieldNames = new String[count];
+        for (int i = 0; i < count; i++) {
+            typeCodes[i] = (char) in.get();
+            fieldNames[i] = readUtf(in, in.getShort() & 0xffff);
+            if (typeCodes[i] == 'L' || typeCodes[i] == '[') {
+                readSignature(in);
+            }
+        }
+        if (in.get() != TC_ENDBLOCKDATA) {
+            throw new StreamCorruptedException("class annotations are not supported: " + name);
+        }
+        if (in.get() != TC_NULL) {
+            // Rejected without reading it, a chain of superclasses would otherwise recurse once per class
+            throw new StreamCorruptedException("serializable super classes are not supported: " + name);
+        }
+
+        ClassDesc desc = new ClassDesc(name, typeCodes, fieldNames);
+        handles.set(handle, desc);
+        return desc;
+    }
+
+
+    // Read the type signature of an object field, a string or a reference to an earlier one
+    private String readSignature(ByteBuffer in) throws StreamCorruptedException {
+        byte tc = in.get();
+        Object signature = switch (tc) {
+            case TC_STRING -> newHandle(readUtf(in, in.getShort() & 0xffff));
+            case TC_REFERENCE -> lookup(in.getInt());
+            default -> throw new StreamCorruptedException(String.format("unexpected field signature type code: %02X", tc));
+        };
+        if (!(signature instanceof String s)) {
+            throw new StreamCorruptedException("field signature is not a string");
+        }
+        return s;
+    }
+
+
+    // Resolve a back reference
+    private Object lookup(int handle) throws StreamCorruptedException {
+        int index = handle - BASE_WIRE_HANDLE;
+        if (index < 0 || index >= handles.size()) {
+            throw new StreamCorruptedException("invalid handle: " + handle);
+        }
+        return handles.get(index);
+    }
+
+
+    // Assign the next handle to an object
+    private Object newHandle(Object obj) {
+        handles.add(obj);
+        return obj;
+    }
+
+
+    // Reject string lengths that are negative or larger than any frame of the binary protocol
+    private static int checkedLength(long length) throws StreamCorruptedException {
+        if (length < 0 || length > FrameCodec.MAX_FRAME_LENGTH) {
+            throw new StreamCorruptedException("invalid string length: " + length);
+        }
+        return (int) length;
+    }
+
+
+    // Decode modified UTF-8 as written by DataOutput.writeUTF
+    private static String readUtf(ByteBuffer in, int length) throws StreamCorruptedException {
+        if (in.remaining() < length) {
+            throw new BufferUnderflowException();
+        }
+        char[] chars = new char[length];
+        int count = 0;
+        int end = in.position() + length;
+        while (in.position() < end) {
+            int b = in.get() & 0xff;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+            }
+            else if ((b & 0xe0) == 0xc0 && in.position() < end) {
+                chars[count++] = (char) (((b & 0x1f) << 6) | (in.get() & 0x3f));
+            }
+            else if ((b & 0xf0) == 0xe0 && in.position() + 1 < end) {
+                chars[count++] = (char) (((b & 0x0f) << 12) | ((in.get() & 0x3f) << 6) | (in.get() & 0x3f));
+            }
+            else {
+                throw new StreamCorruptedException("malformed modified UTF-8 string");
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+
+    // The header that opens every serialization stream
+    public static byte[] streamHeader() {
+        return new byte[] {(byte) 0xac, (byte) 0xed, 0x00, 0x05};
+    }
+
+
+    // Encode a String exactly like ObjectOutputStream.writeObject does for a new string
+    public static byte[] encodeString(String s) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(s.length() + 9);
+        int utfLength = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            utfLength += (c >= 0x0001 && c <= 0x007f) ? 1 : (c <= 0x07ff ? 2 : 3);
+        }
+        if (utfLength <= 0xffff) {
+            out.write(TC_STRING);
+        }
+        else {
+            out.write(TC_LONGSTRING);
+            for (int shift = 56; shift >= 16; shift -= 8) {
+                out.write((int) ((long) utfLength >>> shift));
+            }
+        }
+        out.write(utfLength >>> 8);
+        out.write(utfLength);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f) {
+                out.write(c);
+            }
+            else if (c <= 0x07ff) {
+                out.write(0xc0 | (c >> 6));
+                out.write(0x80 | (c & 0x3f));
+            }
+            else {
+                out.write(0xe0 | (c >> 12));
+                out.write(0x80 | ((c >> 6) & 0x3f));
+                out.write(0x80 | (c & 0x3f));
+            }
+        }
+        return out.toByteArray();
+    }
+}
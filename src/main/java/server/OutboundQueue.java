@@ -0,0 +1,320 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Bounded queue of messages waiting to be written to one client.
+ * Broadcasting only enqueues, the client's own writer drains the queue, so a client with a full TCP window
+ * never stalls the sender or the other clients. What happens when the queue is full is decided by the policy.
+ * File transfers to the client wait in a second lane that is only served when no message is waiting, one chunk at
+ * a time and each transfer in turn, so a file delays a chat message by at most one chunk.
+ * Only text and chat lines are ever dropped, control frames such as SESSION, LOGOUT or presence updates are kept even
+ * past the capacity, and a room message dropped under DROP_OLDEST is announced where the gap in the sequence is.
+ */
+public class OutboundQueue {
+
+    // What to do with a message for a client whose queue is full
+    public enum OverflowPolicy {
+        DROP_OLDEST,    // Discard the oldest queued text or chat line to make room
+        DISCONNECT,     // Refuse the message, the client is disconnected
+        COALESCE        // Replace the whole backlog with a single notice telling how many messages were skipped
+    }
+
+    private final int capacity;                     // Maximum number of queued messages
+    private final OverflowPolicy policy;            // Policy applied when the queue is full
+    private final ArrayDeque<EncodedMessage> messages = new ArrayDeque<>();
+    private final ArrayDeque<FileTransfer.Delivery> transfers = new ArrayDeque<>();  // File transfers to the client, served in turn
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private boolean closed;                         // Whether the queue refuses new messages
+    private boolean transferReady;                  // Whether a transfer may have a chunk ready since the writer last looked
+    private long skipped;                           // Messages collapsed into the next coalesce notice
+    private long enqueued;                          // Messages accepted since the queue was created
+    private long dropped;                           // Messages discarded because the queue was full
+    private int peakDepth;                          // Largest number of messages queued at once
+
+
+    // Constructor that receives the capacity and the overflow policy
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Outbound queue capacity must be positive.");
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+
+    // Queue a message, returns false if the queue is closed or the policy asks to disconnect the client
+    public boolean offer(EncodedMessage message) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (messages.size() >= capacity) {
+                switch (policy) {
+                    case DROP_OLDEST -> {
+                        EncodedMessage victim = dropOldest();
+                        if (victim == null) {
+                            if (!message.isDroppable()) {
+                                // Nothing may make room for a control frame, it goes past the capacity
+                                break;
+                            }
+                            // Only control frames are queued, the new line is the oldest that may be dropped
+                            victim = message;
+                        }
+                        dropped++;
+                        if (victim.getSequence() >= 0) {
+                            // The client would only see a silent gap in the room's sequence numbers
+                            skipped++;
+                        }
+                        if (victim == message) {
+                            notEmpty.signal();
+                            return true;
+                        }
+                    }
+                    case DISCONNECT -> {
+                        dropped++;
+                        closed = true;
+                        cancelTransfers();
+                        notEmpty.signalAll();
+                        return false;
+                    }
+                    case COALESCE -> {
+                        int before = messages.size();
+                        messages.removeIf(EncodedMessage::isDroppable);
+                        skipped += before - messages.size();
+                        dropped += before - messages.size();
+                    }
+                }
+            }
+            messages.addLast(message);
+            enqueued++;
+            peakDepth = Math.max(peakDepth, messages.size());
+            notEmpty.signal();
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Take the next message without waiting, null if there is none
+    public EncodedMessage poll() {
+        lock.lock();
+        try {
+            return next();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Wait for the next message, null once the queue is closed and drained, or while it is open when a file
+    // transfer may have a chunk ready, which nextChunk() then returns
+    public EncodedMessage take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!closed && skipped == 0 && messages.isEmpty() && !transferReady) {
+                notEmpty.await();
+            }
+            transferReady = false;
+            return next();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Remove the oldest text or chat line, null if only control frames are queued, caller holds the lock
+    private EncodedMessage dropOldest() {
+        Iterator<EncodedMessage> queued = messages.iterator();
+        while (queued.hasNext()) {
+            EncodedMessage message = queued.next();
+            if (message.isDroppable()) {
+                queued.remove();
+                return message;
+            }
+        }
+        return null;
+    }
+
+
+    // The coalesce notice comes first, then the queued messages, caller holds the lock
+    private EncodedMessage next() {
+        if (skipped > 0) {
+            EncodedMessage notice = EncodedMessage.text("\033[33m*** " + skipped
+                    + " messages were skipped because your connection is too slow. ***\033[0m");
+            skipped = 0;
+            return notice;
+        }
+        return messages.pollFirst();
+    }
+
+
+    // Add a file transfer, written when no message is waiting, returns false if the queue is closed
+    public boolean offerTransfer(FileTransfer.Delivery delivery) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            transfers.addLast(delivery);
+            transferReady = true;
+            notEmpty.signal();
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Wake the writer, a file transfer has more bytes ready
+    public void transferReady() {
+        lock.lock();
+        try {
+            transferReady = true;
+            notEmpty.signal();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // The next chunk of the file transfers, taken from each in turn, null when none has a chunk ready
+    public FileTransfer.Chunk nextChunk() {
+        lock.lock();
+        try {
+            for (int i = transfers.size(); i > 0; i--) {
+                FileTransfer.Delivery delivery = transfers.pollFirst();
+                FileTransfer.Chunk chunk = delivery.next();
+                if (!delivery.isFinished()) {
+                    transfers.addLast(delivery);
+                }
+                if (chunk != null) {
+                    return chunk;
+                }
+            }
+            return null;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Number of file transfers still being written to the client
+    public int getTransfers() {
+        lock.lock();
+        try {
+            return transfers.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Stop the file transfers, the client can no longer receive them, caller holds the lock
+    private void cancelTransfers() {
+        for (FileTransfer.Delivery delivery : transfers) {
+            delivery.cancel();
+        }
+        transfers.clear();
+    }
+
+
+    // Refuse further messages, the writer still drains what is queued but the file transfers stop
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            cancelTransfers();
+            notEmpty.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Whether the queue refuses new messages
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Number of messages currently queued
+    public int size() {
+        lock.lock();
+        try {
+            return messages.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Largest number of messages queued at once
+    public int getPeakDepth() {
+        lock.lock();
+        try {
+            return peakDepth;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Messages accepted since the queue was created
+    public long getEnqueued() {
+        lock.lock();
+        try {
+            return enqueued;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Messages discarded because the queue was full
+    public long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // One line summary of the queue metrics
+    public String describe() {
+        lock.lock();
+        try {
+            return "queued " + messages.size() + "/" + capacity + ", peak " + peakDepth
+                    + ", accepted " + enqueued + ", dropped " + dropped + " (" + policy.name().toLowerCase() + ")";
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
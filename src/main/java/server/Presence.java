@@ -0,0 +1,138 @@
+package server;
+
+import shared.Frame;
+import shared.MessageUtils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Presence subscriptions: a subscriber receives the roster once and then a small PRESENCE frame for every join,
+ * leave, rename and change of coordinator, each carrying the roster version it leads to.
+ * Versions of consecutive updates differ by one, so a client that misses an update, for example because its
+ * outbound queue dropped it, notices the gap and subscribes again to get a fresh roster.
+ * Changes of the room go through here so that each one and its update happen under one lock: subscribers
+ * receive the updates in version order and a roster is never sent between a change and its update.
+ */
+final class Presence {
+    private final ClientRegistry clients;               // The registry whose changes are published
+    private final ReentrantLock lock = new ReentrantLock();  // Orders the changes of the room with their updates
+    private final Map<Long, ClientConnection> subscribers = new ConcurrentHashMap<>();  // Subscribed clients by id
+
+
+    // Constructor that receives the registry to publish the changes of
+    Presence(ClientRegistry clients) {
+        this.clients = clients;
+    }
+
+
+    // Send the roster to the client, then every change of it until it unsubscribes or leaves
+    void subscribe(ClientConnection client) {
+        lock.lock();
+        try {
+            if (client.send(clients.roster().snapshot())) {
+                subscribers.put(client.getId(), client);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Stop sending changes to the client
+    void unsubscribe(ClientConnection client) {
+        subscribers.remove(client.getId());
+    }
+
+
+    // Number of subscribed clients
+    int size() {
+        return subscribers.size();
+    }
+
+
+    // Add a client to the room, returns the client that became coordinator or null if it did not change
+    ClientConnection join(ClientConnection client) {
+        lock.lock();
+        try {
+            ClientConnection elected = clients.add(client);
+            publish(Frame.PRESENCE_JOIN, client.getUsername(), null);
+            return elected;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Remove a client from the room, returns it or null if it was not in the room
+    ClientConnection leave(long id) {
+        lock.lock();
+        try {
+            subscribers.remove(id);
+            ClientConnection removed = clients.remove(id);
+            if (removed != null) {
+                publish(Frame.PRESENCE_LEAVE, removed.getUsername(), null);
+            }
+            return removed;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Hand the place of a client in the room to the connection that resumed its session, returns false if the
+    // previous connection already left. Subscribers see a rename to the same name, which moves the roster version on.
+    boolean replace(ClientConnection previous, ClientConnection client) {
+        lock.lock();
+        try {
+            subscribers.remove(previous.getId());
+            if (!clients.replace(previous, client)) {
+                return false;
+            }
+            publish(Frame.PRESENCE_RENAME, client.getUsername(), client.getUsername());
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Change the username of a client in the room, the event tells whether it became the coordinator
+    void rename(ClientConnection client, String username, int event) {
+        lock.lock();
+        try {
+            String previous = client.getUsername();
+            client.setUsername(username);
+            clients.renamed();
+            publish(event, username, previous);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Send an update to every subscriber, encoded once, runs under the lock right after the change
+    private void publish(int event, String username, String previous) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        Frame update = new Frame(MessageUtils.PRESENCE, username)
+                .putField(Frame.FIELD_EVENT, event)
+                .putField(Frame.FIELD_VERSION, clients.getVersion());
+        if (previous != null) {
+            update.putField(Frame.FIELD_PREVIOUS, previous);
+        }
+        EncodedMessage encoded = EncodedMessage.of(update);
+        for (ClientConnection subscriber : subscribers.values()) {
+            if (!subscriber.send(encoded)) {
+                subscribers.remove(subscriber.getId());
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package server;
+
+import shared.Frame;
+import shared.FrameCodec;
+import shared.MessageUtils;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Flood protection for the requests clients send, one instance per server. Every connection has a token bucket for
+ * messages and one for bytes, and so does every IP address, shared by all its connections, so a flooder cannot get
+ * around its limit by opening more of them. A request is admitted only when all four buckets hold enough and then
+ * spends from all of them; otherwise nothing is spent and the caller learns how long until it would be admitted and
+ * applies the policy. The buckets of an address exist only while a connection from it is open, so memory follows
+ * the open connections rather than every address ever seen. Limits and the policy apply to connected clients at once.
+ * Files are metered too: opening a transfer is a request, and the bytes of a file count against the address's bytes,
+ * which keeps the room safe from a stream of large transfers without holding a single file to the pace of chat text.
+ */
+public final class RateLimiter {
+
+    // What happens to a request over the limits
+    public enum Policy {
+        DELAY,          // Hold the request back until the buckets refilled, the client's reads pause meanwhile
+        DROP,           // Drop the request and warn the client
+        DISCONNECT      // Remove the client from the room and close its connection
+    }
+
+    // The limits that can be set
+    public enum Kind {
+        MESSAGES,       // Requests per connection
+        BYTES,          // Bytes of text per connection
+        IP_MESSAGES,    // Requests of all the connections from an IP address
+        IP_BYTES;       // Bytes of text of all the connections from an IP address
+
+        // The name the coordinator uses in a LIMIT request, e.g. "ip-bytes"
+        public String getName() {
+            return name().toLowerCase(Locale.ROOT).replace('_', '-');
+        }
+    }
+
+    private static final String USAGE = "Usage: LIMIT [messages|bytes|ip-messages|ip-bytes] rate [burst], a rate of 0 turns "
+            + "the limit off, or LIMIT policy delay|drop|disconnect";
+
+    // The buckets shared by the connections from one address, its lock also guards the buckets of those connections
+    private static final class Address {
+        private final ReentrantLock lock = new ReentrantLock();  // Guards the buckets while a request is checked
+        private final TokenBucket messages;                     // Requests of all the address's connections
+        private final TokenBucket bytes;                        // Bytes of all the address's connections
+        private int connections;                                // Open connections, changed only inside the map's compute
+
+        private Address(long now) {
+            this.messages = new TokenBucket(now);
+            this.bytes = new TokenBucket(now);
+        }
+    }
+
+    // The buckets of a single connection, released when it closes
+    final class Meter {
+        private final String ipAddress;                         // The address the connection comes from
+        private final Address address;                          // The buckets shared with the other connections from it
+        private final TokenBucket messages;                     // Requests of this connection
+        private final TokenBucket bytes;                        // Bytes of this connection
+        private final AtomicBoolean released = new AtomicBoolean();  // Whether the connection closed
+        private boolean warned;                                 // Whether the client was warned since its last admitted request
+
+        private Meter(String ipAddress, Address address, long now) {
+            this.ipAddress = ipAddress;
+            this.address = address;
+            this.messages = new TokenBucket(now);
+            this.bytes = new TokenBucket(now);
+        }
+
+        // Whether the client should be warned that its requests are dropped, once until one gets through again
+        boolean warn() {
+            address.lock.lock();
+            try {
+                boolean first = !warned;
+                warned = true;
+                return first;
+            }
+            finally {
+                address.lock.unlock();
+            }
+        }
+
+        // Forget the connection, the buckets of its address go with the last one, safe to call more than once
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                addresses.computeIfPresent(ipAddress, (ip, shared) -> --shared.connections == 0 ? null : shared);
+            }
+        }
+    }
+
+    private final Map<String, Address> addresses = new ConcurrentHashMap<>();  // Buckets of the addresses with open connections
+    private volatile TokenBucket.Limit[] limits = new TokenBucket.Limit[Kind.values().length];  // Current limits by kind, replaced as a whole
+    private volatile boolean unlimited = true;              // Whether every limit is off, requests then skip the buckets
+    private volatile Policy policy = Policy.DELAY;          // What happens to a request over the limits
+    private final ReentrantLock configuring = new ReentrantLock();  // Keeps changes of two limits at once from losing one
+
+
+    // Constructor with every limit off
+    public RateLimiter() {
+        Arrays.fill(limits, TokenBucket.Limit.UNLIMITED);
+    }
+
+
+    // Set one of the limits, connected clients are held to it from their next request
+    public void setLimit(Kind kind, TokenBucket.Limit limit) {
+        configuring.lock();
+        try {
+            TokenBucket.Limit[] updated = limits.clone();
+            updated[kind.ordinal()] = limit;
+            limits = updated;
+            unlimited = Arrays.stream(updated).allMatch(TokenBucket.Limit::isUnlimited);
+        }
+        finally {
+            configuring.unlock();
+        }
+    }
+
+
+    // Getter for one of the limits
+    public TokenBucket.Limit getLimit(Kind kind) {
+        return limits[kind.ordinal()];
+    }
+
+
+    // Set what happens to a request over the limits
+    public void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+
+    // Getter for what happens to a request over the limits
+    public Policy getPolicy() {
+        return policy;
+    }
+
+
+    // Change a limit or the policy as the coordinator typed it, e.g. "messages 10 20" or "policy drop".
+    // The burst defaults to a second's worth of the rate.
+    public void configure(String command) {
+        String[] tokens = command.trim().toLowerCase(Locale.ROOT).split("\\s+");
+        try {
+            if (tokens[0].equals("policy") && tokens.length == 2) {
+                setPolicy(Policy.valueOf(tokens[1].toUpperCase(Locale.ROOT)));
+                return;
+            }
+            if (tokens.length < 2 || tokens.length > 3) {
+                throw new IllegalArgumentException(USAGE);
+            }
+            Kind kind = Kind.valueOf(tokens[0].toUpperCase(Locale.ROOT).replace('-', '_'));
+            double rate = Double.parseDouble(tokens[1]);
+            long burst = tokens.length == 3 ? Long.parseLong(tokens[2]) : (long) Math.ceil(rate);
+            setLimit(kind, rate == 0 ? TokenBucket.Limit.UNLIMITED : new TokenBucket.Limit(rate, burst));
+        }
+        catch (IllegalArgumentException e) {
+            // Also an unknown kind or policy, or a number that does not parse
+            throw new IllegalArgumentException(USAGE, e);
+        }
+    }
+
+
+    // A line listing the limits and the policy for the coordinator
+    public String describe() {
+        StringBuilder line = new StringBuilder("Rate limits, policy ").append(policy.name().toLowerCase(Locale.ROOT)).append(':');
+        for (Kind kind : Kind.values()) {
+            line.append(' ').append(kind.getName()).append(' ').append(limits[kind.ordinal()]).append(',');
+        }
+        return line.append(' ').append(addresses.size()).append(" addresses connected").toString();
+    }
+
+
+    // Start metering a new connection from the address
+    Meter open(String ipAddress) {
+        long now = System.nanoTime();
+        Address address = addresses.compute(ipAddress, (ip, shared) -> {
+            if (shared == null) {
+                shared = new Address(now);
+            }
+            shared.connections++;
+            return shared;
+        });
+        return new Meter(ipAddress, address, now);
+    }
+
+
+    // Spend the tokens of a request if the buckets of its connection and of its address all hold enough. Returns 0
+    // when it was admitted, otherwise the nanoseconds until it would be, and nothing is spent then.
+    long admit(Meter meter, MessageUtils request) {
+        if (unlimited) {
+            // The default, which costs a volatile read
+            return 0;
+        }
+        long size = request.getMessage() == null ? 0 : FrameCodec.utf8Length(request.getMessage());
+        return admit(meter, 1, size, size);
+    }
+
+
+    // Spend the tokens of a frame of a file transfer like admit() does for requests: opening a transfer costs a
+    // request, and the bytes of the file are charged to the bytes of the connection's address
+    long admitFile(Meter meter, Frame frame) {
+        if (unlimited) {
+            return 0;
+        }
+        return switch (frame.getType()) {
+            case MessageUtils.FILE -> {
+                long size = FrameCodec.utf8Length(frame.getPayload());
+                yield admit(meter, 1, size, size);
+            }
+            case MessageUtils.FILE_DATA -> {
+                byte[] data = frame.getField(Frame.FIELD_DATA);
+                yield admit(meter, 0, 0, data == null ? 0 : data.length);
+            }
+            default -> 0;
+        };
+    }
+
+
+    // Spend requests and bytes from the buckets of the connection and of its address, or return how long until they
+    // all hold enough
+    private long admit(Meter meter, long requests, long size, long addressSize) {
+        TokenBucket.Limit[] current = limits;
+        TokenBucket.Limit messages = current[Kind.MESSAGES.ordinal()];
+        TokenBucket.Limit bytes = current[Kind.BYTES.ordinal()];
+        TokenBucket.Limit ipMessages = current[Kind.IP_MESSAGES.ordinal()];
+        TokenBucket.Limit ipBytes = current[Kind.IP_BYTES.ordinal()];
+        long now = System.nanoTime();
+        Address address = meter.address;
+        address.lock.lock();
+        try {
+            long wait = Math.max(
+                    Math.max(meter.messages.waitFor(messages, requests, now), meter.bytes.waitFor(bytes, size, now)),
+                    Math.max(address.messages.waitFor(ipMessages, requests, now), address.bytes.waitFor(ipBytes, addressSize, now)));
+            if (wait > 0) {
+                return wait;
+            }
+            meter.messages.take(messages, requests);
+            meter.bytes.take(bytes, size);
+            address.messages.take(ipMessages, requests);
+            address.bytes.take(ipBytes, addressSize);
+            meter.warned = false;
+            return 0;
+        }
+        finally {
+            address.lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package server;
+
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongFunction;
+
+/*
+ * The last messages sent to the whole room, kept in memory by sequence number.
+ * Every room message is numbered here as it is encoded, one more than the one before, and stored in a ring that
+ * overwrites the oldest message once it is full. A client resuming its session after a reconnect names the last
+ * sequence it saw and receives exactly the messages after it, as long as they are still in the ring.
+ */
+public final class ReplayBuffer {
+    private final EncodedMessage[] ring;            // Messages by sequence modulo the capacity
+    private final ReentrantLock lock = new ReentrantLock();  // Guards the ring against resuming clients reading it
+    private long last;                              // Sequence of the newest message, 0 before the first
+
+
+    // Constructor that receives how many messages are kept
+    public ReplayBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Replay buffer capacity must be positive.");
+        }
+        this.ring = new EncodedMessage[capacity];
+    }
+
+
+    // Number the next room message, encode it with its sequence and keep it
+    public EncodedMessage append(LongFunction<EncodedMessage> encoder) {
+        lock.lock();
+        try {
+            long sequence = last + 1;
+            EncodedMessage message = encoder.apply(sequence);
+            ring[(int) (sequence % ring.length)] = message;
+            last = sequence;
+            return message;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Sequence of the newest message, 0 before the first
+    public long getLast() {
+        lock.lock();
+        try {
+            return last;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Add the messages after the sequence to the list, oldest first,
+    // returns how many of them were already overwritten and are lost
+    public long since(long sequence, List<EncodedMessage> missed) {
+        lock.lock();
+        try {
+            long first = Math.max(sequence + 1, last - ring.length + 1);
+            for (long next = Math.max(first, 1); next <= last; next++) {
+                missed.add(ring[(int) (next % ring.length)]);
+            }
+            return Math.max(0, first - Math.max(sequence + 1, 1));
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package server;
+
+import shared.Frame;
+import shared.MessageUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/*
+ * An immutable snapshot of the clients in the chat room, answering the USERS command.
+ * The ClientRegistry builds a new snapshot only after a join, a leave or a rename, and the full listing that
+ * every client asks for is encoded once per second it is requested in (the listing shows the time),
+ * so a USERS request costs one shared message and one write however big the room is.
+ * Listings filtered by a name prefix or cut into pages are built from the snapshot without touching the registry.
+ */
+public final class Roster {
+    public static final int PAGE_SIZE = 50;             // Users listed per page when a page is requested
+
+    // Listing encoded for the second it was requested in
+    private record Listing(String time, EncodedMessage message) {
+    }
+
+    private final long version;                         // Registry version the snapshot was taken at
+    private final ClientConnection[] clients;           // The clients in the room, oldest connection first
+    private final String[] usernames;                   // Their usernames when the snapshot was taken
+    private final String[] dates;                       // When they connected
+    private volatile Listing listing;                   // The full listing, encoded on first use each second
+    private volatile EncodedMessage snapshot;           // The roster as sent to presence subscribers, encoded on first use
+
+
+    // Constructor that takes the snapshot of the clients at the given registry version
+    Roster(long version, Collection<ClientConnection> room) {
+        List<ClientConnection> members = new ArrayList<>(room);
+        this.version = version;
+        this.clients = members.toArray(new ClientConnection[0]);
+        this.usernames = new String[clients.length];
+        this.dates = new String[clients.length];
+        for (int i = 0; i < clients.length; i++) {
+            usernames[i] = clients[i].getUsername();
+            dates[i] = clients[i].getDate();
+        }
+    }
+
+
+    // Registry version the snapshot was taken at
+    public long getVersion() {
+        return version;
+    }
+
+
+    // Number of clients in the snapshot
+    public int size() {
+        return clients.length;
+    }
+
+
+    // The full listing shared by every client asking within the same second
+    public EncodedMessage listing(String time) {
+        Listing cached = listing;
+        if (cached == null || !cached.time().equals(time)) {
+            // Racing threads may both encode it, they produce equal messages
+            cached = new Listing(time, EncodedMessage.text(render(time, "", 0, false)));
+            listing = cached;
+        }
+        return cached.message();
+    }
+
+
+    // The roster as sent to presence subscribers: every username on its own line, oldest connection first
+    public EncodedMessage snapshot() {
+        EncodedMessage encoded = snapshot;
+        if (encoded == null) {
+            // Racing threads may both encode it, they produce equal messages
+            encoded = EncodedMessage.of(new Frame(MessageUtils.ROSTER, String.join("\n", usernames))
+                    .putField(Frame.FIELD_VERSION, version));
+            snapshot = encoded;
+        }
+        return encoded;
+    }
+
+
+    // A listing of the users whose name starts with the prefix, the whole of it when page is 0 or else only that page.
+    // With queues, every user is shown with the live metrics of their outbound queue, as the coordinator sees them.
+    public String render(String time, String prefix, int page, boolean queues) {
+        StringBuilder text = new StringBuilder("List of the users connected at ").append(time);
+        List<Integer> matching = new ArrayList<>();
+        for (int i = 0; i < clients.length; i++) {
+            if (prefix.isEmpty() || usernames[i].startsWith(prefix) || ClientRegistry.baseName(usernames[i]).startsWith(prefix)) {
+                matching.add(i);
+            }
+        }
+        if (!prefix.isEmpty()) {
+            text.append(" starting with \"").append(prefix).append('"');
+        }
+        int first = 0;
+        int last = matching.size();
+        if (page > 0) {
+            int pages = Math.max(1, (matching.size() + PAGE_SIZE - 1) / PAGE_SIZE);
+            text.append(", page ").append(page).append(" of ").append(pages);
+            first = Math.min(matching.size(), (page - 1) * PAGE_SIZE);
+            last = Math.min(matching.size(), first + PAGE_SIZE);
+        }
+        if (first == last && (page > 0 || !prefix.isEmpty())) {
+            text.append("\nNo users found.");
+        }
+        for (int n = first; n < last; n++) {
+            int i = matching.get(n);
+            text.append('\n').append(n + 1).append(") ").append(usernames[i]).append(" since ");
+            if (queues) {
+                text.append(dates[i].trim()).append(" [outbound ").append(clients[i].getOutboundQueue().describe()).append("]\n");
+            }
+            else {
+                text.append(dates[i]);
+            }
+        }
+        return text.toString();
+    }
+}
@@ -1,54 +1,106 @@
 package server;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.FileWriter;
+import shared.Frame;
+import shared.MessageUtils;
+import shared.Tls;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.text.SimpleDateFormat;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashSet;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /*
  * Class responsible for managing the server,
  * accepting incoming connections, and broadcasting messages to clients.
  */
-public class Server 
+public final class Server
 {
+    // The engines the server can use to serve its clients
+    public enum Engine {
+        THREADED,   // One platform thread per client running a ClientHandler
+        VIRTUAL,    // One virtual thread per client running a ClientHandler
+        NIO         // A few event loops multiplexing all clients with Selectors
+    }
+
+    private static final String USAGE = "Usage is:>java Server [portNumber] [threaded|virtual|nio]";
+    private static final DateTimeFormatter HISTORY_TIME = DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final String NO_SUCH_USER = "*** " + "Sorry. No such user exists." + " *** ";
+    private static final int ACCEPT_BACKLOG = 1024;  // Pending connections the operating system may queue, a reconnect storm arrives at once
+
     private final AtomicInteger uniqueId = new AtomicInteger(0); 	// Unique id for clients
-    private ArrayList<ClientHandler> clientsArray; 					// Array list to hold client handler threads
-    private final SimpleDateFormat dateFormat; 						// Date format for logging
+    private final ClientRegistry clients = new ClientRegistry(); 	// The connected clients indexed by username and id
+    private final Presence presence = new Presence(clients); 		// Publishes the changes of the room to subscribed clients
+    private final TimestampCache timestamps = new TimestampCache(); // Time shown with messages and log lines, formatted once per second
     private final int port; 										// Server port number
     private volatile boolean keepGoing = true; 						// Flag to indicate if server is running
-    private FileWriter historyFileWriter; 							// File writer for chat history
-    private final HashSet<String> badWords = new HashSet<>(); 		// Set of bad words to filter
+    private HistoryWriter history; 									// Appends the chat history from its own thread
+    private Mailbox mailbox; 										// Private messages kept for users who are not in the room
+    private volatile int historyReplay = 20; 						// Messages replayed to a client when it joins
+    private final BadWordFilter badWords = new BadWordFilter(Path.of("src/main/java/server/BadWords.txt")); // Compiled bad words to filter, reloaded when the file changes
+    private final Engine engine; 									// Engine used to serve the clients
+    private final ReentrantLock lock = new ReentrantLock(); 		// Keeps broadcasts in the same order for every client, unlike synchronized it never pins a virtual thread
+    private volatile int outboundCapacity = 1024; 					// Messages a client may have waiting to be written
+    private volatile OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST; // What to do when that limit is hit
+    private final ServerMetrics metrics = new ServerMetrics(); 		// Latency of the hot paths and message rates, reported by STATS
+    private volatile int handshakeTimeout = 10_000; 				// Milliseconds a new connection has to announce its username
+    private final TimerWheel timers = new TimerWheel("timer-wheel", 100, 512, this::display); // Heartbeats of the connected clients
+    private volatile long heartbeatInterval = 5_000; 				// Milliseconds a client may be quiet before it is sent a PING
+    private volatile long heartbeatTimeout = 15_000; 				// Milliseconds a client may be quiet before it is reaped
+    private static final EncodedMessage PONG = EncodedMessage.control(MessageUtils.PONG); // Answer to a client's PING
+    private static final EncodedMessage LOGOUT = EncodedMessage.control(MessageUtils.LOGOUT); // Tells a kicked client not to reconnect
+    private final FileRelay files = new FileRelay(this, clients, 	// Relays the files clients send, spooled to this directory
+            Path.of(System.getProperty("file.spool", System.getProperty("java.io.tmpdir"))));
+    private final ReplayBuffer replay = new ReplayBuffer(Integer.getInteger("replay.capacity", 1024)); // The last room messages by sequence number, for clients resuming their session
+    private final Sessions sessions = new Sessions(); 				// Sessions of the clients that can resume them after a reconnect
+    private volatile long sessionGrace = 30_000; 					// Milliseconds a lost client keeps its place in the room
+    private final RateLimiter limiter = new RateLimiter(); 			// Flood protection of the requests clients send, off until limits are set
+    private volatile SSLContext tls; 								// Secures the connections accepted from now on, null for plain TCP
 
     // Constructor that receive the port to listen to for connection as parameter
     public Server(int port) {
+        this(port, Engine.THREADED);
+    }
+
+    // Constructor that receive the port and the engine used to serve the clients
+    public Server(int port, Engine engine) {
         this.port = port;
-        // Create array list to hold client handler threads
-        clientsArray = new ArrayList<>();
-        // Set date format
-        dateFormat = new SimpleDateFormat("HH:mm:ss");
-        
+        this.engine = engine;
         try {
-            // Open history file for writing
-            historyFileWriter = new FileWriter("src/main/java/server/ChatHistory.txt", true);
+            // Open the history segments for writing, each batch of lines is written as soon as it is taken off the queue
+            HistoryLog historyLog = new HistoryLog(Path.of(System.getProperty("history.dir", "src/main/java/server/history")),
+                    Long.getLong("history.segmentSize", HistoryLog.DEFAULT_SEGMENT_SIZE));
+            history = new HistoryWriter(historyLog, HistoryWriter.Durability.FLUSH, 0, this::display,
+                    metrics.get(ServerMetrics.Stage.HISTORY));
         } 
         catch (IOException e) {
-            display("Error opening historyFileWriter file: " + e.getMessage());
+            display("Error opening history file: " + e.getMessage());
             e.printStackTrace();
         }
         
-        // Read bad words file and populate bad words set
-        try (BufferedReader br = new BufferedReader(new FileReader("src/main/java/server/BadWords.txt"))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                badWords.add(line.trim().toLowerCase());
-            }
+        // Open the mailboxes, mail waiting since the last run is delivered when its recipients join
+        try {
+            mailbox = new Mailbox(Path.of(System.getProperty("mailbox.dir", "src/main/java/server/mailbox")),
+                    Long.getLong("mailbox.capacity", Mailbox.DEFAULT_MAILBOX_CAPACITY),
+                    Long.getLong("mailbox.senderCapacity", Mailbox.DEFAULT_SENDER_CAPACITY),
+                    Long.getLong("mailbox.storeCapacity", Mailbox.DEFAULT_STORE_CAPACITY));
+        }
+        catch (IOException | IllegalArgumentException e) {
+            display("Error opening mailboxes: " + e.getMessage());
+        }
+
+        // Read bad words file and compile the bad words filter
+        try {
+            badWords.reload();
         } 
         catch (IOException e) {
             System.err.println("Failed to load bad words: " + e.getMessage());
@@ -58,40 +110,44 @@ public class Server
     // Method to start the server
     public void start() {
         keepGoing = true;
-        // Set of usernames
-        HashSet<String> usernames = new HashSet<>();
+        // Pick up edits of the bad words file without restarting
+        badWords.watch(this);
+        if (engine == Engine.NIO) {
+            // Serve all clients from a fixed set of event loops, one per available processor
+            new NioServerEngine(this, port, Runtime.getRuntime().availableProcessors()).run();
+            return;
+        }
         try {
             // Create server socket
-            ServerSocket serverSocket = new ServerSocket(port);
+            ServerSocket serverSocket = new ServerSocket(port, ACCEPT_BACKLOG);
             display("Server waiting for Clients on port " + port + ".");
             while (keepGoing) {
                 // Accept incoming connection
                 Socket socket = serverSocket.accept();
-            
-                // Create client handler thread
-                ClientHandler thread = new ClientHandler(socket, true,this, usernames);
-                // Add thread to array list
-                clientsArray.add(thread);
-                thread.start();
-                
-                if(clientsArray.size() == 1) {
-                    // Add (admin) tag to first client
-                    addAdminToUsername();
+                SSLContext context = tls;
+                if (context != null) {
+                    try {
+                        socket = secure(context, socket);
+                    }
+                    catch (IOException e) {
+                        display("Exception securing connection: " + e);
+                        socket.close();
+                        continue;
+                    }
                 }
+
+                // The accept loop only hands the connection off, the handler's own thread performs the handshake
+                // and joins the chat room once its username is reserved, so a slow client never delays the next one
+                ClientHandler handler = new ClientHandler(socket, true, this);
+                // Run the handler's handshake and read loop on a virtual or a platform thread
+                startThread("client-" + handler.getId(), handler);
             }
             
             try {
                 // Close server socket and client connections
                 serverSocket.close();
-                for (ClientHandler thread : clientsArray) {
-                    try {
-                        thread.getInputStream().close();
-                        thread.getOutputStream().close();
-                        thread.getSocket().close();
-                    } 
-                    catch (IOException ioE) {
-                    	System.out.println(ioE);
-                    }
+                for (ClientConnection client : clients.clients()) {
+                    client.close();
                 }
             } 
             catch (Exception e) {
@@ -99,7 +155,7 @@ public class Server
             }
         } 
         catch (IOException e) {
-            String msg = dateFormat.format(new Date()) + " Exception on new ServerSocket: " + e + "\n";
+            String msg = timestamps.now() + " Exception on new ServerSocket: " + e + "\n";
             display(msg);
         }
     }
@@ -108,170 +164,769 @@ public class Server
     // Getter for unique id
     public int getUniqueId() {return uniqueId.incrementAndGet();}
 
-    // Getter for array list of client handler threads
-    public ArrayList<ClientHandler> getClients() {return clientsArray;}
+    // Getter for a snapshot of the connected clients, oldest connection first
+    public ArrayList<ClientConnection> getClients() {return new ArrayList<>(clients.clients());}
+
+    // Whether the server should keep accepting clients
+    public boolean isRunning() {return keepGoing;}
+
+    // Getter for the instrumentation of the hot paths
+    public ServerMetrics getMetrics() {return metrics;}
+
+    // Set how many messages may wait for a slow client and what happens when more arrive, applies to new clients
+    public void setOutboundLimit(int capacity, OutboundQueue.OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Outbound queue capacity must be positive.");
+        }
+        outboundCapacity = capacity;
+        overflowPolicy = policy;
+    }
+
+    // Create the outbound queue of a new client
+    OutboundQueue newOutboundQueue() {return new OutboundQueue(outboundCapacity, overflowPolicy);}
+
+    // Start a thread for a client, virtual when the server runs the virtual engine
+    Thread startThread(String name, Runnable task) {
+        if (engine == Engine.VIRTUAL) {
+            return Thread.ofVirtual().name(name).start(task);
+        }
+        return Thread.ofPlatform().name(name).start(task);
+    }
+
+    // Set how many of the last messages a client receives when it joins, 0 turns the replay off
+    public void setHistoryReplay(int messages) {
+        if (messages < 0) {
+            throw new IllegalArgumentException("The number of replayed messages cannot be negative.");
+        }
+        historyReplay = messages;
+    }
+
+    // Set how many milliseconds a new connection has to complete its handshake before it is closed
+    public void setHandshakeTimeout(int millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("The handshake timeout must be positive.");
+        }
+        handshakeTimeout = millis;
+    }
+
+    // Getter for the handshake timeout in milliseconds
+    public int getHandshakeTimeout() {return handshakeTimeout;}
+
+    // Set how long a client may be quiet before it is sent a PING and before it is presumed dead, in milliseconds
+    public void setHeartbeat(long intervalMillis, long timeoutMillis) {
+        if (intervalMillis < 1 || timeoutMillis <= intervalMillis) {
+            throw new IllegalArgumentException("The heartbeat interval must be positive and shorter than the timeout.");
+        }
+        heartbeatInterval = intervalMillis;
+        heartbeatTimeout = timeoutMillis;
+    }
 
-    // Method to stop the server using ctrl + c in console
+    // Getter for the heartbeat interval in milliseconds
+    public long getHeartbeatInterval() {return heartbeatInterval;}
+
+    // Getter for the heartbeat timeout in milliseconds
+    public long getHeartbeatTimeout() {return heartbeatTimeout;}
+
+    // Getter for the timer wheel running the heartbeats
+    TimerWheel getTimers() {return timers;}
+
+    // Start watching a client that answers heartbeats, the reaper closes it once it is presumed dead
+    Heartbeat watch(ClientConnection client, Runnable reaper) {
+        Heartbeat heartbeat = new Heartbeat(this, client, reaper);
+        heartbeat.start();
+        return heartbeat;
+    }
+
+    // Set the largest file a client may send to others, in bytes
+    public void setMaxFileSize(long bytes) {files.setMaxFileSize(bytes);}
+
+    // Getter for the largest file a client may send, in bytes
+    public long getMaxFileSize() {return files.getMaxFileSize();}
+
+    // Relay a frame of a file transfer sent by the client, once admitted by admitFile(), returns false for any other frame
+    boolean relayFile(ClientConnection client, Frame frame) {return files.relay(client, frame);}
+
+    // Set how long a client whose connection was lost keeps its place in the room, in milliseconds
+    public void setSessionGrace(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("The session grace period cannot be negative.");
+        }
+        sessionGrace = millis;
+    }
+
+    // Getter for the session grace period in milliseconds
+    public long getSessionGrace() {return sessionGrace;}
+
+    // Getter for the sequence number of the last message sent to the whole room
+    public long getLastSequence() {return replay.getLast();}
+
+    // Set a rate limit of the requests clients send, connected clients are held to it from their next request
+    public void setRateLimit(RateLimiter.Kind kind, TokenBucket.Limit limit) {limiter.setLimit(kind, limit);}
+
+    // Set what happens to a request over the rate limits
+    public void setRatePolicy(RateLimiter.Policy policy) {limiter.setPolicy(policy);}
+
+    // Getter for the rate limits of the requests clients send
+    public RateLimiter getRateLimiter() {return limiter;}
+
+    // Start metering the requests of a new connection from the address
+    RateLimiter.Meter meter(String ipAddress) {return limiter.open(ipAddress);}
+
+    // Set the TLS context securing the connections accepted from now on, null to accept plain TCP again
+    public void setTls(SSLContext context) {tls = context;}
+
+    // Getter for the TLS context securing new connections, null without TLS
+    public SSLContext getTlsContext() {return tls;}
+
+    // Count a completed TLS handshake, a resumed session costs the server no signature
+    void countTlsHandshake(boolean resumed) {
+        metrics.count(resumed ? ServerMetrics.Counter.TLS_RESUMED : ServerMetrics.Counter.TLS_FULL);
+    }
+
+    // Set how soon chat history is written and forced to the disk
+    public void setHistoryDurability(HistoryWriter.Durability durability, long fsyncIntervalMillis) {
+        if (history != null) {
+            history.setDurability(durability, fsyncIntervalMillis);
+        }
+    }
+
+    // Method to stop the server using ctrl + c in console, the history still queued is written out
     public void stop()
     {
         keepGoing = false;
+        timers.stop();
+        if (history != null) {
+            history.close();
+        }
     }
 
 
     // Method to display massages in the console with timestamp
     public void display(String msg) {
-        String time = dateFormat.format(new Date()) + " " + msg;
+        String time = timestamps.now() + " " + msg;
         System.out.println(time);
     }
 
     
-    // Method to write messages to the clients
-    public synchronized boolean broadcast(String message) {
+    // Method to write server announcements to the clients
+    public boolean broadcast(String message) {
+        lock.lock();
+        try {
+            if (message.trim().isEmpty() || containsBadWord(message)) {
+                // Do nothing if message is empty or contains a bad word
+                return false;
+            }
+            display(message);
+            // Write the message to the ChatHistory.txt file
+            writeHistory(message);
+
+            // Announcements carry no sender, so they are sent without an ip address
+            String timestamp = timestamps.now();
+            // Numbered under the lock, so every client receives the room's messages in sequence order
+            fanOut(replay.append(sequence -> EncodedMessage.text("\033[34m" + timestamp + " " + message + "\033[0m", sequence)));
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Method to write a message typed by the sender to the clients, the sender is told why a message was not delivered
+    public boolean broadcast(ClientConnection sender, String message) {
         if (message.trim().isEmpty()) {
             // Do nothing if message is empty
+            sender.writeMsg(NO_SUCH_USER);
             return false;
         }
-        
-        // Add timestamp to the message
-        String timestamp = dateFormat.format(new Date());
-        // To check if message is private i.e. client to client message
-        String[] splitMessage = message.split(" ",3);
-        //
-        if(splitMessage.length < 2) {
+
+        // Check for bad word in message, the recipient of a private message is a username and only the text after
+        // it is moderated, a name like "nus" would otherwise read as a bad word once its @ is taken for an a
+        int space = message.indexOf(' ');
+        String text = message.charAt(0) != '@' ? message : space < 0 ? "" : message.substring(space + 1);
+        if (containsBadWord(text)) {
+            metrics.count(ServerMetrics.Counter.REJECTED);
+            sender.writeMsg("\033[33mWarning: Your message contains a bad word.\033[0m");
             return false;
         }
-        
-        boolean isPrivate = splitMessage[1].charAt(0) == '@';
 
-        // Check for bad word in message
-        if (containsBadWord(message)) {
-            ClientHandler currentClient = (ClientHandler)Thread.currentThread();
-            currentClient.writeMsg("\033[33mWarning: Your message contains a bad word.\033[0m");
-            return false;
+        // Add timestamp to the message
+        String timestamp = timestamps.now();
+
+        // If private message i.e. client to client message, send message to mentioned username only
+        if (message.charAt(0) == '@') {
+            // Parsed once: the recipient is the text between the @ and the first space
+            if (space < 0) {
+                metrics.count(ServerMetrics.Counter.REJECTED);
+                sender.writeMsg(NO_SUCH_USER);
+                return false;
+            }
+
+            // Look the mentioned username up in the registry
+            String name = message.substring(1, space);
+            ClientConnection recipient = clients.find(name);
+            if (recipient == null) {
+                // Mentioned user not in the room, the message waits in their mailbox until they join
+                return keepForLater(sender, name, message.substring(space + 1));
+            }
+            // Try to write to the Client if it fails remove it from the room
+            metrics.count(ServerMetrics.Counter.PRIVATE);
+            if (!recipient.send(EncodedMessage.chat(timestamp, sender, message.substring(space + 1), true))) {
+                if (sessions.isSuspended(recipient.getId())) {
+                    // Lost its connection but may still resume its session, the message waits in its mailbox
+                    keepForLater(sender, name, message.substring(space + 1));
+                }
+                else {
+                    metrics.count(ServerMetrics.Counter.DROPPED);
+                    remove(recipient.getId(), false);
+                    display("Disconnected Client " + recipient.getUsername() + " removed from list.");
+                }
+            }
+            // Username found and delivered the message
+            return true;
         }
 
-        // If private message, send message to mentioned username only
-        if(isPrivate) {
-            String toCheck = splitMessage[1].substring(1);
-            message = splitMessage[0]  + splitMessage[2];
-            boolean found = false;
-            
-            // Loop in reverse order to find the mentioned username
-            for(int y = clientsArray.size(); --y>=0;) {
-                ClientHandler currentClient = clientsArray.get(y);
-                String check = currentClient.getUsername();
-                String clientInfo = "(" + currentClient.getIpAddress() + ")";
-                String[] splitMessageOnly = message.split(":");
-                String messageLf = "\033[31m" + timestamp + " *** private *** " + splitMessageOnly[0].replace(":","") + clientInfo + ": " + splitMessageOnly[1] + "\033[0m";
-                
-                if(check.equals(toCheck)) {
-                    // Try to write to the Client if it fails remove it from the list
-                    if(!currentClient.writeMsg(messageLf)) {
-                        clientsArray.remove(y);
-                        display("Disconnected Client " + currentClient.getUsername() + " removed from list.");
-                    }
-                    // Username found and delivered the message
-                    found = true;
-                    break;
+        lock.lock();
+        try {
+            // If message is a broadcast message
+            String line = sender.getUsername() + ": " + message;
+            display(line);
+            // Write the message to the ChatHistory.txt file
+            writeHistory(line);
+            // Encode the message once with its sequence number, every client receives the same bytes
+            fanOut(replay.append(sequence -> EncodedMessage.chat(timestamp, sender, message, sequence)));
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Method to keep a private message for a user who is not in the room, returns false and tells the sender
+    // if it could not be kept
+    private boolean keepForLater(ClientConnection sender, String recipient, String message) {
+        String name = ClientRegistry.baseName(recipient);
+        try {
+            if (mailbox == null || !mailbox.deposit(name, System.currentTimeMillis(), sender.getUsername(), message)) {
+                metrics.count(ServerMetrics.Counter.REJECTED);
+                if (mailbox == null) {
+                    sender.writeMsg(NO_SUCH_USER);
+                }
+                else if (!mailbox.hasRoomFrom(sender.getUsername(), message)) {
+                    sender.writeMsg("\033[33m*** You have too much mail waiting for users who are not in the room. ***\033[0m");
+                }
+                else {
+                    sender.writeMsg("\033[33m*** The mailbox of " + name + " is full. ***\033[0m");
                 }
+                return false;
             }
-            // Mentioned user not found, return false
-            return found;
         }
+        catch (IOException e) {
+            display("Error keeping a message for " + name + ": " + e.getMessage());
+            metrics.count(ServerMetrics.Counter.REJECTED);
+            sender.writeMsg(NO_SUCH_USER);
+            return false;
+        }
+        metrics.count(ServerMetrics.Counter.MAILED);
+        sender.writeMsg("*** " + name + " is not in the chat room, the message is delivered when they join. ***");
+        ClientConnection joined = clients.find(name);
+        if (joined != null) {
+            // Joined while the message was being kept, after its mailbox was drained
+            deliverMail(joined);
+        }
+        return true;
+    }
+
 
-        // If message is a broadcast message
+    // Method to send a client the private messages kept for it while it was away, in a single message
+    private void deliverMail(ClientConnection client) {
+        if (mailbox == null || !mailbox.hasMail(ClientRegistry.baseName(client.getUsername()))) {
+            return;
+        }
+        if (engine == Engine.NIO) {
+            // The mailbox is read and deleted under its stripe lock, which an event loop must never wait for
+            Thread.ofVirtual().name("mail-delivery").start(() -> drainMailbox(client));
+        }
         else {
-            display(message);
-            // Write the message to the ChatHistory.txt file
-            writeHistory(message);
-            
-            for(int i = clientsArray.size(); --i >= 0;) {
-                ClientHandler currentClient = clientsArray.get(i);
-                String clientInfo = "(" + currentClient.getIpAddress() + ")";
-                String[] splitMessageOnly = message.split(" ",2);
-                String messageLf = "\033[34m" + timestamp + " " + splitMessageOnly[0].replace(":", "") + clientInfo + ": " + splitMessageOnly[1] + "\033[0m";
-                // Check if message contains "has joined the chat" or " has left the chat" and don't broadcast the ip address
-                
-                if (message.contains("has joined the chat") || message.contains("has left the chat")) {
-                    messageLf = "\033[34m" + timestamp + " " + splitMessageOnly[0] + " " + splitMessageOnly[1] + "\033[0m";
+            drainMailbox(client);
+        }
+    }
+
+
+    // Method to read the mailbox of a client and send it the letters, on the calling thread
+    private void drainMailbox(ClientConnection client) {
+        String name = ClientRegistry.baseName(client.getUsername());
+        try {
+            // The whole mailbox goes out as one message, which compresses well for clients that negotiated it
+            int delivered = mailbox.drain(name, letters -> {
+                StringBuilder batch = new StringBuilder("\033[31m*** ").append(letters.size())
+                        .append(" private messages arrived while you were away ***\033[0m");
+                for (Mailbox.Letter letter : letters) {
+                    batch.append("\n\033[31m").append(HISTORY_TIME.format(Instant.ofEpochMilli(letter.timestamp())))
+                            .append(" *** private *** ").append(letter.sender()).append(": ").append(letter.message()).append("\033[0m");
+                }
+                return client.writeMsg(batch.toString());
+            });
+            if (delivered > 0) {
+                display(delivered + " private messages delivered to " + name + " from the mailbox");
+            }
+        }
+        catch (IOException e) {
+            display("Error reading the mailbox of " + name + ": " + e.getMessage());
+        }
+    }
+
+
+    // Method to send an encoded message to every client, removing the ones that can no longer be reached
+    private void fanOut(EncodedMessage encoded) {
+        long start = System.nanoTime();
+        int delivered = 0;
+        for (ClientConnection currentClient : clients.clients()) {
+            if (currentClient.send(encoded)) {
+                delivered++;
+            }
+            else if (sessions.isSuspended(currentClient.getId())) {
+                // Lost its connection but may still resume its session, the message waits in the replay buffer
+                metrics.count(ServerMetrics.Counter.DROPPED);
+            }
+            else {
+                metrics.count(ServerMetrics.Counter.DROPPED);
+                remove(currentClient.getId(), false);
+                display("Disconnected Client " + currentClient.getUsername() + " removed from list.");
+            }
+        }
+        metrics.count(ServerMetrics.Counter.BROADCASTS);
+        metrics.count(ServerMetrics.Counter.DELIVERED, delivered);
+        metrics.record(ServerMetrics.Stage.FAN_OUT, start);
+    }
+
+
+    // Method to check a request against the rate limits of its client before any work is done for it. Returns 0 when
+    // it may be handled, a negative number when it was dropped or its client cut off, and otherwise how many
+    // nanoseconds to hold it back before asking again.
+    long admit(ClientConnection client, RateLimiter.Meter meter, MessageUtils request) {
+        if (request.getType() == MessageUtils.PONG || request.getType() == MessageUtils.LOGOUT) {
+            // Answers to heartbeats and leaving the room are never held back
+            return 0;
+        }
+        return enforce(client, meter, limiter.admit(meter, request));
+    }
+
+
+    // Method to check a frame of a file transfer against the rate limits of its client before it is relayed, returns
+    // like admit(). A frame that is dropped cuts its transfer short, the recipients would otherwise miss its bytes.
+    long admitFile(ClientConnection client, RateLimiter.Meter meter, Frame frame) {
+        long wait = enforce(client, meter, limiter.admitFile(meter, frame));
+        if (wait < 0) {
+            files.cutShort(client, frame);
+        }
+        return wait;
+    }
+
+
+    // Apply the rate limiting policy to a request or frame that has to wait the given nanoseconds, 0 when it was admitted
+    private long enforce(ClientConnection client, RateLimiter.Meter meter, long wait) {
+        if (wait == 0) {
+            return 0;
+        }
+        metrics.count(ServerMetrics.Counter.THROTTLED);
+        switch (limiter.getPolicy()) {
+            case DELAY -> {
+                return wait;
+            }
+            case DROP -> {
+                if (meter.warn()) {
+                    client.writeMsg("\033[33mWarning: You are sending too fast, your messages are dropped.\033[0m");
+                }
+            }
+            case DISCONNECT -> {
+                display("Disconnecting " + client.getUsername() + " from " + client.getIpAddress() + " for flooding");
+                client.writeMsg("\033[33m*** You have been disconnected for sending too fast. ***\033[0m");
+                if (client.isBinaryProtocol()) {
+                    // A client that reconnects on its own must not come back and flood again
+                    client.send(LOGOUT);
+                }
+                remove(client.getId(), true);
+                client.close();
+            }
+        }
+        return -1;
+    }
+
+
+    // Method to handle a request received from a client, returns false when the client logs out
+    public boolean handleMessage(ClientConnection client, MessageUtils chatMessage) {
+        // Extract the message and its type from the message object, a legacy client can send a message without text
+        String message = chatMessage.getMessage() == null ? "" : chatMessage.getMessage();
+        metrics.count(ServerMetrics.Counter.REQUESTS);
+        switch (chatMessage.getType()) {
+            case MessageUtils.MESSAGE -> {
+                // If the message type is a regular message, broadcast it to all clients in the chat room,
+                // the client is notified if it contains a banned word or names a user that does not exist
+                broadcast(client, message);
+            }
+            case MessageUtils.LOGOUT -> {
+                return false;
+            }
+            case MessageUtils.KICK -> {
+                // if the message type is a kick message, check if the client is authorized to kick users
+                if (!clients.isCoordinator(client)) {
+                    // if the client is not an admin, notify them and break out of the switch statement
+                    client.writeMsg("*** " + "You are not authorized to kick users." + " *** ");
+                    break;
+                }
+
+                // Extract the username to kick from the message
+                if (!kickUser(message)) {
+                    // If there is no client with that username, notify the admin
+                    client.writeMsg(NO_SUCH_USER);
                 }
-                if (message.contains("has been kicked by")) {
-                    messageLf = "\033[34m" + timestamp + " " + splitMessageOnly[0] + " " + splitMessageOnly[1] + "\033[0m";
+            }
+            case MessageUtils.USERS -> {
+                // If the message type is a users message, list the connected clients and their join times from the
+                // roster snapshot, optionally only the names starting with a prefix and only one page, e.g. "al 2"
+                Roster roster = clients.roster();
+                String prefix = "";
+                int page = 0;
+                for (String token : message == null || message.isBlank() ? new String[0] : message.trim().split("\\s+")) {
+                    if (token.matches("\\d{1,6}")) {
+                        page = Math.max(1, Integer.parseInt(token));
+                    }
+                    else if (!token.isEmpty()) {
+                        prefix = token;
+                    }
+                }
+                if (clients.isCoordinator(client)) {
+                    // The coordinator also sees the outbound queue metrics of every client, which are never cached
+                    String listing = roster.render(timestamps.now(), prefix, page, true);
+                    if (history != null) {
+                        // Pending lines grow when the disk falls behind the chat
+                        listing += "\nHistory: " + history.describe() + "\n";
+                    }
+                    if (mailbox != null) {
+                        listing += "Mailbox: " + mailbox.describe() + "\n";
+                    }
+                    client.writeMsg(listing);
+                }
+                else if (prefix.isEmpty() && page == 0) {
+                    // The full listing is encoded once and shared by everyone asking within the same second
+                    client.send(roster.listing(timestamps.now()));
+                }
+                else {
+                    client.writeMsg(roster.render(timestamps.now(), prefix, page, false));
+                }
+            }
+            case MessageUtils.SUBSCRIBE -> {
+                // Presence updates are frames, clients speaking Java serialization could not read them
+                if (!client.isBinaryProtocol()) {
+                    client.writeMsg("*** " + "Presence updates need a client speaking the binary protocol." + " *** ");
+                }
+                else if ("off".equalsIgnoreCase(message)) {
+                    presence.unsubscribe(client);
+                }
+                else {
+                    // Subscribing again is how a client that missed an update gets a fresh roster
+                    presence.subscribe(client);
+                }
+            }
+            case MessageUtils.PING -> {
+                // The client checks that the server is alive
+                client.send(PONG);
+            }
+            case MessageUtils.PONG -> {
+                // Answer to a heartbeat, the connection already recorded that the client is alive
+            }
+            case MessageUtils.STATS -> {
+                // Only the coordinator may read the server's metrics
+                if (!clients.isCoordinator(client)) {
+                    client.writeMsg("*** " + "You are not authorized to read the server statistics." + " *** ");
+                    break;
+                }
+                client.writeMsg("Server statistics at " + timestamps.now() + ", " + clients.size() + " clients");
+                for (String line : metrics.describe()) {
+                    client.writeMsg(line);
+                }
+            }
+            case MessageUtils.LIMIT -> {
+                // Only the coordinator may see or change the rate limits, e.g. "messages 10 20" or "policy drop"
+                if (!clients.isCoordinator(client)) {
+                    client.writeMsg("*** " + "You are not authorized to change the rate limits." + " *** ");
+                    break;
                 }
-                if(!currentClient.writeMsg(messageLf)) {
-                    clientsArray.remove(i);
-                    display("Disconnected Client " + currentClient.getUsername() + " removed from list.");
+                if (message != null && !message.isBlank()) {
+                    try {
+                        limiter.configure(message);
+                        display(client.getUsername() + " changed the rate limits: " + message.trim());
+                    }
+                    catch (IllegalArgumentException e) {
+                        client.writeMsg("*** " + e.getMessage() + " *** ");
+                        break;
+                    }
                 }
+                client.writeMsg(limiter.describe());
             }
         }
         return true;
     }
 
-    
-    // Method to check if message contains a bad word
-    public boolean containsBadWord(String message) {
-        String[] words = message.split("\\s+");
-        for (String word : words) {
-            if (badWords.contains(word.toLowerCase())) {
-                return true;
+
+    // Kick a user with the given username
+    public boolean kickUser(String username) {
+        // Look the client up in the registry
+        ClientConnection client = clients.find(username);
+        if (client == null) {
+            // If the client is not found, return false
+            return false;
+        }
+        // If the client is found, notify them that they have been kicked and remove them from the server
+        client.writeMsg("\033[33m*** You have been kicked by the admin. ***\033[0m");
+        if (client.isBinaryProtocol()) {
+            // A client that reconnects on its own must not come back
+            client.send(LOGOUT);
+        }
+        remove(client.getId(), false);
+        client.close();
+        broadcast("*** " + username + " has been kicked by the admin." + " *** ");
+        return true;
+    }
+
+
+    // Method to reserve a username for a joining client, returns false if it is already taken
+    public boolean reserveUsername(String username, ClientConnection client) {
+        return clients.reserve(username, client);
+    }
+
+
+    // Method to release the username of a client that left, a name reserved by another client is kept,
+    // and so is the name of a client whose session is suspended
+    public void releaseUsername(ClientConnection client) {
+        if (!sessions.isSuspended(client.getId())) {
+            clients.release(client);
+        }
+    }
+
+
+    // Method to let a client whose username is reserved into the chat room
+    public void join(ClientConnection client) {
+        // The recent history is queued before the client receives any live message
+        enter(client, readReplay(client));
+    }
+
+
+    // Method to add a client to the chat room once the replay of the history was read for it, null if there is none.
+    // The NIO engine reads the replay off its event loop and calls this back on the loop.
+    void enter(ClientConnection client, String recent) {
+        if (recent != null) {
+            client.writeMsg(recent);
+        }
+        lock.lock();
+        try {
+            // Notify all clients that the client has joined and add it to the room
+            broadcast("*** " + client.getUsername() + " has joined the chat room." + " *** ");
+            if (client.isResumable()) {
+                // Under the lock, so the client receives every room message numbered after the one in its session frame
+                client.send(EncodedMessage.of(new Frame(MessageUtils.SESSION, sessions.open(client))
+                        .putField(Frame.FIELD_SEQUENCE, replay.getLast())));
             }
+            addClient(client);
+        }
+        finally {
+            lock.unlock();
         }
-        return false;
+        // Read from the disk outside the lock, the client is in the room so mail sent from now on is delivered live
+        deliverMail(client);
     }
 
-    
-    // Method to write messages to the ChatHistory.txt file
-    private synchronized void writeHistory(String message) {
+
+    // Method to let a client that presents the token of its session take it over, with its username and
+    // coordinator role, and send it the room messages it missed. Returns false if there is no such session.
+    boolean resume(ClientConnection client, Frame hello) {
+        String token = hello.getString(Frame.FIELD_SESSION);
+        if (token == null || !client.isResumable()) {
+            return false;
+        }
+        // Read before anything is taken over, the codec already checked the field is a well-formed number
+        long seen = hello.getLong(Frame.FIELD_SEQUENCE, 0);
+        ClientConnection previous;
+        lock.lock();
         try {
-            historyFileWriter.write(message + "\n");
-            historyFileWriter.flush();
-        } 
-        catch(IOException e) {
-            display("Error writing to historyFileWriter file: " + e.getMessage());
-            e.printStackTrace();
+            previous = sessions.resume(token, client);
+            if (previous == null) {
+                return false;
+            }
+            if (!presence.replace(previous, client)) {
+                // The session outlived its place in the room
+                sessions.close(client.getId());
+                return false;
+            }
+            client.send(EncodedMessage.of(new Frame(MessageUtils.SESSION, Frame.FLAG_RESUMED, token)
+                    .putField(Frame.FIELD_SEQUENCE, replay.getLast())));
+            // Under the lock, so no room message is broadcast between the gap and the live messages
+            List<EncodedMessage> missed = new ArrayList<>();
+            long lost = replay.since(seen, missed);
+            if (lost > 0) {
+                client.writeMsg("\033[33m*** " + lost + " messages were sent while you were away and can no longer be replayed. ***\033[0m");
+            }
+            for (EncodedMessage message : missed) {
+                client.send(message);
+            }
+            display(client.getUsername() + " resumed its session, " + missed.size() + " messages replayed");
+        }
+        finally {
+            lock.unlock();
+        }
+        // The previous connection may still be open if the client noticed the loss before the server did
+        previous.close();
+        // Private messages sent while it was away were kept in its mailbox
+        deliverMail(client);
+        return true;
+    }
+
+
+    // Layer TLS over an accepted socket, the handshake runs on the handler's thread with its first read, under the
+    // handshake timeout like the rest of the handshake
+    private Socket secure(SSLContext context, Socket socket) throws IOException {
+        // The handshake flights are small writes, held back by Nagle's algorithm they would wait for delayed acks
+        socket.setTcpNoDelay(true);
+        SSLSocket secured = (SSLSocket) context.getSocketFactory().createSocket(socket, null, socket.getPort(), true);
+        secured.setUseClientMode(false);
+        long started = System.currentTimeMillis();
+        secured.addHandshakeCompletedListener(event -> countTlsHandshake(Tls.isResumed(event.getSession(), started)));
+        return secured;
+    }
+
+
+    // Method to keep the place of a client whose connection was lost, returns false if it cannot resume its session
+    boolean suspend(ClientConnection client) {
+        // The timeout only hands the removal over, announcing the departure to the room would hold up the wheel
+        if (!sessions.suspend(client, sessionGrace, timers, () -> client.execute(() -> expire(client)))) {
+            return false;
+        }
+        display(client.getUsername() + " lost its connection, its session is kept for " + sessionGrace + " ms");
+        return true;
+    }
+
+
+    // Method to remove a client whose session was not resumed in time, runs on the connection's loop or a thread of its own
+    private void expire(ClientConnection client) {
+        lock.lock();
+        try {
+            // Checked under the lock, which a resume holds while it takes the session over
+            if (sessions.isSuspended(client.getId())) {
+                display("The session of " + client.getUsername() + " expired");
+                remove(client.getId(), true);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Method to read the last messages of the history for a joining client on a virtual thread and hand the replay
+    // to the continuation, at once when there is nothing to read
+    void readReplayLater(ClientConnection client, Consumer<String> continuation) {
+        if (history == null || historyReplay == 0) {
+            continuation.accept(null);
+            return;
+        }
+        Thread.ofVirtual().name("history-replay").start(() -> continuation.accept(readReplay(client)));
+    }
+
+
+    // Method to read the last messages of the history for a joining client into a single message, null if there
+    // are none. Reads the mapped segments on the calling thread, which holds no lock, so broadcasts never wait for it.
+    private String readReplay(ClientConnection client) {
+        int messages = historyReplay;
+        if (history == null || messages == 0) {
+            return null;
+        }
+        try {
+            List<HistoryLog.Entry> entries = history.getHistory().readLast(messages);
+            if (entries.isEmpty()) {
+                return null;
+            }
+            // Sent as a single message, which compresses well for clients that negotiated it
+            StringBuilder replay = new StringBuilder("\033[90m*** Last ").append(entries.size()).append(" messages ***\033[0m");
+            for (HistoryLog.Entry entry : entries) {
+                replay.append("\n\033[90m").append(HISTORY_TIME.format(Instant.ofEpochMilli(entry.timestamp())))
+                        .append(' ').append(entry.line()).append("\033[0m");
+            }
+            return replay.toString();
+        }
+        catch (IOException e) {
+            display("Error reading history for " + client.getUsername() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+
+    // Method to add a client that completed its handshake to the chat room
+    public void addClient(ClientConnection client) {
+        ClientConnection elected = presence.join(client);
+        if (elected != null) {
+            // Add (admin) tag to the client that became coordinator, normally the first client
+            addAdminToUsername(elected);
+        }
+    }
+
+
+    // Method to check if message contains a bad word, a single pass over the message
+    public boolean containsBadWord(String message) {
+        long start = System.nanoTime();
+        boolean matches = badWords.matches(message);
+        metrics.record(ServerMetrics.Stage.MODERATION, start);
+        return matches;
+    }
+
+    
+    // Method to queue messages for the ChatHistory.txt file, the history writer writes them in batches
+    private void writeHistory(String message) {
+        if (history != null) {
+            history.append(message);
         }
     }
 
     
-    // Method to add the string "admin " to the username of the first client in arraylist
-    private void addAdminToUsername() {
-        // Get the first client in arraylist
-        ClientHandler first_client = clientsArray.get(0);
+    // Method to add the string "(admin)" to the username of the client that became coordinator
+    private void addAdminToUsername(ClientConnection first_client) {
         String username = first_client.getUsername();
-        String new_username = "(admin)" + username;
-        first_client.setUsername(new_username);
+        String new_username = ClientRegistry.ADMIN_TAG + username;
+        presence.rename(first_client, new_username, Frame.PRESENCE_COORDINATOR);
         display("*** " + "The coordinator is " + new_username + " *** ");
         // tell the admin that he is the admin
         first_client.writeMsg("*** " + "You are the coordinator" + " *** ");
     }
 
 
-    // Method to remove a client from clientsArray by its ID
-    public synchronized void remove(long id, boolean broadcastMsg) {
-        String disconnectedClient = "";
-        
-        // Scan the array list until we find the ID
-        for(int i = 0; i < clientsArray.size(); ++i) {
-            ClientHandler currentClient = clientsArray.get(i);
-            // If found remove it
-            if(currentClient.getId() == id) {
-                disconnectedClient = currentClient.getUsername();
-                clientsArray.remove(i);
-                // Check if the disconnected client has "(admin)" in its username set the next client as admin
-                if (disconnectedClient.contains("(admin)")) {
-                    if (clientsArray.size() > 0) {
-                        addAdminToUsername();
-                    }
-                }
-                break;
-            }
+    // Method to remove a client from the chat room by its ID
+    public void remove(long id, boolean broadcastMsg) {
+        // A client that leaves for good can no longer resume its session
+        boolean suspended = sessions.close(id);
+        // Recipients of the files the client was still sending learn that they were cut short
+        files.abandon(id);
+        ClientConnection disconnectedClient = presence.leave(id);
+        if (disconnectedClient == null) {
+            // Already removed, e.g. kicked before its connection closed
+            return;
         }
-        
-        if (!disconnectedClient.isEmpty() && broadcastMsg) {
-            broadcast("*** " + disconnectedClient + " has left the chat room." + " *** ");
+        if (suspended) {
+            // Its connection kept the username for the session and is gone, so it is released here
+            clients.release(disconnectedClient);
+        }
+
+        // If the disconnected client was the coordinator, set the longest connected client as admin
+        ClientConnection newCoordinator = clients.handOff(disconnectedClient);
+        if (newCoordinator != null) {
+            addAdminToUsername(newCoordinator);
+        }
+
+        if (broadcastMsg) {
+            broadcast("*** " + disconnectedClient.getUsername() + " has left the chat room." + " *** ");
             // if the client left was admin print the new admin
-            if (disconnectedClient.contains("(admin)") && clientsArray.size() > 0) {
-                broadcast(" *** " + "New coordinator is " + clientsArray.get(0).getUsername() + " *** ");
+            if (newCoordinator != null) {
+                broadcast(" *** " + "New coordinator is " + newCoordinator.getUsername() + " *** ");
             }
         }
     }
@@ -279,11 +934,13 @@ public class Server
     
     // Driver class
     public static void main(String[] args) {
-        // Default port number we are going to use
+        // Default port number and engine we are going to use
         int portNumber = 1500;
+        Engine engine = Engine.THREADED;
 
         // Switch statement to handle arguments passed to the program
         switch (args.length) {
+            case 2:
             case 1:
                 try {
                     // Attempt to parse the argument as an integer and set it as the port number
@@ -293,31 +950,150 @@ public class Server
                     if (portNumber < 1024 || portNumber > 65535) {
                         // If the port number is not within the valid range, print an error message and usage instructions, and exit the program
                         System.out.println("Invalid port number. Port number should be between 1024 and 65535.");
-                        System.out.println("Usage is:>java Server [portNumber]");
+                        System.out.println(USAGE);
                         return;
                     }
                 } 
                 catch (NumberFormatException e) {
                     // If the argument cannot be parsed as an integer, print an error message and usage instructions, and exit the program
                     System.out.println("Invalid port number. Port number should be a number.");
-                    System.out.println("Usage is:>java Server [portNumber]");
+                    System.out.println(USAGE);
                     return;
                 }
                 break;
 
-            // If no arguments are passed to the program, use the default port number of 1500
+            // If no arguments are passed to the program, use the default port number of 1500 and the threaded engine
             case 0:
                 break;
             default:
-                System.out.println("Usage is:>java Server [portNumber]");
+                System.out.println(USAGE);
+                return;
+        }
+        if (args.length == 2) {
+            try {
+                // Attempt to parse the second argument as the engine serving the clients
+                engine = Engine.valueOf(args[1].toUpperCase());
+            }
+            catch (IllegalArgumentException e) {
+                System.out.println("Invalid engine. Engine should be threaded, virtual or nio.");
+                System.out.println(USAGE);
                 return;
+            }
         }
 
-        // Create a new Server object with the specified or default port number
-        Server server = new Server(portNumber);
+        // Create a new Server object with the specified or default port number and engine
+        Server server = new Server(portNumber, engine);
+
+        // Optional limits for slow clients, e.g. -Doutbound.capacity=256 -Doutbound.policy=disconnect
+        try {
+            server.setOutboundLimit(Integer.getInteger("outbound.capacity", 1024),
+                    OutboundQueue.OverflowPolicy.valueOf(System.getProperty("outbound.policy", "drop_oldest").toUpperCase()));
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println("Invalid outbound limit. Capacity should be positive and policy one of drop_oldest, disconnect or coalesce.");
+            return;
+        }
+
+        // Optional durability of the chat history, e.g. -Dhistory.durability=fsync -Dhistory.fsyncInterval=1000,
+        // where it is kept and when its segments roll are read when the server is created, e.g. -Dhistory.dir=/var/chat
+        try {
+            server.setHistoryDurability(
+                    HistoryWriter.Durability.valueOf(System.getProperty("history.durability", "flush").toUpperCase()),
+                    Long.getLong("history.fsyncInterval", 1000));
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println("Invalid history durability. Durability should be one of none, flush or fsync and the interval not negative.");
+            return;
+        }
+
+        // Optional number of messages replayed to joining clients, e.g. -Dhistory.replay=50
+        try {
+            server.setHistoryReplay(Integer.getInteger("history.replay", 20));
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println("Invalid history replay. The number of messages cannot be negative.");
+            return;
+        }
+
+        // Optional time new connections have to announce their username, e.g. -Dhandshake.timeout=5000
+        try {
+            server.setHandshakeTimeout(Integer.getInteger("handshake.timeout", 10_000));
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println("Invalid handshake timeout. The timeout should be a positive number of milliseconds.");
+            return;
+        }
+
+        // Optional heartbeat timing, e.g. -Dheartbeat.interval=5000 -Dheartbeat.timeout=15000
+        try {
+            server.setHeartbeat(Long.getLong("heartbeat.interval", 5_000), Long.getLong("heartbeat.timeout", 15_000));
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println("Invalid heartbeat. The interval should be positive and shorter than the timeout.");
+            return;
+        }
+
+        // Optional limit of the files clients send, e.g. -Dfile.maxSize=67108864, where they are spooled
+        // while being relayed is read when the server is created, e.g. -Dfile.spool=/var/chat/spool
+        try {
+            server.setMaxFileSize(Long.getLong("file.maxSize", 64L << 20));
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println("Invalid file size limit. The limit should be a positive number of bytes.");
+            return;
+        }
+
+        // Optional time a client whose connection was lost keeps its place in the room, e.g. -Dsession.grace=30000,
+        // how many room messages are kept to replay to resuming clients is read when the server is created, e.g. -Dreplay.capacity=1024
+        try {
+            server.setSessionGrace(Long.getLong("session.grace", 30_000));
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println("Invalid session grace period. The period cannot be a negative number of milliseconds.");
+            return;
+        }
+
+        // Optional flood protection, per connection and per IP address, in requests and bytes per second with their
+        // bursts, e.g. -Dlimit.messages=10 -Dlimit.messages.burst=20 -Dlimit.policy=drop, a rate of 0 turns a limit off
+        try {
+            server.setRateLimit(RateLimiter.Kind.MESSAGES, rateLimit("limit.messages", 10, 20));
+            server.setRateLimit(RateLimiter.Kind.BYTES, rateLimit("limit.bytes", 16_384, 65_536));
+            server.setRateLimit(RateLimiter.Kind.IP_MESSAGES, rateLimit("limit.ip.messages", 50, 100));
+            server.setRateLimit(RateLimiter.Kind.IP_BYTES, rateLimit("limit.ip.bytes", 65_536, 262_144));
+            server.setRatePolicy(RateLimiter.Policy.valueOf(System.getProperty("limit.policy", "delay").toUpperCase()));
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println("Invalid rate limit. Rates and bursts cannot be negative and the policy should be one of delay, drop or disconnect.");
+            return;
+        }
+
+        // Optional TLS, e.g. -Dtls.keystore=server.p12 -Dtls.password=secret, with the number of sessions kept for
+        // resumption and for how many seconds, e.g. -Dtls.sessionCache=20000 -Dtls.sessionTimeout=86400
+        String keyStore = System.getProperty("tls.keystore");
+        if (keyStore != null) {
+            try {
+                server.setTls(Tls.serverContext(Path.of(keyStore), System.getProperty("tls.password", "").toCharArray(),
+                        Integer.getInteger("tls.sessionCache", Tls.DEFAULT_SESSION_CACHE),
+                        Integer.getInteger("tls.sessionTimeout", Tls.DEFAULT_SESSION_TIMEOUT)));
+            }
+            catch (IOException | IllegalArgumentException e) {
+                System.out.println("Invalid TLS settings. " + e.getMessage());
+                return;
+            }
+        }
+
+        // Write the queued history when the server is stopped with ctrl + c
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
 
         // Start the server
         server.start();
     }
 
+
+    // Read a rate limit from the system properties, its burst from the same name ending in ".burst"
+    private static TokenBucket.Limit rateLimit(String property, double perSecond, long burst) {
+        double rate = Double.parseDouble(System.getProperty(property, Double.toString(perSecond)));
+        return rate == 0 ? TokenBucket.Limit.UNLIMITED : new TokenBucket.Limit(rate, Long.getLong(property + ".burst", burst));
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,124 @@
+package server;
+
+import shared.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Instrumentation of the server's hot paths: a latency histogram for every stage a message goes through and
+ * counters for the message rates. Recording is lock-free and costs two System.nanoTime() calls per stage,
+ * so it stays on under load. The coordinator reads a snapshot with the STATS request.
+ */
+public class ServerMetrics {
+
+    // Stages whose time is measured
+    public enum Stage {
+        HANDSHAKE,      // From accepting the connection until the client joined the chat room
+        MODERATION,     // Checking a message for bad words
+        FAN_OUT,        // Queueing a broadcast for every client in the chat room
+        WRITE,          // A single write of queued messages to a client's socket
+        HISTORY         // A batch of lines written to the history log
+    }
+
+    // Events that are counted
+    public enum Counter {
+        REQUESTS,       // Requests received from clients
+        BROADCASTS,     // Messages sent to the whole chat room
+        PRIVATE,        // Private messages delivered
+        REJECTED,       // Messages refused for a bad word or an unknown recipient
+        DELIVERED,      // Messages queued for a recipient
+        DROPPED,        // Messages a recipient could no longer take
+        TIMEOUTS,       // Connections closed for not completing the handshake in time
+        REAPED,         // Connections closed because the client stopped answering heartbeats
+        FILES,          // File transfers relayed to at least one recipient
+        THROTTLED,      // Requests over a rate limit, held back, dropped or ending their client's connection
+        MAILED,         // Private messages kept in the mailbox of a user who was not in the room
+        TLS_FULL,       // TLS handshakes that negotiated a new session
+        TLS_RESUMED     // TLS handshakes that resumed an earlier session
+    }
+
+    private final Map<Stage, LatencyHistogram> stages = new EnumMap<>(Stage.class);   // Time taken per stage
+    private final Map<Counter, LongAdder> counters = new EnumMap<>(Counter.class);    // Events per counter
+    private final long started = System.nanoTime();     // When the server started counting
+    private final ReentrantLock snapshotLock = new ReentrantLock();  // Keeps the previous snapshot consistent
+    private final long[] previous = new long[Counter.values().length];  // Counter values at the previous snapshot
+    private long previousAt = started;                  // When the previous snapshot was taken
+
+
+    // Constructor that creates a histogram and a counter for every stage and event
+    public ServerMetrics() {
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new LatencyHistogram());
+        }
+        for (Counter counter : Counter.values()) {
+            counters.put(counter, new LongAdder());
+        }
+    }
+
+
+    // Record the time a stage took, given the System.nanoTime() it started at
+    public void record(Stage stage, long startNanos) {
+        stages.get(stage).record(System.nanoTime() - startNanos);
+    }
+
+
+    // Count one event
+    public void count(Counter counter) {
+        counters.get(counter).increment();
+    }
+
+
+    // Count several events at once
+    public void count(Counter counter, long events) {
+        counters.get(counter).add(events);
+    }
+
+
+    // Getter for the histogram of a stage
+    public LatencyHistogram get(Stage stage) {
+        return stages.get(stage);
+    }
+
+
+    // Getter for the value of a counter
+    public long get(Counter counter) {
+        return counters.get(counter).sum();
+    }
+
+
+    // Snapshot of the metrics, one line per stage and counter, rates are given since start and since the previous snapshot
+    public List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        for (Stage stage : Stage.values()) {
+            lines.add(String.format("%-10s %s", name(stage), stages.get(stage).describe()));
+        }
+        snapshotLock.lock();
+        try {
+            long now = System.nanoTime();
+            double uptime = Math.max(1, now - started) / 1e9;
+            double interval = Math.max(1, now - previousAt) / 1e9;
+            for (Counter counter : Counter.values()) {
+                long value = get(counter);
+                lines.add(String.format("%-10s %d total, %.1f/s overall, %.1f/s over the last %.1f s", name(counter),
+                        value, value / uptime, (value - previous[counter.ordinal()]) / interval, interval));
+                previous[counter.ordinal()] = value;
+            }
+            previousAt = now;
+        }
+        finally {
+            snapshotLock.unlock();
+        }
+        return lines;
+    }
+
+
+    // Lower case name of a stage or counter for display
+    private static String name(Enum<?> value) {
+        return value.name().toLowerCase().replace('_', '-');
+    }
+}
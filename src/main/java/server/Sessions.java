@@ -0,0 +1,162 @@
+package server;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Sessions of the clients that can resume them, by token and by the connection that holds them.
+ * A client is handed a random token when it joins. When its connection is lost the session is suspended rather
+ * than closed: the client stays in the room under its username for a grace period, and a new connection that
+ * presents the token takes the session over. A session that is not resumed in time expires and the client leaves.
+ */
+final class Sessions {
+
+    // A session and the connection holding it
+    private static final class Session {
+        private final String token;                 // Secret the client presents to resume the session
+        private ClientConnection connection;        // The connection holding the session
+        private TimerWheel.Timeout expiry;          // When the suspended session expires, null while connected
+        private long suspensions;                   // Times the session was suspended, tells a stale expiry apart
+
+        // Constructor that receives the token and the connection that joined with it
+        private Session(String token, ClientConnection connection) {
+            this.token = token;
+            this.connection = connection;
+        }
+    }
+
+    private final SecureRandom random = new SecureRandom();  // Source of the tokens
+    private final ReentrantLock lock = new ReentrantLock();  // Guards both indexes and the sessions
+    private final Map<String, Session> byToken = new HashMap<>();       // Open sessions by their token
+    private final Map<Long, Session> byConnection = new HashMap<>();    // Open sessions by the id of their connection
+
+
+    // Open a session for a client that joined, returns its token
+    String open(ClientConnection client) {
+        byte[] secret = new byte[16];
+        random.nextBytes(secret);
+        Session session = new Session(HexFormat.of().formatHex(secret), client);
+        lock.lock();
+        try {
+            byToken.put(session.token, session);
+            byConnection.put(client.getId(), session);
+        }
+        finally {
+            lock.unlock();
+        }
+        return session.token;
+    }
+
+
+    // Keep the session of a client whose connection was lost until the grace period is over, then run expired
+    // unless it was resumed meanwhile. Returns false if the client has no session, true if it is suspended.
+    boolean suspend(ClientConnection client, long graceMillis, TimerWheel timers, Runnable expired) {
+        lock.lock();
+        try {
+            Session session = byConnection.get(client.getId());
+            if (session == null || session.connection != client) {
+                return false;
+            }
+            if (session.expiry != null) {
+                // Both the reading and the writing side may notice the lost connection
+                return true;
+            }
+            long suspension = ++session.suspensions;
+            session.expiry = timers.schedule(graceMillis, () -> {
+                if (isPending(session, suspension)) {
+                    expired.run();
+                }
+            });
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Whether the suspension whose grace period is over still stands, it may have been resumed or closed meanwhile
+    private boolean isPending(Session session, long suspension) {
+        lock.lock();
+        try {
+            return session.expiry != null && session.suspensions == suspension && byToken.get(session.token) == session;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Whether the connection holds a suspended session
+    boolean isSuspended(long id) {
+        lock.lock();
+        try {
+            Session session = byConnection.get(id);
+            return session != null && session.expiry != null;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Hand the session to the new connection, returns the connection that held it or null for an unknown token
+    ClientConnection resume(String token, ClientConnection client) {
+        lock.lock();
+        try {
+            Session session = byToken.get(token);
+            if (session == null) {
+                return null;
+            }
+            if (session.expiry != null) {
+                session.expiry.cancel();
+                session.expiry = null;
+            }
+            ClientConnection previous = session.connection;
+            byConnection.remove(previous.getId());
+            session.connection = client;
+            byConnection.put(client.getId(), session);
+            return previous;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Close the session of a client that left, returns true if it was suspended
+    boolean close(long id) {
+        lock.lock();
+        try {
+            Session session = byConnection.remove(id);
+            if (session == null) {
+                return false;
+            }
+            byToken.remove(session.token);
+            if (session.expiry == null) {
+                return false;
+            }
+            session.expiry.cancel();
+            session.expiry = null;
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Number of open sessions, suspended ones included
+    int size() {
+        lock.lock();
+        try {
+            return byToken.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
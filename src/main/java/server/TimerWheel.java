@@ -0,0 +1,185 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/*
+ * A hashed timer wheel: a ring of slots that a single thread visits one per tick.
+ * A timeout is put in the slot its deadline falls into, so scheduling and cancelling cost O(1) and each tick only
+ * looks at the timeouts of one slot, however many are pending. Deadlines are rounded up to the next tick,
+ * which is plenty for heartbeats and idle connections. Tasks run on the wheel's thread and must be short,
+ * anything slow belongs on the connection's own thread or event loop.
+ */
+public class TimerWheel {
+    private final long tickNanos;                   // Duration of a tick
+    private final List<Timeout>[] slots;            // Pending timeouts, by deadline tick modulo the number of slots
+    private final int mask;                         // Number of slots minus one, the number of slots is a power of two
+    private final String name;                      // Name of the thread advancing the wheel
+    private final Consumer<String> log;             // Where failing tasks are reported
+    private final ReentrantLock lock = new ReentrantLock();  // Guards the slots and the current tick
+    private long tick;                              // Ticks elapsed since the wheel started
+    private long startedAt;                         // System.nanoTime() when the wheel started
+    private Thread worker;                          // The thread advancing the wheel, started with the first timeout
+    private volatile boolean stopped;               // Whether stop() was called
+
+
+    /*
+     * A scheduled task, cancelled without searching the slot it is in: the wheel drops it when it gets there.
+     */
+    public static final class Timeout {
+        private final long deadlineTick;            // Tick after which the task runs
+        private final Runnable task;                // What to run
+        private volatile boolean cancelled;         // Whether the task must no longer run
+
+        private Timeout(long deadlineTick, Runnable task) {
+            this.deadlineTick = deadlineTick;
+            this.task = task;
+        }
+
+        // Keep the task from running, a no-op once it ran
+        public void cancel() {
+            cancelled = true;
+        }
+
+        // Whether cancel() was called
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+
+    // Constructor that receives the tick duration, the number of slots rounded up to a power of two,
+    // the name of the thread and where failing tasks are reported
+    public TimerWheel(String name, long tickMillis, int slotCount, Consumer<String> log) {
+        if (tickMillis < 1 || slotCount < 1) {
+            throw new IllegalArgumentException("The tick and the number of slots must be positive.");
+        }
+        int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.slots = newSlots(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new ArrayList<>();
+        }
+        this.mask = size - 1;
+        this.name = name;
+        this.log = log;
+    }
+
+
+    // Run the task once the delay has passed, the wheel's thread is started with the first timeout
+    public Timeout schedule(long delayMillis, Runnable task) {
+        lock.lock();
+        try {
+            if (worker == null && !stopped) {
+                startedAt = System.nanoTime();
+                worker = Thread.ofPlatform().name(name).daemon().start(this::run);
+            }
+            long ticks = Math.max(1, (TimeUnit.MILLISECONDS.toNanos(delayMillis) + tickNanos - 1) / tickNanos);
+            Timeout timeout = new Timeout(tick + ticks, task);
+            slots[(int) (timeout.deadlineTick & mask)].add(timeout);
+            return timeout;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Number of timeouts in the wheel, including cancelled ones not yet dropped
+    public int size() {
+        lock.lock();
+        try {
+            int size = 0;
+            for (List<Timeout> slot : slots) {
+                size += slot.size();
+            }
+            return size;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Stop the wheel, pending tasks never run
+    public void stop() {
+        stopped = true;
+        lock.lock();
+        try {
+            if (worker != null) {
+                worker.interrupt();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Advance one slot per tick and run the tasks that are due, until the wheel is stopped
+    private void run() {
+        List<Timeout> due = new ArrayList<>();
+        while (!stopped) {
+            long wait;
+            lock.lock();
+            try {
+                wait = startedAt + (tick + 1) * tickNanos - System.nanoTime();
+            }
+            finally {
+                lock.unlock();
+            }
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+            expire(due);
+            for (Timeout timeout : due) {
+                try {
+                    timeout.task.run();
+                }
+                catch (RuntimeException e) {
+                    log.accept("Exception in " + name + " task: " + e);
+                }
+            }
+            due.clear();
+        }
+    }
+
+
+    // Move to the next tick and take the due timeouts out of its slot, later rounds and cancelled ones are skipped
+    private void expire(List<Timeout> due) {
+        lock.lock();
+        try {
+            tick++;
+            List<Timeout> slot = slots[(int) (tick & mask)];
+            for (int i = slot.size() - 1; i >= 0; i--) {
+                Timeout timeout = slot.get(i);
+                if (timeout.cancelled || timeout.deadlineTick <= tick) {
+                    // Swap with the last one so removing costs O(1)
+                    slot.set(i, slot.get(slot.size() - 1));
+                    slot.remove(slot.size() - 1);
+                    if (!timeout.cancelled) {
+                        due.add(timeout);
+                    }
+                }
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // The array of the slots, Java cannot create an array of a generic type directly
+    @SuppressWarnings("unchecked")
+    private static List<Timeout>[] newSlots(int size) {
+        return (List<Timeout>[]) new List<?>[size];
+    }
+}
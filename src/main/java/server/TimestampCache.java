@@ -0,0 +1,48 @@
+package server;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.function.LongSupplier;
+
+/*
+ * The "HH:mm:ss" time shown with every message, formatted at most once per second and shared by all threads.
+ * Messages sent within the same second reuse the same String, so the message path neither allocates a Date
+ * and a formatted string per message nor shares a SimpleDateFormat, which is not safe to use from several threads.
+ */
+public final class TimestampCache {
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    // The formatted time of one second
+    private record Stamp(long second, String text) {
+    }
+
+    private final LongSupplier clock;                           // Source of the current time in milliseconds
+    private volatile Stamp current = new Stamp(Long.MIN_VALUE, "");  // The last second formatted
+
+
+    // Constructor for a cache of the system clock
+    public TimestampCache() {
+        this(System::currentTimeMillis);
+    }
+
+
+    // Constructor for a cache of the given clock
+    public TimestampCache(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+
+    // The current time, formatted only when the second changed since the last call
+    public String now() {
+        long millis = clock.getAsLong();
+        long second = Math.floorDiv(millis, 1000);
+        Stamp stamp = current;
+        if (stamp.second() != second) {
+            // Racing threads may both format the new second, they produce equal strings
+            stamp = new Stamp(second, FORMAT.format(Instant.ofEpochMilli(millis)));
+            current = stamp;
+        }
+        return stamp.text();
+    }
+}
@@ -0,0 +1,218 @@
+package server;
+
+import shared.Tls;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/*
+ * TLS for a connection of the NioServerEngine, an SSLEngine between the channel and the connection's plain bytes.
+ * Bytes read from the socket are unwrapped into a buffer the event loop shares by all its connections, and plain bytes
+ * are wrapped into another shared buffer and written from there, several records per write. Like the plain path, a
+ * connection only keeps bytes of its own when they do not fit: the start of a record that has not fully arrived, and
+ * sealed bytes the socket did not take. Handshake messages are wrapped as soon as the engine asks for them, and its
+ * delegated tasks run on the event loop, which only costs time on full handshakes, a resumed one signs nothing.
+ * Plain bytes written before the handshake finished are refused without being sealed and go out once it is done.
+ */
+final class TlsChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;        // The channel carrying the records
+    private final SSLEngine engine;             // Seals and opens the records, in server mode
+    private final long started;                 // System.currentTimeMillis() when the connection was accepted
+    private ByteBuffer partial;                 // Start of a record still arriving, null when every byte was unwrapped
+    private ByteBuffer unsent;                  // Sealed bytes the socket did not take yet, null when all were written
+    private boolean stalled;                    // Whether unwrapping stopped because a handshake message could not be written
+    private boolean handshaken;                 // Whether the first handshake completed
+
+
+    // Constructor that receives the accepted channel and a server mode engine, the handshake starts with the first read
+    TlsChannel(SocketChannel channel, SSLEngine engine) throws SSLException {
+        this.channel = channel;
+        this.engine = engine;
+        this.started = System.currentTimeMillis();
+        engine.setUseClientMode(false);
+        engine.beginHandshake();
+    }
+
+
+    // Unwrap the bytes read from the socket into the plain buffer, shared by the loop and cleared first, and return
+    // it flipped, or null once the client closed TLS. Handshake messages the engine produces on the way are written.
+    ByteBuffer unwrap(ByteBuffer received, ByteBuffer plain, ByteBuffer sealed) throws IOException {
+        ByteBuffer records = received;
+        if (partial != null) {
+            records = ByteBuffer.allocate(partial.remaining() + received.remaining()).put(partial).put(received).flip();
+            partial = null;
+        }
+        plain.clear();
+        stalled = false;
+        boolean closed = false;
+        while (true) {
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+                continue;
+            }
+            if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                if (!write(EMPTY, sealed)) {
+                    // The socket is full, the rest is unwrapped once the message went out
+                    stalled = true;
+                    break;
+                }
+                continue;
+            }
+            if (!records.hasRemaining()) {
+                break;
+            }
+            SSLEngineResult result = engine.unwrap(records, plain);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                // Records are never larger than the bytes that carried them, so this only happens with a peer
+                // that sends larger ones than negotiated
+                plain = ByteBuffer.allocate(plain.capacity() + engine.getSession().getApplicationBufferSize()).put(plain.flip());
+                continue;
+            }
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                closed = true;
+                break;
+            }
+            finishHandshake(result);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                break;
+            }
+        }
+        if (records.hasRemaining()) {
+            partial = ByteBuffer.allocate(records.remaining()).put(records).flip();
+        }
+        if (closed && plain.position() == 0) {
+            return null;
+        }
+        return plain.flip();
+    }
+
+
+    // Wrap the plain bytes into the sealed buffer, shared by the loop, and write them. Returns true when they were all
+    // sealed and written; otherwise the socket is full, see hasUnsent(), or the handshake is not done, and the bytes
+    // not sealed yet are left in the plain buffer.
+    boolean write(ByteBuffer plain, ByteBuffer sealed) throws IOException {
+        if (unsent != null) {
+            channel.write(unsent);
+            if (unsent.hasRemaining()) {
+                return false;
+            }
+            unsent = null;
+        }
+        while (true) {
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+                continue;
+            }
+            if (status == SSLEngineResult.HandshakeStatus.NEED_UNWRAP || status == SSLEngineResult.HandshakeStatus.NEED_UNWRAP_AGAIN) {
+                // Waiting for the client, nothing can be sealed until it answers
+                return !plain.hasRemaining();
+            }
+            if (status != SSLEngineResult.HandshakeStatus.NEED_WRAP && !plain.hasRemaining()) {
+                return true;
+            }
+            sealed.clear();
+            seal(plain, sealed);
+            sealed.flip();
+            channel.write(sealed);
+            if (sealed.hasRemaining()) {
+                unsent = ByteBuffer.allocate(sealed.remaining()).put(sealed).flip();
+                return false;
+            }
+        }
+    }
+
+
+    // Whether sealed bytes wait for the socket to become writable
+    boolean hasUnsent() {
+        return unsent != null;
+    }
+
+
+    // Whether received bytes wait to be unwrapped after a handshake message is written
+    boolean isStalled() {
+        return stalled;
+    }
+
+
+    // Whether the first handshake completed, the connection's plain bytes flow from then on
+    boolean isHandshaken() {
+        return handshaken;
+    }
+
+
+    // Whether the client resumed an earlier session rather than negotiating a new one, once handshaken
+    boolean isResumed() {
+        return Tls.isResumed(engine.getSession(), started);
+    }
+
+
+    // Tell the client TLS is closing, as far as the socket takes it right away, before the channel is closed
+    void close(ByteBuffer sealed) {
+        engine.closeOutbound();
+        try {
+            sealed.clear();
+            engine.wrap(EMPTY, sealed);
+            sealed.flip();
+            channel.write(sealed);
+        }
+        catch (IOException e) {
+            // The client is gone already
+        }
+    }
+
+
+    // Seal records from the plain bytes, or the next handshake message, until another record might not fit
+    private void seal(ByteBuffer plain, ByteBuffer sealed) throws IOException {
+        int record = engine.getSession().getPacketBufferSize();
+        do {
+            SSLEngineResult result = engine.wrap(plain, sealed);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("TLS was closed");
+            }
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                if (sealed.position() == 0) {
+                    throw new SSLException("A record does not fit into " + sealed.capacity() + " bytes");
+                }
+                return;
+            }
+            finishHandshake(result);
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+            }
+        } while (sealed.remaining() >= record
+                && (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP
+                    || (plain.hasRemaining() && !isWaitingForClient())));
+    }
+
+
+    // Whether the handshake waits for the client's next message
+    private boolean isWaitingForClient() {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        return status == SSLEngineResult.HandshakeStatus.NEED_UNWRAP || status == SSLEngineResult.HandshakeStatus.NEED_UNWRAP_AGAIN;
+    }
+
+
+    // Note when the first handshake completed
+    private void finishHandshake(SSLEngineResult result) {
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+            handshaken = true;
+        }
+    }
+
+
+    // Run the engine's work, such as checking or signing with keys, on the calling loop
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+}
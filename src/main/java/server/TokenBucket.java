@@ -0,0 +1,72 @@
+package server;
+
+/*
+ * A token bucket: tokens drip in at a steady rate up to a burst and every request spends some of them. A client that
+ * stays under the rate is never held back, one that floods spends its burst and is then held to exactly the rate.
+ * The bucket has no lock of its own, whoever owns it guards it, and it is handed its limit with every call so the
+ * limits of connected clients can be changed while they are being enforced.
+ */
+public final class TokenBucket {
+
+    // How fast tokens drip in and how many the bucket holds, a rate of 0 means no limit at all
+    public record Limit(double perSecond, long burst) {
+        public static final Limit UNLIMITED = new Limit(0, 0);   // Never holds anything back
+
+        public Limit {
+            if (perSecond < 0 || burst < 0 || (perSecond > 0 && burst < 1) || Double.isNaN(perSecond) || Double.isInfinite(perSecond)) {
+                throw new IllegalArgumentException("A rate limit needs a rate that is not negative and a burst of at least 1.");
+            }
+        }
+
+        // Whether the limit holds nothing back
+        public boolean isUnlimited() {
+            return perSecond == 0;
+        }
+
+        @Override
+        public String toString() {
+            return isUnlimited() ? "unlimited" : String.format("%.1f/s burst %d", perSecond, burst);
+        }
+    }
+
+    private double tokens = Double.POSITIVE_INFINITY;   // Tokens available, a new bucket is full whatever its burst turns out to be
+    private long refilled;                              // System.nanoTime() of the last refill
+
+
+    // Constructor that receives the current System.nanoTime()
+    public TokenBucket(long now) {
+        this.refilled = now;
+    }
+
+
+    // Nanoseconds until the bucket holds enough for the amount, 0 when it already does. An amount larger than the
+    // burst only waits for a full bucket, otherwise it would never get through.
+    public long waitFor(Limit limit, long amount, long now) {
+        if (limit.isUnlimited()) {
+            return 0;
+        }
+        refill(limit, now);
+        double missing = Math.min(amount, limit.burst()) - tokens;
+        if (missing <= 0) {
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil(missing * 1_000_000_000 / limit.perSecond()));
+    }
+
+
+    // Spend the tokens of an amount waitFor() admitted, an amount larger than the burst empties the bucket
+    public void take(Limit limit, long amount) {
+        if (!limit.isUnlimited()) {
+            tokens -= Math.min(amount, limit.burst());
+        }
+    }
+
+
+    // Add the tokens that dripped in since the last refill, never more than the burst. Callers read the clock before
+    // taking the owner's lock, so a caller may arrive with a time older than the last refill.
+    private void refill(Limit limit, long now) {
+        long elapsed = Math.max(0, now - refilled);
+        tokens = Math.min(limit.burst(), tokens + elapsed * limit.perSecond() / 1_000_000_000);
+        refilled += elapsed;
+    }
+}
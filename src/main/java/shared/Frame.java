@@ -0,0 +1,200 @@
+package shared;
+
+import java.nio.charset.StandardCharsets;
+
+/*
+ * A single frame of the binary protocol spoken between NetworkClient and the server.
+ * A frame has a type (one of the MessageUtils types), a flags byte, a UTF-8 text payload
+ * and optional numbered fields that are only sent when they are set.
+ */
+public class Frame
+{
+	public static final int MAX_FIELD_ID = 31;  // Highest field id a frame can carry
+
+	// Flags
+	public static final int FLAG_PRIVATE = 0x01;     // The chat line or file was sent privately to the receiver
+	public static final int FLAG_ABORTED = 0x02;     // The file transfer ended before the whole file was sent
+	public static final int FLAG_RESUMED = 0x04;     // The session was resumed rather than opened
+	public static final int FLAG_COMPRESSED = 0x80;  // The body is deflated, only set on the wire and never on a decoded frame
+
+	// Optional fields of chat lines
+	public static final int FIELD_SENDER = 1;   // Username of the client who wrote the line
+	public static final int FIELD_ADDRESS = 2;  // IP address of the client who wrote the line
+	public static final int FIELD_TIME = 3;     // Time the server received the line
+
+	// Optional fields of roster and presence frames
+	public static final int FIELD_VERSION = 4;   // Roster version the frame brings the subscriber to
+	public static final int FIELD_EVENT = 5;     // What changed, one of the PRESENCE_ events
+	public static final int FIELD_PREVIOUS = 6;  // Username before a rename
+
+	// Optional fields of file transfers
+	public static final int FIELD_TRANSFER = 7;   // Id of the transfer, chosen by the sender and by the server towards recipients
+	public static final int FIELD_FILE_NAME = 8;  // Name of the file without its directory
+	public static final int FIELD_FILE_SIZE = 9;  // Size of the file in bytes
+	public static final int FIELD_DATA = 10;      // The bytes of the file carried by a FILE_DATA frame
+
+	// Optional fields of sessions
+	public static final int FIELD_SEQUENCE = 11;  // Sequence number of a room message, or of the last one the client saw
+	public static final int FIELD_SESSION = 12;   // Token of the session a reconnecting client resumes
+
+	// Presence events
+	public static final int PRESENCE_JOIN = 1;         // A user joined the room
+	public static final int PRESENCE_LEAVE = 2;        // A user left the room
+	public static final int PRESENCE_RENAME = 3;       // A user's name changed
+	public static final int PRESENCE_COORDINATOR = 4;  // A user became the coordinator and was renamed with the admin tag
+
+	// Fields to hold the frame type, flags and content
+	private final int type;
+	private final int flags;
+	private final String payload;
+	private byte[][] fields;  // Raw values of the optional fields indexed by id, allocated on first use
+
+
+	// Constructor for a frame without flags
+	public Frame(int type, String payload)
+	{
+		this(type, 0, payload);
+	}
+
+
+	// Constructor for creating a new frame
+	public Frame(int type, int flags, String payload)
+	{
+		if (type < 0 || type > 0xff || flags < 0 || flags > 0xff)
+		{
+			throw new IllegalArgumentException("Frame type and flags must fit in a byte.");
+		}
+		this.type = type;
+		this.flags = flags;
+		this.payload = payload == null ? "" : payload;
+	}
+
+
+	// Constructor for a request sent by the client
+	public Frame(MessageUtils message)
+	{
+		this(message.getType(), message.getMessage());
+	}
+
+
+	// Getter method for retrieving the frame type
+	public int getType()
+	{
+		return type;
+	}
+
+
+	// Getter method for retrieving the frame flags
+	public int getFlags()
+	{
+		return flags;
+	}
+
+
+	// Getter method for retrieving the frame content
+	public String getPayload()
+	{
+		return payload;
+	}
+
+
+	// Convert the frame to the request object handled by the server
+	public MessageUtils toMessage()
+	{
+		return new MessageUtils(type, payload);
+	}
+
+
+	// The text the client displays for this frame, chat lines are colored blue or red when private
+	public String toDisplayText()
+	{
+		if (type == MessageUtils.FILE)
+		{
+			String file = getString(FIELD_FILE_NAME) + " (" + getLong(FIELD_FILE_SIZE, 0) + " bytes)";
+			return "\033[35m*** " + getString(FIELD_SENDER) + " is sending "
+					+ ((flags & FLAG_PRIVATE) != 0 ? "you " + file : file + " to the room") + " ***\033[0m";
+		}
+		if (type == MessageUtils.FILE_END)
+		{
+			return (flags & FLAG_ABORTED) != 0
+					? "\033[33m*** The transfer of " + getString(FIELD_FILE_NAME) + " from " + getString(FIELD_SENDER) + " was cut short ***\033[0m"
+					: "\033[35m*** Received " + getString(FIELD_FILE_NAME) + " from " + getString(FIELD_SENDER) + " ***\033[0m";
+		}
+		if (type != MessageUtils.CHAT)
+		{
+			return payload;
+		}
+		String sender = getString(FIELD_SENDER) + "(" + getString(FIELD_ADDRESS) + "): ";
+		if ((flags & FLAG_PRIVATE) != 0)
+		{
+			return "\033[31m" + getString(FIELD_TIME) + " *** private *** " + sender + payload + "\033[0m";
+		}
+		return "\033[34m" + getString(FIELD_TIME) + " " + sender + payload + "\033[0m";
+	}
+
+
+	// Set an optional text field
+	public Frame putField(int id, String value)
+	{
+		return putField(id, value.getBytes(StandardCharsets.UTF_8));
+	}
+
+
+	// Set an optional numeric field, stored as a variable length integer
+	public Frame putField(int id, long value)
+	{
+		byte[] encoded = new byte[FrameCodec.varLongSize(value)];
+		FrameCodec.putVarLong(encoded, 0, value);
+		return putField(id, encoded);
+	}
+
+
+	// Set the raw bytes of an optional field, such as the data of a file, the frame keeps the array
+	public Frame putField(int id, byte[] value)
+	{
+		if (id < 0 || id > MAX_FIELD_ID)
+		{
+			throw new IllegalArgumentException("Field id must be between 0 and " + MAX_FIELD_ID + ".");
+		}
+		if (fields == null)
+		{
+			fields = new byte[MAX_FIELD_ID + 1][];
+		}
+		fields[id] = value;
+		return this;
+	}
+
+
+	// Whether the optional field is set
+	public boolean hasField(int id)
+	{
+		return getField(id) != null;
+	}
+
+
+	// Getter for an optional text field, null when it is not set
+	public String getString(int id)
+	{
+		byte[] value = getField(id);
+		return value == null ? null : new String(value, StandardCharsets.UTF_8);
+	}
+
+
+	// Getter for an optional numeric field
+	public long getLong(int id, long defaultValue)
+	{
+		byte[] value = getField(id);
+		return value == null ? defaultValue : FrameCodec.getVarLong(value, 0);
+	}
+
+
+	// Getter for the raw bytes of an optional field, null when it is not set, callers must not modify them
+	public byte[] getField(int id)
+	{
+		if (fields == null || id < 0 || id > MAX_FIELD_ID)
+		{
+			return null;
+		}
+		return fields[id];
+	}
+}
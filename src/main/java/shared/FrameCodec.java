@@ -0,0 +1,494 @@
+package shared;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Encoder and decoder for the binary frame protocol, used by both the client and the server.
+ * A connection starts with a preamble (the magic bytes "CHAT" and the protocol version) sent by each side,
+ * after which every frame is laid out as:
+ *
+ *   length (4 bytes) | type (1 byte) | flags (1 byte) | payload length (varint) | UTF-8 payload | fields
+ *
+ * where each optional field is an id byte, a varint length and the raw value.
+ * From version 2 on, large frames may be compressed by the connection's FrameCompressor and carry Frame.FLAG_COMPRESSED.
+ * From version 3 on, the server sends PING frames to quiet clients, which answer with a PONG.
+ * From version 4 on, clients receive files as a FILE frame, FILE_DATA frames of at most FILE_CHUNK_SIZE bytes
+ * and a FILE_END frame. The file bytes are the last field of a FILE_DATA frame, so they can be written straight
+ * from a file after the header built by encodeFileDataHeader().
+ * From version 5 on, messages to the whole room carry a sequence number and the server hands every client a
+ * SESSION token: a client that reconnects sends it in its HELLO with the last sequence it saw and resumes its session.
+ * Clients that predate the protocol open with the Java serialization magic instead, which lets the server tell them apart.
+ */
+public final class FrameCodec
+{
+	public static final int VERSION = 5;                       // Version of the protocol implemented here
+	public static final int COMPRESSION_VERSION = 2;           // First version whose peers accept compressed frames
+	public static final int HEARTBEAT_VERSION = 3;             // First version whose clients answer a PING with a PONG
+	public static final int FILE_VERSION = 4;                  // First version whose clients receive file transfers
+	public static final int RESUME_VERSION = 5;                // First version whose clients can resume their session
+	public static final int FILE_CHUNK_SIZE = 32 * 1024;       // Most bytes of a file carried by one FILE_DATA frame
+	public static final int PREAMBLE_LENGTH = 5;               // Magic bytes followed by the version byte
+	public static final int MAX_FRAME_LENGTH = 1 << 20;        // Largest frame body accepted from a peer
+	private static final byte[] MAGIC = {'C', 'H', 'A', 'T'};  // Magic bytes opening a binary connection
+	private static final int LEGACY_MAGIC = 0xaced;            // First bytes of a Java serialization stream
+	private static final int[] NUMERIC_FIELDS = {Frame.FIELD_VERSION, Frame.FIELD_EVENT, Frame.FIELD_TRANSFER,
+			Frame.FIELD_FILE_SIZE, Frame.FIELD_SEQUENCE};          // Fields holding exactly one varint
+
+
+	// Utility class, not meant to be instantiated
+	private FrameCodec()
+	{
+	}
+
+
+	// The preamble each side sends before the first frame
+	public static byte[] preamble()
+	{
+		return preamble(VERSION);
+	}
+
+
+	// The preamble announcing an older version, a peer offering less than it implements opts out of newer features
+	public static byte[] preamble(int version)
+	{
+		if (version < 1 || version > VERSION)
+		{
+			throw new IllegalArgumentException("Protocol version must be between 1 and " + VERSION + ".");
+		}
+		byte[] preamble = new byte[PREAMBLE_LENGTH];
+		System.arraycopy(MAGIC, 0, preamble, 0, MAGIC.length);
+		preamble[MAGIC.length] = (byte) version;
+		return preamble;
+	}
+
+
+	// Extract the protocol version from a preamble, -1 if the bytes are not a binary protocol preamble
+	public static int preambleVersion(byte[] preamble)
+	{
+		if (preamble.length < PREAMBLE_LENGTH)
+		{
+			return -1;
+		}
+		for (int i = 0; i < MAGIC.length; i++)
+		{
+			if (preamble[i] != MAGIC[i])
+			{
+				return -1;
+			}
+		}
+		return preamble[MAGIC.length] & 0xff;
+	}
+
+
+	// Whether the first two bytes of a connection belong to a Java serialization stream
+	public static boolean isLegacyStream(int first, int second)
+	{
+		return ((first & 0xff) << 8 | (second & 0xff)) == LEGACY_MAGIC;
+	}
+
+
+	// Read the preamble of the peer and return the version both sides will speak
+	public static int readPreamble(DataInputStream in) throws IOException
+	{
+		byte[] preamble = new byte[PREAMBLE_LENGTH];
+		in.readFully(preamble);
+		int version = preambleVersion(preamble);
+		if (version < 1)
+		{
+			throw new StreamCorruptedException("Peer does not speak the binary frame protocol.");
+		}
+		return Math.min(version, VERSION);
+	}
+
+
+	// Encode a frame including its length prefix
+	public static byte[] encode(Frame frame)
+	{
+		byte[] payload = frame.getPayload().getBytes(StandardCharsets.UTF_8);
+		int bodyLength = 2 + varLongSize(payload.length) + payload.length;
+		for (int id = 0; id <= Frame.MAX_FIELD_ID; id++)
+		{
+			byte[] value = frame.getField(id);
+			if (value != null)
+			{
+				bodyLength += 1 + varLongSize(value.length) + value.length;
+			}
+		}
+
+		byte[] out = new byte[4 + bodyLength];
+		ByteBuffer buffer = ByteBuffer.wrap(out);
+		buffer.putInt(bodyLength);
+		buffer.put((byte) frame.getType());
+		buffer.put((byte) frame.getFlags());
+		buffer.position(putVarLong(out, buffer.position(), payload.length));
+		buffer.put(payload);
+		for (int id = 0; id <= Frame.MAX_FIELD_ID; id++)
+		{
+			byte[] value = frame.getField(id);
+			if (value != null)
+			{
+				buffer.put((byte) id);
+				buffer.position(putVarLong(out, buffer.position(), value.length));
+				buffer.put(value);
+			}
+		}
+		return out;
+	}
+
+
+	// Encode a frame without fields straight from its parts, the same bytes as encode() of the equivalent Frame
+	public static byte[] encode(int type, int flags, String payload)
+	{
+		return encodeParts(type, flags, payload, null, null, null, -1);
+	}
+
+
+	// Encode a room message without fields but its sequence number, the same bytes as encode() of the equivalent Frame
+	public static byte[] encode(int type, int flags, String payload, long sequence)
+	{
+		return encodeParts(type, flags, payload, null, null, null, sequence);
+	}
+
+
+	// Encode a chat line straight from its parts, the same bytes as encode() of the equivalent Frame
+	// but with a single allocation: the returned array. Fields that are null are left out.
+	public static byte[] encodeChat(int flags, String payload, String sender, String address, String time)
+	{
+		return encodeParts(MessageUtils.CHAT, flags, payload, sender, address, time, -1);
+	}
+
+
+	// Encode a chat line to the room with its sequence number, the same bytes as encode() of the equivalent Frame
+	public static byte[] encodeChat(int flags, String payload, String sender, String address, String time, long sequence)
+	{
+		return encodeParts(MessageUtils.CHAT, flags, payload, sender, address, time, sequence);
+	}
+
+
+	// Size the frame exactly, then encode every part in place, the sequence is left out when it is negative
+	private static byte[] encodeParts(int type, int flags, String payload, String sender, String address, String time,
+			long sequence)
+	{
+		int payloadLength = utf8Length(payload);
+		int sequenceSize = sequence < 0 ? 0 : varLongSize(sequence);
+		int bodyLength = 2 + varLongSize(payloadLength) + payloadLength
+				+ fieldSize(sender) + fieldSize(address) + fieldSize(time) + (sequence < 0 ? 0 : 2 + sequenceSize);
+
+		byte[] out = new byte[4 + bodyLength];
+		out[0] = (byte) (bodyLength >>> 24);
+		out[1] = (byte) (bodyLength >>> 16);
+		out[2] = (byte) (bodyLength >>> 8);
+		out[3] = (byte) bodyLength;
+		out[4] = (byte) type;
+		out[5] = (byte) flags;
+		int index = putVarLong(out, 6, payloadLength);
+		index = putUtf8(out, index, payload);
+		index = putField(out, index, Frame.FIELD_SENDER, sender);
+		index = putField(out, index, Frame.FIELD_ADDRESS, address);
+		index = putField(out, index, Frame.FIELD_TIME, time);
+		if (sequence >= 0)
+		{
+			out[index++] = (byte) Frame.FIELD_SEQUENCE;
+			out[index++] = (byte) sequenceSize;
+			putVarLong(out, index, sequence);
+		}
+		return out;
+	}
+
+
+	// Encode a FILE_DATA frame up to its data: the length prefix counts the data, whose bytes must follow on the wire.
+	// The same bytes as encode() of the equivalent Frame, with the data left out so it is never copied into the frame.
+	public static byte[] encodeFileDataHeader(long transfer, int dataLength)
+	{
+		if (dataLength < 0 || dataLength > FILE_CHUNK_SIZE)
+		{
+			throw new IllegalArgumentException("File data must be between 0 and " + FILE_CHUNK_SIZE + " bytes.");
+		}
+		int headerLength = 2 + 1 + 1 + 1 + varLongSize(transfer) + 1 + varLongSize(dataLength);
+		int bodyLength = headerLength + dataLength;
+
+		byte[] out = new byte[4 + headerLength];
+		out[0] = (byte) (bodyLength >>> 24);
+		out[1] = (byte) (bodyLength >>> 16);
+		out[2] = (byte) (bodyLength >>> 8);
+		out[3] = (byte) bodyLength;
+		out[4] = (byte) MessageUtils.FILE_DATA;
+		out[5] = 0;
+		out[6] = 0;  // Empty payload
+		out[7] = (byte) Frame.FIELD_TRANSFER;
+		out[8] = (byte) varLongSize(transfer);
+		int index = putVarLong(out, 9, transfer);
+		out[index++] = (byte) Frame.FIELD_DATA;
+		putVarLong(out, index, dataLength);
+		return out;
+	}
+
+
+	// Encoded size of an optional text field, 0 when it is not set
+	private static int fieldSize(String value)
+	{
+		if (value == null)
+		{
+			return 0;
+		}
+		int length = utf8Length(value);
+		return 1 + varLongSize(length) + length;
+	}
+
+
+	// Write an optional text field, returns the index after the last byte written
+	private static int putField(byte[] out, int index, int id, String value)
+	{
+		if (value == null)
+		{
+			return index;
+		}
+		out[index++] = (byte) id;
+		index = putVarLong(out, index, utf8Length(value));
+		return putUtf8(out, index, value);
+	}
+
+
+	// Number of bytes of the UTF-8 encoding of the text, counted without encoding it.
+	// Like String.getBytes, a surrogate without its pair counts as the single byte of '?'.
+	public static int utf8Length(CharSequence text)
+	{
+		int length = text.length();
+		int bytes = length;
+		for (int i = 0; i < length; i++)
+		{
+			char c = text.charAt(i);
+			if (c < 0x80)
+			{
+				continue;
+			}
+			if (c < 0x800)
+			{
+				bytes += 1;
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1)))
+			{
+				// Four bytes for the two chars of the pair
+				bytes += 2;
+				i++;
+			}
+			else if (!Character.isSurrogate(c))
+			{
+				bytes += 2;
+			}
+		}
+		return bytes;
+	}
+
+
+	// Write the UTF-8 encoding of the text, returns the index after the last byte written
+	public static int putUtf8(byte[] out, int index, CharSequence text)
+	{
+		int length = text.length();
+		for (int i = 0; i < length; i++)
+		{
+			char c = text.charAt(i);
+			if (c < 0x80)
+			{
+				out[index++] = (byte) c;
+			}
+			else if (c < 0x800)
+			{
+				out[index++] = (byte) (0xc0 | c >> 6);
+				out[index++] = (byte) (0x80 | c & 0x3f);
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1)))
+			{
+				int codePoint = Character.toCodePoint(c, text.charAt(++i));
+				out[index++] = (byte) (0xf0 | codePoint >> 18);
+				out[index++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+				out[index++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+				out[index++] = (byte) (0x80 | codePoint & 0x3f);
+			}
+			else if (Character.isSurrogate(c))
+			{
+				out[index++] = '?';
+			}
+			else
+			{
+				out[index++] = (byte) (0xe0 | c >> 12);
+				out[index++] = (byte) (0x80 | c >> 6 & 0x3f);
+				out[index++] = (byte) (0x80 | c & 0x3f);
+			}
+		}
+		return index;
+	}
+
+
+	// Decode the next frame from the buffer, returns null and leaves the buffer untouched if it is incomplete
+	public static Frame decode(ByteBuffer in) throws IOException
+	{
+		return decode(in, null);
+	}
+
+
+	// Decode the next frame of a connection that may receive compressed frames, the compressor is null if it may not
+	public static Frame decode(ByteBuffer in, FrameCompressor compressor) throws IOException
+	{
+		if (in.remaining() < 4)
+		{
+			return null;
+		}
+		int length = checkedLength(in.getInt(in.position()));
+		if (in.remaining() < 4 + length)
+		{
+			return null;
+		}
+		ByteBuffer body = in.slice(in.position() + 4, length);
+		in.position(in.position() + 4 + length);
+		return decodeBody(body, compressor);
+	}
+
+
+	// Read the next frame from a blocking stream
+	public static Frame read(DataInputStream in) throws IOException
+	{
+		return read(in, null);
+	}
+
+
+	// Read the next frame of a connection that may receive compressed frames, the compressor is null if it may not
+	public static Frame read(DataInputStream in, FrameCompressor compressor) throws IOException
+	{
+		int length = checkedLength(in.readInt());
+		byte[] body = new byte[length];
+		in.readFully(body);
+		return decodeBody(ByteBuffer.wrap(body), compressor);
+	}
+
+
+	// Write a frame to a blocking stream, the caller decides when to flush
+	public static void write(DataOutputStream out, Frame frame) throws IOException
+	{
+		out.write(encode(frame));
+	}
+
+
+	// Decode the body of a frame whose length prefix was already consumed
+	private static Frame decodeBody(ByteBuffer body, FrameCompressor compressor) throws IOException
+	{
+		if (body.remaining() < 2)
+		{
+			throw new StreamCorruptedException("Malformed frame: the body is " + body.remaining() + " bytes long");
+		}
+		int type = body.get() & 0xff;
+		int flags = body.get() & 0xff;
+		if ((flags & Frame.FLAG_COMPRESSED) != 0)
+		{
+			if (compressor == null)
+			{
+				throw new StreamCorruptedException("Compressed frame on a connection that did not negotiate compression.");
+			}
+			body = ByteBuffer.wrap(compressor.inflate(body));
+			flags &= ~Frame.FLAG_COMPRESSED;
+		}
+		try
+		{
+			int payloadLength = checkedLength(getVarLong(body));
+			byte[] payload = new byte[payloadLength];
+			body.get(payload);
+			Frame frame = new Frame(type, flags, new String(payload, StandardCharsets.UTF_8));
+			while (body.hasRemaining())
+			{
+				int id = body.get() & 0xff;
+				byte[] value = new byte[checkedLength(getVarLong(body))];
+				body.get(value);
+				// Fields unknown to this version are skipped so newer peers can add them
+				if (id <= Frame.MAX_FIELD_ID)
+				{
+					frame.putField(id, value);
+				}
+			}
+			// Checked here, so Frame.getLong() never meets a malformed varint long after the frame was accepted
+			for (int id : NUMERIC_FIELDS)
+			{
+				byte[] value = frame.getField(id);
+				if (value != null)
+				{
+					ByteBuffer number = ByteBuffer.wrap(value);
+					getVarLong(number);
+					if (number.hasRemaining())
+					{
+						throw new StreamCorruptedException("Malformed frame: field " + id + " is not a single varint");
+					}
+				}
+			}
+			return frame;
+		}
+		catch (RuntimeException e)
+		{
+			throw new StreamCorruptedException("Malformed frame: " + e);
+		}
+	}
+
+
+	// Reject lengths that are negative or larger than a frame may be
+	private static int checkedLength(long length) throws StreamCorruptedException
+	{
+		if (length < 0 || length > MAX_FRAME_LENGTH)
+		{
+			throw new StreamCorruptedException("Invalid frame length: " + length);
+		}
+		return (int) length;
+	}
+
+
+	// Number of bytes needed to encode the value as an unsigned varint
+	static int varLongSize(long value)
+	{
+		int size = 1;
+		while ((value & ~0x7fL) != 0)
+		{
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+
+	// Write the value as an unsigned varint, returns the index after the last byte written
+	static int putVarLong(byte[] out, int index, long value)
+	{
+		while ((value & ~0x7fL) != 0)
+		{
+			out[index++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out[index++] = (byte) value;
+		return index;
+	}
+
+
+	// Read an unsigned varint from a byte array
+	static long getVarLong(byte[] in, int index)
+	{
+		return getVarLong(ByteBuffer.wrap(in, index, in.length - index));
+	}
+
+
+	// Read an unsigned varint from a buffer
+	static long getVarLong(ByteBuffer in)
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			byte b = in.get();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Varint is too long.");
+	}
+}
@@ -0,0 +1,181 @@
+package shared;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Per-frame compression for connections that negotiated protocol version 2 or later, one instance per connection.
+ * Frames whose body is at least THRESHOLD bytes are deflated, everything after the flags byte, and marked with
+ * Frame.FLAG_COMPRESSED. A compressed body starts with the length of the original body as a varint:
+ *
+ *   length (4 bytes) | type (1 byte) | flags | FLAG_COMPRESSED (1 byte) | body length (varint) | deflated body
+ *
+ * Every frame is compressed on its own with a preset dictionary of common chat text, so frames can be decoded
+ * in any order and the same message compresses to the same bytes for every recipient. The Deflater and Inflater
+ * are reused from frame to frame and released by end().
+ */
+public final class FrameCompressor
+{
+	public static final int THRESHOLD = 256;  // Smallest frame body worth compressing
+
+	// Text primed into the compressor, the most common strings last because deflate finds near matches cheaper
+	private static final byte[] DICTIONARY = (
+			"the and you that have for not with this but what are was your just like can all know will get "
+			+ "it's I'm don't thanks please hello yes okay sorry "
+			+ "Jan Feb Mar Apr May Jun Jul Aug Sep Oct Nov Dec Mon Tue Wed Thu Fri Sat Sun UTC "
+			+ "[outbound queued , peak , accepted , dropped (block)]\n"
+			+ "*** You are the coordinator *** The coordinator is has left the chat room. "
+			+ "has been kicked by the admin. *** private *** "
+			+ "List of the users connected at (admin)\n1) since \n"
+			+ "\033[90m*** Last messages ***\033[0m\n\033[90m *** has joined the chat room. *** \033[0m\n"
+	).getBytes(StandardCharsets.UTF_8);
+
+	private final ReentrantLock deflateLock = new ReentrantLock();  // Writers of the connection may compress concurrently
+	private final ReentrantLock inflateLock = new ReentrantLock();  // Guards the inflater against end()
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);  // Raw deflate, the frame carries the length
+	private final Inflater inflater = new Inflater(true);            // Raw inflate matching the deflater
+	private byte[] scratch = new byte[4096];  // Output of the deflater, grown to fit the largest frame compressed
+	private boolean ended;                    // Whether end() released the native resources
+
+
+	// Compress an encoded frame, returns the frame itself when it is too small or does not shrink
+	public byte[] compress(byte[] frame)
+	{
+		int bodyLength = frame.length - 6;
+		if (bodyLength < THRESHOLD || (frame[5] & Frame.FLAG_COMPRESSED) != 0)
+		{
+			return frame;
+		}
+		deflateLock.lock();
+		try
+		{
+			if (ended)
+			{
+				return frame;
+			}
+			deflater.reset();
+			deflater.setDictionary(DICTIONARY);
+			deflater.setInput(frame, 6, bodyLength);
+			deflater.finish();
+			int lengthSize = FrameCodec.varLongSize(bodyLength);
+			int compressedLength = 0;
+			while (!deflater.finished())
+			{
+				if (compressedLength == scratch.length)
+				{
+					if (lengthSize + compressedLength >= bodyLength)
+					{
+						// Incompressible, the frame is sent as it is
+						return frame;
+					}
+					scratch = Arrays.copyOf(scratch, scratch.length * 2);
+				}
+				compressedLength += deflater.deflate(scratch, compressedLength, scratch.length - compressedLength);
+			}
+			int newBodyLength = 2 + lengthSize + compressedLength;
+			if (newBodyLength >= bodyLength + 2)
+			{
+				return frame;
+			}
+
+			byte[] out = new byte[4 + newBodyLength];
+			out[0] = (byte) (newBodyLength >>> 24);
+			out[1] = (byte) (newBodyLength >>> 16);
+			out[2] = (byte) (newBodyLength >>> 8);
+			out[3] = (byte) newBodyLength;
+			out[4] = frame[4];
+			out[5] = (byte) (frame[5] | Frame.FLAG_COMPRESSED);
+			int index = FrameCodec.putVarLong(out, 6, bodyLength);
+			System.arraycopy(scratch, 0, out, index, compressedLength);
+			return out;
+		}
+		finally
+		{
+			deflateLock.unlock();
+		}
+	}
+
+
+	// Inflate a compressed body, positioned after the flags byte, into the original body after the flags byte
+	public byte[] inflate(ByteBuffer compressed) throws IOException
+	{
+		inflateLock.lock();
+		try
+		{
+			if (ended)
+			{
+				throw new IOException("Compressor was released.");
+			}
+			long length;
+			try
+			{
+				length = FrameCodec.getVarLong(compressed);
+			}
+			catch (RuntimeException e)
+			{
+				throw new StreamCorruptedException("Malformed compressed frame: " + e);
+			}
+			// The claimed length is bounded like any frame, so a small frame cannot inflate without limit
+			if (length < 0 || length > FrameCodec.MAX_FRAME_LENGTH)
+			{
+				throw new StreamCorruptedException("Invalid compressed frame length: " + length);
+			}
+			byte[] body = new byte[(int) length];
+			inflater.reset();
+			inflater.setDictionary(DICTIONARY);
+			inflater.setInput(compressed);
+			int inflated = 0;
+			while (inflated < body.length && !inflater.finished())
+			{
+				int read = inflater.inflate(body, inflated, body.length - inflated);
+				if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+				{
+					break;
+				}
+				inflated += read;
+			}
+			if (inflated != body.length)
+			{
+				throw new StreamCorruptedException("Compressed frame is truncated.");
+			}
+			return body;
+		}
+		catch (DataFormatException e)
+		{
+			throw new StreamCorruptedException("Malformed compressed frame: " + e.getMessage());
+		}
+		finally
+		{
+			inflateLock.unlock();
+		}
+	}
+
+
+	// Release the native resources once the connection is closed, later frames are left uncompressed
+	public void end()
+	{
+		deflateLock.lock();
+		inflateLock.lock();
+		try
+		{
+			if (!ended)
+			{
+				ended = true;
+				deflater.end();
+				inflater.end();
+			}
+		}
+		finally
+		{
+			inflateLock.unlock();
+			deflateLock.unlock();
+		}
+	}
+}
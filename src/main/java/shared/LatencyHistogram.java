@@ -0,0 +1,115 @@
+package shared;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Histogram of latencies in nanoseconds that many threads can record into at once without locking.
+ * Values are kept in log-linear buckets, 64 per power of two, so a percentile is accurate to within about 1.6%
+ * however large the value, in a fixed amount of memory.
+ */
+public class LatencyHistogram
+{
+	private static final int SUB_BUCKET_BITS = 6;                    // Buckets per power of two are 2^SUB_BUCKET_BITS
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;     // Buckets per power of two
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;  // Enough buckets for any positive long
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);  // Values recorded per bucket
+	private final LongAdder count = new LongAdder();                      // Values recorded
+	private final LongAdder sum = new LongAdder();                        // Sum of the values recorded
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0); // Largest value recorded
+
+
+	// Record a value, negative values are recorded as 0
+	public void record(long nanos)
+	{
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(bucket(value));
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+
+	// Values recorded
+	public long getCount()
+	{
+		return count.sum();
+	}
+
+
+	// Largest value recorded
+	public long getMax()
+	{
+		return max.get();
+	}
+
+
+	// Average of the values recorded, 0 when none were
+	public double getMean()
+	{
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+
+	// Value below which the given percentage of the values fall, 0 when none were recorded
+	public long getPercentile(double percentile)
+	{
+		if (percentile < 0 || percentile > 100)
+		{
+			throw new IllegalArgumentException("Percentile must be between 0 and 100.");
+		}
+		long n = count.sum();
+		if (n == 0)
+		{
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts.get(i);
+			if (seen >= rank)
+			{
+				return Math.min(highestValue(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+
+	// One line summary of the values in milliseconds
+	public String describe()
+	{
+		return String.format("n=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f ms", getCount(),
+				getMean() / 1e6, getPercentile(50) / 1e6, getPercentile(90) / 1e6, getPercentile(99) / 1e6,
+				getPercentile(99.9) / 1e6, getMax() / 1e6);
+	}
+
+
+	// Bucket of a value, values below SUB_BUCKETS get a bucket each
+	static int bucket(long value)
+	{
+		if (value < SUB_BUCKETS)
+		{
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+
+	// Largest value that falls into a bucket
+	static long highestValue(int bucket)
+	{
+		if (bucket < SUB_BUCKETS)
+		{
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long mantissa = bucket % SUB_BUCKETS + SUB_BUCKETS;
+		return ((mantissa + 1) << shift) - 1;
+	}
+}
@@ -8,12 +8,31 @@ import java.io.Serializable;
 
 
 public class MessageUtils implements Serializable {//?????????!!!
+	// Pinned to the value of the original class so clients using Java serialization keep working
+	private static final long serialVersionUID = -272770618149025693L;
+
 	// The different types of message sent by the Client
 	public static final int USERS = 0;   // Message type to request list of connected users
 	public static final int MESSAGE = 1; // Message type for regular text messages
-	public static final int LOGOUT = 2;  // Message type to disconnect from the server
+	public static final int LOGOUT = 2;  // Message type to disconnect from the server, sent by the server to a kicked client so it does not reconnect
 	public static final int KICK = 3;    // Message type to remove a user from the server
 
+	// Additional types carried by the binary frame protocol
+	public static final int HELLO = 4;   // Message type announcing the username when connecting
+	public static final int TEXT = 5;    // Message type for text displayed by the client, sent by the server
+	public static final int CHAT = 6;    // Message type for a chat line from another user, sent by the server
+	public static final int STATS = 7;   // Message type to request the server's metrics, coordinator only
+	public static final int PING = 8;    // Message type asking the peer to show it is alive, answered with a PONG
+	public static final int PONG = 9;    // Message type answering a PING
+	public static final int SUBSCRIBE = 10;  // Message type asking for the roster and then its changes, "off" to stop
+	public static final int ROSTER = 11;     // Message type for the full roster of a presence subscriber, sent by the server
+	public static final int PRESENCE = 12;   // Message type for a single change of the roster, sent by the server
+	public static final int FILE = 13;       // Message type opening a file transfer, to "@username" or to the room when empty
+	public static final int FILE_DATA = 14;  // Message type carrying the next bytes of a file transfer
+	public static final int FILE_END = 15;   // Message type closing a file transfer, flagged when it was cut short
+	public static final int SESSION = 16;    // Message type handing the client the token that resumes its session, sent by the server
+	public static final int LIMIT = 17;      // Message type to show or change the rate limits of requests, coordinator only
+
 	// Fields to hold the message type and content
 	private final int type;
 	private final String message;
@@ -0,0 +1,132 @@
+package shared;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * TLS contexts for the server and the clients, built from PKCS12 keystores.
+ * The server's context remembers the sessions it negotiated, and the JDK also hands clients stateless session tickets
+ * under TLS 1.3, so a client that reconnects with the same context resumes its session with an abbreviated handshake
+ * instead of a full one with a certificate signature, which keeps the storm of reconnects after a network outage
+ * cheap. The cache and the keys sealing the tickets live in the server's memory, so after the server process itself
+ * restarted the first connection of every client is a full handshake again.
+ * generateTestKeyStore() creates a self-signed certificate for localhost with keytool, for tests, benchmarks and
+ * trying TLS out on one machine; the same keystore then serves as the clients' trust store.
+ */
+public final class Tls
+{
+	public static final int DEFAULT_SESSION_CACHE = 20_000;          // Sessions the server remembers for resumption
+	public static final int DEFAULT_SESSION_TIMEOUT = 24 * 60 * 60;  // Seconds a session can be resumed
+	private static final String KEYSTORE_TYPE = "PKCS12";
+	private static final String PROTOCOL = "TLS";                    // The newest version both sides support, TLS 1.3 on current JDKs
+	private static final long KEYTOOL_TIMEOUT = 60;                  // Seconds keytool may take to generate a key pair
+
+
+	private Tls()
+	{
+	}
+
+
+	// A context for a server presenting the key and certificate of the keystore, remembering up to cacheSize
+	// sessions for timeoutSeconds so returning clients can resume them
+	public static SSLContext serverContext(Path keyStore, char[] password, int cacheSize, int timeoutSeconds) throws IOException
+	{
+		if (cacheSize < 0 || timeoutSeconds < 0)
+		{
+			throw new IllegalArgumentException("The session cache size and timeout cannot be negative.");
+		}
+		try
+		{
+			KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keys.init(load(keyStore, password), password);
+			SSLContext context = SSLContext.getInstance(PROTOCOL);
+			context.init(keys.getKeyManagers(), null, null);
+			SSLSessionContext sessions = context.getServerSessionContext();
+			sessions.setSessionCacheSize(cacheSize);
+			sessions.setSessionTimeout(timeoutSeconds);
+			return context;
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new IOException("Cannot use the keystore " + keyStore + ": " + e.getMessage(), e);
+		}
+	}
+
+
+	// A context for clients trusting the certificates in the trust store. Connections opened with the same context
+	// resume the sessions of the earlier ones, so a client keeps one context for all its reconnects.
+	public static SSLContext clientContext(Path trustStore, char[] password) throws IOException
+	{
+		try
+		{
+			TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			trust.init(load(trustStore, password));
+			SSLContext context = SSLContext.getInstance(PROTOCOL);
+			context.init(null, trust.getTrustManagers(), null);
+			return context;
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new IOException("Cannot use the trust store " + trustStore + ": " + e.getMessage(), e);
+		}
+	}
+
+
+	// Generate a keystore holding a new EC key and a self-signed certificate for localhost, valid for 30 days
+	public static void generateTestKeyStore(Path file, char[] password) throws IOException
+	{
+		Path keytool = Path.of(System.getProperty("java.home"), "bin", "keytool");
+		Process process = new ProcessBuilder(keytool.toString(), "-genkeypair", "-alias", "chat",
+				"-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=localhost",
+				"-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "30",
+				"-storetype", KEYSTORE_TYPE, "-keystore", file.toString(), "-storepass", new String(password))
+				.redirectErrorStream(true)
+				.start();
+		try
+		{
+			// keytool only talks when something goes wrong
+			String output = new String(process.getInputStream().readAllBytes());
+			if (!process.waitFor(KEYTOOL_TIMEOUT, TimeUnit.SECONDS) || process.exitValue() != 0)
+			{
+				process.destroy();
+				throw new IOException("keytool could not generate " + file + ": " + output.trim());
+			}
+		}
+		catch (InterruptedException e)
+		{
+			process.destroy();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while generating " + file, e);
+		}
+	}
+
+
+	// Whether the session of a handshake that started at startedMillis, in System.currentTimeMillis(), was resumed.
+	// A resumed session keeps the creation time of the full handshake that negotiated it.
+	public static boolean isResumed(SSLSession session, long startedMillis)
+	{
+		return session.getCreationTime() < startedMillis;
+	}
+
+
+	// Read a keystore file
+	private static KeyStore load(Path file, char[] password) throws IOException, GeneralSecurityException
+	{
+		KeyStore store = KeyStore.getInstance(KEYSTORE_TYPE);
+		try (InputStream input = Files.newInputStream(file))
+		{
+			store.load(input, password);
+		}
+		return store;
+	}
+}
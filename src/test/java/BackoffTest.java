@@ -0,0 +1,41 @@
+import client.Backoff;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+
+class BackoffTest {
+
+    // Test that the ceiling doubles with every attempt and stops at the maximum
+    @Test
+    void testCeilingDoublesUpToMaximum() {
+        Backoff backoff = new Backoff(100, 1000);
+        Assertions.assertEquals(100, backoff.ceiling(1));
+        Assertions.assertEquals(200, backoff.ceiling(2));
+        Assertions.assertEquals(400, backoff.ceiling(3));
+        Assertions.assertEquals(800, backoff.ceiling(4));
+        Assertions.assertEquals(1000, backoff.ceiling(5));
+        Assertions.assertEquals(1000, backoff.ceiling(Integer.MAX_VALUE));
+    }
+
+    // Test that delays never exceed their ceiling and are spread evenly below it rather than bunched at its end
+    @Test
+    void testJitterSpreadsDelays() {
+        Backoff backoff = new Backoff(1000, 1000);
+        int[] buckets = new int[10];
+        for (int i = 0; i < 10_000; i++) {
+            long delay = backoff.delay(1);
+            Assertions.assertTrue(delay >= 0 && delay <= 1000, "delay " + delay);
+            buckets[(int) Math.min(9, delay / 100)]++;
+        }
+        for (int bucket : buckets) {
+            Assertions.assertTrue(bucket > 700 && bucket < 1300, java.util.Arrays.toString(buckets));
+        }
+    }
+
+    // Test that delays that make no sense are refused
+    @Test
+    void testRejectsInvalidDelays() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new Backoff(0, 100));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new Backoff(200, 100));
+    }
+}
@@ -0,0 +1,70 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import server.BadWordFilter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+
+class BadWordFilterTest {
+    private final BadWordFilter filter = new BadWordFilter(List.of("ass", "ball gag", "s&m", "*shit*", "# a comment", ""));
+
+    // Test that entries match whole words regardless of case and surrounding punctuation
+    @Test
+    void testWholeWords() {
+        Assertions.assertTrue(filter.matches("what an ass"));
+        Assertions.assertTrue(filter.matches("ASS!"));
+        Assertions.assertTrue(filter.matches("(ass)"));
+        Assertions.assertFalse(filter.matches("first class passenger"));
+        Assertions.assertFalse(filter.matches("I assume so"));
+        Assertions.assertFalse(filter.matches(""));
+        Assertions.assertEquals(4, filter.size());
+    }
+
+    // Test that phrases match across any run of separators and punctuation is kept when the entry has it
+    @Test
+    void testPhrases() {
+        Assertions.assertTrue(filter.matches("a Ball   Gag here"));
+        Assertions.assertFalse(filter.matches("ball gagging"));
+        Assertions.assertTrue(filter.matches("into s&m"));
+        Assertions.assertFalse(filter.matches("sm"));
+    }
+
+    // Test that entries marked with '*' match inside longer words
+    @Test
+    void testSubstrings() {
+        Assertions.assertTrue(filter.matches("bullshitting"));
+        Assertions.assertTrue(filter.matches("This is bad message: Shit"));
+    }
+
+    // Test that look-alike characters and punctuation inside a word do not hide a bad word
+    @Test
+    void testObfuscation() {
+        Assertions.assertTrue(filter.matches("@ss"));
+        Assertions.assertTrue(filter.matches("a$$"));
+        Assertions.assertTrue(filter.matches("5h1t"));
+        Assertions.assertTrue(filter.matches("s.h.i.t"));
+        Assertions.assertTrue(filter.matches("a-s-s."));
+        Assertions.assertFalse(filter.matches("a. s. s"));
+    }
+
+    // Test that reloading picks up a changed word list
+    @Test
+    void testReload(@TempDir Path directory) throws IOException {
+        Path file = directory.resolve("BadWords.txt");
+        Files.writeString(file, "darn\n");
+        BadWordFilter fromFile = new BadWordFilter(file);
+        Assertions.assertFalse(fromFile.matches("darn it"));
+
+        Assertions.assertEquals(1, fromFile.reload());
+        Assertions.assertTrue(fromFile.matches("darn it"));
+
+        Files.writeString(file, "heck\nblast\n");
+        Assertions.assertEquals(2, fromFile.reload());
+        Assertions.assertFalse(fromFile.matches("darn it"));
+        Assertions.assertTrue(fromFile.matches("oh heck"));
+    }
+}
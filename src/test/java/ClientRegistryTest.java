@@ -0,0 +1,167 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import server.ClientConnection;
+import server.ClientRegistry;
+import server.EncodedMessage;
+import server.OutboundQueue;
+import server.Roster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+class ClientRegistryTest {
+
+    // Minimal connection that only remembers its id and username
+    private static class StubConnection implements ClientConnection {
+        private final long id;
+        private volatile String username;
+
+        StubConnection(long id, String username) {
+            this.id = id;
+            this.username = username;
+        }
+
+        public long getId() {return id;}
+        public String getUsername() {return username;}
+        public void setUsername(String username) {this.username = username;}
+        public String getIpAddress() {return "127.0.0.1";}
+        public String getDate() {return "";}
+        public boolean send(EncodedMessage msg) {return true;}
+        public OutboundQueue getOutboundQueue() {return null;}
+        public void close() {}
+    }
+
+    // Test that a username can only be reserved once and only its owner can release it
+    @Test
+    void testReservation() {
+        ClientRegistry registry = new ClientRegistry();
+        StubConnection alice = new StubConnection(1, "alice");
+        StubConnection impostor = new StubConnection(2, "alice");
+
+        Assertions.assertTrue(registry.reserve("alice", alice));
+        Assertions.assertFalse(registry.reserve("alice", impostor));
+        Assertions.assertFalse(registry.reserve(ClientRegistry.ADMIN_TAG + "bob", impostor));
+
+        registry.release(impostor);
+        Assertions.assertFalse(registry.reserve("alice", impostor));
+        registry.release(alice);
+        Assertions.assertTrue(registry.reserve("alice", impostor));
+    }
+
+    // Test that clients are found by username once they joined, with or without the admin tag
+    @Test
+    void testFind() {
+        ClientRegistry registry = new ClientRegistry();
+        StubConnection alice = new StubConnection(1, "alice");
+        registry.reserve("alice", alice);
+        Assertions.assertNull(registry.find("alice"));
+
+        Assertions.assertSame(alice, registry.add(alice));
+        alice.setUsername(ClientRegistry.ADMIN_TAG + "alice");
+        Assertions.assertSame(alice, registry.find("alice"));
+        Assertions.assertSame(alice, registry.find(ClientRegistry.ADMIN_TAG + "alice"));
+        Assertions.assertNull(registry.find("bob"));
+
+        registry.remove(1);
+        Assertions.assertNull(registry.find("alice"));
+    }
+
+    // Test that the coordinator role passes to the longest connected client
+    @Test
+    void testHandOff() {
+        ClientRegistry registry = new ClientRegistry();
+        StubConnection first = new StubConnection(1, "first");
+        StubConnection second = new StubConnection(2, "second");
+        StubConnection third = new StubConnection(3, "third");
+
+        Assertions.assertSame(first, registry.add(first));
+        Assertions.assertNull(registry.add(third));
+        Assertions.assertNull(registry.add(second));
+        Assertions.assertTrue(registry.isCoordinator(first));
+
+        // A client that is not the coordinator leaving does not move the role
+        registry.remove(3);
+        Assertions.assertNull(registry.handOff(third));
+
+        registry.remove(1);
+        Assertions.assertSame(second, registry.handOff(first));
+        Assertions.assertTrue(registry.isCoordinator(second));
+
+        registry.remove(2);
+        Assertions.assertNull(registry.handOff(second));
+        Assertions.assertNull(registry.getCoordinator());
+    }
+
+    // Test that concurrent joins and leaves always leave a single coordinator that is still in the room
+    @Test
+    void testConcurrentJoinsAndLeaves() throws InterruptedException {
+        ClientRegistry registry = new ClientRegistry();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        int clients = 4000;
+        CountDownLatch done = new CountDownLatch(clients);
+        List<StubConnection> stayed = new ArrayList<>();
+
+        for (int i = 0; i < clients; i++) {
+            StubConnection client = new StubConnection(i, "user" + i);
+            boolean leaves = i % 4 != 0;
+            if (!leaves) {
+                stayed.add(client);
+            }
+            pool.execute(() -> {
+                Assertions.assertTrue(registry.reserve(client.getUsername(), client));
+                registry.add(client);
+                if (leaves) {
+                    registry.remove(client.getId());
+                    registry.handOff(client);
+                    registry.release(client);
+                }
+                done.countDown();
+            });
+        }
+        Assertions.assertTrue(done.await(30, TimeUnit.SECONDS));
+        pool.shutdown();
+
+        Assertions.assertEquals(stayed.size(), registry.size());
+        Assertions.assertTrue(stayed.contains(registry.getCoordinator()));
+        for (StubConnection client : stayed) {
+            Assertions.assertSame(client, registry.find(client.getUsername()));
+        }
+    }
+
+    // Test that the roster is only rebuilt after a change and that its full listing is encoded once per second
+    @Test
+    void testRosterSnapshot() {
+        ClientRegistry registry = new ClientRegistry();
+        for (int i = 0; i < 120; i++) {
+            StubConnection client = new StubConnection(i, (i % 2 == 0 ? "al" : "bo") + i);
+            registry.reserve(client.getUsername(), client);
+            registry.add(client);
+        }
+        Roster roster = registry.roster();
+        Assertions.assertSame(roster, registry.roster());
+        Assertions.assertSame(roster.listing("12:00:00"), roster.listing("12:00:00"));
+        Assertions.assertNotSame(roster.listing("12:00:00"), roster.listing("12:00:01"));
+        Assertions.assertEquals(121, roster.listing("12:00:00").getText().split("\n").length);
+
+        // Filtering and paging are cut from the same snapshot
+        String page = roster.render("12:00:00", "al", 2, false);
+        Assertions.assertTrue(page.startsWith("List of the users connected at 12:00:00 starting with \"al\", page 2 of 2"), page);
+        Assertions.assertTrue(page.contains("\n51) al100 since "), page);
+        Assertions.assertEquals(11, page.split("\n").length);
+        Assertions.assertTrue(roster.render("12:00:00", "zz", 0, false).endsWith("No users found."));
+
+        // Joins, leaves and renames take a new snapshot
+        registry.remove(0);
+        Roster afterLeave = registry.roster();
+        Assertions.assertNotSame(roster, afterLeave);
+        Assertions.assertEquals(119, afterLeave.size());
+        registry.find("bo1").setUsername(ClientRegistry.ADMIN_TAG + "bo1");
+        registry.renamed();
+        Assertions.assertTrue(registry.roster().render("12:00:00", "bo1", 0, false).contains("1) (admin)bo1 since "));
+    }
+}
@@ -0,0 +1,193 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import shared.Frame;
+import shared.FrameCodec;
+import shared.FrameCompressor;
+import shared.MessageUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+
+class FrameCodecTest {
+
+    // Test that a frame with optional fields survives encoding and decoding
+    @Test
+    void testRoundTrip() throws IOException {
+        Frame frame = new Frame(MessageUtils.TEXT, 3, "hello ünïcödé")
+                .putField(1, "127.0.0.1")
+                .putField(7, 1234567890123L);
+        Frame decoded = FrameCodec.decode(ByteBuffer.wrap(FrameCodec.encode(frame)));
+
+        Assertions.assertEquals(MessageUtils.TEXT, decoded.getType());
+        Assertions.assertEquals(3, decoded.getFlags());
+        Assertions.assertEquals("hello ünïcödé", decoded.getPayload());
+        Assertions.assertEquals("127.0.0.1", decoded.getString(1));
+        Assertions.assertEquals(1234567890123L, decoded.getLong(7, -1));
+        Assertions.assertFalse(decoded.hasField(2));
+    }
+
+    // Test that frames encoded from their parts match frames encoded from a Frame, whatever the characters
+    @Test
+    void testEncodeFromParts() {
+        for (String text : new String[] {"", "hello", "ünïcödé", "日本語", "emoji \uD83D\uDE00", "lone \uD800 surrogate \uDC00"}) {
+            Assertions.assertEquals(text.getBytes(StandardCharsets.UTF_8).length, FrameCodec.utf8Length(text));
+            Frame chat = new Frame(MessageUtils.CHAT, Frame.FLAG_PRIVATE, text)
+                    .putField(Frame.FIELD_SENDER, "alice" + text)
+                    .putField(Frame.FIELD_ADDRESS, "10.0.0.1")
+                    .putField(Frame.FIELD_TIME, "12:34:56");
+            Assertions.assertArrayEquals(FrameCodec.encode(chat),
+                    FrameCodec.encodeChat(Frame.FLAG_PRIVATE, text, "alice" + text, "10.0.0.1", "12:34:56"));
+            Assertions.assertArrayEquals(FrameCodec.encode(new Frame(MessageUtils.TEXT, text)),
+                    FrameCodec.encode(MessageUtils.TEXT, 0, text));
+        }
+    }
+
+    // Test that room messages encoded from their parts with a sequence number match frames encoded from a Frame
+    @Test
+    void testEncodeSequenced() throws IOException {
+        for (long sequence : new long[] {0, 1, 127, 128, 1L << 40}) {
+            Frame chat = new Frame(MessageUtils.CHAT, "hello")
+                    .putField(Frame.FIELD_SENDER, "alice")
+                    .putField(Frame.FIELD_ADDRESS, "10.0.0.1")
+                    .putField(Frame.FIELD_TIME, "12:34:56")
+                    .putField(Frame.FIELD_SEQUENCE, sequence);
+            byte[] encoded = FrameCodec.encodeChat(0, "hello", "alice", "10.0.0.1", "12:34:56", sequence);
+            Assertions.assertArrayEquals(FrameCodec.encode(chat), encoded);
+            Assertions.assertEquals(sequence, FrameCodec.decode(ByteBuffer.wrap(encoded)).getLong(Frame.FIELD_SEQUENCE, -1));
+            Assertions.assertArrayEquals(FrameCodec.encode(new Frame(MessageUtils.TEXT, "notice").putField(Frame.FIELD_SEQUENCE, sequence)),
+                    FrameCodec.encode(MessageUtils.TEXT, 0, "notice", sequence));
+        }
+        // A negative sequence leaves the field out
+        Assertions.assertArrayEquals(FrameCodec.encode(MessageUtils.TEXT, 0, "notice"), FrameCodec.encode(MessageUtils.TEXT, 0, "notice", -1));
+    }
+
+    // Test that a FILE_DATA header followed by the data is the same frame as the one encoded from a Frame
+    @Test
+    void testFileDataHeader() throws IOException {
+        byte[] data = new byte[FrameCodec.FILE_CHUNK_SIZE];
+        new java.util.Random(7).nextBytes(data);
+        for (long transfer : new long[] {1, 300, 1L << 40}) {
+            for (int length : new int[] {0, 1, 127, 128, data.length}) {
+                byte[] bytes = java.util.Arrays.copyOf(data, length);
+                byte[] header = FrameCodec.encodeFileDataHeader(transfer, length);
+                byte[] frame = new byte[header.length + length];
+                System.arraycopy(header, 0, frame, 0, header.length);
+                System.arraycopy(bytes, 0, frame, header.length, length);
+                Assertions.assertArrayEquals(FrameCodec.encode(new Frame(MessageUtils.FILE_DATA, "")
+                        .putField(Frame.FIELD_TRANSFER, transfer)
+                        .putField(Frame.FIELD_DATA, bytes)), frame);
+
+                Frame decoded = FrameCodec.decode(ByteBuffer.wrap(frame));
+                Assertions.assertEquals(transfer, decoded.getLong(Frame.FIELD_TRANSFER, -1));
+                Assertions.assertArrayEquals(bytes, decoded.getField(Frame.FIELD_DATA));
+            }
+        }
+        Assertions.assertThrows(IllegalArgumentException.class, () -> FrameCodec.encodeFileDataHeader(1, FrameCodec.FILE_CHUNK_SIZE + 1));
+    }
+
+    // Test that chat lines are displayed with the sender's name and ip address
+    @Test
+    void testChatDisplayText() {
+        Frame frame = new Frame(MessageUtils.CHAT, Frame.FLAG_PRIVATE, "hi")
+                .putField(Frame.FIELD_SENDER, "alice")
+                .putField(Frame.FIELD_ADDRESS, "10.0.0.1")
+                .putField(Frame.FIELD_TIME, "12:00:00");
+        Assertions.assertEquals("\033[31m12:00:00 *** private *** alice(10.0.0.1): hi\033[0m", frame.toDisplayText());
+        Assertions.assertEquals("plain", new Frame(MessageUtils.TEXT, "plain").toDisplayText());
+    }
+
+    // Test that an incomplete frame is left in the buffer until the rest arrives
+    @Test
+    void testDecodeIncomplete() throws IOException {
+        byte[] encoded = FrameCodec.encode(new Frame(MessageUtils.MESSAGE, "partial"));
+        ByteBuffer in = ByteBuffer.wrap(encoded, 0, encoded.length - 1);
+        Assertions.assertNull(FrameCodec.decode(in));
+        Assertions.assertEquals(0, in.position());
+
+        in = ByteBuffer.wrap(encoded);
+        Assertions.assertEquals("partial", FrameCodec.decode(in).getPayload());
+        Assertions.assertFalse(in.hasRemaining());
+    }
+
+    // Test reading and writing frames on blocking streams
+    @Test
+    void testStreams() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(FrameCodec.preamble());
+        FrameCodec.write(out, new Frame(new MessageUtils(MessageUtils.KICK, "bob")));
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Assertions.assertEquals(FrameCodec.VERSION, FrameCodec.readPreamble(in));
+        MessageUtils message = FrameCodec.read(in).toMessage();
+        Assertions.assertEquals(MessageUtils.KICK, message.getType());
+        Assertions.assertEquals("bob", message.getMessage());
+    }
+
+    // Test that clients speaking Java serialization are told apart from the binary protocol
+    @Test
+    void testLegacyDetection() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new ObjectOutputStream(bytes).flush();
+        byte[] legacy = bytes.toByteArray();
+        Assertions.assertTrue(FrameCodec.isLegacyStream(legacy[0], legacy[1]));
+        Assertions.assertEquals(-1, FrameCodec.preambleVersion(legacy));
+
+        byte[] preamble = FrameCodec.preamble();
+        Assertions.assertFalse(FrameCodec.isLegacyStream(preamble[0], preamble[1]));
+        Assertions.assertEquals(FrameCodec.VERSION, FrameCodec.preambleVersion(preamble));
+    }
+
+    // Test that oversized frames are rejected before allocating them
+    @Test
+    void testRejectOversizedFrame() {
+        ByteBuffer in = ByteBuffer.allocate(8).putInt(FrameCodec.MAX_FRAME_LENGTH + 1).putInt(0).flip();
+        Assertions.assertThrows(StreamCorruptedException.class, () -> FrameCodec.decode(in));
+    }
+
+    // Test that large frames are compressed and restored while small ones are sent as they are
+    @Test
+    void testCompression() throws IOException {
+        FrameCompressor compressor = new FrameCompressor();
+        StringBuilder listing = new StringBuilder("List of the users connected at 12:00:00");
+        for (int i = 1; i <= 40; i++) {
+            listing.append('\n').append(i).append(") user").append(i).append(" since Sun Oct 18 12:00:00 UTC 2026\n");
+        }
+        byte[] frame = FrameCodec.encode(new Frame(MessageUtils.TEXT, Frame.FLAG_PRIVATE, listing.toString())
+                .putField(Frame.FIELD_TIME, "12:00:00"));
+        byte[] compressed = compressor.compress(frame);
+        Assertions.assertTrue(compressed.length < frame.length / 4, compressed.length + " of " + frame.length);
+        Assertions.assertArrayEquals(compressed, new FrameCompressor().compress(frame));
+
+        Frame decoded = FrameCodec.decode(ByteBuffer.wrap(compressed), new FrameCompressor());
+        Assertions.assertEquals(listing.toString(), decoded.getPayload());
+        Assertions.assertEquals(Frame.FLAG_PRIVATE, decoded.getFlags());
+        Assertions.assertEquals("12:00:00", decoded.getString(Frame.FIELD_TIME));
+
+        byte[] small = FrameCodec.encode(new Frame(MessageUtils.MESSAGE, "hello"));
+        Assertions.assertSame(small, compressor.compress(small));
+
+        // A peer that did not negotiate compression cannot read compressed frames
+        Assertions.assertThrows(StreamCorruptedException.class, () -> FrameCodec.decode(ByteBuffer.wrap(compressed)));
+        compressor.end();
+        Assertions.assertSame(frame, compressor.compress(frame));
+    }
+
+    // Test that a numeric field that is empty, cut short or followed by more bytes is rejected when it is decoded
+    @Test
+    void testRejectMalformedVarint() {
+        for (byte[] sequence : new byte[][] {{}, {(byte) 0x80}, {1, 2}}) {
+            Frame hello = new Frame(MessageUtils.HELLO, "resumer").putField(Frame.FIELD_SESSION, "token")
+                    .putField(Frame.FIELD_SEQUENCE, sequence);
+            Assertions.assertThrows(StreamCorruptedException.class, () -> FrameCodec.decode(ByteBuffer.wrap(FrameCodec.encode(hello))));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import server.HistoryLog;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+
+class HistoryLogTest {
+    private static final long SEGMENT_SIZE = 8192;
+
+    // Append lines with one timestamp per line and flush them
+    private static void write(HistoryLog log, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            log.append(1000L * i, "message number " + i);
+        }
+        log.flush();
+    }
+
+    // Test that the last lines are read back in order across rolled segments
+    @Test
+    void testReadLastAcrossSegments(@TempDir Path directory) throws IOException {
+        HistoryLog log = new HistoryLog(directory, SEGMENT_SIZE);
+        write(log, 0, 2000);
+
+        Assertions.assertTrue(log.segmentCount() > 1);
+        Assertions.assertEquals(2000, log.nextSequence());
+        List<HistoryLog.Entry> last = log.readLast(700);
+        Assertions.assertEquals(700, last.size());
+        for (int i = 0; i < 700; i++) {
+            Assertions.assertEquals(1300 + i, last.get(i).sequence());
+            Assertions.assertEquals("message number " + (1300 + i), last.get(i).line());
+        }
+        Assertions.assertEquals(2000, log.readLast(5000).size());
+        log.close();
+    }
+
+    // Test that reading since a timestamp starts at the first line that is not older
+    @Test
+    void testReadSince(@TempDir Path directory) throws IOException {
+        HistoryLog log = new HistoryLog(directory, SEGMENT_SIZE);
+        write(log, 0, 2000);
+
+        List<HistoryLog.Entry> since = log.readSince(1_234_500, 10);
+        Assertions.assertEquals(10, since.size());
+        Assertions.assertEquals(1235, since.get(0).sequence());
+        Assertions.assertEquals(1_235_000, since.get(0).timestamp());
+        Assertions.assertEquals(2000, log.readSince(0, 5000).size());
+        Assertions.assertTrue(log.readSince(10_000_000, 10).isEmpty());
+        log.close();
+    }
+
+    // Test that lines only become visible once they are flushed
+    @Test
+    void testUnflushedLinesAreNotVisible(@TempDir Path directory) throws IOException {
+        HistoryLog log = new HistoryLog(directory, SEGMENT_SIZE);
+        log.append(1, "first");
+        Assertions.assertTrue(log.readLast(1).isEmpty());
+        log.flush();
+        Assertions.assertEquals("first", log.readLast(1).get(0).line());
+        log.close();
+    }
+
+    // Test that reopening continues the sequence, drops a partial line and rebuilds a lost index
+    @Test
+    void testRecovery(@TempDir Path directory) throws IOException {
+        HistoryLog log = new HistoryLog(directory, SEGMENT_SIZE);
+        write(log, 0, 500);
+        log.close();
+
+        // Simulate a crash in the middle of a line that lost the index of the last segment
+        Path last;
+        try (var files = Files.list(directory)) {
+            last = files.filter(p -> p.toString().endsWith(".log")).sorted().reduce((a, b) -> b).orElseThrow();
+        }
+        Files.writeString(last, "499000 half a li", StandardOpenOption.APPEND);
+        Files.delete(Path.of(last.toString().replace(".log", ".index")));
+
+        HistoryLog reopened = new HistoryLog(directory, SEGMENT_SIZE);
+        Assertions.assertEquals(500, reopened.nextSequence());
+        write(reopened, 500, 510);
+        List<HistoryLog.Entry> tail = reopened.readLast(20);
+        Assertions.assertEquals(490, tail.get(0).sequence());
+        Assertions.assertEquals("message number 499", tail.get(9).line());
+        Assertions.assertEquals("message number 500", tail.get(10).line());
+        Assertions.assertEquals("message number 509", tail.get(19).line());
+        Assertions.assertEquals(500_000, reopened.readSince(500_000, 1).get(0).timestamp());
+        reopened.close();
+    }
+}
@@ -0,0 +1,60 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import server.HistoryLog;
+import server.HistoryWriter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+
+class HistoryWriterTest {
+
+    // Test that every appended line reaches the log in order once the writer is closed
+    @Test
+    void testLinesAreWrittenInOrder(@TempDir Path directory) throws IOException {
+        HistoryWriter writer = new HistoryWriter(new HistoryLog(directory, HistoryLog.DEFAULT_SEGMENT_SIZE),
+                HistoryWriter.Durability.FLUSH, 0, System.err::println);
+        for (int i = 0; i < 5000; i++) {
+            Assertions.assertTrue(writer.append("line " + i));
+        }
+        writer.close();
+
+        List<HistoryLog.Entry> lines = new HistoryLog(directory, HistoryLog.DEFAULT_SEGMENT_SIZE).readLast(10000);
+        Assertions.assertEquals(5000, lines.size());
+        Assertions.assertEquals("line 0", lines.get(0).line());
+        Assertions.assertEquals("line 4999", lines.get(4999).line());
+        Assertions.assertEquals(0, writer.getPending());
+        Assertions.assertEquals(5000, writer.getWritten());
+        Assertions.assertFalse(writer.append("too late"));
+    }
+
+    // Test that batches are written while the writer runs when durability is not none
+    @Test
+    void testFsyncWritesWhileRunning(@TempDir Path directory) throws IOException, InterruptedException {
+        HistoryLog log = new HistoryLog(directory, HistoryLog.DEFAULT_SEGMENT_SIZE);
+        HistoryWriter writer = new HistoryWriter(log, HistoryWriter.Durability.FSYNC, 0, System.err::println);
+        writer.append("hello");
+        for (int i = 0; i < 50 && writer.getPending() > 0; i++) {
+            Thread.sleep(20);
+        }
+
+        Assertions.assertEquals("hello", log.readLast(1).get(0).line());
+        writer.close();
+    }
+
+    // Test that lines stay buffered under no durability until the writer is closed
+    @Test
+    void testNoDurabilityWritesOnClose(@TempDir Path directory) throws IOException, InterruptedException {
+        HistoryLog log = new HistoryLog(directory, HistoryLog.DEFAULT_SEGMENT_SIZE);
+        HistoryWriter writer = new HistoryWriter(log, HistoryWriter.Durability.NONE, 0, System.err::println);
+        writer.append("buffered");
+        Thread.sleep(200);
+        Assertions.assertEquals(1, writer.getPending());
+        Assertions.assertTrue(log.readLast(1).isEmpty());
+
+        writer.close();
+        Assertions.assertEquals("buffered", log.readLast(1).get(0).line());
+    }
+}
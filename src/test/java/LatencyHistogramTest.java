@@ -0,0 +1,57 @@
+import shared.LatencyHistogram;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+
+class LatencyHistogramTest {
+
+    // Test that percentiles are within the precision of the buckets
+    @Test
+    void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value * 1000);
+        }
+
+        Assertions.assertEquals(100_000, histogram.getCount());
+        Assertions.assertEquals(100_000_000, histogram.getMax());
+        Assertions.assertEquals(50_000_500, histogram.getMean(), 1);
+        Assertions.assertEquals(50_000_000, histogram.getPercentile(50), 50_000_000 * 0.016);
+        Assertions.assertEquals(99_000_000, histogram.getPercentile(99), 99_000_000 * 0.016);
+        Assertions.assertEquals(100_000_000, histogram.getPercentile(100));
+    }
+
+    // Test small, negative and very large values and an empty histogram
+    @Test
+    void testEdges() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assertions.assertEquals(0, histogram.getPercentile(99));
+
+        histogram.record(-5);
+        histogram.record(3);
+        histogram.record(Long.MAX_VALUE);
+        Assertions.assertEquals(0, histogram.getPercentile(0));
+        Assertions.assertEquals(3, histogram.getPercentile(50));
+        Assertions.assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> histogram.getPercentile(101));
+    }
+
+    // Test that values recorded from many threads are all counted
+    @Test
+    void testConcurrentRecording() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = Thread.ofPlatform().start(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    histogram.record(i);
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assertions.assertEquals(80_000, histogram.getCount());
+        Assertions.assertEquals(9_999, histogram.getMax());
+    }
+}
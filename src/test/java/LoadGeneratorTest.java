@@ -0,0 +1,61 @@
+import client.LoadGenerator;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import server.Server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+
+class LoadGeneratorTest {
+    private static Server server;
+
+    @BeforeAll
+    static void startServer() throws InterruptedException, IOException {
+        // Keep the history and the mail out of the source tree
+        Path data = Files.createTempDirectory("chat-data");
+        System.setProperty("history.dir", data.resolve("history").toString());
+        System.setProperty("mailbox.dir", data.resolve("mailbox").toString());
+        server = new Server(1620);
+        server.setHistoryReplay(0);
+        new Thread(server::start).start();
+        Thread.sleep(500);
+    }
+
+    @AfterAll
+    static void stopServer() {
+        server.stop();
+    }
+
+    // Test that a short run connects every client and measures the latency of public and private messages
+    @Test
+    void testShortRun() throws InterruptedException {
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        LoadGenerator generator = new LoadGenerator("localhost", 1620, 20, 1000, 20,
+                LoadGenerator.parseMix("broadcast=50,private=50"), 1000, 32, "lgtest", new PrintStream(report));
+        generator.run();
+
+        Assertions.assertEquals(0, generator.getConnectFailures());
+        Assertions.assertEquals(20, generator.getConnectTime().getCount());
+        Assertions.assertTrue(generator.getSent() > 0);
+        Assertions.assertTrue(generator.getPublicLatency().getCount() > 0);
+        Assertions.assertTrue(generator.getPrivateLatency().getCount() > 0);
+        Assertions.assertTrue(report.toString().contains("=== 20 clients"));
+    }
+
+    // Test parsing the operation mix
+    @Test
+    void testParseMix() {
+        Map<LoadGenerator.Operation, Integer> mix = LoadGenerator.parseMix("broadcast=70, private=25,USERS=4,kick=1");
+        Assertions.assertEquals(70, mix.get(LoadGenerator.Operation.BROADCAST));
+        Assertions.assertEquals(1, mix.get(LoadGenerator.Operation.KICK));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> LoadGenerator.parseMix("broadcast"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> LoadGenerator.parseMix("shout=1"));
+    }
+}
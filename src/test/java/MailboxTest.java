@@ -0,0 +1,97 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import server.Mailbox;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+
+class MailboxTest {
+
+    // Drain a mailbox into a list, accepting the batch
+    private static List<Mailbox.Letter> drain(Mailbox mailbox, String recipient) throws IOException {
+        List<Mailbox.Letter> received = new ArrayList<>();
+        mailbox.drain(recipient, received::addAll);
+        return received;
+    }
+
+    // Test that messages come back in the order they were kept, once, and only to their recipient
+    @Test
+    void testDepositAndDrain(@TempDir Path directory) throws IOException {
+        Mailbox mailbox = new Mailbox(directory, 4096, 1 << 20);
+        Assertions.assertTrue(mailbox.deposit("bob", 1000, "alice", "are you there?"));
+        Assertions.assertTrue(mailbox.deposit("bob", 2000, "(admin)carol", "ünïcode ✓"));
+        Assertions.assertTrue(mailbox.deposit("dave", 3000, "alice", "hello dave"));
+
+        Assertions.assertTrue(drain(mailbox, "nobody").isEmpty());
+        Assertions.assertEquals(List.of(new Mailbox.Letter(1000, "alice", "are you there?"),
+                new Mailbox.Letter(2000, "(admin)carol", "ünïcode ✓")), drain(mailbox, "bob"));
+        Assertions.assertTrue(drain(mailbox, "bob").isEmpty());
+        Assertions.assertEquals(1, drain(mailbox, "dave").size());
+        Assertions.assertEquals(0, mailbox.pendingBytes());
+        try (var files = Files.list(directory)) {
+            Assertions.assertEquals(0, files.count());
+        }
+    }
+
+    // Test that mail survives a restart and that a message cut short while it was written is skipped
+    @Test
+    void testReopenKeepsMail(@TempDir Path directory) throws IOException {
+        Mailbox mailbox = new Mailbox(directory, 4096, 1 << 20);
+        Assertions.assertTrue(mailbox.deposit("erin", 1000, "frank", "first"));
+        Assertions.assertTrue(mailbox.deposit("erin", 2000, "frank", "second"));
+        long pending = mailbox.pendingBytes();
+        try (var files = Files.list(directory)) {
+            Path file = files.findFirst().orElseThrow();
+            Files.write(file, new byte[] {0, 0, 0, 40, 1, 2}, StandardOpenOption.APPEND);
+        }
+
+        Mailbox reopened = new Mailbox(directory, 4096, 1 << 20);
+        Assertions.assertEquals(pending + 6, reopened.pendingBytes());
+        List<Mailbox.Letter> letters = drain(reopened, "erin");
+        Assertions.assertEquals(List.of("first", "second"), letters.stream().map(Mailbox.Letter::message).toList());
+        Assertions.assertEquals(0, reopened.pendingBytes());
+    }
+
+    // Test that a full mailbox or store refuses more mail and that mail a delivery refused is kept
+    @Test
+    void testCapacityAndRefusedDelivery(@TempDir Path directory) throws IOException {
+        Mailbox mailbox = new Mailbox(directory, 100, 150);
+        String text = "x".repeat(40);
+        Assertions.assertTrue(mailbox.deposit("gina", 1, "hal", text));
+        Assertions.assertFalse(mailbox.deposit("gina", 2, "hal", text), "the mailbox is full");
+        Assertions.assertTrue(mailbox.deposit("ivan", 3, "hal", text));
+        Assertions.assertFalse(mailbox.deposit("judy", 4, "hal", text), "the store is full");
+        Assertions.assertFalse(mailbox.deposit("", 5, "hal", text));
+
+        Assertions.assertEquals(0, mailbox.drain("gina", letters -> false));
+        Assertions.assertEquals(1, mailbox.drain("gina", letters -> true));
+        Assertions.assertTrue(mailbox.deposit("judy", 6, "hal", text), "room was made");
+    }
+
+    // Test that a sender mailing made-up names is stopped at its share, also after a restart, and others are not
+    @Test
+    void testSenderCapacity(@TempDir Path directory) throws IOException {
+        Mailbox mailbox = new Mailbox(directory, 4096, 130, 1 << 20);
+        String text = "x".repeat(40);
+        Assertions.assertTrue(mailbox.deposit("typo1", 1, "mallory", text));
+        Assertions.assertTrue(mailbox.deposit("typo2", 2, "mallory", text));
+        Assertions.assertFalse(mailbox.hasRoomFrom("mallory", text));
+        Assertions.assertFalse(mailbox.deposit("typo3", 3, "mallory", text), "the sender's share is full");
+        Assertions.assertTrue(mailbox.deposit("typo3", 4, "nina", text), "other senders still have room");
+        try (var files = Files.list(directory)) {
+            Assertions.assertEquals(3, files.count(), "no empty mailbox is left for a refused message");
+        }
+
+        Mailbox reopened = new Mailbox(directory, 4096, 130, 1 << 20);
+        Assertions.assertFalse(reopened.deposit("typo4", 5, "mallory", text), "the share is counted again on a restart");
+        Assertions.assertEquals(1, drain(reopened, "typo1").size());
+        Assertions.assertTrue(reopened.hasRoomFrom("mallory", text));
+        Assertions.assertTrue(reopened.deposit("typo4", 6, "mallory", text), "a delivery frees the share");
+    }
+}
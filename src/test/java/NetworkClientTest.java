@@ -3,15 +3,32 @@ import server.Server;
 import client.NetworkClient;
 
 import org.junit.jupiter.api.*;
+import shared.Frame;
 import shared.MessageUtils;
 
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
 
 public class NetworkClientTest {
     private static Server server;
     private NetworkClient networkClient;
 
     @BeforeAll
-    public static void startServer() {
+    public static void startServer() throws IOException {
+        // Keep the history and the mail out of the source tree
+        Path data = Files.createTempDirectory("chat-data");
+        System.setProperty("history.dir", data.resolve("history").toString());
+        System.setProperty("mailbox.dir", data.resolve("mailbox").toString());
         // Start the server on port 1500
         server = new Server(1500);
         new Thread(() -> {
@@ -41,6 +58,355 @@ public class NetworkClientTest {
 
     }
 
+    // Test that messages sent asynchronously all arrive, in order, with fewer flushes than messages,
+    // numbered "burst-N" because the bad word filter reads a lone number such as 455 as leet speak
+    @Test
+    public void testSendAsync() throws Exception {
+        List<String> received = new CopyOnWriteArrayList<>();
+        CountDownLatch all = new CountDownLatch(500);
+        NetworkClient reader = new NetworkClient("localhost", 1500, "reader7", new NetworkClient.Listener() {
+            public void onConnect(Socket socket) {}
+            public void onFrame(Frame frame) {
+                if (frame.getType() == MessageUtils.CHAT && frame.getPayload().startsWith("burst-")) {
+                    received.add(frame.getPayload());
+                    all.countDown();
+                }
+            }
+            public void onDisconnect(IOException cause) {}
+        });
+        Assertions.assertTrue(reader.isConnected());
+        NetworkClient bot = new NetworkClient("localhost", 1500, "bot8", new NetworkClient.Listener() {
+            public void onConnect(Socket socket) {}
+            public void onFrame(Frame frame) {}
+            public void onDisconnect(IOException cause) {}
+        });
+        Assertions.assertTrue(bot.isConnected());
+        bot.setSendQueueCapacity(16);
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            futures.add(bot.sendAsync(new MessageUtils(MessageUtils.MESSAGE, "burst-" + i)));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        Assertions.assertTrue(all.await(10, TimeUnit.SECONDS), "received " + received.size());
+        for (int i = 0; i < 500; i++) {
+            Assertions.assertEquals("burst-" + i, received.get(i));
+        }
+        Assertions.assertTrue(bot.getAsyncFlushes() < 500);
+        Assertions.assertEquals(0, bot.getPendingSends());
+
+        // Once closed, messages fail instead of being queued forever
+        bot.closeAll();
+        reader.closeAll();
+        CompletableFuture<Void> late = bot.sendAsync(new MessageUtils(MessageUtils.MESSAGE, "too late"));
+        Assertions.assertThrows(ExecutionException.class, () -> late.get(1, TimeUnit.SECONDS));
+    }
+
+    // Test that compression is used when both sides offer it and that large messages arrive intact either way
+    @Test
+    public void testCompressionNegotiated() throws Exception {
+        String longMessage = "a long pasted message ".repeat(40);
+        CountDownLatch zipReceived = new CountDownLatch(1);
+        CountDownLatch plainReceived = new CountDownLatch(1);
+        NetworkClient compressed = new NetworkClient("localhost", 1500, "zip9", chatListener(longMessage, zipReceived));
+        NetworkClient plain = new NetworkClient("localhost", 1500, "plain10", chatListener(longMessage, plainReceived));
+        plain.setCompression(false);
+        Assertions.assertTrue(compressed.isConnected());
+        Assertions.assertTrue(plain.isConnected());
+        Assertions.assertTrue(compressed.isCompressed());
+        Assertions.assertFalse(plain.isCompressed());
+
+        // Both clients are in the room before the message is sent
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (server.getClients().stream().filter(c -> c.getUsername().matches(".*(zip9|plain10)")).count() < 2
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Assertions.assertTrue(compressed.sendMessage(new MessageUtils(MessageUtils.MESSAGE, longMessage)));
+        Assertions.assertTrue(zipReceived.await(10, TimeUnit.SECONDS));
+        Assertions.assertTrue(plainReceived.await(10, TimeUnit.SECONDS));
+        compressed.closeAll();
+        plain.closeAll();
+    }
+
+    // Test that a presence subscriber's roster follows joins and leaves of the room
+    @Test
+    public void testPresenceSubscription() throws Exception {
+        NetworkClient.Listener quiet = new NetworkClient.Listener() {
+            public void onConnect(Socket socket) {}
+            public void onFrame(Frame frame) {}
+            public void onDisconnect(IOException cause) {}
+        };
+        NetworkClient watcher = new NetworkClient("localhost", 1500, "watcher11", quiet);
+        Assertions.assertTrue(watcher.isConnected());
+        Assertions.assertTrue(watcher.subscribePresence());
+        List<NetworkClient> visitors = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            NetworkClient visitor = new NetworkClient("localhost", 1500, "visitor" + i, quiet);
+            Assertions.assertTrue(visitor.isConnected());
+            visitors.add(visitor);
+        }
+        for (int i = 0; i < 5; i += 2) {
+            visitors.get(i).sendMessage(new MessageUtils(MessageUtils.LOGOUT, ""));
+        }
+
+        // Once the room settled, the local copy has the visitors who stayed and not those who left
+        long deadline = System.currentTimeMillis() + 10_000;
+        List<String> roster;
+        do {
+            Thread.sleep(50);
+            roster = watcher.getPresence().getUsernames();
+        } while (!(roster.contains("visitor3") && !roster.contains("visitor4")) && System.currentTimeMillis() < deadline);
+        Assertions.assertTrue(roster.contains("visitor1") && roster.contains("visitor3"), roster.toString());
+        Assertions.assertFalse(roster.contains("visitor0") || roster.contains("visitor2") || roster.contains("visitor4"), roster.toString());
+        Assertions.assertTrue(roster.stream().anyMatch(name -> name.endsWith("watcher11")), roster.toString());
+        Assertions.assertTrue(watcher.getPresence().isCurrent());
+        for (NetworkClient visitor : visitors) {
+            visitor.closeAll();
+        }
+        watcher.closeAll();
+    }
+
+    // Test that a client whose connection drops reconnects by itself, resumes its session and sends what was typed
+    // meanwhile, and that it gives up once its attempts are used up
+    @Test
+    public void testAutoReconnect() throws Exception {
+        Server flaky = new Server(1670);
+        flaky.setHistoryReplay(0);
+        new Thread(flaky::start).start();
+        Thread.sleep(500);
+        try (Relay relay = new Relay(1671, 1670)) {
+            List<String> watcherChat = new CopyOnWriteArrayList<>();
+            NetworkClient watcher = new NetworkClient("localhost", 1670, "watcher12", new NetworkClient.Listener() {
+                public void onConnect(Socket socket) {}
+                public void onFrame(Frame frame) {
+                    if (frame.getType() == MessageUtils.CHAT) {
+                        watcherChat.add(frame.getPayload());
+                    }
+                }
+                public void onDisconnect(IOException cause) {}
+            });
+            java.util.concurrent.atomic.AtomicInteger attempts = new java.util.concurrent.atomic.AtomicInteger();
+            CountDownLatch gaveUp = new CountDownLatch(1);
+            CountDownLatch sessionOpened = new CountDownLatch(1);
+            NetworkClient roamer = new NetworkClient("localhost", 1671, "roamer13", new NetworkClient.Listener() {
+                public void onConnect(Socket socket) {}
+                public void onFrame(Frame frame) {
+                    if (frame.getType() == MessageUtils.SESSION) {
+                        sessionOpened.countDown();
+                    }
+                }
+                public void onDisconnect(IOException cause) {
+                    gaveUp.countDown();
+                }
+                public void onReconnecting(int attempt, long delayMillis) {
+                    attempts.incrementAndGet();
+                }
+            });
+            roamer.setReconnect(50, 20, 100);
+            Assertions.assertTrue(watcher.isConnected());
+            Assertions.assertTrue(roamer.isConnected());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (flaky.getClients().size() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            // Without the token of its session the client could only come back under a new one
+            Assertions.assertTrue(sessionOpened.await(5, TimeUnit.SECONDS));
+
+            // The connection drops and the first attempts to open it again are refused
+            relay.setRefusing(true);
+            relay.cut();
+            deadline = System.currentTimeMillis() + 5000;
+            while (attempts.get() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assertions.assertTrue(roamer.isReconnecting());
+            Assertions.assertTrue(roamer.sendMessage(new MessageUtils(MessageUtils.MESSAGE, "typed-offline")));
+
+            // Once the server can be reached the session is resumed and the kept message goes out
+            relay.setRefusing(false);
+            deadline = System.currentTimeMillis() + 10_000;
+            while (!watcherChat.contains("typed-offline") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            Assertions.assertTrue(watcherChat.contains("typed-offline"));
+            Assertions.assertFalse(roamer.isReconnecting());
+            Assertions.assertTrue(roamer.isResumed());
+            Assertions.assertEquals(1, gaveUp.getCount());
+            Assertions.assertTrue(flaky.getClients().stream().anyMatch(client -> client.getUsername().equals("roamer13")));
+
+            // With its attempts used up the client gives up and reports the disconnect
+            roamer.setReconnect(2, 10, 20);
+            relay.setRefusing(true);
+            relay.cut();
+            Assertions.assertTrue(gaveUp.await(5, TimeUnit.SECONDS));
+            Assertions.assertFalse(roamer.isReconnecting());
+            watcher.closeAll();
+        }
+        finally {
+            flaky.stop();
+        }
+    }
+
+    // Test that connections the server refuses spend the reconnect attempts, rather than starting them over
+    @Test
+    public void testReconnectRefused() throws Exception {
+        NetworkClient holder = new NetworkClient("localhost", 1500, "holder15", new NetworkClient.Listener() {
+            public void onConnect(Socket socket) {}
+            public void onFrame(Frame frame) {}
+            public void onDisconnect(IOException cause) {}
+        });
+        List<Integer> attempts = new CopyOnWriteArrayList<>();
+        CountDownLatch gaveUp = new CountDownLatch(1);
+        NetworkClient twin = new NetworkClient("localhost", 1500, "holder15", new NetworkClient.Listener() {
+            public void onConnect(Socket socket) {}
+            public void onFrame(Frame frame) {}
+            public void onDisconnect(IOException cause) {
+                gaveUp.countDown();
+            }
+            public void onReconnecting(int attempt, long delayMillis) {
+                attempts.add(attempt);
+            }
+        });
+        twin.setReconnect(3, 10, 20);
+        Assertions.assertTrue(holder.isConnected());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getClients().stream().noneMatch(client -> client.getUsername().equals("holder15"))
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+
+        // The server accepts the connection but refuses the username every time
+        Assertions.assertTrue(twin.isConnected());
+        Assertions.assertTrue(gaveUp.await(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(List.of(1, 2, 3), attempts);
+        Assertions.assertFalse(twin.isReconnecting());
+        holder.closeAll();
+    }
+
+    // Test that a private message to a user who is not in the room is delivered in a batch when they join
+    @Test
+    public void testOfflineMailbox() throws Exception {
+        String absent = "away" + System.nanoTime() % 100_000;
+        List<String> senderText = new CopyOnWriteArrayList<>();
+        NetworkClient postman = new NetworkClient("localhost", 1500, "postman14", new NetworkClient.Listener() {
+            public void onConnect(Socket socket) {}
+            public void onFrame(Frame frame) {
+                senderText.add(frame.getPayload());
+            }
+            public void onDisconnect(IOException cause) {}
+        });
+        Assertions.assertTrue(postman.isConnected());
+        postman.sendMessage(new MessageUtils(MessageUtils.MESSAGE, "@" + absent + " first-note"));
+        postman.sendMessage(new MessageUtils(MessageUtils.MESSAGE, "@" + absent + " second-note"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (senderText.stream().filter(text -> text.contains(absent + " is not in the chat room")).count() < 2
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Assertions.assertEquals(2, senderText.stream().filter(text -> text.contains(absent + " is not in the chat room")).count());
+
+        CountDownLatch delivered = new CountDownLatch(1);
+        List<String> mail = new CopyOnWriteArrayList<>();
+        NetworkClient returning = new NetworkClient("localhost", 1500, absent, new NetworkClient.Listener() {
+            public void onConnect(Socket socket) {}
+            public void onFrame(Frame frame) {
+                if (frame.getPayload().contains("arrived while you were away")) {
+                    mail.add(frame.getPayload());
+                    delivered.countDown();
+                }
+            }
+            public void onDisconnect(IOException cause) {}
+        });
+        Assertions.assertTrue(returning.isConnected());
+        Assertions.assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        String batch = mail.get(0);
+        Assertions.assertTrue(batch.contains("2 private messages"), batch);
+        Assertions.assertTrue(batch.indexOf("first-note") < batch.indexOf("second-note"), batch);
+        Assertions.assertTrue(batch.contains("postman14: first-note"), batch);
+        returning.closeAll();
+        postman.closeAll();
+    }
+
+    // Forwards connections to the server and can cut them, or refuse new ones, to stand for a flaky network
+    private static final class Relay implements AutoCloseable {
+        private final java.net.ServerSocket listening;
+        private final List<Socket> open = new CopyOnWriteArrayList<>();
+        private volatile boolean refusing;
+
+        Relay(int port, int target) throws IOException {
+            listening = new java.net.ServerSocket(port);
+            Thread.ofVirtual().start(() -> {
+                try {
+                    while (true) {
+                        Socket client = listening.accept();
+                        if (refusing) {
+                            client.close();
+                            continue;
+                        }
+                        Socket upstream = new Socket("localhost", target);
+                        open.add(client);
+                        open.add(upstream);
+                        Thread.ofVirtual().start(() -> pipe(client, upstream));
+                        Thread.ofVirtual().start(() -> pipe(upstream, client));
+                    }
+                }
+                catch (IOException e) {
+                    // The relay was closed
+                }
+            });
+        }
+
+        void setRefusing(boolean refusing) {
+            this.refusing = refusing;
+        }
+
+        // Close every forwarded connection, both peers see it drop
+        void cut() {
+            for (Socket socket : open) {
+                try {
+                    socket.close();
+                }
+                catch (IOException e) {
+                }
+            }
+            open.clear();
+        }
+
+        public void close() throws IOException {
+            listening.close();
+            cut();
+        }
+
+        private static void pipe(Socket from, Socket to) {
+            try {
+                from.getInputStream().transferTo(to.getOutputStream());
+            }
+            catch (IOException e) {
+                // Cut
+            }
+            try {
+                from.close();
+                to.close();
+            }
+            catch (IOException e) {
+            }
+        }
+    }
+
+    // Listener counting down when the expected chat line arrives
+    private static NetworkClient.Listener chatListener(String expected, CountDownLatch received) {
+        return new NetworkClient.Listener() {
+            public void onConnect(Socket socket) {}
+            public void onFrame(Frame frame) {
+                if (frame.getType() == MessageUtils.CHAT && frame.getPayload().equals(expected)) {
+                    received.countDown();
+                }
+            }
+            public void onDisconnect(IOException cause) {}
+        };
+    }
+
     // Test the sendMessage() method with a null message
     @org.junit.Test(expected = NullPointerException.class)
     public void testSendMessageNull() {
@@ -0,0 +1,138 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import server.ObjectStreamCodec;
+import shared.MessageUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+
+class ObjectStreamCodecTest {
+
+    // Serialize the handshake and a few requests exactly like NetworkClient does
+    private byte[] clientStream() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject("tester");
+        out.writeObject(new MessageUtils(MessageUtils.MESSAGE, "hello ünïcödé"));
+        out.writeObject(new MessageUtils(MessageUtils.USERS, ""));
+        out.writeObject(new MessageUtils(MessageUtils.LOGOUT, ""));
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // Check the objects decoded from the client stream
+    private void assertDecoded(ArrayList<Object> decoded) {
+        Assertions.assertEquals(4, decoded.size());
+        Assertions.assertEquals("tester", decoded.get(0));
+        MessageUtils message = (MessageUtils) decoded.get(1);
+        Assertions.assertEquals(MessageUtils.MESSAGE, message.getType());
+        Assertions.assertEquals("hello ünïcödé", message.getMessage());
+        Assertions.assertEquals(MessageUtils.USERS, ((MessageUtils) decoded.get(2)).getType());
+        Assertions.assertEquals(MessageUtils.LOGOUT, ((MessageUtils) decoded.get(3)).getType());
+        Assertions.assertEquals("", ((MessageUtils) decoded.get(3)).getMessage());
+    }
+
+    // Test decoding the whole stream at once
+    @Test
+    void testDecodeWholeStream() throws IOException {
+        ObjectStreamCodec codec = new ObjectStreamCodec();
+        ByteBuffer in = ByteBuffer.wrap(clientStream());
+        ArrayList<Object> decoded = new ArrayList<>();
+        Object obj;
+        while ((obj = codec.decode(in)) != null) {
+            decoded.add(obj);
+        }
+        assertDecoded(decoded);
+        Assertions.assertFalse(in.hasRemaining());
+    }
+
+    // Test decoding when the stream arrives one byte at a time
+    @Test
+    void testDecodeByteByByte() throws IOException {
+        byte[] stream = clientStream();
+        ObjectStreamCodec codec = new ObjectStreamCodec();
+        ByteBuffer in = ByteBuffer.allocate(stream.length);
+        ArrayList<Object> decoded = new ArrayList<>();
+        for (byte b : stream) {
+            in.put(b);
+            in.flip();
+            Object obj;
+            while ((obj = codec.decode(in)) != null) {
+                decoded.add(obj);
+            }
+            in.compact();
+        }
+        assertDecoded(decoded);
+    }
+
+    // Test that encoded strings can be read by an ObjectInputStream
+    @Test
+    void testEncodeString() throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(ObjectStreamCodec.streamHeader());
+        bytes.write(ObjectStreamCodec.encodeString("\033[34m12:00:00 tester: hi\033[0m"));
+        bytes.write(ObjectStreamCodec.encodeString("x".repeat(70000)));
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Assertions.assertEquals("\033[34m12:00:00 tester: hi\033[0m", in.readObject());
+        Assertions.assertEquals("x".repeat(70000), in.readObject());
+    }
+
+    // Test that unexpected classes are rejected
+    @Test
+    void testRejectUnexpectedClass() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(new ArrayList<String>());
+        out.flush();
+        ObjectStreamCodec codec = new ObjectStreamCodec();
+        Assertions.assertThrows(IOException.class, () -> codec.decode(ByteBuffer.wrap(bytes.toByteArray())));
+    }
+
+    // Test that a negative field count and a string longer than any frame are rejected before allocating them
+    @Test
+    void testRejectInvalidLengths() {
+        ByteBuffer negativeCount = ByteBuffer.allocate(64);
+        negativeCount.put(ObjectStreamCodec.streamHeader()).put((byte) 0x73).put((byte) 0x72);
+        byte[] name = MessageUtils.class.getName().getBytes();
+        negativeCount.putShort((short) name.length).put(name).putLong(1L).put((byte) 0x02).putShort((short) -1).flip();
+        Assertions.assertThrows(StreamCorruptedException.class, () -> new ObjectStreamCodec().decode(negativeCount));
+
+        ByteBuffer longString = ByteBuffer.allocate(16);
+        longString.put(ObjectStreamCodec.streamHeader()).put((byte) 0x7C).putLong(Integer.MAX_VALUE).flip();
+        Assertions.assertThrows(StreamCorruptedException.class, () -> new ObjectStreamCodec().decode(longString));
+    }
+
+    // Test that a chain of superclasses and objects nested in fields are rejected instead of overflowing the stack
+    @Test
+    void testRejectDeepNesting() {
+        byte[] name = MessageUtils.class.getName().getBytes();
+        ByteBuffer superclasses = ByteBuffer.allocate(400_000);
+        superclasses.put(ObjectStreamCodec.streamHeader()).put((byte) 0x73);
+        for (int i = 0; i < 10_000; i++) {
+            superclasses.put((byte) 0x72).putShort((short) name.length).put(name).putLong(1L).put((byte) 0x02)
+                    .putShort((short) 0).put((byte) 0x78);
+        }
+        superclasses.put((byte) 0x70).flip();
+        Assertions.assertThrows(StreamCorruptedException.class, () -> new ObjectStreamCodec().decode(superclasses));
+
+        // A MessageUtils whose only field holds another one, which refers back to the same class descriptor
+        byte[] signature = "Lshared/MessageUtils;".getBytes();
+        ByteBuffer objects = ByteBuffer.allocate(400_000);
+        objects.put(ObjectStreamCodec.streamHeader()).put((byte) 0x73).put((byte) 0x72).putShort((short) name.length)
+                .put(name).putLong(1L).put((byte) 0x02).putShort((short) 1).put((byte) 'L').putShort((short) 4)
+                .put("next".getBytes()).put((byte) 0x74).putShort((short) signature.length).put(signature)
+                .put((byte) 0x78).put((byte) 0x70);
+        for (int i = 0; i < 20_000; i++) {
+            objects.put((byte) 0x73).put((byte) 0x71).putInt(0x7e0000);
+        }
+        objects.put((byte) 0x70).flip();
+        Assertions.assertThrows(StreamCorruptedException.class, () -> new ObjectStreamCodec().decode(objects));
+    }
+}
@@ -0,0 +1,81 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import server.EncodedMessage;
+import server.OutboundQueue;
+import shared.MessageUtils;
+
+
+class OutboundQueueTest {
+
+    // Test that the oldest message makes room for a new one
+    @Test
+    void testDropOldest() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        Assertions.assertTrue(queue.offer(EncodedMessage.text("one")));
+        Assertions.assertTrue(queue.offer(EncodedMessage.text("two")));
+        Assertions.assertTrue(queue.offer(EncodedMessage.text("three")));
+
+        Assertions.assertEquals(1, queue.getDropped());
+        Assertions.assertEquals("two", queue.poll().getText());
+        Assertions.assertEquals("three", queue.poll().getText());
+        Assertions.assertNull(queue.poll());
+    }
+
+    // Test that control frames are never dropped, even past the capacity, and that a dropped room message is announced
+    @Test
+    void testDropOldestKeepsControlFrames() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        EncodedMessage logout = EncodedMessage.control(MessageUtils.LOGOUT);
+        EncodedMessage ping = EncodedMessage.control(MessageUtils.PING);
+        EncodedMessage pong = EncodedMessage.control(MessageUtils.PONG);
+        Assertions.assertTrue(queue.offer(logout));
+        Assertions.assertTrue(queue.offer(EncodedMessage.text("one", 1)));
+        Assertions.assertTrue(queue.offer(EncodedMessage.text("two", 2)));
+        Assertions.assertTrue(queue.offer(ping));
+        Assertions.assertTrue(queue.offer(pong));
+        Assertions.assertTrue(queue.offer(EncodedMessage.text("three", 3)));
+
+        Assertions.assertEquals(3, queue.getDropped());
+        Assertions.assertTrue(queue.poll().getText().contains("3 messages were skipped"));
+        Assertions.assertSame(logout, queue.poll());
+        Assertions.assertSame(ping, queue.poll());
+        Assertions.assertSame(pong, queue.poll());
+        Assertions.assertNull(queue.poll());
+    }
+
+    // Test that a full queue refuses messages and closes under the disconnect policy
+    @Test
+    void testDisconnect() {
+        OutboundQueue queue = new OutboundQueue(1, OutboundQueue.OverflowPolicy.DISCONNECT);
+        Assertions.assertTrue(queue.offer(EncodedMessage.text("one")));
+        Assertions.assertFalse(queue.offer(EncodedMessage.text("two")));
+        Assertions.assertTrue(queue.isClosed());
+        Assertions.assertEquals(1, queue.getDropped());
+    }
+
+    // Test that the backlog is replaced by a single notice under the coalesce policy
+    @Test
+    void testCoalesce() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.COALESCE);
+        queue.offer(EncodedMessage.text("one"));
+        queue.offer(EncodedMessage.text("two"));
+        queue.offer(EncodedMessage.text("three"));
+
+        Assertions.assertTrue(queue.poll().getText().contains("2 messages were skipped"));
+        Assertions.assertEquals("three", queue.poll().getText());
+        Assertions.assertNull(queue.poll());
+        Assertions.assertEquals(2, queue.getPeakDepth());
+    }
+
+    // Test that a closed queue still hands out what was queued before ending the writer
+    @Test
+    void testTakeAfterClose() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        queue.offer(EncodedMessage.text("last words"));
+        queue.close();
+
+        Assertions.assertFalse(queue.offer(EncodedMessage.text("too late")));
+        Assertions.assertEquals("last words", queue.take().getText());
+        Assertions.assertNull(queue.take());
+    }
+}
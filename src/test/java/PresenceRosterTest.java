@@ -0,0 +1,51 @@
+import client.PresenceRoster;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import shared.Frame;
+import shared.MessageUtils;
+
+import java.util.List;
+
+
+class PresenceRosterTest {
+
+    // Presence update of the given event bringing the roster to the version
+    private static Frame update(int event, String username, String previous, long version) {
+        Frame frame = new Frame(MessageUtils.PRESENCE, username)
+                .putField(Frame.FIELD_EVENT, event)
+                .putField(Frame.FIELD_VERSION, version);
+        return previous == null ? frame : frame.putField(Frame.FIELD_PREVIOUS, previous);
+    }
+
+    // Test that updates following the roster keep the local copy in step
+    @Test
+    void testUpdates() {
+        PresenceRoster roster = new PresenceRoster();
+        Assertions.assertFalse(roster.isCurrent());
+        Assertions.assertTrue(roster.apply(new Frame(MessageUtils.ROSTER, "(admin)alice\nbob").putField(Frame.FIELD_VERSION, 7)));
+        Assertions.assertTrue(roster.apply(update(Frame.PRESENCE_JOIN, "carol", null, 8)));
+        Assertions.assertTrue(roster.apply(update(Frame.PRESENCE_LEAVE, "(admin)alice", null, 9)));
+        Assertions.assertTrue(roster.apply(update(Frame.PRESENCE_COORDINATOR, "(admin)bob", "bob", 10)));
+
+        Assertions.assertEquals(List.of("(admin)bob", "carol"), roster.getUsernames());
+        Assertions.assertEquals(10, roster.getVersion());
+        Assertions.assertTrue(roster.isCurrent());
+    }
+
+    // Test that a missed update is detected and that updates are ignored until a fresh roster arrives
+    @Test
+    void testMissedUpdate() {
+        PresenceRoster roster = new PresenceRoster();
+        roster.apply(new Frame(MessageUtils.ROSTER, "alice").putField(Frame.FIELD_VERSION, 3));
+        Assertions.assertFalse(roster.apply(update(Frame.PRESENCE_JOIN, "carol", null, 5)));
+        Assertions.assertFalse(roster.isCurrent());
+        Assertions.assertEquals(1, roster.getResyncs());
+        Assertions.assertTrue(roster.apply(update(Frame.PRESENCE_JOIN, "dave", null, 6)));
+        Assertions.assertEquals(List.of("alice"), roster.getUsernames());
+
+        Assertions.assertTrue(roster.apply(new Frame(MessageUtils.ROSTER, "alice\ncarol\ndave").putField(Frame.FIELD_VERSION, 6)));
+        Assertions.assertTrue(roster.apply(update(Frame.PRESENCE_LEAVE, "carol", null, 7)));
+        Assertions.assertEquals(List.of("alice", "dave"), roster.getUsernames());
+        Assertions.assertTrue(roster.isCurrent());
+    }
+}
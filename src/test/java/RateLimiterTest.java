@@ -0,0 +1,39 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import server.RateLimiter;
+import server.TokenBucket;
+
+
+class RateLimiterTest {
+
+    // Test that the coordinator's commands change the limits and the policy
+    @Test
+    void testConfigure() {
+        RateLimiter limiter = new RateLimiter();
+        Assertions.assertTrue(limiter.getLimit(RateLimiter.Kind.MESSAGES).isUnlimited());
+        limiter.configure("messages 10 20");
+        Assertions.assertEquals(new TokenBucket.Limit(10, 20), limiter.getLimit(RateLimiter.Kind.MESSAGES));
+        // The burst defaults to a second's worth
+        limiter.configure(" IP-Bytes  4096 ");
+        Assertions.assertEquals(new TokenBucket.Limit(4096, 4096), limiter.getLimit(RateLimiter.Kind.IP_BYTES));
+        limiter.configure("messages 0");
+        Assertions.assertTrue(limiter.getLimit(RateLimiter.Kind.MESSAGES).isUnlimited());
+        limiter.configure("policy disconnect");
+        Assertions.assertEquals(RateLimiter.Policy.DISCONNECT, limiter.getPolicy());
+        Assertions.assertTrue(limiter.describe().contains("ip-bytes 4096.0/s burst 4096"), limiter.describe());
+    }
+
+    // Test that commands which make no sense are refused with the usage and change nothing
+    @Test
+    void testConfigureRefusesNonsense() {
+        RateLimiter limiter = new RateLimiter();
+        for (String command : new String[] {"", "messages", "messages ten", "messages -1 5", "words 10", "policy ignore", "bytes 10 20 30"}) {
+            IllegalArgumentException e = Assertions.assertThrows(IllegalArgumentException.class, () -> limiter.configure(command), command);
+            Assertions.assertTrue(e.getMessage().startsWith("Usage: LIMIT"), e.getMessage());
+        }
+        for (RateLimiter.Kind kind : RateLimiter.Kind.values()) {
+            Assertions.assertTrue(limiter.getLimit(kind).isUnlimited(), kind.getName());
+        }
+        Assertions.assertEquals(RateLimiter.Policy.DELAY, limiter.getPolicy());
+    }
+}
@@ -0,0 +1,115 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import server.ClientConnection;
+import server.EncodedMessage;
+import server.OutboundQueue;
+import server.Server;
+import server.ServerMetrics;
+import shared.MessageUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+
+class ServerMetricsTest {
+
+    // This method is run once before the servers of all tests are created
+    @BeforeAll
+    static void useTemporaryData() throws IOException {
+        // Keep the history and the mail out of the source tree
+        Path data = Files.createTempDirectory("chat-data");
+        System.setProperty("history.dir", data.resolve("history").toString());
+        System.setProperty("mailbox.dir", data.resolve("mailbox").toString());
+    }
+
+    // Connection that remembers the text of every message sent to it
+    private static class RecordingConnection implements ClientConnection {
+        private final long id;
+        private volatile String username;
+        private final List<String> received = new ArrayList<>();
+
+        RecordingConnection(long id, String username) {
+            this.id = id;
+            this.username = username;
+        }
+
+        public long getId() {return id;}
+        public String getUsername() {return username;}
+        public void setUsername(String username) {this.username = username;}
+        public String getIpAddress() {return "127.0.0.1";}
+        public String getDate() {return "";}
+        public boolean send(EncodedMessage msg) {received.add(msg.getText()); return true;}
+        public OutboundQueue getOutboundQueue() {return new OutboundQueue(1, OutboundQueue.OverflowPolicy.DROP_OLDEST);}
+        public void close() {}
+    }
+
+    // Test that stages and counters are recorded and described
+    @Test
+    void testRecordAndDescribe() {
+        ServerMetrics metrics = new ServerMetrics();
+        metrics.record(ServerMetrics.Stage.FAN_OUT, System.nanoTime() - 1_000_000);
+        metrics.count(ServerMetrics.Counter.DELIVERED, 5);
+        metrics.count(ServerMetrics.Counter.DELIVERED);
+
+        Assertions.assertEquals(1, metrics.get(ServerMetrics.Stage.FAN_OUT).getCount());
+        Assertions.assertTrue(metrics.get(ServerMetrics.Stage.FAN_OUT).getMax() >= 1_000_000);
+        Assertions.assertEquals(6, metrics.get(ServerMetrics.Counter.DELIVERED));
+        List<String> lines = metrics.describe();
+        Assertions.assertEquals(ServerMetrics.Stage.values().length + ServerMetrics.Counter.values().length, lines.size());
+        Assertions.assertTrue(lines.stream().anyMatch(line -> line.startsWith("fan-out") && line.contains("n=1")));
+        Assertions.assertTrue(lines.stream().anyMatch(line -> line.startsWith("delivered") && line.contains("6 total")));
+    }
+
+    // Test that the server counts a broadcast and only the coordinator can read the statistics
+    @Test
+    void testStatsRequest() {
+        Server server = new Server(0);
+        server.setHistoryReplay(0);
+        RecordingConnection alice = new RecordingConnection(1, "alice");
+        RecordingConnection bob = new RecordingConnection(2, "bob");
+        for (RecordingConnection client : List.of(alice, bob)) {
+            Assertions.assertTrue(server.reserveUsername(client.getUsername(), client));
+            server.addClient(client);
+        }
+
+        server.handleMessage(bob, new MessageUtils(MessageUtils.MESSAGE, "hello"));
+        Assertions.assertEquals(1, server.getMetrics().get(ServerMetrics.Counter.BROADCASTS));
+        Assertions.assertEquals(2, server.getMetrics().get(ServerMetrics.Counter.DELIVERED));
+        Assertions.assertEquals(1, server.getMetrics().get(ServerMetrics.Stage.MODERATION).getCount());
+
+        server.handleMessage(bob, new MessageUtils(MessageUtils.STATS, ""));
+        Assertions.assertTrue(bob.received.get(bob.received.size() - 1).contains("not authorized"));
+
+        server.handleMessage(alice, new MessageUtils(MessageUtils.STATS, ""));
+        Assertions.assertTrue(alice.received.stream().anyMatch(line -> line.startsWith("Server statistics")));
+        Assertions.assertTrue(alice.received.stream().anyMatch(line -> line.startsWith("broadcasts") && line.contains("1 total")));
+        server.stop();
+    }
+
+    // Test that only the text of a private message is moderated, not the username it is sent to
+    @Test
+    void testPrivateMessageModeration() {
+        Server server = new Server(0);
+        server.setHistoryReplay(0);
+        RecordingConnection alice = new RecordingConnection(1, "alice");
+        RecordingConnection nus = new RecordingConnection(2, "nus");
+        for (RecordingConnection client : List.of(alice, nus)) {
+            Assertions.assertTrue(server.reserveUsername(client.getUsername(), client));
+            server.addClient(client);
+        }
+
+        server.handleMessage(alice, new MessageUtils(MessageUtils.MESSAGE, "@nus hi"));
+        Assertions.assertEquals(1, server.getMetrics().get(ServerMetrics.Counter.PRIVATE));
+        Assertions.assertEquals(0, server.getMetrics().get(ServerMetrics.Counter.REJECTED));
+        Assertions.assertTrue(nus.received.stream().anyMatch(line -> line.contains("hi")));
+
+        server.handleMessage(alice, new MessageUtils(MessageUtils.MESSAGE, "@nus you anus"));
+        Assertions.assertEquals(1, server.getMetrics().get(ServerMetrics.Counter.PRIVATE));
+        Assertions.assertEquals(1, server.getMetrics().get(ServerMetrics.Counter.REJECTED));
+        server.stop();
+    }
+}
@@ -1,16 +1,42 @@
 
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-import server.ClientHandler;
+import server.ClientConnection;
+import server.EncodedMessage;
+import server.OutboundQueue;
+import server.RateLimiter;
 import server.Server;
+import server.ServerMetrics;
+import server.TokenBucket;
 
+import client.NetworkClient;
+
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 
 
 class ServerTest {
     private Server server;
 
+    // This method is run once before the servers of all tests are created
+    @BeforeAll
+    static void useTemporaryData() throws IOException {
+        // Keep the history and the mail of the servers out of the source tree, the directory outlives the tests
+        // because their servers are never really stopped
+        Path data = Files.createTempDirectory("chat-data");
+        System.setProperty("history.dir", data.resolve("history").toString());
+        System.setProperty("mailbox.dir", data.resolve("mailbox").toString());
+    }
+
     // This method is run before each test
     @BeforeEach
     void setUp() {
@@ -47,10 +73,563 @@ class ServerTest {
     // Test the getter for the list of clients when server is empty
     @Test
     void testGetClients() {
-        ArrayList<ClientHandler> clientsArray = server.getClients();
+        ArrayList<ClientConnection> clientsArray = server.getClients();
         Assertions.assertEquals(0, clientsArray.size());
     }
 
+    // Connection that accepts every message without writing it
+    private static class SilentConnection implements ClientConnection {
+        private final long id;
+        private volatile String username;
+
+        SilentConnection(long id, String username) {
+            this.id = id;
+            this.username = username;
+        }
+
+        public long getId() {return id;}
+        public String getUsername() {return username;}
+        public void setUsername(String username) {this.username = username;}
+        public String getIpAddress() {return "127.0.0.1";}
+        public String getDate() {return "";}
+        public boolean send(EncodedMessage msg) {return true;}
+        public OutboundQueue getOutboundQueue() {return null;}
+        public void close() {}
+    }
+
+    // Test that the memory a broadcast allocates does not grow with the number of recipients
+    @Test
+    void testBroadcastAllocationIndependentOfRoomSize() {
+        server.setHistoryReplay(0);
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            long small = bytesPerBroadcast(10);
+            long large = bytesPerBroadcast(1000);
+            Assertions.assertTrue(large - small < 256, "a broadcast to 1000 clients allocated " + large
+                    + " bytes, to 10 clients " + small + " bytes");
+        }
+        finally {
+            System.setOut(console);
+            server.stop();
+        }
+    }
+
+    // Bytes the calling thread allocates per broadcast once the room has the given size
+    private long bytesPerBroadcast(int roomSize) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        while (server.getClients().size() < roomSize) {
+            SilentConnection client = new SilentConnection(server.getUniqueId(), "user" + server.getClients().size());
+            server.reserveUsername(client.getUsername(), client);
+            server.addClient(client);
+        }
+        ClientConnection sender = server.getClients().get(0);
+        for (int i = 0; i < 20_000; i++) {
+            server.broadcast(sender, "warming up the message path");
+        }
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < 1000; i++) {
+            server.broadcast(sender, "hello everyone, how is the project going today?");
+        }
+        return (threads.getCurrentThreadAllocatedBytes() - before) / 1000;
+    }
+
+    // Test that a client that never sends its username neither delays the next client nor stays connected
+    @Test
+    void testHandshakeTimeout() throws Exception {
+        for (Server.Engine engine : new Server.Engine[] {Server.Engine.THREADED, Server.Engine.NIO}) {
+            int port = 1630 + engine.ordinal();
+            Server slowServer = new Server(port, engine);
+            slowServer.setHandshakeTimeout(300);
+            new Thread(slowServer::start).start();
+            Thread.sleep(500);
+            try (Socket silent = new Socket("localhost", port)) {
+                NetworkClient client = new NetworkClient("localhost", port, "prompt" + port, new NetworkClient.Listener() {
+                    public void onConnect(Socket socket) {}
+                    public void onFrame(shared.Frame frame) {}
+                    public void onDisconnect(java.io.IOException cause) {}
+                });
+                Assertions.assertTrue(client.isConnected(), engine + " accepted a client behind a silent one");
+
+                // The server closes the silent connection once the timeout passed
+                silent.setSoTimeout(5000);
+                Assertions.assertEquals(-1, silent.getInputStream().read(), engine + " closed the silent connection");
+                Assertions.assertEquals(1, slowServer.getMetrics().get(ServerMetrics.Counter.TIMEOUTS));
+                client.closeAll();
+            }
+            finally {
+                slowServer.stop();
+            }
+        }
+    }
+
+    // Test that a client that stops answering heartbeats is reaped while a live but quiet one stays
+    @Test
+    void testHeartbeatReaping() throws Exception {
+        for (Server.Engine engine : new Server.Engine[] {Server.Engine.THREADED, Server.Engine.NIO}) {
+            int port = 1640 + engine.ordinal();
+            Server watchedServer = new Server(port, engine);
+            watchedServer.setHistoryReplay(0);
+            watchedServer.setHeartbeat(100, 400);
+            // A reaped client keeps its place until its session expires
+            watchedServer.setSessionGrace(200);
+            new Thread(watchedServer::start).start();
+            Thread.sleep(500);
+            try (Socket dead = new Socket("localhost", port)) {
+                // A client that joins with heartbeats and then never answers them
+                DataOutputStream out = new DataOutputStream(dead.getOutputStream());
+                out.write(shared.FrameCodec.preamble());
+                shared.FrameCodec.write(out, new shared.Frame(shared.MessageUtils.HELLO, "dead" + port));
+                out.flush();
+                NetworkClient alive = new NetworkClient("localhost", port, "alive" + port, new NetworkClient.Listener() {
+                    public void onConnect(Socket socket) {}
+                    public void onFrame(shared.Frame frame) {}
+                    public void onDisconnect(java.io.IOException cause) {}
+                });
+                Assertions.assertTrue(alive.isConnected());
+
+                long deadline = System.currentTimeMillis() + 5000;
+                while ((watchedServer.getMetrics().get(ServerMetrics.Counter.REAPED) == 0 || watchedServer.getClients().size() != 1)
+                        && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(50);
+                }
+                Assertions.assertEquals(1, watchedServer.getClients().size(), engine + " reaped the dead client");
+                Assertions.assertEquals("alive" + port, watchedServer.getClients().get(0).getUsername().replace("(admin)", ""));
+                Assertions.assertEquals(1, watchedServer.getMetrics().get(ServerMetrics.Counter.REAPED));
+
+                // The live client keeps answering and is never reaped
+                Thread.sleep(1000);
+                Assertions.assertEquals(1, watchedServer.getClients().size());
+                alive.closeAll();
+            }
+            finally {
+                watchedServer.stop();
+            }
+        }
+    }
+
+    // Test that a file reaches a single recipient and then the whole room intact, and that its spool file is deleted
+    @Test
+    void testFileRelay() throws Exception {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("relay");
+        byte[] content = new byte[300_000];
+        new java.util.Random(20).nextBytes(content);
+        java.nio.file.Path file = java.nio.file.Files.write(dir.resolve("photo.bin"), content);
+        for (Server.Engine engine : new Server.Engine[] {Server.Engine.THREADED, Server.Engine.NIO}) {
+            int port = 1650 + engine.ordinal();
+            java.nio.file.Path spool = java.nio.file.Files.createDirectories(dir.resolve("spool-" + engine));
+            System.setProperty("file.spool", spool.toString());
+            Server relayServer = new Server(port, engine);
+            System.clearProperty("file.spool");
+            relayServer.setHistoryReplay(0);
+            new Thread(relayServer::start).start();
+            Thread.sleep(500);
+
+            java.util.concurrent.Semaphore ended = new java.util.concurrent.Semaphore(0);
+            NetworkClient.Listener counting = new NetworkClient.Listener() {
+                public void onConnect(Socket socket) {}
+                public void onFrame(shared.Frame frame) {
+                    if (frame.getType() == shared.MessageUtils.FILE_END) {
+                        ended.release();
+                    }
+                }
+                public void onDisconnect(java.io.IOException cause) {}
+            };
+            NetworkClient sender = new NetworkClient("localhost", port, "sender" + port, counting);
+            NetworkClient bob = new NetworkClient("localhost", port, "bob" + port, counting);
+            NetworkClient carol = new NetworkClient("localhost", port, "carol" + port, counting);
+            bob.setDownloadDirectory(dir.resolve("bob-" + engine));
+            carol.setDownloadDirectory(dir.resolve("carol-" + engine));
+            try {
+                Assertions.assertTrue(sender.isConnected() && bob.isConnected() && carol.isConnected());
+                long deadline = System.currentTimeMillis() + 5000;
+                while (relayServer.getClients().size() != 3 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(20);
+                }
+
+                // A private file only reaches the recipient
+                sender.sendFile(file, "bob" + port).get(10, java.util.concurrent.TimeUnit.SECONDS);
+                Assertions.assertTrue(ended.tryAcquire(10, java.util.concurrent.TimeUnit.SECONDS), engine + " delivered the file");
+                Assertions.assertEquals(1, bob.getDownloads().getReceived().size());
+                Assertions.assertArrayEquals(content, java.nio.file.Files.readAllBytes(bob.getDownloads().getReceived().get(0)));
+                Assertions.assertEquals("photo.bin", bob.getDownloads().getReceived().get(0).getFileName().toString());
+
+                // A file to the room reaches everybody else, a second copy is saved next to the first
+                sender.sendFile(file, null).get(10, java.util.concurrent.TimeUnit.SECONDS);
+                Assertions.assertTrue(ended.tryAcquire(2, 10, java.util.concurrent.TimeUnit.SECONDS), engine + " delivered the file to the room");
+                Assertions.assertEquals(2, bob.getDownloads().getReceived().size());
+                Assertions.assertEquals("photo (1).bin", bob.getDownloads().getReceived().get(1).getFileName().toString());
+                Assertions.assertEquals(1, carol.getDownloads().getReceived().size());
+                Assertions.assertArrayEquals(content, java.nio.file.Files.readAllBytes(carol.getDownloads().getReceived().get(0)));
+                Assertions.assertEquals(0, sender.getDownloads().getReceived().size());
+                Assertions.assertEquals(2, relayServer.getMetrics().get(ServerMetrics.Counter.FILES));
+
+                // Every recipient finished, so nothing is left in the spool
+                deadline = System.currentTimeMillis() + 5000;
+                while (java.nio.file.Files.list(spool).findAny().isPresent() && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(20);
+                }
+                Assertions.assertFalse(java.nio.file.Files.list(spool).findAny().isPresent(), engine + " deleted the spool file");
+            }
+            finally {
+                sender.closeAll();
+                bob.closeAll();
+                carol.closeAll();
+                relayServer.stop();
+            }
+        }
+    }
+
+    // Test that a client that reconnects resumes its session as coordinator and receives exactly the messages it missed
+    @Test
+    void testSessionResume() throws Exception {
+        for (Server.Engine engine : new Server.Engine[] {Server.Engine.THREADED, Server.Engine.NIO}) {
+            int port = 1660 + engine.ordinal();
+            Server resumeServer = new Server(port, engine);
+            resumeServer.setHistoryReplay(0);
+            new Thread(resumeServer::start).start();
+            Thread.sleep(500);
+
+            java.util.List<String> bobChat = new java.util.concurrent.CopyOnWriteArrayList<>();
+            java.util.List<String> aliceText = new java.util.concurrent.CopyOnWriteArrayList<>();
+            NetworkClient bob = new NetworkClient("localhost", port, "bob" + port, new NetworkClient.Listener() {
+                public void onConnect(Socket socket) {}
+                public void onFrame(shared.Frame frame) {
+                    if (frame.getType() == shared.MessageUtils.CHAT) {
+                        bobChat.add(frame.getPayload());
+                    }
+                }
+                public void onDisconnect(java.io.IOException cause) {}
+            });
+            NetworkClient alice = new NetworkClient("localhost", port, "alice" + port, new NetworkClient.Listener() {
+                public void onConnect(Socket socket) {}
+                public void onFrame(shared.Frame frame) {
+                    aliceText.add(frame.toDisplayText());
+                }
+                public void onDisconnect(java.io.IOException cause) {}
+            });
+            try {
+                // Bob joins first and becomes the coordinator
+                Assertions.assertTrue(bob.isConnected());
+                awaitCondition(() -> resumeServer.getClients().size() == 1);
+                Assertions.assertTrue(alice.isConnected());
+                awaitCondition(() -> resumeServer.getClients().size() == 2);
+                alice.sendMessage(new shared.MessageUtils(shared.MessageUtils.MESSAGE, "before-a"));
+                awaitCondition(() -> bobChat.contains("before-a"));
+                Assertions.assertEquals(resumeServer.getLastSequence(), bob.getLastSequence());
+
+                // Bob's connection drops, the room goes on without him
+                bob.closeAll();
+                long dropped = resumeServer.getLastSequence();
+                for (String message : new String[] {"during-a", "during-b", "during-c"}) {
+                    alice.sendMessage(new shared.MessageUtils(shared.MessageUtils.MESSAGE, message));
+                }
+                awaitCondition(() -> resumeServer.getLastSequence() == dropped + 3);
+
+                // He comes back under the same name and role and receives only what he missed
+                Assertions.assertTrue(bob.reconnect());
+                awaitCondition(() -> bobChat.contains("during-c"));
+                Assertions.assertTrue(bob.isResumed(), engine + " resumed the session");
+                Assertions.assertEquals(java.util.List.of("before-a", "during-a", "during-b", "during-c"), new ArrayList<>(bobChat));
+                awaitCondition(() -> resumeServer.getClients().size() == 2);
+                Assertions.assertTrue(resumeServer.getClients().stream()
+                        .anyMatch(client -> client.getUsername().equals("(admin)bob" + port)), engine + " kept the coordinator");
+
+                // Live messages reach him again and nobody saw him leave
+                alice.sendMessage(new shared.MessageUtils(shared.MessageUtils.MESSAGE, "after-a"));
+                awaitCondition(() -> bobChat.contains("after-a"));
+                Assertions.assertEquals(resumeServer.getLastSequence(), bob.getLastSequence());
+                Assertions.assertTrue(aliceText.stream().noneMatch(text -> text.contains("has left")), engine + " announced a departure");
+            }
+            finally {
+                bob.closeAll();
+                alice.closeAll();
+                resumeServer.stop();
+            }
+        }
+    }
+
+    // Test that a flooding client is held to its rate limit, then dropped with a warning and then cut off,
+    // as the coordinator changes the policy while it is connected
+    @Test
+    void testRateLimits() throws Exception {
+        for (Server.Engine engine : new Server.Engine[] {Server.Engine.THREADED, Server.Engine.NIO}) {
+            int port = 1680 + engine.ordinal();
+            Server limitedServer = new Server(port, engine);
+            limitedServer.setHistoryReplay(0);
+            limitedServer.setRateLimit(RateLimiter.Kind.MESSAGES, new TokenBucket.Limit(5, 5));
+            new Thread(limitedServer::start).start();
+            Thread.sleep(500);
+
+            java.util.List<String> watcherChat = new java.util.concurrent.CopyOnWriteArrayList<>();
+            java.util.List<String> flooderText = new java.util.concurrent.CopyOnWriteArrayList<>();
+            java.util.concurrent.CountDownLatch cutOff = new java.util.concurrent.CountDownLatch(1);
+            NetworkClient watcher = new NetworkClient("localhost", port, "watcher" + port, new NetworkClient.Listener() {
+                public void onConnect(Socket socket) {}
+                public void onFrame(shared.Frame frame) {
+                    if (frame.getType() == shared.MessageUtils.CHAT) {
+                        watcherChat.add(frame.getPayload());
+                    }
+                }
+                public void onDisconnect(java.io.IOException cause) {}
+            });
+            NetworkClient flooder = new NetworkClient("localhost", port, "flooder" + port, new NetworkClient.Listener() {
+                public void onConnect(Socket socket) {}
+                public void onFrame(shared.Frame frame) {
+                    flooderText.add(frame.toDisplayText());
+                }
+                public void onDisconnect(java.io.IOException cause) {
+                    cutOff.countDown();
+                }
+            });
+            try {
+                // The watcher joins first and becomes the coordinator
+                Assertions.assertTrue(watcher.isConnected());
+                awaitCondition(() -> limitedServer.getClients().size() == 1);
+                Assertions.assertTrue(flooder.isConnected());
+                awaitCondition(() -> limitedServer.getClients().size() == 2);
+
+                // Held back, every message arrives in order but no faster than the rate once the burst is spent
+                long start = System.nanoTime();
+                for (int i = 0; i < 15; i++) {
+                    flooder.sendMessage(new shared.MessageUtils(shared.MessageUtils.MESSAGE, "held-" + (char) ('a' + i)));
+                }
+                awaitCondition(() -> watcherChat.contains("held-o"));
+                Assertions.assertTrue(System.nanoTime() - start > 1_500_000_000L, engine + " was not held back");
+                for (int i = 0; i < 15; i++) {
+                    Assertions.assertEquals("held-" + (char) ('a' + i), watcherChat.get(i));
+                }
+                Assertions.assertTrue(limitedServer.getMetrics().get(ServerMetrics.Counter.THROTTLED) > 0);
+
+                // Only the coordinator changes the policy, messages over the limit are then dropped with a warning
+                flooder.sendMessage(new shared.MessageUtils(shared.MessageUtils.LIMIT, "policy disconnect"));
+                awaitCondition(() -> flooderText.stream().anyMatch(text -> text.contains("not authorized to change the rate limits")));
+                watcher.sendMessage(new shared.MessageUtils(shared.MessageUtils.LIMIT, "policy drop"));
+                awaitCondition(() -> limitedServer.getRateLimiter().getPolicy() == RateLimiter.Policy.DROP);
+                for (int i = 0; i < 15; i++) {
+                    flooder.sendMessage(new shared.MessageUtils(shared.MessageUtils.MESSAGE, "dropped-" + (char) ('a' + i)));
+                }
+                awaitCondition(() -> flooderText.stream().anyMatch(text -> text.contains("your messages are dropped")));
+                Thread.sleep(300);
+                Assertions.assertTrue(watcherChat.stream().filter(text -> text.startsWith("dropped-")).count() < 15, engine + " dropped nothing");
+
+                // Under the disconnect policy the flooder is removed and told not to come back
+                watcher.sendMessage(new shared.MessageUtils(shared.MessageUtils.LIMIT, "policy disconnect"));
+                awaitCondition(() -> limitedServer.getRateLimiter().getPolicy() == RateLimiter.Policy.DISCONNECT);
+                for (int i = 0; i < 15; i++) {
+                    flooder.sendMessage(new shared.MessageUtils(shared.MessageUtils.MESSAGE, "cut-" + (char) ('a' + i)));
+                }
+                Assertions.assertTrue(cutOff.await(5, java.util.concurrent.TimeUnit.SECONDS), engine + " kept the flooder");
+                awaitCondition(() -> limitedServer.getClients().size() == 1);
+            }
+            finally {
+                watcher.closeAll();
+                flooder.closeAll();
+                limitedServer.stop();
+            }
+        }
+    }
+
+    // Test that both engines speak TLS, also for files, that a returning client resumes its session and that
+    // plaintext is refused
+    @Test
+    void testTls() throws Exception {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("tls");
+        java.nio.file.Path keyStore = dir.resolve("chat.p12");
+        char[] password = "changeit".toCharArray();
+        shared.Tls.generateTestKeyStore(keyStore, password);
+        byte[] content = new byte[300_000];
+        new java.util.Random(25).nextBytes(content);
+        java.nio.file.Path file = java.nio.file.Files.write(dir.resolve("photo.bin"), content);
+        javax.net.ssl.SSLContext serverContext = shared.Tls.serverContext(keyStore, password,
+                shared.Tls.DEFAULT_SESSION_CACHE, shared.Tls.DEFAULT_SESSION_TIMEOUT);
+
+        for (Server.Engine engine : new Server.Engine[] {Server.Engine.THREADED, Server.Engine.NIO}) {
+            int port = 1690 + engine.ordinal();
+            Server secureServer = new Server(port, engine);
+            secureServer.setHistoryReplay(0);
+            secureServer.setTls(serverContext);
+            new Thread(secureServer::start).start();
+            Thread.sleep(500);
+
+            // Both clients share one context, so the second resumes the session of the first
+            javax.net.ssl.SSLContext clientContext = shared.Tls.clientContext(keyStore, password);
+            java.util.List<String> received = new java.util.concurrent.CopyOnWriteArrayList<>();
+            java.util.concurrent.Semaphore ended = new java.util.concurrent.Semaphore(0);
+            NetworkClient.Listener listener = new NetworkClient.Listener() {
+                public void onConnect(Socket socket) {}
+                public void onFrame(shared.Frame frame) {
+                    if (frame.getType() == shared.MessageUtils.CHAT) {
+                        received.add(frame.getPayload());
+                    }
+                    if (frame.getType() == shared.MessageUtils.FILE_END) {
+                        ended.release();
+                    }
+                }
+                public void onDisconnect(java.io.IOException cause) {}
+            };
+            NetworkClient first = new NetworkClient("localhost", port, "first" + port, listener);
+            NetworkClient second = new NetworkClient("localhost", port, "second" + port, listener);
+            NetworkClient plain = new NetworkClient("localhost", port, "plain" + port, listener);
+            first.setTls(clientContext);
+            second.setTls(clientContext);
+            try {
+                Assertions.assertTrue(first.isConnected(), engine + " refused a TLS client");
+                awaitCondition(() -> secureServer.getClients().size() == 1);
+                Assertions.assertTrue(second.isConnected(), engine + " refused a returning TLS client");
+                awaitCondition(() -> secureServer.getClients().size() == 2);
+
+                second.sendMessage(new shared.MessageUtils(shared.MessageUtils.MESSAGE, "sealed-hello"));
+                awaitCondition(() -> received.stream().filter("sealed-hello"::equals).count() == 2);
+
+                // File chunks are sealed like messages on their way out of the spool
+                first.setDownloadDirectory(dir.resolve("downloads-" + engine));
+                second.sendFile(file, "first" + port).get(10, java.util.concurrent.TimeUnit.SECONDS);
+                Assertions.assertTrue(ended.tryAcquire(10, java.util.concurrent.TimeUnit.SECONDS), engine + " delivered the file");
+                Assertions.assertArrayEquals(content, java.nio.file.Files.readAllBytes(first.getDownloads().getReceived().get(0)));
+
+                ServerMetrics metrics = secureServer.getMetrics();
+                awaitCondition(() -> metrics.get(ServerMetrics.Counter.TLS_FULL) + metrics.get(ServerMetrics.Counter.TLS_RESUMED) == 2);
+                Assertions.assertEquals(1, metrics.get(ServerMetrics.Counter.TLS_FULL), engine + " negotiated every session");
+                Assertions.assertEquals(1, metrics.get(ServerMetrics.Counter.TLS_RESUMED), engine + " resumed no session");
+
+                // A client without TLS never gets past the handshake
+                Assertions.assertFalse(plain.isConnected(), engine + " accepted a plaintext client");
+                Assertions.assertEquals(2, secureServer.getClients().size());
+            }
+            finally {
+                first.closeAll();
+                second.closeAll();
+                plain.closeAll();
+                secureServer.stop();
+            }
+        }
+    }
+
+    // Test that a legacy client sending messages without text neither breaks its connection nor the server
+    @Test
+    void testNullMessage() throws Exception {
+        for (Server.Engine engine : new Server.Engine[] {Server.Engine.THREADED, Server.Engine.NIO}) {
+            int port = 1700 + engine.ordinal();
+            Server legacyServer = new Server(port, engine);
+            legacyServer.setHistoryReplay(0);
+            new Thread(legacyServer::start).start();
+            Thread.sleep(500);
+
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.setSoTimeout(5000);
+                java.io.ObjectOutputStream out = new java.io.ObjectOutputStream(socket.getOutputStream());
+                out.writeObject("legacy" + port);
+                out.flush();
+                java.io.ObjectInputStream in = new java.io.ObjectInputStream(socket.getInputStream());
+                awaitCondition(() -> legacyServer.getClients().size() == 1);
+
+                // The legacy client is the coordinator, so the kick without a name reaches the lookup
+                out.writeObject(new shared.MessageUtils(shared.MessageUtils.MESSAGE, null));
+                out.writeObject(new shared.MessageUtils(shared.MessageUtils.KICK, null));
+                out.writeObject(new shared.MessageUtils(shared.MessageUtils.MESSAGE, "still-here"));
+                out.flush();
+                String line;
+                do {
+                    line = (String) in.readObject();
+                } while (!line.contains("still-here"));
+                Assertions.assertEquals(1, legacyServer.getClients().size(), engine + " lost the client");
+            }
+            finally {
+                legacyServer.stop();
+            }
+        }
+    }
+
+    // Test that a client speaking Java serialization is cut off when it sends anything but strings and messages
+    @Test
+    void testLegacyFilter() throws Exception {
+        Server legacyServer = new Server(1710);
+        legacyServer.setHistoryReplay(0);
+        new Thread(legacyServer::start).start();
+        Thread.sleep(500);
+
+        try (Socket socket = new Socket("localhost", 1710)) {
+            socket.setSoTimeout(5000);
+            java.io.ObjectOutputStream out = new java.io.ObjectOutputStream(socket.getOutputStream());
+            out.writeObject("filtered");
+            out.flush();
+            java.io.ObjectInputStream in = new java.io.ObjectInputStream(socket.getInputStream());
+            awaitCondition(() -> legacyServer.getClients().size() == 1);
+
+            // The server may already have cut us off while the map is still being written
+            Assertions.assertThrows(java.io.IOException.class, () -> {
+                out.writeObject(new java.util.HashMap<String, String>());
+                out.flush();
+                while (true) {
+                    in.readObject();
+                }
+            });
+            awaitCondition(() -> legacyServer.getClients().isEmpty());
+        }
+        finally {
+            legacyServer.stop();
+        }
+    }
+
+    // Test that the bytes of a file count against the sender's address and are held back, not lost
+    @Test
+    void testFileRateLimit() throws Exception {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("limited-relay");
+        byte[] content = new byte[300_000];
+        new java.util.Random(23).nextBytes(content);
+        java.nio.file.Path file = java.nio.file.Files.write(dir.resolve("photo.bin"), content);
+        for (Server.Engine engine : new Server.Engine[] {Server.Engine.THREADED, Server.Engine.NIO}) {
+            int port = 1720 + engine.ordinal();
+            System.setProperty("file.spool", java.nio.file.Files.createDirectories(dir.resolve("spool-" + engine)).toString());
+            Server limitedServer = new Server(port, engine);
+            System.clearProperty("file.spool");
+            limitedServer.setHistoryReplay(0);
+            limitedServer.setRateLimit(RateLimiter.Kind.IP_BYTES, new TokenBucket.Limit(100_000, 100_000));
+            new Thread(limitedServer::start).start();
+            Thread.sleep(500);
+
+            java.util.concurrent.Semaphore ended = new java.util.concurrent.Semaphore(0);
+            NetworkClient.Listener counting = new NetworkClient.Listener() {
+                public void onConnect(Socket socket) {}
+                public void onFrame(shared.Frame frame) {
+                    if (frame.getType() == shared.MessageUtils.FILE_END) {
+                        ended.release();
+                    }
+                }
+                public void onDisconnect(java.io.IOException cause) {}
+            };
+            NetworkClient sender = new NetworkClient("localhost", port, "sender" + port, counting);
+            NetworkClient bob = new NetworkClient("localhost", port, "bob" + port, counting);
+            bob.setDownloadDirectory(dir.resolve("bob-" + engine));
+            try {
+                Assertions.assertTrue(sender.isConnected() && bob.isConnected());
+                awaitCondition(() -> limitedServer.getClients().size() == 2);
+
+                long start = System.nanoTime();
+                sender.sendFile(file, "bob" + port).get(10, java.util.concurrent.TimeUnit.SECONDS);
+                Assertions.assertTrue(ended.tryAcquire(10, java.util.concurrent.TimeUnit.SECONDS), engine + " delivered the file");
+                Assertions.assertTrue(System.nanoTime() - start > 1_500_000_000L, engine + " did not hold the file back");
+                Assertions.assertArrayEquals(content, java.nio.file.Files.readAllBytes(bob.getDownloads().getReceived().get(0)));
+                Assertions.assertTrue(limitedServer.getMetrics().get(ServerMetrics.Counter.THROTTLED) > 0);
+            }
+            finally {
+                sender.closeAll();
+                bob.closeAll();
+                limitedServer.stop();
+            }
+        }
+    }
+
+    // Wait up to five seconds for the condition to hold
+    private static void awaitCondition(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Assertions.assertTrue(condition.getAsBoolean(), "condition not met within five seconds");
+    }
+
     // Test the method for the list of banned users
     @Test
     void testContainsBadWord() {
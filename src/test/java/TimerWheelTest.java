@@ -0,0 +1,58 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import server.TimerWheel;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+class TimerWheelTest {
+
+    // Test that tasks run once their delay passed, including delays longer than a turn of the wheel
+    @Test
+    void testScheduledTasksRun() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel("test-wheel", 10, 8, message -> {});
+        try {
+            CountDownLatch done = new CountDownLatch(3);
+            long start = System.nanoTime();
+            long[] ranAfter = new long[3];
+            int[] delays = {20, 50, 200};
+            for (int i = 0; i < delays.length; i++) {
+                int task = i;
+                wheel.schedule(delays[i], () -> {
+                    ranAfter[task] = (System.nanoTime() - start) / 1_000_000;
+                    done.countDown();
+                });
+            }
+            Assertions.assertTrue(done.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < delays.length; i++) {
+                Assertions.assertTrue(ranAfter[i] >= delays[i], "task " + i + " ran after " + ranAfter[i] + " ms");
+            }
+            Assertions.assertEquals(0, wheel.size());
+        }
+        finally {
+            wheel.stop();
+        }
+    }
+
+    // Test that cancelled tasks never run and are dropped when the wheel reaches them
+    @Test
+    void testCancel() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel("test-wheel", 10, 16, message -> {});
+        try {
+            AtomicInteger ran = new AtomicInteger();
+            for (int i = 0; i < 1000; i++) {
+                wheel.schedule(30, ran::incrementAndGet).cancel();
+            }
+            CountDownLatch marker = new CountDownLatch(1);
+            wheel.schedule(60, marker::countDown);
+            Assertions.assertTrue(marker.await(5, TimeUnit.SECONDS));
+            Assertions.assertEquals(0, ran.get());
+            Assertions.assertEquals(0, wheel.size());
+        }
+        finally {
+            wheel.stop();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import server.TimestampCache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+class TimestampCacheTest {
+
+    // Test that the formatted time is reused within a second and formatted again when the second changes
+    @Test
+    void testCachedPerSecond() {
+        AtomicLong clock = new AtomicLong(1_700_000_000_000L);
+        TimestampCache timestamps = new TimestampCache(clock::get);
+
+        String first = timestamps.now();
+        Assertions.assertTrue(first.matches("\\d\\d:\\d\\d:\\d\\d"));
+        clock.addAndGet(999);
+        Assertions.assertSame(first, timestamps.now());
+
+        clock.addAndGet(1);
+        String next = timestamps.now();
+        Assertions.assertNotEquals(first, next);
+        Assertions.assertSame(next, timestamps.now());
+    }
+}
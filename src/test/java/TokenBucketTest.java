@@ -0,0 +1,58 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import server.TokenBucket;
+
+
+class TokenBucketTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    // Test that a new bucket lets its whole burst through and then holds requests to the rate
+    @Test
+    void testBurstThenRate() {
+        TokenBucket.Limit limit = new TokenBucket.Limit(2, 5);
+        TokenBucket bucket = new TokenBucket(0);
+        for (int i = 0; i < 5; i++) {
+            Assertions.assertEquals(0, bucket.waitFor(limit, 1, 0));
+            bucket.take(limit, 1);
+        }
+        Assertions.assertEquals(SECOND / 2, bucket.waitFor(limit, 1, 0));
+        // Half a second later a token dripped in, never more than the burst however long it waits
+        Assertions.assertEquals(0, bucket.waitFor(limit, 1, SECOND / 2));
+        Assertions.assertEquals(0, bucket.waitFor(limit, 5, 60 * SECOND));
+    }
+
+    // Test that an amount larger than the burst waits only for a full bucket and then empties it
+    @Test
+    void testOversizedAmountEmptiesBucket() {
+        TokenBucket.Limit limit = new TokenBucket.Limit(100, 1000);
+        TokenBucket bucket = new TokenBucket(0);
+        Assertions.assertEquals(0, bucket.waitFor(limit, 5000, 0));
+        bucket.take(limit, 5000);
+        Assertions.assertEquals(10 * SECOND, bucket.waitFor(limit, 5000, 0));
+        Assertions.assertEquals(SECOND / 100, bucket.waitFor(limit, 1, 0));
+    }
+
+    // Test that a clock read before the last refill takes nothing away
+    @Test
+    void testOlderClockIgnored() {
+        TokenBucket.Limit limit = new TokenBucket.Limit(1, 1);
+        TokenBucket bucket = new TokenBucket(SECOND);
+        Assertions.assertEquals(0, bucket.waitFor(limit, 1, SECOND));
+        bucket.take(limit, 1);
+        Assertions.assertEquals(SECOND, bucket.waitFor(limit, 1, 0));
+        Assertions.assertEquals(0, bucket.waitFor(limit, 1, 2 * SECOND));
+    }
+
+    // Test that no limit never holds anything back and that limits which make no sense are refused
+    @Test
+    void testUnlimitedAndInvalidLimits() {
+        TokenBucket bucket = new TokenBucket(0);
+        for (int i = 0; i < 1000; i++) {
+            Assertions.assertEquals(0, bucket.waitFor(TokenBucket.Limit.UNLIMITED, 1 << 20, 0));
+            bucket.take(TokenBucket.Limit.UNLIMITED, 1 << 20);
+        }
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new TokenBucket.Limit(-1, 10));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new TokenBucket.Limit(10, 0));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new TokenBucket.Limit(Double.NaN, 10));
+    }
+}
@@ -6,6 +6,8 @@ import server.Server;
 
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 import static org.hamcrest.CoreMatchers.containsString;
 
@@ -16,8 +18,12 @@ public class UserInputTest {
     private static Server server;
 
     @BeforeAll
-    public static void setUpStreamsAndServer() {
+    public static void setUpStreamsAndServer() throws IOException {
         System.setOut(new PrintStream(stdout));
+        // Keep the history and the mail out of the source tree
+        Path data = Files.createTempDirectory("chat-data");
+        System.setProperty("history.dir", data.resolve("history").toString());
+        System.setProperty("mailbox.dir", data.resolve("mailbox").toString());
         server = new Server(1500);
         new Thread(() -> {
             server.start();